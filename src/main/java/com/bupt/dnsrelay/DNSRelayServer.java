@@ -1,16 +1,36 @@
 package com.bupt.dnsrelay;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.bupt.dnsrelay.config.BlocklistFeeds;
 import com.bupt.dnsrelay.config.CacheManager;
+import com.bupt.dnsrelay.config.ClientPolicy;
 import com.bupt.dnsrelay.config.ConfigParser;
+import com.bupt.dnsrelay.config.ConfigTable;
+import com.bupt.dnsrelay.config.ConfigWatcher;
 import com.bupt.dnsrelay.dns.DNSMessage;
+import com.bupt.dnsrelay.dns.DNSMessageWriter;
 import com.bupt.dnsrelay.dns.DNSParser;
 import com.bupt.dnsrelay.dns.DNSRecord;
+import com.bupt.dnsrelay.dns.EDNS;
+import com.bupt.dnsrelay.dns.NameKey;
+import com.bupt.dnsrelay.network.BufferPool;
+import com.bupt.dnsrelay.network.ClientRateLimiter;
+import com.bupt.dnsrelay.network.TCPServer;
 import com.bupt.dnsrelay.network.UDPServer;
+import com.bupt.dnsrelay.network.UpstreamGroup;
+import com.bupt.dnsrelay.network.UpstreamRouter;
+import com.bupt.dnsrelay.pipeline.AdaptivePoolController;
+import com.bupt.dnsrelay.pipeline.QueryEvent;
+import com.bupt.dnsrelay.pipeline.QueryPipeline;
 import com.bupt.dnsrelay.utils.DebugUtils;
 
 /**
@@ -21,14 +41,56 @@ public class DNSRelayServer {
     private static final String DEFAULT_UPSTREAM_DNS = "10.3.9.4";
     private static final String DEFAULT_CONFIG_FILE = "config\\dnsrelay.txt";
     private static final int DEFAULT_THREAD_POOL_SIZE = 10; // 默认线程池大小
+    private static final int DEFAULT_QUEUE_DEPTH = 512;     // 默认准入队列深度
+    private static final long DEFAULT_TARGET_QUEUE_DELAY_MS = 20; // 自适应线程池的默认排队延迟目标
+    private static final int DNS_HEADER_SIZE = 12;
+    private static final int NEEDS_UPSTREAM = -2; // answerLocally未命中，需要转发到上游
+    private static final int EXPIRED = -3;        // 查询已超过截止时间，不再响应
+    private static final int SENT = -4;           // 响应超出缓冲区，已经直接发送
+    private static final int TOO_LARGE = -5;      // TCP客户端的本地应答超出租用的缓冲区，需要在更大的数组中重建
+    private static final int TCP_MAX_MESSAGE = 65535;
+    private static final long PIPELINE_STATS_INTERVAL_MS = 10000; // 调试模式下输出流水线统计的间隔
+    
+    // 每个工作线程复用的查询键，查本地配置和缓存时不再分配内存
+    private static final ThreadLocal<NameKey> QUERY_KEY = ThreadLocal.withInitial(NameKey::new);
     
     private ConfigParser configParser = new ConfigParser();
+    private ConfigWatcher configWatcher; // 配置文件热加载
     private UDPServer udpServer;
+    private TCPServer tcpServer;             // RFC 7766 TCP监听，与UDP共用处理流程
     private String upstreamDNS;
     private int debugLevel;
     private volatile boolean isRunning = false;
     private CacheManager cacheManager;
     private ExecutorService requestExecutor; // 处理DNS请求的线程池
+    private final BufferPool bufferPool;     // 查询和响应共用的缓冲区池
+    private boolean inlineFastPath = false;  // 是否在接收线程上直接应答可本地解决的查询
+    private boolean pipelineMode = false;    // 是否使用分阶段环形缓冲区流水线代替线程池
+    private QueryPipeline pipeline;
+    private int queueDepth = DEFAULT_QUEUE_DEPTH;          // 等待处理的查询数上限
+    private ShedPolicy shedPolicy = ShedPolicy.REFUSED;    // 准入队列已满时的处理方式
+    private final AtomicLong shedCount = new AtomicLong(); // 因过载被拒绝的查询数
+    private final AtomicLong expiredCount = new AtomicLong(); // 因超过截止时间被丢弃的查询数
+    private int minWorkers = DEFAULT_THREAD_POOL_SIZE;     // 工作线程数下限
+    private int maxWorkers = DEFAULT_THREAD_POOL_SIZE;     // 工作线程数上限，与下限相同时线程数固定
+    private long targetQueueDelayMs = DEFAULT_TARGET_QUEUE_DELAY_MS;
+    private AdaptivePoolController poolController;         // 线程数可变时按排队延迟调整线程池
+    private String upstreamRouteFile;  // 按域名后缀选择上游组的路由文件，null表示全部转发到upstreamDNS
+    private UpstreamRouter upstreamRouter;
+    private ClientRateLimiter rateLimiter;  // 按客户端限速，null表示不限速
+    private String clientPolicyFile;   // 按客户端网段选择视图或拒绝的策略文件，null表示所有客户端使用主配置
+    private ClientPolicy clientPolicy;
+    private String blocklistFeedFile;  // 外部拦截列表订阅文件，null表示不使用订阅
+    private BlocklistFeeds blocklistFeeds;
+    
+    /**
+     * 准入队列已满时对新查询的处理方式
+     */
+    public enum ShedPolicy {
+        REFUSED,   // 立即回复REFUSED
+        SERVFAIL,  // 立即回复SERVFAIL
+        DROP       // 直接丢弃，由客户端重试
+    }
     
     /**
      * 构造函数
@@ -40,13 +102,13 @@ public class DNSRelayServer {
         this.upstreamDNS = upstreamDNS;
         this.debugLevel = debugLevel;
         this.udpServer = new UDPServer(debugLevel);
-        // 初始化线程池
-        this.requestExecutor = Executors.newFixedThreadPool(DEFAULT_THREAD_POOL_SIZE);
-        
+        this.bufferPool = udpServer.getBufferPool();
+        this.tcpServer = new TCPServer(UDPServer.DNS_PORT, debugLevel, bufferPool, this::dispatch);
         try {
             configParser.loadConfig(configFile);
             DebugUtils.debug(debugLevel, "Configuration loaded successfully");
             if (debugLevel >= 1) configParser.printConfig();
+            this.configWatcher = new ConfigWatcher(configParser, configFile, debugLevel);
             // 初始化CacheManager
             this.cacheManager = new CacheManager("config/cache.txt");
             DebugUtils.debugf(debugLevel, "[CACHE] Loaded %d entries from cache.txt%n", cacheManager.size());
@@ -56,18 +118,171 @@ public class DNSRelayServer {
         }
     }
     
+    /**
+     * 设置是否启用接收线程快速路径（需在start之前调用）
+     * 启用后拦截、本地解析和缓存命中的查询在接收线程上直接应答，只有需要转发的查询进入线程池
+     * @param inlineFastPath 是否启用
+     */
+    public void setInlineFastPath(boolean inlineFastPath) {
+        this.inlineFastPath = inlineFastPath;
+    }
+    
+    /**
+     * 设置是否使用分阶段流水线（需在start之前调用）
+     * 启用后查询经由预分配的环形缓冲区依次通过解码/路由、上游转发和发送阶段，不再进入线程池队列
+     * @param pipelineMode 是否启用
+     */
+    public void setPipelineMode(boolean pipelineMode) {
+        this.pipelineMode = pipelineMode;
+    }
+    
+    /**
+     * 设置准入队列深度和过载处理方式（需在start之前调用）
+     * 线程池模式下是线程池等待队列的容量，流水线模式下是各环形缓冲区的容量（向上取整为2的幂）
+     * @param queueDepth 等待处理的查询数上限
+     * @param shedPolicy 队列已满时的处理方式
+     */
+    public void setAdmissionControl(int queueDepth, ShedPolicy shedPolicy) {
+        this.queueDepth = queueDepth;
+        this.shedPolicy = shedPolicy;
+    }
+    
+    /**
+     * 设置每个查询的处理时限（需在start之前调用）
+     * 超过时限的查询在解析、转发上游和发送之前被丢弃，上游等待时间也不超过剩余时限
+     * @param budgetMillis 从收到查询开始计算的毫秒数
+     */
+    public void setQueryBudget(long budgetMillis) {
+        udpServer.setQueryBudget(budgetMillis);
+        tcpServer.setQueryBudget(budgetMillis);
+    }
+    
+    /**
+     * 设置工作线程数范围（需在start之前调用）
+     * 上下限不同时，线程池大小由排队延迟目标驱动在范围内自动调整
+     * @param minWorkers 最少线程数
+     * @param maxWorkers 最多线程数
+     * @param targetQueueDelayMs 目标排队延迟（毫秒）
+     */
+    public void setWorkerBounds(int minWorkers, int maxWorkers, long targetQueueDelayMs) {
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+        this.targetQueueDelayMs = targetQueueDelayMs;
+    }
+    
+    /**
+     * 设置按客户端限速（需在start之前调用）
+     * 只限制UDP查询：超过速率的查询在接收线程上直接丢弃或回复TC，不解析、不进入队列
+     * @param rate 每个客户端每秒允许的查询数
+     * @param burst 允许的突发查询数
+     * @param action 超过速率时的处理方式
+     */
+    public void setClientRateLimit(int rate, int burst, ClientRateLimiter.Action action) {
+        this.rateLimiter = new ClientRateLimiter(rate, burst, ClientRateLimiter.DEFAULT_CAPACITY, action);
+    }
+    
+    /**
+     * 设置客户端策略文件（需在start之前调用）
+     * 按客户端网段选择视图（视图自己的本地配置优先应答），或直接拒绝、丢弃查询
+     * @param policyFile 策略文件路径
+     */
+    public void setClientPolicy(String policyFile) {
+        this.clientPolicyFile = policyFile;
+    }
+    
+    /**
+     * 设置外部拦截列表订阅文件（需在start之前调用）
+     * 订阅列表在后台按版本号应用增量文件，本地配置中没有的名字再查订阅
+     * @param feedFile 订阅文件路径
+     */
+    public void setBlocklistFeeds(String feedFile) {
+        this.blocklistFeedFile = feedFile;
+    }
+    
+    /**
+     * 设置上游路由文件（需在start之前调用）
+     * 查询按域名后缀转发到不同的上游组，每个组有自己的服务器、超时、熔断器和并发限制
+     * @param routeFile 路由文件路径
+     */
+    public void setUpstreamRoutes(String routeFile) {
+        this.upstreamRouteFile = routeFile;
+    }
+    
     /**
      * 启动DNS中继服务器
      */
     public void start() {
         try {
+            upstreamRouter = upstreamRouteFile != null
+                ? UpstreamRouter.load(upstreamRouteFile, upstreamDNS, debugLevel)
+                : UpstreamRouter.single(upstreamDNS, debugLevel);
+            if (clientPolicyFile != null) {
+                clientPolicy = ClientPolicy.load(clientPolicyFile, debugLevel);
+            }
+            if (blocklistFeedFile != null) {
+                blocklistFeeds = BlocklistFeeds.load(blocklistFeedFile, debugLevel);
+            }
             udpServer.start();
             isRunning = true;
+            if (pipelineMode) {
+                // 流水线由各阶段自己的线程处理查询，不创建线程池
+                pipeline = new QueryPipeline(queueDepth, DEFAULT_THREAD_POOL_SIZE, new PipelineStages());
+                pipeline.start();
+                startPipelineStatsReporter();
+            } else {
+                // 有界等待队列：过载时新查询被立即拒绝，而不是无限排队到客户端早已超时
+                int initialWorkers = Math.max(minWorkers, Math.min(maxWorkers, DEFAULT_THREAD_POOL_SIZE));
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(initialWorkers, initialWorkers,
+                    0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueDepth));
+                requestExecutor = executor;
+                if (maxWorkers > minWorkers) {
+                    poolController = new AdaptivePoolController(executor, minWorkers, maxWorkers, targetQueueDelayMs, debugLevel);
+                    poolController.start();
+                }
+            }
+            try {
+                tcpServer.start();
+            } catch (IOException e) {
+                System.err.println("Warning: TCP listener unavailable, serving UDP only: " + e.getMessage());
+            }
+            try {
+                configWatcher.start();
+            } catch (IOException e) {
+                System.err.println("Warning: Configuration hot reload unavailable: " + e.getMessage());
+            }
+            if (clientPolicy != null) {
+                clientPolicy.startWatchers();
+            }
+            if (blocklistFeeds != null) {
+                blocklistFeeds.start();
+            }
+            cacheManager.start();
             System.out.println("DNS Relay Server started successfully (Parallel Processing Enabled)");
             System.out.println("Debug level: " + debugLevel);
             System.out.println("Upstream DNS: " + upstreamDNS);
+            if (upstreamRouteFile != null) {
+                System.out.println("Upstream routes: " + upstreamRouter.getZoneCount() + " zones, "
+                    + upstreamRouter.getGroups().size() + " groups (default " + upstreamRouter.getDefaultGroup() + ")");
+            }
             System.out.println("Configuration entries: " + configParser.getEntryCount());
-            System.out.println("Thread pool size: " + DEFAULT_THREAD_POOL_SIZE);
+            if (blocklistFeeds != null) {
+                System.out.println("Blocklist feed entries: " + blocklistFeeds.getEntryCount());
+            }
+            if (pipeline != null) {
+                System.out.println("Pipeline upstream threads: " + DEFAULT_THREAD_POOL_SIZE);
+            } else if (poolController != null) {
+                System.out.println("Thread pool size: adaptive " + minWorkers + "-" + maxWorkers
+                    + " (target queue delay " + targetQueueDelayMs + "ms)");
+            } else {
+                System.out.println("Thread pool size: " + minWorkers);
+            }
+            System.out.println("Inline fast path: " + (inlineFastPath ? "enabled" : "disabled"));
+            System.out.println("Staged pipeline: " + (pipelineMode ? "enabled" : "disabled"));
+            System.out.println("Admission queue depth: " + queueDepth + " (overload policy: " + shedPolicy + ")");
+            if (rateLimiter != null) {
+                System.out.println("Client rate limit: " + rateLimiter.describe());
+            }
+            System.out.println("Query budget: " + udpServer.getQueryBudget() + "ms");
             System.out.println("Waiting for DNS queries...\n");
             
             Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
@@ -85,21 +300,59 @@ public class DNSRelayServer {
         if (isRunning) {
             System.out.println("Stopping DNS Relay Server...");
             isRunning = false;
+            configWatcher.stop();
+            if (clientPolicy != null) {
+                clientPolicy.stop();
+                for (String line : clientPolicy.describe().split(System.lineSeparator())) {
+                    System.out.println("[POLICY] " + line);
+                }
+            }
+            if (blocklistFeeds != null) {
+                blocklistFeeds.stop();
+                for (String line : blocklistFeeds.describe().split(System.lineSeparator())) {
+                    System.out.println("[FEED] " + line);
+                }
+            }
+            if (poolController != null) {
+                poolController.stop();
+            }
+            if (pipeline != null) {
+                pipeline.stop();
+                System.out.println("[PIPELINE] " + pipeline.describe());
+            }
+            System.out.println("[BUFFERS] " + bufferPool.describe());
+            for (UpstreamGroup group : upstreamRouter.getGroups()) {
+                System.out.println("[UPSTREAM] " + group.describe());
+            }
+            if (expiredCount.get() > 0) {
+                System.out.println("[DEADLINE] " + expiredCount.get() + " expired queries dropped");
+            }
+            if (shedCount.get() > 0) {
+                System.out.println("[OVERLOAD] " + shedCount.get() + " queries shed (" + shedPolicy + ")");
+            }
+            if (rateLimiter != null) {
+                System.out.println("[RATELIMIT] " + rateLimiter.describe());
+            }
+            tcpServer.stop();
             udpServer.stop();
+            upstreamRouter.close();
+            cacheManager.stop();
             
-            // 关闭线程池
-            requestExecutor.shutdown();
-            try {
-                if (!requestExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
-                    System.out.println("Forcing shutdown of thread pool...");
-                    requestExecutor.shutdownNow();
+            // 关闭线程池（流水线模式下没有线程池）
+            if (requestExecutor != null) {
+                requestExecutor.shutdown();
+                try {
                     if (!requestExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
-                        System.err.println("Thread pool did not terminate");
+                        System.out.println("Forcing shutdown of thread pool...");
+                        requestExecutor.shutdownNow();
+                        if (!requestExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                            System.err.println("Thread pool did not terminate");
+                        }
                     }
+                } catch (InterruptedException e) {
+                    requestExecutor.shutdownNow();
+                    Thread.currentThread().interrupt();
                 }
-            } catch (InterruptedException e) {
-                requestExecutor.shutdownNow();
-                Thread.currentThread().interrupt();
             }
             
             System.out.println("DNS Relay Server stopped");
@@ -110,37 +363,21 @@ public class DNSRelayServer {
      * 主服务循环 - 并行处理版本
      */
     private void runServerLoop() {
-        System.out.println("Server loop started with parallel processing");
+        System.out.println("Server loop started with parallel processing"
+            + (inlineFastPath ? " (inline fast path enabled)" : ""));
         
         while (isRunning) {
             try {
                 UDPServer.DNSPacket packet = udpServer.receiveQuery();
-                if (packet == null) continue;
-                
-                // 使用线程池异步处理每个DNS请求
-                requestExecutor.submit(() -> {
-                    try {
-                        DebugUtils.debugf(debugLevel, "\n--- Processing DNS Query from %s (Thread: %s) ---\n", 
-                            packet.getClientInfo(), Thread.currentThread().getName());
-                        
-                        byte[] responseData = handleDNSQuery(packet.getData());
-                        if (responseData != null) {
-                            udpServer.sendResponse(responseData, packet.getClientAddress(), packet.getClientPort());
-                            DebugUtils.debugf(debugLevel, "Response sent to client (%d bytes) (Thread: %s)\n", 
-                                responseData.length, Thread.currentThread().getName());
-                        } else {
-                            System.err.println("Error: Failed to generate response for " + packet.getClientInfo());
-                        }
-                        
-                        DebugUtils.debug(debugLevel, "----------------------------------------\n");
-                    } catch (IOException e) {
-                        System.err.println("Error processing DNS query from " + packet.getClientInfo() + ": " + e.getMessage());
-                    } catch (Exception e) {
-                        System.err.println("Unexpected error processing DNS query: " + e.getMessage());
-                        e.printStackTrace();
-                    }
-                });
-                
+                if (packet == null) {
+                    continue;
+                }
+                if (rateLimiter != null && !rateLimiter.tryAcquire(packet.getClientAddress(), packet.getArrivalNanos())) {
+                    rateLimited(packet);
+                    packet.release();
+                } else {
+                    dispatch(packet);
+                }
             } catch (IOException e) {
                 if (isRunning) {
                     System.err.println("Error in server loop: " + e.getMessage());
@@ -149,156 +386,851 @@ public class DNSRelayServer {
         }
     }
     
+    /**
+     * 把收到的查询交给当前的处理方式（UDP接收线程和TCP选择器线程共用）
+     * 队列已满时按过载策略处理，调用方不再持有数据包
+     * @param packet DNS查询数据包
+     */
+    private void dispatch(UDPServer.DNSPacket packet) {
+        if (clientPolicy != null) {
+            ClientPolicy.View view = clientPolicy.resolve(packet.getClientAddress());
+            if (view != null && view.getAction() != ClientPolicy.Action.VIEW) {
+                deny(packet, view);
+                packet.release();
+                return;
+            }
+            packet.setView(view);
+        }
+        
+        if (pipeline != null) {
+            if (!pipeline.offer(packet)) {
+                shed(packet);
+                packet.release();
+            }
+            return;
+        }
+        
+        if (inlineFastPath) {
+            // 拦截、本地和缓存命中直接在接收线程应答，只有未命中才交给线程池
+            processInline(packet);
+            return;
+        }
+        
+        // 使用线程池异步处理每个DNS请求
+        try {
+            requestExecutor.execute(() -> processPacket(packet, null));
+        } catch (RejectedExecutionException e) {
+            shed(packet);
+            packet.release();
+        }
+    }
+    
+    /**
+     * 把响应发回客户端：TCP查询经原连接发送，UDP查询直接发送数据报
+     * @param packet DNS查询数据包
+     * @param data 响应数据
+     * @param length 响应长度
+     * @throws IOException 网络错误
+     */
+    private void respond(UDPServer.DNSPacket packet, byte[] data, int length) throws IOException {
+        TCPServer.TCPConnection connection = packet.getConnection();
+        if (connection != null) {
+            connection.send(data, length);
+        } else {
+            udpServer.sendResponse(data, length, packet.getClientAddress(), packet.getClientPort());
+        }
+    }
+    
+    /**
+     * 在接收线程上处理一个数据包：能在本地应答的查询立即发送，未命中的查询连同解析结果交给线程池转发
+     * @param packet DNS查询数据包
+     */
+    private void processInline(UDPServer.DNSPacket packet) {
+        ByteBuffer response = bufferPool.lease();
+        boolean handedOff = false;
+        try {
+            DNSMessage queryMessage = parseQuery(packet.getData(), packet.getLength());
+            if (queryMessage == null) {
+                return;
+            }
+            int responseLength = answerLocally(queryMessage, packet, response);
+            if (responseLength == NEEDS_UPSTREAM) {
+                requestExecutor.execute(() -> processPacket(packet, queryMessage));
+                handedOff = true;
+                return;
+            }
+            sendResult(packet, response, responseLength);
+        } catch (RejectedExecutionException e) {
+            shed(packet);
+        } catch (IOException e) {
+            System.err.println("Error processing DNS query from " + packet.getClientInfo() + ": " + e.getMessage());
+        } finally {
+            bufferPool.release(response);
+            if (!handedOff) {
+                packet.release();
+            }
+        }
+    }
+    
+    /**
+     * 准入队列已满时按策略处理查询：直接由原始报文生成REFUSED/SERVFAIL响应，或丢弃
+     * 不解析报文、不进入队列；数据包由调用方归还
+     * @param packet DNS查询数据包
+     */
+    private void shed(UDPServer.DNSPacket packet) {
+        ByteBuffer response = bufferPool.lease();
+        try {
+            int responseLength = writeShedResponse(packet, response);
+            if (responseLength > 0) {
+                respond(packet, response.array(), responseLength);
+            }
+        } catch (IOException e) {
+            System.err.println("Error sending overload response to " + packet.getClientInfo() + ": " + e.getMessage());
+        } finally {
+            bufferPool.release(response);
+        }
+    }
+    
+    /**
+     * 记录一个因过载被拒绝的查询，并按策略把REFUSED/SERVFAIL响应写入缓冲区
+     * @param packet DNS查询数据包
+     * @param response 响应缓冲区
+     * @return 响应长度，丢弃或报文无法应答时返回-1
+     */
+    private int writeShedResponse(UDPServer.DNSPacket packet, ByteBuffer response) {
+        shedCount.incrementAndGet();
+        if (!isRunning || shedPolicy == ShedPolicy.DROP) {
+            return -1;
+        }
+        int rcode = shedPolicy == ShedPolicy.REFUSED ? DNSMessage.RCODE_REFUSED : DNSMessage.RCODE_SERVFAIL;
+        if (debugLevel >= 2) {
+            System.out.printf("[OVERLOAD] %s -> %s%n", packet.getClientInfo(), shedPolicy);
+        }
+        return DNSMessageWriter.writeErrorResponse(packet.getData(), packet.getLength(), rcode, response);
+    }
+    
+    /**
+     * 客户端策略拒绝的查询：直接由原始报文生成REFUSED响应，或丢弃
+     * 不解析报文；数据包由调用方归还
+     * @param packet DNS查询数据包
+     * @param policy 客户端匹配的策略
+     */
+    private void deny(UDPServer.DNSPacket packet, ClientPolicy.View policy) {
+        if (debugLevel >= 2) {
+            System.out.printf("[POLICY] %s -> %s%n", packet.getClientInfo(), policy.getName());
+        }
+        if (policy.getAction() == ClientPolicy.Action.DROP) {
+            return;
+        }
+        ByteBuffer response = bufferPool.lease();
+        try {
+            int responseLength = DNSMessageWriter.writeErrorResponse(packet.getData(), packet.getLength(),
+                DNSMessage.RCODE_REFUSED, response);
+            if (responseLength > 0) {
+                respond(packet, response.array(), responseLength);
+            }
+        } catch (IOException e) {
+            System.err.println("Error sending policy response to " + packet.getClientInfo() + ": " + e.getMessage());
+        } finally {
+            bufferPool.release(response);
+        }
+    }
+    
+    /**
+     * 客户端超过速率时按限速设置处理查询：直接由原始报文生成设置了TC的空响应，或丢弃
+     * 与过载处理一样不解析报文；数据包由调用方归还
+     * @param packet DNS查询数据包
+     */
+    private void rateLimited(UDPServer.DNSPacket packet) {
+        if (debugLevel >= 2) {
+            System.out.printf("[RATELIMIT] %s -> %s%n", packet.getClientInfo(), rateLimiter.getAction());
+        }
+        if (rateLimiter.getAction() == ClientRateLimiter.Action.DROP) {
+            return;
+        }
+        ByteBuffer response = bufferPool.lease();
+        try {
+            int responseLength = DNSMessageWriter.writeErrorResponse(packet.getData(), packet.getLength(),
+                DNSMessage.RCODE_NOERROR, response);
+            if (responseLength > 0) {
+                response.put(2, (byte) (response.get(2) | 0x02)); // TC：真实客户端改用TCP重试
+                respond(packet, response.array(), responseLength);
+            }
+        } catch (IOException e) {
+            System.err.println("Error sending rate-limit response to " + packet.getClientInfo() + ": " + e.getMessage());
+        } finally {
+            bufferPool.release(response);
+        }
+    }
+    
+    /**
+     * 流水线各阶段的处理逻辑，与线程池模式共用解析、本地应答和上游转发代码
+     */
+    private class PipelineStages implements QueryPipeline.Stages {
+        
+        @Override
+        public boolean decode(QueryEvent event) {
+            UDPServer.DNSPacket packet = event.packet;
+            event.response = bufferPool.lease();
+            if (packet.isExpired()) {
+                event.responseLength = EXPIRED;
+                return true;
+            }
+            DNSMessage queryMessage = parseQuery(packet.getData(), packet.getLength());
+            if (queryMessage == null) {
+                event.responseLength = -1;
+                return true;
+            }
+            int responseLength = answerLocally(queryMessage, packet, event.response);
+            if (responseLength == NEEDS_UPSTREAM) {
+                event.query = queryMessage;
+                return false;
+            }
+            event.responseLength = responseLength;
+            return true;
+        }
+        
+        @Override
+        public void upstream(QueryEvent event) {
+            UDPServer.DNSPacket packet = event.packet;
+            event.responseLength = forwardUpstream(event.query, packet, event.response);
+        }
+        
+        @Override
+        public void shed(QueryEvent event) {
+            event.query = null;
+            event.responseLength = writeShedResponse(event.packet, event.response);
+        }
+        
+        @Override
+        public void send(QueryEvent event) {
+            UDPServer.DNSPacket packet = event.packet;
+            try {
+                sendResult(packet, event.response, event.responseLength);
+            } catch (Exception e) {
+                System.err.println("Error processing DNS query from " + packet.getClientInfo() + ": " + e.getMessage());
+            } finally {
+                packet.release();
+                bufferPool.release(event.response);
+            }
+        }
+    }
+    
+    /**
+     * 调试模式下定期输出流水线深度和缓冲区池统计
+     */
+    private void startPipelineStatsReporter() {
+        if (debugLevel < 1) {
+            return;
+        }
+        Thread reporter = new Thread(() -> {
+            while (isRunning) {
+                try {
+                    Thread.sleep(PIPELINE_STATS_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                System.out.println("[PIPELINE] " + pipeline.describe());
+                System.out.println("[BUFFERS] " + bufferPool.describe());
+            }
+        }, "pipeline-stats");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+    
+    /**
+     * 在工作线程中处理一个数据包：租用响应缓冲区、生成响应并发送，最后归还查询和响应缓冲区
+     * @param packet DNS查询数据包
+     * @param queryMessage 接收线程已解析并确认需要转发的查询，为null时完整处理
+     */
+    private void processPacket(UDPServer.DNSPacket packet, DNSMessage queryMessage) {
+        long started = System.nanoTime();
+        ByteBuffer response = bufferPool.lease();
+        try {
+            DebugUtils.debugf(debugLevel, "\n--- Processing DNS Query from %s (Thread: %s) ---\n", 
+                packet.getClientInfo(), Thread.currentThread().getName());
+            
+            int responseLength;
+            if (packet.isExpired()) {
+                responseLength = EXPIRED; // 在队列中等待过久，不再解析
+            } else if (queryMessage == null) {
+                responseLength = handleDNSQuery(packet, response);
+            } else {
+                responseLength = forwardUpstream(queryMessage, packet, response);
+            }
+            sendResult(packet, response, responseLength);
+            
+            DebugUtils.debug(debugLevel, "----------------------------------------\n");
+        } catch (IOException e) {
+            System.err.println("Error processing DNS query from " + packet.getClientInfo() + ": " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println("Unexpected error processing DNS query: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            packet.release();
+            bufferPool.release(response);
+            if (poolController != null) {
+                poolController.record(started - packet.getArrivalNanos(), System.nanoTime() - started);
+            }
+        }
+    }
+    
+    /**
+     * 发送已写入响应缓冲区的响应
+     * @param packet DNS查询数据包
+     * @param response 响应缓冲区
+     * @param responseLength 响应长度，EXPIRED表示已过期，其他不大于0的值表示生成失败
+     * @throws IOException 网络错误
+     */
+    private void sendResult(UDPServer.DNSPacket packet, ByteBuffer response, int responseLength) throws IOException {
+        if (responseLength == SENT) {
+            return;
+        }
+        if (responseLength == EXPIRED || packet.isExpired()) {
+            // 客户端已经放弃或重试，发送过期的响应没有意义
+            expiredCount.incrementAndGet();
+            if (debugLevel >= 2) {
+                System.out.printf("[DEADLINE] %s expired after %dms%n", packet.getClientInfo(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - packet.getArrivalNanos()));
+            }
+        } else if (responseLength > 0) {
+            respond(packet, response.array(), responseLength);
+            DebugUtils.debugf(debugLevel, "Response sent to client (%d bytes) (Thread: %s)\n", 
+                responseLength, Thread.currentThread().getName());
+        } else {
+            System.err.println("Error: Failed to generate response for " + packet.getClientInfo());
+        }
+    }
+    
     /**
      * 处理DNS查询的核心逻辑
-     * @param queryData 查询数据
-     * @return 响应数据
+     * @param packet DNS查询数据包
+     * @param response 响应缓冲区（租用的缓冲区）
+     * @return 响应长度，失败时返回-1，过期时返回EXPIRED
      */
-    private byte[] handleDNSQuery(byte[] queryData) {
+    private int handleDNSQuery(UDPServer.DNSPacket packet, ByteBuffer response) {
+        byte[] queryData = packet.getData();
+        int queryLength = packet.getLength();
+        DNSMessage queryMessage = parseQuery(queryData, queryLength);
+        if (queryMessage == null) {
+            return -1;
+        }
+        int responseLength = answerLocally(queryMessage, packet, response);
+        if (responseLength != NEEDS_UPSTREAM) {
+            return responseLength;
+        }
+        return forwardUpstream(queryMessage, packet, response);
+    }
+    
+    /**
+     * 解析DNS查询消息（每个查询只解析一次）
+     * @param queryData 查询数据所在的数组
+     * @param queryLength 查询长度
+     * @return 查询消息，格式错误或没有问题时返回null
+     */
+    private DNSMessage parseQuery(byte[] queryData, int queryLength) {
         try {
-            // 解析DNS查询消息（只解析一次）
-            DNSMessage queryMessage = DNSParser.parseMessage(queryData);
+            DNSMessage queryMessage = DNSParser.parseMessage(queryData, queryLength);
             if (queryMessage.getQuestions().isEmpty()) {
                 System.err.println("Error: No questions in DNS query");
                 return null;
             }
-            
-            String domain = queryMessage.getQuestions().get(0).getName().toLowerCase();
-            int queryType = queryMessage.getQuestions().get(0).getType();
-            
-            DebugUtils.printQueryInfo(debugLevel, domain, queryType);
-            DebugUtils.printDNSMessage(debugLevel, queryMessage);
-            
-            // 1. 检查域名是否被拦截
-            if (configParser.isDomainBlocked(domain)) {
-                System.out.printf("[BLOCKED] %s -> NXDOMAIN\n", domain);
-                return createErrorResponse(queryMessage, DNSMessage.RCODE_NXDOMAIN);
+            return queryMessage;
+        } catch (Exception e) {
+            System.err.println("Error handling DNS query: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * 用拦截表、本地区域数据（客户端视图优先）和缓存应答查询，不访问网络
+     * TCP客户端的应答超出租用的缓冲区时在64KB的数组中重建，经连接直接发送
+     * @param queryMessage 查询消息
+     * @param packet DNS查询数据包
+     * @param response 响应缓冲区
+     * @return 响应长度；需要转发到上游时返回NEEDS_UPSTREAM，已直接发送时返回SENT，失败时返回-1
+     */
+    private int answerLocally(DNSMessage queryMessage, UDPServer.DNSPacket packet, ByteBuffer response) {
+        int responseLength = buildLocalAnswer(queryMessage, packet, response);
+        if (responseLength != TOO_LARGE) {
+            return responseLength;
+        }
+        ByteBuffer large = ByteBuffer.wrap(new byte[TCP_MAX_MESSAGE]);
+        return sendLarge(packet, large.array(), buildLocalAnswer(queryMessage, packet, large));
+    }
+    
+    /**
+     * 在给定的缓冲区中构造本地应答
+     * @param queryMessage 查询消息
+     * @param packet DNS查询数据包
+     * @param response 响应缓冲区
+     * @return 同answerLocally；TCP客户端的应答超出缓冲区时返回TOO_LARGE
+     */
+    private int buildLocalAnswer(DNSMessage queryMessage, UDPServer.DNSPacket packet, ByteBuffer response) {
+        byte[] queryData = packet.getData();
+        int queryLength = packet.getLength();
+        String domain = queryMessage.getQuestions().get(0).getName();
+        int queryType = queryMessage.getQuestions().get(0).getType();
+        
+        // 直接在报文的标签字节上构造查询键（大小写折叠在哈希和比较时完成）
+        NameKey key = QUERY_KEY.get();
+        if (key.setFromWire(queryData, DNS_HEADER_SIZE, queryLength) < 0) {
+            System.err.println("Error: Malformed question in DNS query");
+            return createErrorResponse(queryMessage, DNSMessage.RCODE_FORMERR, response);
+        }
+        
+        DebugUtils.printQueryInfo(debugLevel, domain, queryType);
+        DebugUtils.printDNSMessage(debugLevel, queryMessage);
+        
+        if (queryMessage.getEdnsVersion() > EDNS.VERSION) {
+            return createErrorResponse(queryMessage, EDNS.RCODE_BADVERS, response);
+        }
+        
+        // 本地数据只查一次：客户端视图中的名字优先，视图中没有的名字再查主配置，最后查拦截列表订阅
+        // 报文头和问题部分由原始查询复制，本地名字的预编码应答直接接在问题部分之后
+        byte[] out = response.array();
+        int questionEnd = DNSMessageWriter.writeErrorResponse(queryData, queryLength, DNSMessage.RCODE_NOERROR, response);
+        response.clear(); // 未命中时后续步骤会整体重写缓冲区
+        if (questionEnd < 0) {
+            return createErrorResponse(queryMessage, DNSMessage.RCODE_FORMERR, response);
+        }
+        int answerEnd = appendLocal(key, queryType, packet.getView(), out, questionEnd);
+        
+        // 1. 检查域名是否被拦截
+        if (answerEnd == ConfigTable.ANSWER_BLOCKED) {
+            System.out.printf("[BLOCKED] %s -> NXDOMAIN\n", domain);
+            return createErrorResponse(queryMessage, DNSMessage.RCODE_NXDOMAIN, response);
+        }
+        
+        // 2. 指向本地数据之外的别名：CNAME链已经写好，链末端的目标先查缓存，缓存没有时转发目标
+        if (answerEnd == ConfigTable.ANSWER_EXTERNAL) {
+            AliasChase chase = AliasChase.parse(out, questionEnd, queryData, queryType);
+            if (chase == null) {
+                return createErrorResponse(queryMessage, DNSMessage.RCODE_SERVFAIL, response);
             }
-            
-            // 2. 检查本地解析
-            if (queryType == DNSRecord.TYPE_A) {
-                String localIP = configParser.lookupDomain(domain);
-                if (localIP != null && !"0.0.0.0".equals(localIP)) {
-                    System.out.printf("[LOCAL] %s -> %s\n", domain, localIP);
-                    return createLocalResponse(queryMessage, localIP);
-                }
+            answerEnd = cacheManager.appendAnswer(chase.target, out, chase.chainEnd, chase.targetOffset, chase.count);
+            if (answerEnd == ConfigTable.ANSWER_NOT_FOUND) {
+                packet.setLocalAlias(true);
+                return NEEDS_UPSTREAM;
             }
-            
-            // 3. 检查缓存
-            String cacheIP = cacheManager.lookup(domain + ":" + queryType);
-            if (cacheIP != null) {
-                System.out.printf("[CACHE] %s -> %s\n", domain, cacheIP);
-                if (queryType == DNSRecord.TYPE_A) {
-                    return createLocalResponse(queryMessage, cacheIP);
-                } else if (queryType == DNSRecord.TYPE_AAAA) {
-                    return createLocalResponse(queryMessage, cacheIP);
-                }
+            if (debugLevel >= 1) {
+                System.out.printf("[LOCAL] %s %s -> alias of %s, %d records with cache%n", domain,
+                    DNSRecord.typeName(queryType), chase.target.toDomainString(), ((out[6] & 0xFF) << 8) | (out[7] & 0xFF));
             }
-            
-            // 4. 转发到上游DNS服务器
-            System.out.printf("[UPSTREAM] %s -> querying upstream DNS\n", domain);
-            byte[] upstreamResponse = udpServer.forwardQuery(queryData, upstreamDNS);
-            if (upstreamResponse != null) {
-                String upstreamIP = extractIPFromResponse(upstreamResponse, queryType);
-                if (upstreamIP != null) {
-                    cacheManager.put(domain + ":" + queryType, upstreamIP);
-                    System.out.printf("[UPSTREAM] %s -> %s (cached)\n", domain, upstreamIP);
-                } 
-                return upstreamResponse;
+            return finishLocalAnswer(packet, out, questionEnd, answerEnd);
+        }
+        
+        // 3. 本地数据中的名字：所有类型都在本地应答（没有该类型的记录时为NODATA），不转发到上游
+        if (answerEnd != ConfigTable.ANSWER_NOT_FOUND) {
+            if (debugLevel >= 1) {
+                System.out.printf("[LOCAL] %s %s -> %d records%n", domain, DNSRecord.typeName(queryType),
+                    ((out[6] & 0xFF) << 8) | (out[7] & 0xFF));
+            }
+            return finishLocalAnswer(packet, out, questionEnd, answerEnd);
+        }
+        
+        // 4. 检查缓存：名字自己的记录集，或经缓存的CNAME链到达的目标的记录集
+        answerEnd = cacheManager.appendAnswer(key, out, questionEnd);
+        if (answerEnd != ConfigTable.ANSWER_NOT_FOUND) {
+            if (debugLevel >= 1) {
+                System.out.printf("[CACHE] %s %s -> %d records%n", domain, DNSRecord.typeName(queryType),
+                    ((out[6] & 0xFF) << 8) | (out[7] & 0xFF));
+            }
+            return finishLocalAnswer(packet, out, questionEnd, answerEnd);
+        }
+        return NEEDS_UPSTREAM;
+    }
+    
+    /**
+     * 在本地数据中查找名字：客户端视图中的名字优先，视图中没有的名字再查主配置，最后查拦截列表订阅
+     * @param key 查询键
+     * @param queryType 查询类型
+     * @param view 客户端视图，null表示只用主配置
+     * @param out 响应数组，报文头和问题部分已经写好
+     * @param questionEnd 问题部分之后的位置
+     * @return 同ConfigTable.appendAnswer
+     */
+    private int appendLocal(NameKey key, int queryType, ClientPolicy.View view, byte[] out, int questionEnd) {
+        int answerEnd = view != null ? view.appendAnswer(key, queryType, out, questionEnd) : ConfigTable.ANSWER_NOT_FOUND;
+        if (answerEnd == ConfigTable.ANSWER_NOT_FOUND) {
+            answerEnd = configParser.appendAnswer(key, queryType, out, questionEnd);
+        }
+        if (answerEnd == ConfigTable.ANSWER_NOT_FOUND && blocklistFeeds != null && blocklistFeeds.isBlocked(key)) {
+            answerEnd = ConfigTable.ANSWER_BLOCKED;
+        }
+        return answerEnd;
+    }
+    
+    /**
+     * 补全直接在字节上构造的本地应答：设置AA位，客户端使用EDNS时附带OPT，超过客户端的限制时截断
+     * @param packet DNS查询数据包
+     * @param out 响应数组，报文头、问题部分和应答部分已经写好
+     * @param questionEnd 问题部分之后的位置
+     * @param answerEnd 应答之后的位置，ConfigTable.ANSWER_TOO_LARGE表示应答超出缓冲区
+     * @return 响应长度；TCP客户端的应答超出缓冲区且缓冲区小于64KB时返回TOO_LARGE
+     */
+    private int finishLocalAnswer(UDPServer.DNSPacket packet, byte[] out, int questionEnd, int answerEnd) {
+        byte[] queryData = packet.getData();
+        int queryLength = packet.getLength();
+        if (answerEnd == ConfigTable.ANSWER_TOO_LARGE && packet.getConnection() != null && out.length < TCP_MAX_MESSAGE) {
+            return TOO_LARGE;
+        }
+        out[2] |= 0x04; // AA
+        if (answerEnd == ConfigTable.ANSWER_TOO_LARGE) {
+            // 本地记录超出缓冲区（UDP客户端或64KB也放不下）：只回复问题部分并设置TC
+            out[2] |= 0x02;
+            out[6] = 0;
+            out[7] = 0;
+            answerEnd = questionEnd;
+        }
+        int clientPayload = EDNS.payloadSize(queryData, queryLength);
+        if (clientPayload > 0) {
+            answerEnd = EDNS.appendOpt(out, answerEnd, EDNS.optFlags(queryData, queryLength) & EDNS.FLAG_DO);
+        }
+        return fitResponse(out, answerEnd, clientPayload > 0, clientLimit(packet, clientPayload));
+    }
+    
+    /**
+     * 发送在租用的缓冲区之外构造的响应（只有TCP客户端会走到这里）
+     * @param packet DNS查询数据包
+     * @param data 响应数组
+     * @param length 响应长度，不大于0时原样返回
+     * @return SENT，或生成失败时的length
+     */
+    private static int sendLarge(UDPServer.DNSPacket packet, byte[] data, int length) {
+        if (length <= 0) {
+            return length;
+        }
+        if (!packet.isExpired()) {
+            packet.getConnection().send(data, length);
+        }
+        return SENT;
+    }
+    
+    /**
+     * 客户端能接收的响应大小：TCP不受限制，UDP按其OPT声明，没有OPT时为512
+     * @param packet DNS查询数据包
+     * @param clientPayload 查询中OPT声明的大小，没有OPT时为0
+     * @return 响应大小上限
+     */
+    private static int clientLimit(UDPServer.DNSPacket packet, int clientPayload) {
+        return packet.getConnection() != null ? TCP_MAX_MESSAGE
+            : clientPayload == 0 ? EDNS.CLASSIC_SIZE : Math.min(clientPayload, EDNS.PAYLOAD_SIZE);
+    }
+    
+    /**
+     * 将查询转发到上游DNS服务器，上游响应直接接收到响应缓冲区并缓存其中的CNAME链和地址记录集
+     * 等待上游的时间不超过查询剩余的时限，已过期的查询不再转发
+     * @param queryMessage 查询消息
+     * @param packet DNS查询数据包
+     * @param response 响应缓冲区
+     * @return 响应长度，失败时返回-1，过期时返回EXPIRED
+     */
+    private int forwardUpstream(DNSMessage queryMessage, UDPServer.DNSPacket packet, ByteBuffer response) {
+        String domain = queryMessage.getQuestions().get(0).getName();
+        byte[] queryData = packet.getData();
+        int queryLength = packet.getLength();
+        int remaining = packet.remainingMillis();
+        if (remaining <= 0) {
+            return EXPIRED;
+        }
+        if (packet.isLocalAlias()) {
+            int length = forwardAliasTarget(queryMessage, packet, response);
+            if (length == TOO_LARGE) {
+                // 目标在排队期间进入了缓存，拼接后超出缓冲区：在64KB的数组中重建
+                ByteBuffer large = ByteBuffer.wrap(new byte[TCP_MAX_MESSAGE]);
+                length = sendLarge(packet, large.array(), forwardAliasTarget(queryMessage, packet, large));
+            }
+            if (length != NEEDS_UPSTREAM) {
+                return length;
+            }
+            // 配置已重新加载，名字不再是这样的别名：按原名转发
+        }
+        // 查询可能来自接收线程，这里用本线程的键重新指向报文
+        NameKey key = QUERY_KEY.get();
+        key.setFromWire(queryData, DNS_HEADER_SIZE, queryLength);
+        UpstreamGroup group = upstreamRouter.route(key);
+        String via = group == upstreamRouter.getDefaultGroup() ? "" : " via " + group.getName();
+        int clientPayload = EDNS.payloadSize(queryData, queryLength);
+        int clientLimit = clientLimit(packet, clientPayload);
+        // 向上游声明本服务器的报文大小，较大的响应不必截断后再走TCP
+        int upstreamQueryLength = EDNS.prepareUpstreamQuery(queryData, queryLength);
+        try {
+            // 4. 转发到上游组
+            System.out.printf("[UPSTREAM] %s -> querying upstream DNS%s\n", domain, via);
+            byte[][] oversized = new byte[1][];
+            int upstreamLength = group.forward(queryData, upstreamQueryLength, response.array(),
+                packet.remainingMillis(), oversized);
+            if (upstreamLength == UpstreamGroup.REJECTED) {
+                // 上游已熔断或达到并发上限，继续加压只会使其更慢，快速失败
+                System.out.printf("[UPSTREAM] %s -> upstream unavailable%s, SERVFAIL\n", domain, via);
+                return createErrorResponse(queryMessage, DNSMessage.RCODE_SERVFAIL, response);
+            }
+            if (upstreamLength > 0) {
+                // TLS上游的完整响应可能比缓冲区大，此时直接使用，不再重新查询
+                byte[] answer = oversized[0] != null ? oversized[0] : response.array();
+                if (shouldRetryOverTcp(answer, upstreamLength, clientLimit)) {
+                    // UDP响应被截断，且客户端能接收更大的响应：通过TCP长连接取完整响应
+                    byte[] full = group.forwardStream(queryData, upstreamQueryLength, packet.remainingMillis());
+                    if (full != null) {
+                        DebugUtils.debugf(debugLevel, "[UPSTREAM] %s -> truncated over UDP, %d bytes over TCP%n",
+                            domain, full.length);
+                        answer = full;
+                        upstreamLength = full.length;
+                    }
+                }
+                // 链上的名字只有仍路由到同一上游组时才采信，防止一个上游为别的组负责的名字植入记录
+                int cached = cacheManager.putResponse(key, answer, upstreamLength,
+                    target -> upstreamRouter.route(target) == group);
+                if (cached > 0) {
+                    System.out.printf("[UPSTREAM] %s -> %d RRsets cached\n", domain, cached);
+                }
+                int length = fitResponse(answer, upstreamLength, clientPayload > 0, clientLimit);
+                if (answer == response.array() || length <= 0) {
+                    return length;
+                }
+                if (length <= response.capacity()) {
+                    System.arraycopy(answer, 0, response.array(), 0, length);
+                    return length;
+                }
+                // 完整响应比租用的缓冲区大，只有TCP客户端会走到这里，直接经连接发送
+                return sendLarge(packet, answer, length);
             } else {
                 System.out.printf("[UPSTREAM] %s -> query failed\n", domain);
-                return createErrorResponse(queryMessage, DNSMessage.RCODE_SERVFAIL);
+                return createErrorResponse(queryMessage, DNSMessage.RCODE_SERVFAIL, response);
             }
         } catch (Exception e) {
             System.err.println("Error handling DNS query: " + e.getMessage());
-            return null;
+            return -1;
         }
     }
     
     /**
-     * 创建错误响应
-     * @param queryMessage 原始查询消息
-     * @param rcode 错误码
-     * @return 响应数据
+     * 本地别名指向本地数据之外的名字：重新写出本地的CNAME链，把链末端的目标转发到负责它的上游组，
+     * 再把上游应答部分的记录拼接在链之后（目标的记录集同时按上游组的范围缓存）。
+     * 目标不存在时响应码为NXDOMAIN，上游失败时为SERVFAIL
+     * @param queryMessage 查询消息
+     * @param packet DNS查询数据包
+     * @param response 响应缓冲区
+     * @return 响应长度；名字已不再是这样的别名（配置已重新加载）时返回NEEDS_UPSTREAM
      */
-    private byte[] createErrorResponse(DNSMessage queryMessage, int rcode) {
+    private int forwardAliasTarget(DNSMessage queryMessage, UDPServer.DNSPacket packet, ByteBuffer response) {
+        byte[] queryData = packet.getData();
+        int queryLength = packet.getLength();
+        String domain = queryMessage.getQuestions().get(0).getName();
+        int queryType = queryMessage.getQuestions().get(0).getType();
+        NameKey key = QUERY_KEY.get();
+        key.setFromWire(queryData, DNS_HEADER_SIZE, queryLength);
+        byte[] out = response.array();
+        int questionEnd = DNSMessageWriter.writeErrorResponse(queryData, queryLength, DNSMessage.RCODE_NOERROR, response);
+        response.clear();
+        if (questionEnd < 0
+                || appendLocal(key, queryType, packet.getView(), out, questionEnd) != ConfigTable.ANSWER_EXTERNAL) {
+            return NEEDS_UPSTREAM;
+        }
+        AliasChase chase = AliasChase.parse(out, questionEnd, queryData, queryType);
+        if (chase == null) {
+            return createErrorResponse(queryMessage, DNSMessage.RCODE_SERVFAIL, response);
+        }
+        // 排队期间目标可能已经进入缓存
+        int answerEnd = cacheManager.appendAnswer(chase.target, out, chase.chainEnd, chase.targetOffset, chase.count);
+        if (answerEnd != ConfigTable.ANSWER_NOT_FOUND) {
+            return finishLocalAnswer(packet, out, questionEnd, answerEnd);
+        }
+        String targetName = chase.target.toDomainString();
+        UpstreamGroup group = upstreamRouter.route(chase.target);
+        String via = group == upstreamRouter.getDefaultGroup() ? "" : " via " + group.getName();
+        System.out.printf("[UPSTREAM] %s -> alias of %s, querying upstream DNS%s\n", domain, targetName, via);
+        // 上游响应接收到租用的缓冲区，拼接到响应之后即可归还
+        ByteBuffer leased = bufferPool.lease();
         try {
-            DNSMessage response = DNSMessage.createErrorResponse(queryMessage, rcode);
-            byte[] responseData = DNSParser.buildMessage(response);
-            
-            DebugUtils.printDNSMessage(debugLevel, response);
-            
-            return responseData;
-        } catch (Exception e) {
-            System.err.println("Error creating error response: " + e.getMessage());
-            return null;
+            byte[] answer = leased.array();
+            byte[][] oversized = new byte[1][];
+            int length = group.forward(chase.query, chase.queryLength, answer, packet.remainingMillis(), oversized);
+            if (oversized[0] != null) {
+                answer = oversized[0];
+            } else if (length >= DNS_HEADER_SIZE && (answer[2] & 0x02) != 0) {
+                byte[] full = group.forwardStream(chase.query, chase.queryLength, packet.remainingMillis());
+                if (full != null) {
+                    answer = full;
+                    length = full.length;
+                }
+            }
+            int rcode = length >= DNS_HEADER_SIZE ? answer[3] & 0x0F : -1;
+            if (rcode != DNSMessage.RCODE_NOERROR && rcode != DNSMessage.RCODE_NXDOMAIN) {
+                System.out.printf("[UPSTREAM] %s -> alias target %s failed%s, SERVFAIL\n", domain, targetName, via);
+                return createErrorResponse(queryMessage, DNSMessage.RCODE_SERVFAIL, response);
+            }
+            int cached = cacheManager.putResponse(chase.target, answer, length, target -> upstreamRouter.route(target) == group);
+            if (cached > 0) {
+                System.out.printf("[UPSTREAM] %s -> %d RRsets cached\n", targetName, cached);
+            }
+            answerEnd = DNSMessageWriter.appendAnswers(answer, length, out, chase.chainEnd, chase.target, chase.targetOffset);
+            if (answerEnd == -1) {
+                System.out.printf("[UPSTREAM] %s -> malformed answer for alias target %s, SERVFAIL\n", domain, targetName);
+                return createErrorResponse(queryMessage, DNSMessage.RCODE_SERVFAIL, response);
+            }
+            byte[] dest = out;
+            if (answerEnd < 0 && packet.getConnection() != null && out.length < TCP_MAX_MESSAGE) {
+                // TCP客户端无法再重试：报文头和CNAME链复制到64KB的数组，再拼接一次目标的记录
+                dest = Arrays.copyOf(out, TCP_MAX_MESSAGE);
+                answerEnd = DNSMessageWriter.appendAnswers(answer, length, dest, chase.chainEnd, chase.target, chase.targetOffset);
+            }
+            if (answerEnd < 0) {
+                answerEnd = ConfigTable.ANSWER_TOO_LARGE;
+            }
+            dest[3] = (byte) ((dest[3] & 0xF0) | rcode); // 目标不存在时整个应答为NXDOMAIN（RFC 6604）
+            if (debugLevel >= 1) {
+                System.out.printf("[LOCAL] %s %s -> alias of %s, %d records%n", domain, DNSRecord.typeName(queryType),
+                    targetName, ((dest[6] & 0xFF) << 8) | (dest[7] & 0xFF));
+            }
+            int responseLength = finishLocalAnswer(packet, dest, questionEnd, answerEnd);
+            return dest == out ? responseLength : sendLarge(packet, dest, responseLength);
+        } finally {
+            bufferPool.release(leased);
+        }
+    }
+    
+    /**
+     * 判断被截断的UDP响应是否值得改用TCP重新获取
+     * 客户端经TCP查询时总是重试；UDP客户端只有在上游截断得比客户端的限制更小时
+     * （上游响应不带OPT，即上游不支持EDNS而按512字节截断）才重试，否则完整响应仍会被截断
+     * @param response 上游响应
+     * @param length 响应长度
+     * @param clientLimit 客户端能接收的最大响应
+     * @return 是否重试
+     */
+    private boolean shouldRetryOverTcp(byte[] response, int length, int clientLimit) {
+        if (length < DNS_HEADER_SIZE || (response[2] & 0x02) == 0) {
+            return false;
         }
+        return clientLimit > EDNS.PAYLOAD_SIZE
+            || (clientLimit > EDNS.CLASSIC_SIZE && EDNS.findOpt(response, length) < 0);
     }
     
     /**
-     * 创建本地解析响应
+     * 使上游响应符合客户端协商的报文大小
+     * 客户端没有使用EDNS时去掉转发时代为加上的OPT；仍超过客户端限制时截断并设置TC，由客户端改用TCP重试
+     * @param response 响应所在的数组
+     * @param length 上游响应长度
+     * @param clientEdns 客户端查询是否带OPT
+     * @param clientLimit 客户端能接收的最大响应
+     * @return 发给客户端的长度
+     */
+    private int fitResponse(byte[] response, int length, boolean clientEdns, int clientLimit) {
+        if (!clientEdns) {
+            length = EDNS.stripOpt(response, length);
+        }
+        if (length > clientLimit) {
+            DebugUtils.debugf(debugLevel, "[EDNS] response %d bytes exceeds client limit %d, truncated%n",
+                length, clientLimit);
+            length = EDNS.truncate(response, length, clientEdns);
+        }
+        return length;
+    }
+    
+    /**
+     * 创建错误响应
      * @param queryMessage 原始查询消息
-     * @param ipAddress IP地址
-     * @return 响应数据
+     * @param rcode 错误码
+     * @param out 响应缓冲区
+     * @return 响应长度，失败时返回-1
      */
-    private byte[] createLocalResponse(DNSMessage queryMessage, String ipAddress) {
+    private int createErrorResponse(DNSMessage queryMessage, int rcode, ByteBuffer out) {
         try {
-            DNSMessage response = DNSMessage.createLocalResponse(queryMessage, ipAddress);
-            byte[] responseData = DNSParser.buildMessage(response);
+            DNSMessage response = DNSMessage.createErrorResponse(queryMessage, rcode);
+            int responseLength = DNSMessageWriter.write(response, out);
             
             DebugUtils.printDNSMessage(debugLevel, response);
             
-            return responseData;
+            return responseLength;
         } catch (Exception e) {
-            System.err.println("Error creating local response: " + e.getMessage());
-            return null;
+            System.err.println("Error creating error response: " + e.getMessage());
+            return -1;
         }
     }
-
+    
     /**
-     * 从DNS响应中提取IP地址
-     * @param response 响应数据
-     * @param queryType 查询类型
-     * @return IP地址字符串
+     * 本地别名的CNAME链末端：目标名字在响应中的位置，以及解析该目标的查询
      */
-    private String extractIPFromResponse(byte[] response, int queryType) {
-        try {
-            DNSMessage msg = DNSParser.parseMessage(response);
-            if (msg.getAnswers() != null) {
-                for (DNSRecord rec : msg.getAnswers()) {
-                    if (queryType == DNSRecord.TYPE_A && rec.getType() == DNSRecord.TYPE_A) {
-                        return rec.getIPAddress();
-                    } else if (queryType == DNSRecord.TYPE_AAAA && rec.getType() == DNSRecord.TYPE_AAAA) {
-                        return rec.getIPv6Address();
-                    }
+    private static final class AliasChase {
+        private static final int MAX_POINTER = 0x3FFF;
+        
+        final byte[] query = new byte[EDNS.CLASSIC_SIZE];
+        final NameKey target = new NameKey(); // 指向query中的问题，带查询的类型和IN类别
+        int queryLength;
+        int targetOffset; // 链最后一条CNAME的RDATA，即目标名字
+        int chainEnd;
+        int count;
+        
+        /**
+         * 跳过已写入的应答记录，找到最后一条CNAME记录的目标，并生成RD=1的查询
+         * @param out 响应数组，CNAME链已写在问题部分之后（预编码的RDATA不压缩）
+         * @param questionEnd 问题部分之后的位置
+         * @param queryData 原始查询，复制其事务ID
+         * @param queryType 查询类型
+         * @return 解析结果，最后一条记录不是CNAME或目标位置无法用压缩指针引用时返回null
+         */
+        static AliasChase parse(byte[] out, int questionEnd, byte[] queryData, int queryType) {
+            AliasChase chase = new AliasChase();
+            chase.count = ((out[6] & 0xFF) << 8) | (out[7] & 0xFF);
+            int pos = questionEnd;
+            int type = 0;
+            for (int i = 0; i < chase.count; i++) {
+                int len = out[pos] & 0xFF;
+                while (len != 0 && (len & 0xC0) != 0xC0) {
+                    pos += len + 1;
+                    len = out[pos] & 0xFF;
                 }
+                pos += len == 0 ? 1 : 2;
+                type = ((out[pos] & 0xFF) << 8) | (out[pos + 1] & 0xFF);
+                chase.targetOffset = pos + 10;
+                pos = chase.targetOffset + (((out[pos + 8] & 0xFF) << 8) | (out[pos + 9] & 0xFF));
             }
-        } catch (Exception e) {
-            // 兼容处理：直接从响应包末尾尝试提取IPv4
-            if (queryType == DNSRecord.TYPE_A && response.length > 16) {
-                int ipStart = response.length - 4;
-                int b1 = response[ipStart] & 0xFF;
-                int b2 = response[ipStart + 1] & 0xFF;
-                int b3 = response[ipStart + 2] & 0xFF;
-                int b4 = response[ipStart + 3] & 0xFF;
-                if (b1 > 0 && b1 < 255) {
-                    return b1 + "." + b2 + "." + b3 + "." + b4;
-                }
+            chase.chainEnd = pos;
+            if (type != DNSRecord.TYPE_CNAME || chase.targetOffset > MAX_POINTER) {
+                return null;
+            }
+            byte[] query = chase.query;
+            query[0] = queryData[0];
+            query[1] = queryData[1];
+            query[2] = 0x01; // RD
+            query[5] = 1;    // QDCOUNT
+            int nameLength = pos - chase.targetOffset;
+            System.arraycopy(out, chase.targetOffset, query, DNS_HEADER_SIZE, nameLength);
+            int end = DNS_HEADER_SIZE + nameLength;
+            query[end] = (byte) (queryType >> 8);
+            query[end + 1] = (byte) queryType;
+            query[end + 3] = (byte) DNSRecord.CLASS_IN;
+            if (chase.target.setFromWire(query, DNS_HEADER_SIZE, end + 4) < 0) {
+                return null;
             }
+            chase.queryLength = EDNS.prepareUpstreamQuery(query, end + 4);
+            return chase;
         }
-        return null;
     }
-
+    
     /**
      * 打印使用说明
      * @param programName 程序名称
      */
     private static void printUsage(String programName) {
         System.out.println("DNS Relay Server - BUPT Network Communication Course Project");
-        System.out.println("Usage: java " + programName + " [-d | -dd] [dns-server-ipaddr] [filename]");
+        System.out.println("Usage: java " + programName + " [-d | -dd] [-i | -p] [-q depth] [-s policy] [-t ms] [-w min:max[:ms]] [-r qps[:burst[:tc|drop]]] [-c policy] [-b feeds] [-u routes] [dns-server-ipaddr] [filename]");
         System.out.println("Options:");
         System.out.println("  -d          Enable debug mode (level 1)");
         System.out.println("  -dd         Enable verbose debug mode (level 2)");
+        System.out.println("  -i          Answer blocked/local/cached queries on the receive thread");
+        System.out.println("  -p          Use the staged ring-buffer pipeline instead of the thread pool");
+        System.out.println("  -q depth    Admission queue depth (default: " + DEFAULT_QUEUE_DEPTH + ")");
+        System.out.println("  -s policy   Overload policy when the queue is full: refused, servfail or drop (default: refused)");
+        System.out.println("  -t ms       Per-query deadline; expired queries are dropped (default: 2000)");
+        System.out.println("  -w min:max[:ms]  Adaptive worker pool bounds and target queue delay (default: fixed "
+            + DEFAULT_THREAD_POOL_SIZE + ", target " + DEFAULT_TARGET_QUEUE_DELAY_MS + "ms)");
+        System.out.println("  -r qps[:burst[:tc|drop]]  Per-client UDP rate limit; excess queries get TC=1 (default) or are dropped");
+        System.out.println("  -c policy   Client policy file: per-subnet views, refuse and drop rules");
+        System.out.println("  -b feeds    Blocklist feed file: external lists updated by versioned delta files");
+        System.out.println("  -u routes   Upstream route file: forward domain suffixes to separate upstream groups");
         System.out.println("  dns-server  Upstream DNS server IP address (default: " + DEFAULT_UPSTREAM_DNS + ")");
         System.out.println("  filename    Configuration file path (default: " + DEFAULT_CONFIG_FILE + ")");
         System.out.println("\nExamples:");
@@ -318,7 +1250,21 @@ public class DNSRelayServer {
 
         // 解析命令行参数
         int debugLevel = 0;
+        boolean inlineFastPath = false;
+        boolean pipelineMode = false;
+        int queueDepth = DEFAULT_QUEUE_DEPTH;
+        ShedPolicy shedPolicy = ShedPolicy.REFUSED;
+        long queryBudget = 0;
+        int minWorkers = DEFAULT_THREAD_POOL_SIZE;
+        int maxWorkers = DEFAULT_THREAD_POOL_SIZE;
+        long targetQueueDelay = DEFAULT_TARGET_QUEUE_DELAY_MS;
         String upstreamDNS = DEFAULT_UPSTREAM_DNS;
+        String routeFile = null;
+        String policyFile = null;
+        String feedFile = null;
+        int rateLimit = 0;
+        int rateBurst = 0;
+        ClientRateLimiter.Action rateAction = ClientRateLimiter.Action.TC;
         String configFile = DEFAULT_CONFIG_FILE;
 
         int argIndex = 0;
@@ -329,6 +1275,73 @@ public class DNSRelayServer {
                 debugLevel = 1;
             } else if ("-dd".equals(args[argIndex])) {
                 debugLevel = 2;
+            } else if ("-i".equals(args[argIndex])) {
+                inlineFastPath = true;
+            } else if ("-p".equals(args[argIndex])) {
+                pipelineMode = true;
+            } else if ("-q".equals(args[argIndex]) && argIndex + 1 < args.length) {
+                try {
+                    queueDepth = Integer.parseInt(args[++argIndex]);
+                } catch (NumberFormatException e) {
+                    queueDepth = 0;
+                }
+                if (queueDepth <= 0) {
+                    System.err.println("Invalid queue depth: " + args[argIndex]);
+                    System.exit(1);
+                }
+            } else if ("-t".equals(args[argIndex]) && argIndex + 1 < args.length) {
+                try {
+                    queryBudget = Long.parseLong(args[++argIndex]);
+                } catch (NumberFormatException e) {
+                    queryBudget = 0;
+                }
+                if (queryBudget <= 0) {
+                    System.err.println("Invalid query deadline: " + args[argIndex]);
+                    System.exit(1);
+                }
+            } else if ("-w".equals(args[argIndex]) && argIndex + 1 < args.length) {
+                String[] bounds = args[++argIndex].split(":");
+                try {
+                    minWorkers = Integer.parseInt(bounds[0]);
+                    maxWorkers = bounds.length > 1 ? Integer.parseInt(bounds[1]) : minWorkers;
+                    if (bounds.length > 2) {
+                        targetQueueDelay = Long.parseLong(bounds[2]);
+                    }
+                } catch (NumberFormatException e) {
+                    minWorkers = 0;
+                }
+                if (minWorkers <= 0 || maxWorkers < minWorkers || targetQueueDelay <= 0 || bounds.length > 3) {
+                    System.err.println("Invalid worker bounds: " + args[argIndex]);
+                    System.exit(1);
+                }
+            } else if ("-r".equals(args[argIndex]) && argIndex + 1 < args.length) {
+                String[] limit = args[++argIndex].split(":");
+                try {
+                    rateLimit = Integer.parseInt(limit[0]);
+                    rateBurst = limit.length > 1 ? Integer.parseInt(limit[1]) : rateLimit;
+                    if (limit.length > 2) {
+                        rateAction = ClientRateLimiter.Action.valueOf(limit[2].toUpperCase());
+                    }
+                } catch (IllegalArgumentException e) {
+                    rateLimit = 0;
+                }
+                if (rateLimit <= 0 || rateBurst <= 0 || limit.length > 3) {
+                    System.err.println("Invalid client rate limit: " + args[argIndex]);
+                    System.exit(1);
+                }
+            } else if ("-c".equals(args[argIndex]) && argIndex + 1 < args.length) {
+                policyFile = args[++argIndex];
+            } else if ("-b".equals(args[argIndex]) && argIndex + 1 < args.length) {
+                feedFile = args[++argIndex];
+            } else if ("-u".equals(args[argIndex]) && argIndex + 1 < args.length) {
+                routeFile = args[++argIndex];
+            } else if ("-s".equals(args[argIndex]) && argIndex + 1 < args.length) {
+                try {
+                    shedPolicy = ShedPolicy.valueOf(args[++argIndex].toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Invalid overload policy: " + args[argIndex]);
+                    System.exit(1);
+                }
             } else if ("-h".equals(args[argIndex]) || "--help".equals(args[argIndex])) {
                 printUsage("DNSRelayServer");
                 return;
@@ -366,6 +1379,25 @@ public class DNSRelayServer {
 
         // 创建并启动DNS中继服务器
         DNSRelayServer server = new DNSRelayServer(upstreamDNS, configFile, debugLevel);
+        server.setInlineFastPath(inlineFastPath);
+        server.setPipelineMode(pipelineMode);
+        server.setAdmissionControl(queueDepth, shedPolicy);
+        server.setWorkerBounds(minWorkers, maxWorkers, targetQueueDelay);
+        if (rateLimit > 0) {
+            server.setClientRateLimit(rateLimit, rateBurst, rateAction);
+        }
+        if (routeFile != null) {
+            server.setUpstreamRoutes(routeFile);
+        }
+        if (policyFile != null) {
+            server.setClientPolicy(policyFile);
+        }
+        if (feedFile != null) {
+            server.setBlocklistFeeds(feedFile);
+        }
+        if (queryBudget > 0) {
+            server.setQueryBudget(queryBudget);
+        }
         server.start();
     }
 }
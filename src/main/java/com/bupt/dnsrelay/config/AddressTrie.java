@@ -0,0 +1,223 @@
+package com.bupt.dnsrelay.config;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * 按网段查值的压缩二叉前缀树（Patricia树）
+ * 地址统一打包为128位（两个long），IPv4按::ffff:0:0/96映射，IPv4和IPv6网段放在同一棵树中。
+ * 每个节点保存从根开始的完整前缀和前缀长度，只有一个子节点的路径被压缩掉，
+ * 查找时沿路径比较前缀并记住最后一个带值的节点，即最长前缀匹配，步数不超过路径上的节点数。
+ * 查找只读不加锁，树在发布前构建完成。
+ * @param <V> 网段对应的值
+ */
+public class AddressTrie<V> {
+
+    private static final int ADDRESS_BITS = 128;
+    private static final long IPV4_MAPPED_HI = 0L;
+    private static final long IPV4_MAPPED_LO = 0x0000FFFF00000000L;
+    private static final int IPV4_MAPPED_PREFIX = 96;
+
+    private Node<V> root;
+    private int size;
+
+    /**
+     * 添加网段，同一网段重复添加时后者覆盖前者
+     * @param cidr 地址/前缀长度，省略前缀长度表示单个地址
+     * @param value 网段对应的值
+     * @throws IllegalArgumentException 地址或前缀长度无效
+     */
+    public void put(String cidr, V value) {
+        int slash = cidr.indexOf('/');
+        String address = slash < 0 ? cidr : cidr.substring(0, slash);
+        boolean ipv4 = address.indexOf(':') < 0;
+        if (ipv4 && !ConfigParser.isValidIP(address)) {
+            throw new IllegalArgumentException("Invalid network address: " + cidr);
+        }
+        byte[] bytes;
+        try {
+            bytes = InetAddress.getByName(address).getAddress(); // 只接受IP字面量，不会发起域名解析
+        } catch (UnknownHostException | SecurityException e) {
+            throw new IllegalArgumentException("Invalid network address: " + cidr);
+        }
+        int maxLength = bytes.length * 8;
+        int length = maxLength;
+        if (slash >= 0) {
+            try {
+                length = Integer.parseInt(cidr.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                length = -1;
+            }
+            if (length < 0 || length > maxLength) {
+                throw new IllegalArgumentException("Invalid prefix length: " + cidr);
+            }
+        }
+        if (bytes.length == 4) {
+            length += IPV4_MAPPED_PREFIX;
+        }
+        insert(high(bytes), low(bytes), length, value);
+    }
+
+    /**
+     * 最长前缀匹配
+     * @param address 客户端地址
+     * @return 包含该地址的最长网段对应的值，没有匹配时返回null
+     */
+    public V lookup(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        return lookup(high(bytes), low(bytes));
+    }
+
+    /**
+     * 最长前缀匹配
+     * @param hi 地址高64位
+     * @param lo 地址低64位
+     * @return 包含该地址的最长网段对应的值，没有匹配时返回null
+     */
+    public V lookup(long hi, long lo) {
+        V best = null;
+        Node<V> node = root;
+        while (node != null && commonBits(node.hi ^ hi, node.lo ^ lo) >= node.length) {
+            if (node.hasValue) {
+                best = node.value;
+            }
+            if (node.length == ADDRESS_BITS) {
+                break;
+            }
+            node = bit(hi, lo, node.length) == 0 ? node.left : node.right;
+        }
+        return best;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void insert(long hi, long lo, int length, V value) {
+        hi = maskHigh(hi, length);
+        lo = maskLow(lo, length);
+        Node<V> parent = null;
+        Node<V> node = root;
+        while (node != null) {
+            int common = Math.min(commonBits(node.hi ^ hi, node.lo ^ lo), Math.min(node.length, length));
+            if (common < node.length) {
+                // 新网段在该节点的前缀中间分叉：插入一个只有公共前缀的分支节点
+                Node<V> branch = new Node<>(maskHigh(hi, common), maskLow(lo, common), common);
+                branch.setChild(bit(node.hi, node.lo, common), node);
+                if (common == length) {
+                    branch.setValue(value);
+                } else {
+                    Node<V> leaf = new Node<>(hi, lo, length);
+                    leaf.setValue(value);
+                    branch.setChild(bit(hi, lo, common), leaf);
+                }
+                size++;
+                replace(parent, node, branch);
+                return;
+            }
+            if (node.length == length) {
+                if (!node.hasValue) {
+                    size++;
+                }
+                node.setValue(value);
+                return;
+            }
+            parent = node;
+            node = bit(hi, lo, node.length) == 0 ? node.left : node.right;
+        }
+        Node<V> leaf = new Node<>(hi, lo, length);
+        leaf.setValue(value);
+        size++;
+        if (parent == null) {
+            root = leaf;
+        } else {
+            parent.setChild(bit(hi, lo, parent.length), leaf);
+        }
+    }
+
+    private void replace(Node<V> parent, Node<V> old, Node<V> replacement) {
+        if (parent == null) {
+            root = replacement;
+        } else if (parent.left == old) {
+            parent.left = replacement;
+        } else {
+            parent.right = replacement;
+        }
+    }
+
+    /**
+     * 两个地址从最高位开始相同的位数
+     */
+    private static int commonBits(long xorHi, long xorLo) {
+        return xorHi != 0 ? Long.numberOfLeadingZeros(xorHi) : 64 + Long.numberOfLeadingZeros(xorLo);
+    }
+
+    private static int bit(long hi, long lo, int index) {
+        return (int) (index < 64 ? hi >>> (63 - index) : lo >>> (127 - index)) & 1;
+    }
+
+    private static long maskHigh(long hi, int length) {
+        return length == 0 ? 0 : length >= 64 ? hi : hi & (-1L << (64 - length));
+    }
+
+    private static long maskLow(long lo, int length) {
+        return length <= 64 ? 0 : lo & (-1L << (128 - length));
+    }
+
+    private static long high(byte[] bytes) {
+        if (bytes.length == 4) {
+            return IPV4_MAPPED_HI;
+        }
+        long hi = 0;
+        for (int i = 0; i < 8; i++) {
+            hi = hi << 8 | (bytes[i] & 0xFF);
+        }
+        return hi;
+    }
+
+    private static long low(byte[] bytes) {
+        long lo = 0;
+        if (bytes.length == 4) {
+            for (byte b : bytes) {
+                lo = lo << 8 | (b & 0xFF);
+            }
+            return IPV4_MAPPED_LO | lo;
+        }
+        for (int i = 8; i < 16; i++) {
+            lo = lo << 8 | (bytes[i] & 0xFF);
+        }
+        return lo;
+    }
+
+    /**
+     * 树节点：从根开始的完整前缀，带值时表示一个网段
+     */
+    private static final class Node<V> {
+        final long hi;
+        final long lo;
+        final int length;
+        V value;
+        boolean hasValue;
+        Node<V> left;
+        Node<V> right;
+
+        Node(long hi, long lo, int length) {
+            this.hi = hi;
+            this.lo = lo;
+            this.length = length;
+        }
+
+        void setValue(V value) {
+            this.value = value;
+            this.hasValue = true;
+        }
+
+        void setChild(int bit, Node<V> child) {
+            if (bit == 0) {
+                left = child;
+            } else {
+                right = child;
+            }
+        }
+    }
+}
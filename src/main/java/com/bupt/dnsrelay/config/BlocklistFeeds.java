@@ -0,0 +1,304 @@
+package com.bupt.dnsrelay.config;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.bupt.dnsrelay.dns.NameKey;
+import com.bupt.dnsrelay.utils.DebugUtils;
+
+/**
+ * 外部拦截列表订阅（带版本号的增量更新）
+ * 订阅文件每行一条指令，#开头为注释：
+ * <pre>
+ * feed &lt;名称&gt; &lt;列表文件&gt;
+ * </pre>
+ * 列表文件是完整的基础列表，每行一个域名，也接受hosts格式（"0.0.0.0 域名"）；
+ * 可选的"# version N"行给出基础列表的版本号（默认0）。
+ * 之后的变化放在同目录的增量文件"&lt;列表文件&gt;.&lt;版本号&gt;.delta"中，每行"+域名"或"-域名"。
+ * 后台线程定期检查下一个版本的增量文件，按版本号依次应用：
+ * <ul>
+ *   <li>每个增量文件作为一批修改应用到持久化集合上，只复制被修改的路径，
+ *       代价与增量的行数成正比，与列表大小无关；整批完成后用一次volatile写发布，读者看到的总是某个完整版本</li>
+ *   <li>基础列表文件被替换时重新完整加载，再继续应用其版本号之后的增量</li>
+ *   <li>增量文件应先写入临时文件再改名，读取出错时保留当前版本，下次检查时重试</li>
+ * </ul>
+ * 本地配置（包括视图）中的条目优先于订阅，订阅只在本地没有该名字时生效。
+ */
+public class BlocklistFeeds implements Runnable {
+
+    private static final long POLL_INTERVAL_MS = 5000;  // 检查新增量文件的间隔
+    private static final String VERSION_PREFIX = "# version";
+    private static final String DELTA_SUFFIX = ".delta";
+
+    private final Feed[] feeds;
+    private final int debugLevel;
+    private Thread updaterThread;
+    private volatile boolean isRunning = false;
+
+    private BlocklistFeeds(Feed[] feeds, int debugLevel) {
+        this.feeds = feeds;
+        this.debugLevel = debugLevel;
+    }
+
+    /**
+     * 从订阅文件加载所有列表及已有的增量
+     * @param filename 订阅文件路径
+     * @param debugLevel 调试级别
+     * @return 订阅集合
+     * @throws IOException 订阅文件或列表文件读取错误
+     */
+    public static BlocklistFeeds load(String filename, int debugLevel) throws IOException {
+        File file = new File(filename);
+        if (!file.exists()) {
+            throw new IOException("Blocklist feed file not found: " + filename);
+        }
+        List<Feed> feeds = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                if (parts.length != 3 || !"feed".equals(parts[0])) {
+                    System.out.println("Warning: Invalid line format at line " + lineNumber + ": " + line);
+                    continue;
+                }
+                Feed feed = new Feed(parts[1], new File(parts[2]));
+                feed.loadList();
+                feed.applyPendingDeltas();
+                feeds.add(feed);
+            }
+        }
+        BlocklistFeeds result = new BlocklistFeeds(feeds.toArray(new Feed[0]), debugLevel);
+        System.out.println("Loaded " + result.getEntryCount() + " blocklist entries (" + feeds.size() + " feeds) from: " + filename);
+        return result;
+    }
+
+    /**
+     * 检查名字是否在任一订阅列表中（只读，不加锁）
+     * @param key 域名键
+     * @return 是否被拦截
+     */
+    public boolean isBlocked(NameKey key) {
+        for (Feed feed : feeds) {
+            if (feed.entries.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 所有订阅的条目总数（不同订阅中的重复名字分别计数）
+     */
+    public long getEntryCount() {
+        long count = 0;
+        for (Feed feed : feeds) {
+            count += feed.entries.size();
+        }
+        return count;
+    }
+
+    /**
+     * 启动后台更新线程
+     */
+    public void start() {
+        isRunning = true;
+        updaterThread = new Thread(this, "feed-updater");
+        updaterThread.setDaemon(true);
+        updaterThread.start();
+    }
+
+    public void stop() {
+        isRunning = false;
+        if (updaterThread != null) {
+            updaterThread.interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (isRunning) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            update();
+        }
+    }
+
+    /**
+     * 检查一遍所有订阅：基础列表被替换时重新加载，再应用已经存在的新增量（由更新线程定期调用）
+     */
+    void update() {
+        for (Feed feed : feeds) {
+            try {
+                if (feed.listChanged()) {
+                    feed.loadList();
+                }
+                feed.applyPendingDeltas();
+            } catch (IOException e) {
+                System.err.println("Warning: Failed to update feed " + feed.name + ": " + e.getMessage());
+            }
+            DebugUtils.debugf(debugLevel, "[FEED] %s%n", feed);
+        }
+    }
+
+    /**
+     * 各订阅的状态，每个订阅一行
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (Feed feed : feeds) {
+            if (sb.length() > 0) {
+                sb.append(System.lineSeparator());
+            }
+            sb.append(feed);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 一个订阅：基础列表和按版本号排列的增量文件
+     * 只有加载时和更新线程会修改，读者只读取entries
+     */
+    private static final class Feed {
+        final String name;
+        final File listFile;
+        volatile NameSet entries = NameSet.EMPTY;
+        private long listModified;
+        private long listLength;
+        private long version;
+        private long deltasApplied;
+        private int skipped;   // 无法解析的行数（不逐行警告，列表可能有上百万行）
+
+        Feed(String name, File listFile) {
+            this.name = name;
+            this.listFile = listFile;
+        }
+
+        boolean listChanged() {
+            return listFile.lastModified() != listModified || listFile.length() != listLength;
+        }
+
+        /**
+         * 完整加载基础列表
+         */
+        void loadList() throws IOException {
+            long modified = listFile.lastModified();
+            long length = listFile.length();
+            long startNanos = System.nanoTime();
+            NameSet.Builder builder = NameSet.EMPTY.toBuilder();
+            long listVersion = 0;
+            int invalid = 0;
+            try (BufferedReader reader = new BufferedReader(new FileReader(listFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.startsWith(VERSION_PREFIX)) {
+                        listVersion = parseVersion(line);
+                        continue;
+                    }
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    String[] parts = line.split("\\s+");
+                    String domain = parts.length >= 2 && ConfigParser.isValidIP(parts[0]) ? parts[1] : parts[0];
+                    NameKey key = toKey(domain);
+                    if (key == null) {
+                        invalid++;
+                    } else {
+                        builder.add(key);
+                    }
+                }
+            }
+            entries = builder.build();
+            listModified = modified;
+            listLength = length;
+            version = listVersion;
+            skipped = invalid;
+            System.out.printf("[FEED] %s: loaded %d entries (version %d) in %dms%n",
+                name, entries.size(), version, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+
+        /**
+         * 依次应用当前版本之后已经存在的增量文件
+         */
+        void applyPendingDeltas() throws IOException {
+            File delta;
+            while ((delta = new File(listFile.getPath() + "." + (version + 1) + DELTA_SUFFIX)).isFile()) {
+                applyDelta(delta);
+            }
+        }
+
+        /**
+         * 一个增量文件作为一批修改，全部读完后才发布
+         */
+        private void applyDelta(File delta) throws IOException {
+            long startNanos = System.nanoTime();
+            NameSet.Builder builder = entries.toBuilder();
+            int added = 0;
+            int removed = 0;
+            try (BufferedReader reader = new BufferedReader(new FileReader(delta))) {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    char op = line.charAt(0);
+                    NameKey key = toKey(line.substring(1).trim());
+                    if ((op != '+' && op != '-') || key == null) {
+                        System.out.println("Warning: Invalid delta line at line " + lineNumber + " of " + delta + ": " + line);
+                    } else if (op == '+') {
+                        added += builder.add(key) ? 1 : 0;
+                    } else {
+                        removed += builder.remove(key) ? 1 : 0;
+                    }
+                }
+            }
+            entries = builder.build();
+            version++;
+            deltasApplied++;
+            System.out.printf("[FEED] %s: applied version %d (+%d -%d) in %dus, %d entries%n",
+                name, version, added, removed, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos), entries.size());
+        }
+
+        private static long parseVersion(String line) {
+            try {
+                return Long.parseLong(line.substring(VERSION_PREFIX.length()).replace(":", "").trim());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        private static NameKey toKey(String domain) {
+            if (domain.isEmpty() || domain.indexOf('*') >= 0) {
+                return null;
+            }
+            try {
+                return NameKey.fromDomain(domain.toLowerCase(), 0, 0);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s version=%d entries=%d deltas=%d skipped=%d",
+                name, version, entries.size(), deltasApplied, skipped);
+        }
+    }
+}
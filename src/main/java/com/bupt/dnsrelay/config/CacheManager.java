@@ -9,18 +9,67 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+import com.bupt.dnsrelay.dns.DNSRecord;
+import com.bupt.dnsrelay.dns.NameKey;
+import com.bupt.dnsrelay.utils.AddressUtils;
+import com.bupt.dnsrelay.utils.NameHash;
 
 /**
  * CacheManager 负责cache.txt的读写和LRU缓存管理。
- * 缓存的任何修改都会立即持久化到文件中，确保文件内容始终是内存缓存的精确快照。
+ * 缓存修改后只标记为脏，由后台写线程最多每秒一次在锁内取快照、在锁外写入临时文件再替换cache.txt，
+ * 插入不再等待整个文件写完；停止时写入最后一次快照。
+ *
+ * 条目保存在按槽位编号的并列数组中，由NameIndex按带类型的名字哈希定位槽位，
+ * LRU顺序用int数组组成的双向链表维护，查找和命中时的LRU调整都不分配对象。
+ *
+ * 每个槽位是一个记录集（RRset），按各自的所有者名、类型和TTL保存：
+ * 上游响应中的CNAME链被拆开，链上每一段CNAME和链末端的A/AAAA记录集分别存入。
+ * 许多CDN名字是指向少数共享目标的别名，一个名字的链只要到达已缓存的目标，
+ * 就可以把各段缓存的记录集拼接成完整的应答，不必再转发。
+ * 为防止上游在响应中夹带其他名字的记录，链上的名字只有仍由同一上游组负责时才缓存（见putResponse）。
+ * 地址以A/AAAA记录的原始RDATA（4或16字节）保存，CNAME目标以小写线格式名字保存，只在读写cache.txt时与字符串互相转换。
  */
 public class CacheManager {
-    private static final int MAX_CACHE_SIZE = 5; // Default max entries
+    private static final int MAX_CACHE_SIZE = 4096;  // 最多缓存的记录集数（CNAME链的每一段各占一个）
+    private static final long FLUSH_INTERVAL_MS = 1000; // 后台写线程检查脏标记的间隔
+    private static final int MAX_CHAIN = 8;      // 拼接应答时最多跟随的CNAME段数
+    private static final long LEGACY_TTL_MS = 300_000L; // cache.txt中没有过期时间的旧格式条目
+    private static final long MAX_TTL = 86_400L;  // 上游记录集最多缓存一天，防止异常的TTL长期占住槽位
+    private static final int NIL = -1;
+    private static final int HEADER_SIZE = 12;
+    private static final int RECORD_FIXED_SIZE = 10; // TYPE2 + CLASS2 + TTL4 + RDLENGTH2
     private final String cacheFilePath;
-    private final LinkedHashMap<String, String> cacheMap;
+    private final LongSupplier clock; // wall-clock milliseconds, expiry times in cache.txt are Unix seconds
     private final Object lock = new Object(); // Object lock for thread safety
+    private final Object fileLock = new Object(); // serializes writers of cache.txt; lock order is fileLock then lock, never take fileLock while holding lock
+
+    // Slot arrays, indexed by slot number.
+    private final byte[][] names;    // lowercase wire-format names, arrays are reused on eviction
+    private final int[] types;       // record type
+    private final int[] classes;     // record class
+    private final long[] hashes;     // typed name hash, needed to unlink from the index
+    private final byte[][][] values; // cached RRset RDATA (one array per record), never modified after being stored
+    private final NameKey[] targets; // CNAME target of a CNAME slot, used to follow the chain
+    private final long[] expires;    // absolute expiry time in milliseconds
+    private final int[] prev;        // LRU list, head is the eldest entry
+    private final int[] next;
+    private final NameIndex index;
+    private int head = NIL;
+    private int tail = NIL;
+    private int size;
+    private int probeType;           // type and class being looked up, guarded by lock
+    private int probeClass;
+    private boolean dirty;           // modified since the last snapshot, guarded by lock
+    private Thread writerThread;
+    private volatile boolean running;
 
     /**
      * 构造函数，初始化并从文件加载缓存。
@@ -29,20 +78,75 @@ public class CacheManager {
      * @throws IOException 如果加载文件时发生IO错误
      */
     public CacheManager(String cacheFilePath) throws IOException {
+        this(cacheFilePath, System::currentTimeMillis);
+    }
+
+    /**
+     * 使用指定时钟的构造函数（测试用）。
+     *
+     * @param cacheFilePath 缓存文件路径
+     * @param clock 返回当前时间的毫秒数
+     * @throws IOException 如果加载文件时发生IO错误
+     */
+    CacheManager(String cacheFilePath, LongSupplier clock) throws IOException {
         this.cacheFilePath = cacheFilePath;
-        // Initializes an access-ordered LinkedHashMap for LRU.
-        // Entries accessed (get/put) move to the end of the list.
-        this.cacheMap = new LinkedHashMap<String, String>(MAX_CACHE_SIZE, 0.75f, true) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
-                return size() > MAX_CACHE_SIZE;
-            }
-        };
+        this.clock = clock;
+        this.names = new byte[MAX_CACHE_SIZE][];
+        this.types = new int[MAX_CACHE_SIZE];
+        this.classes = new int[MAX_CACHE_SIZE];
+        this.hashes = new long[MAX_CACHE_SIZE];
+        this.values = new byte[MAX_CACHE_SIZE][][];
+        this.targets = new NameKey[MAX_CACHE_SIZE];
+        this.expires = new long[MAX_CACHE_SIZE];
+        this.prev = new int[MAX_CACHE_SIZE];
+        this.next = new int[MAX_CACHE_SIZE];
+        this.index = new NameIndex(MAX_CACHE_SIZE, (slot, key) ->
+            types[slot] == probeType && classes[slot] == probeClass
+                && key.nameEquals(names[slot], 0));
         loadCache();
     }
 
+    /**
+     * 启动后台写线程
+     */
+    public void start() {
+        running = true;
+        writerThread = new Thread(this::writeLoop, "cache-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * 停止后台写线程，并把尚未写入的修改写入文件
+     */
+    public void stop() {
+        running = false;
+        if (writerThread != null) {
+            writerThread.interrupt();
+            try {
+                writerThread.join(FLUSH_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        persistCache();
+    }
+
+    private void writeLoop() {
+        while (running) {
+            try {
+                Thread.sleep(FLUSH_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            persistCache();
+        }
+    }
+
     /**
      * 从缓存文件中加载记录到内存。
+     * 每行一条记录："值 domain:type 过期时间"，值为地址或CNAME目标，过期时间为Unix秒；
+     * 同一记录集的多条记录写在相邻的行中。旧格式没有过期时间，加载后按默认TTL过期。
      *
      * @throws IOException IO异常
      */
@@ -56,74 +160,476 @@ public class CacheManager {
             return;
         }
 
+        long now = clock.getAsLong();
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
             String line;
+            String rrsetKey = null; // key text of the RRset being collected
+            NameKey key = null;
+            List<byte[]> rrset = new ArrayList<>();
+            NameKey target = null;
+            long expiry = 0;
             while ((line = reader.readLine()) != null) {
                 line = line.trim();
                 if (line.isEmpty() || line.startsWith("#")) {
                     continue;
                 }
-                String[] parts = line.split("\\s+", 2); // Use limit=2 to prevent incorrect splitting if domain contains spaces.
-                if (parts.length == 2) {
-                    cacheMap.put(parts[1].toLowerCase(), parts[0]); // parts[0] is IP, parts[1] is domain
+                String[] parts = line.split("\\s+", 3); // parts[0] is the value, parts[1] is domain:queryType
+                if (parts.length < 2) {
+                    continue;
+                }
+                long lineExpiry = parts.length == 3 ? parseExpiry(parts[2]) : now + LEGACY_TTL_MS;
+                if (!parts[1].equals(rrsetKey) || lineExpiry != expiry) {
+                    if (key != null && !rrset.isEmpty() && expiry > now) {
+                        store(key, key.getQType(), DNSRecord.CLASS_IN, rrset.toArray(new byte[0][]), target, expiry);
+                    }
+                    rrsetKey = parts[1];
+                    key = parseKey(parts[1]);
+                    rrset.clear();
+                    target = null;
+                    expiry = lineExpiry;
+                }
+                if (key == null) {
+                    continue;
+                }
+                if (key.getQType() == DNSRecord.TYPE_CNAME) {
+                    target = rrset.isEmpty() ? parseTarget(parts[0]) : target;
+                    if (target != null && rrset.isEmpty()) {
+                        rrset.add(wireName(target));
+                    }
+                } else {
+                    byte[] rdata = AddressUtils.parseAddress(parts[0]);
+                    if (rdata != null) {
+                        rrset.add(rdata);
+                    }
                 }
             }
+            if (key != null && !rrset.isEmpty() && expiry > now) {
+                store(key, key.getQType(), DNSRecord.CLASS_IN, rrset.toArray(new byte[0][]), target, expiry);
+            }
         }
     }
 
     /**
-     * 根据域名查找缓存中的IP地址。
+     * 解析缓存文件中的键 (domain:queryType)，旧格式没有类型时按A记录处理。
      *
-     * @param domain 要查询的域名 (domain:queryType)
-     * @return 找到的IP地址，或null（如果未找到）
+     * @param text 键文本
+     * @return 名字键，格式无效时返回null
      */
-    public String lookup(String domain) {
-        if (domain == null) {
+    private static NameKey parseKey(String text) {
+        int colon = text.lastIndexOf(':');
+        try {
+            if (colon < 0) {
+                return NameKey.fromDomain(text, DNSRecord.TYPE_A, DNSRecord.CLASS_IN);
+            }
+            int queryType = Integer.parseInt(text.substring(colon + 1));
+            return NameKey.fromDomain(text.substring(0, colon), queryType, DNSRecord.CLASS_IN);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static NameKey parseTarget(String text) {
+        try {
+            return NameKey.fromDomain(text, 0, 0);
+        } catch (IllegalArgumentException e) {
             return null;
         }
+    }
+
+    private static long parseExpiry(String text) {
+        try {
+            return Long.parseLong(text.trim()) * 1000L;
+        } catch (NumberFormatException e) {
+            return 0; // treated as expired
+        }
+    }
+
+    private static byte[] wireName(NameKey key) {
+        byte[] wire = new byte[key.getWireLength()];
+        key.copyNameTo(wire, 0);
+        return wire;
+    }
+
+    /**
+     * 用缓存的记录集应答查询，直接写在响应的问题部分之后，并写入ANCOUNT。
+     * 名字本身没有该类型的记录集时沿缓存的CNAME链前进，直到某个名字有该类型的记录集，
+     * 再把链上各段的CNAME和末端的记录集拼接起来；每条记录带各自记录集剩余的TTL。
+     * 后续记录的所有者名用压缩指针指向前一条CNAME的RDATA，第一条指向问题部分（0xC00C）。
+     *
+     * @param key 查询键，可以是工作线程复用的键，查找过程不分配内存
+     * @param out 响应数组，报文头和问题部分已经写好
+     * @param pos 问题部分之后的位置
+     * @return 应答之后的位置；链上任何一段未缓存或已过期时返回ConfigTable.ANSWER_NOT_FOUND，
+     *         数组容量不足时返回ConfigTable.ANSWER_TOO_LARGE
+     */
+    public int appendAnswer(NameKey key, byte[] out, int pos) {
+        return appendAnswer(key, out, pos, HEADER_SIZE, 0);
+    }
+
+    /**
+     * 从已经写在响应中的CNAME链的末端继续拼接缓存的记录集（本地别名指向本地数据之外的名字时）。
+     * 未命中时响应中的ANCOUNT保持不变。
+     *
+     * @param key 链末端的目标名字，类型和类别取查询的类型和类别
+     * @param out 响应数组
+     * @param pos 已有应答之后的位置
+     * @param ownerOffset 目标名字在响应中的位置，第一条记录的所有者名指向这里
+     * @param count 已有的应答记录数
+     * @return 同appendAnswer(NameKey, byte[], int)
+     */
+    public int appendAnswer(NameKey key, byte[] out, int pos, int ownerOffset, int count) {
+        if (key == null) {
+            return ConfigTable.ANSWER_NOT_FOUND;
+        }
+        int qtype = key.getQType();
+        int qclass = key.getQClass();
+        long now = clock.getAsLong();
         synchronized (lock) {
-            return cacheMap.get(domain.toLowerCase());
+            NameKey name = key;
+            for (int link = 0; ; link++) {
+                int slot = find(name, qtype, qclass);
+                if (slot != NIL && expires[slot] > now) {
+                    for (byte[] rdata : values[slot]) {
+                        pos = writeRecord(out, pos, ownerOffset, slot, rdata, now);
+                        if (pos < 0) {
+                            return ConfigTable.ANSWER_TOO_LARGE;
+                        }
+                        count++;
+                    }
+                    moveToTail(slot);
+                    break;
+                }
+                if (link == MAX_CHAIN || qtype == DNSRecord.TYPE_CNAME) {
+                    return ConfigTable.ANSWER_NOT_FOUND;
+                }
+                slot = find(name, DNSRecord.TYPE_CNAME, qclass);
+                if (slot == NIL || expires[slot] <= now) {
+                    return ConfigTable.ANSWER_NOT_FOUND;
+                }
+                int end = writeRecord(out, pos, ownerOffset, slot, values[slot][0], now);
+                if (end < 0) {
+                    return ConfigTable.ANSWER_TOO_LARGE;
+                }
+                ownerOffset = pos + 2 + RECORD_FIXED_SIZE; // the target name in this record's RDATA
+                pos = end;
+                count++;
+                moveToTail(slot);
+                name = targets[slot];
+            }
+            out[6] = (byte) (count >> 8);
+            out[7] = (byte) count;
+            return pos;
         }
     }
 
     /**
-     * 将一个新的域名-IP对添加到缓存中，并立即持久化到文件。
-     * 如果域名已存在，则会更新其IP。
+     * 写入一条所有者名为压缩指针的资源记录，TTL为槽位剩余的秒数。
      *
-     * @param domain 域名 (domain:queryType)
-     * @param ip     对应的IP地址
+     * @return 记录之后的位置，数组容量不足时返回-1
      */
-    public void put(String domain, String ip) {
-        if (domain == null || ip == null) {
-            return;
+    private int writeRecord(byte[] out, int pos, int ownerOffset, int slot, byte[] rdata, long now) {
+        int end = pos + 2 + RECORD_FIXED_SIZE + rdata.length;
+        if (end > out.length) {
+            return -1;
         }
-        String lowerCaseDomain = domain.toLowerCase();
+        long ttl = (expires[slot] - now + 999) / 1000;
+        writeShort(out, pos, 0xC000 | ownerOffset);
+        writeShort(out, pos + 2, types[slot]);
+        writeShort(out, pos + 4, classes[slot]);
+        writeShort(out, pos + 6, (int) (ttl >>> 16));
+        writeShort(out, pos + 8, (int) ttl);
+        writeShort(out, pos + 10, rdata.length);
+        System.arraycopy(rdata, 0, out, pos + 12, rdata.length);
+        return end;
+    }
 
+    /**
+     * 缓存上游响应中的CNAME链和链末端的地址记录集，由后台写线程稍后持久化。
+     * 从问题名开始沿应答部分中的CNAME记录前进，每一段CNAME以其所有者名和TTL单独存入；
+     * 查询A/AAAA时，链末端名字的该类型记录集以其中最小的TTL存入。
+     * CNAME目标不满足inBailiwick时（例如按路由应由另一个上游组回答），仍缓存指向它的CNAME，
+     * 但不再缓存该目标及其后的记录，这些名字下次按自己的路由查询。
+     * 只缓存没有被截断的成功响应，TTL为0的记录集不缓存。
+     * 最高位为1的TTL按0处理（RFC 2181 §8），其余TTL不超过MAX_TTL。
+     *
+     * @param key    查询键，名字字节会复制到缓存槽位中
+     * @param response 上游响应所在的数组
+     * @param length 响应长度
+     * @param inBailiwick 判断链上的名字能否采信这个响应中的记录
+     * @return 存入的记录集数
+     */
+    public int putResponse(NameKey key, byte[] response, int length, Predicate<NameKey> inBailiwick) {
+        if (key == null || length < HEADER_SIZE || (response[3] & 0x0F) != 0 || (response[2] & 0x02) != 0) {
+            return 0;
+        }
+        List<Answer> answers = parseAnswers(response, length);
+        if (answers == null || answers.isEmpty()) {
+            return 0;
+        }
+        int qtype = key.getQType();
+        int qclass = key.getQClass();
+        long now = clock.getAsLong();
+        int stored = 0;
         synchronized (lock) {
-            // Optimization: if value is unchanged, no need to rewrite file.
-            if (ip.equals(cacheMap.get(lowerCaseDomain))) {
-                return;
+            NameKey name = key;
+            for (int link = 0; link < MAX_CHAIN; link++) {
+                Answer alias = findAnswer(answers, name, DNSRecord.TYPE_CNAME, qclass);
+                NameKey target = alias == null ? null : alias.target(response, length);
+                if (target == null) {
+                    break;
+                }
+                if (alias.ttl > 0) {
+                    store(name, DNSRecord.TYPE_CNAME, qclass, new byte[][] { wireName(target) }, target,
+                        now + alias.ttl * 1000L);
+                    stored++;
+                }
+                if (!inBailiwick.test(target)) {
+                    return stored;
+                }
+                name = target;
+            }
+            int addressLength = qtype == DNSRecord.TYPE_A ? 4 : qtype == DNSRecord.TYPE_AAAA ? 16 : -1;
+            List<byte[]> rrset = new ArrayList<>();
+            long ttl = Long.MAX_VALUE;
+            for (Answer answer : answers) {
+                if (answer.type == qtype && answer.qclass == qclass && answer.rdlength == addressLength
+                        && name.nameEquals(answer.owner, 0)) {
+                    rrset.add(Arrays.copyOfRange(response, answer.rdata, answer.rdata + answer.rdlength));
+                    ttl = Math.min(ttl, answer.ttl);
+                }
+            }
+            if (!rrset.isEmpty() && ttl > 0) {
+                store(name, qtype, qclass, rrset.toArray(new byte[0][]), null, now + ttl * 1000L);
+                stored++;
             }
-            cacheMap.put(lowerCaseDomain, ip);
         }
+        return stored;
+    }
 
-        // Calls persistCache to synchronize file.
-        // persistCache handles its own synchronization to ensure atomicity and consistency.
-        persistCache();
+    /**
+     * 按名字、类型和类别查找槽位。调用方需持有锁。
+     */
+    private int find(NameKey name, int type, int qclass) {
+        probeType = type;
+        probeClass = qclass;
+        return index.find(name.hash(type, qclass), name);
+    }
+
+    /**
+     * 写入或更新一个记录集，缓存已满时淘汰最久未使用的条目，并标记为需要写入文件。调用方需持有锁。
+     */
+    private void store(NameKey key, int type, int qclass, byte[][] rrset, NameKey target, long expiry) {
+        long hash = key.hash(type, qclass);
+        int slot = find(key, type, qclass);
+        if (slot == NIL) {
+            if (size < MAX_CACHE_SIZE) {
+                slot = size++;
+            } else {
+                slot = head; // Evict the eldest entry and reuse its slot.
+                index.remove(hashes[slot], slot);
+                unlink(slot);
+            }
+            byte[] name = names[slot];
+            if (name == null || name.length < key.getWireLength()) {
+                name = new byte[key.getWireLength()];
+                names[slot] = name;
+            }
+            key.copyNameTo(name, 0);
+            types[slot] = type;
+            classes[slot] = qclass;
+            hashes[slot] = hash;
+            index.insert(hash, slot);
+            linkTail(slot);
+        } else {
+            moveToTail(slot);
+        }
+        values[slot] = rrset;
+        targets[slot] = target;
+        expires[slot] = expiry;
+        dirty = true;
     }
 
     /**
-     * 将内存中的完整缓存内容覆盖写入到文件中。
+     * 解析响应的应答部分，所有者名展开为小写线格式
+     *
+     * @return 应答记录，报文格式错误时返回null
+     */
+    private static List<Answer> parseAnswers(byte[] response, int length) {
+        int qdcount = readShort(response, 4);
+        int ancount = readShort(response, 6);
+        byte[] name = new byte[NameKey.MAX_NAME_LENGTH];
+        int pos = HEADER_SIZE;
+        for (int i = 0; i < qdcount; i++) {
+            pos = expandName(response, pos, length, name);
+            if (pos < 0 || pos + 4 > length) {
+                return null;
+            }
+            pos += 4;
+        }
+        List<Answer> answers = new ArrayList<>(ancount);
+        for (int i = 0; i < ancount; i++) {
+            int start = pos;
+            pos = expandName(response, pos, length, name);
+            if (pos < 0 || pos + RECORD_FIXED_SIZE > length) {
+                return null;
+            }
+            Answer answer = new Answer();
+            answer.owner = Arrays.copyOf(name, nameLength(name));
+            answer.type = readShort(response, pos);
+            answer.qclass = readShort(response, pos + 2);
+            answer.ttl = cacheTtl(((long) readShort(response, pos + 4) << 16) | readShort(response, pos + 6));
+            answer.rdlength = readShort(response, pos + 8);
+            answer.rdata = pos + RECORD_FIXED_SIZE;
+            pos = answer.rdata + answer.rdlength;
+            if (pos > length || pos <= start) {
+                return null;
+            }
+            answers.add(answer);
+        }
+        return answers;
+    }
+
+    /**
+     * 上游记录的TTL在缓存中的上限：最高位为1时按0处理（RFC 2181 §8），其余不超过MAX_TTL
+     */
+    static long cacheTtl(long ttl) {
+        return ttl > 0x7FFFFFFFL ? 0 : Math.min(ttl, MAX_TTL);
+    }
+
+    private static Answer findAnswer(List<Answer> answers, NameKey name, int type, int qclass) {
+        for (Answer answer : answers) {
+            if (answer.type == type && answer.qclass == qclass && name.nameEquals(answer.owner, 0)) {
+                return answer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 把报文中可能被压缩的名字展开为小写线格式
+     *
+     * @param message 报文
+     * @param pos 名字起始位置
+     * @param length 报文长度
+     * @param out 输出数组（至少MAX_NAME_LENGTH字节）
+     * @return 名字在报文中占用的字节之后的位置，格式错误或名字过长时返回-1
+     */
+    private static int expandName(byte[] message, int pos, int length, byte[] out) {
+        int end = -1;
+        int written = 0;
+        for (int jumps = 0; pos < length; ) {
+            int len = message[pos] & 0xFF;
+            if ((len & 0xC0) == 0xC0) {
+                if (pos + 1 >= length || ++jumps > NameKey.MAX_NAME_LENGTH) {
+                    return -1;
+                }
+                if (end < 0) {
+                    end = pos + 2;
+                }
+                pos = ((len & 0x3F) << 8) | (message[pos + 1] & 0xFF);
+                continue;
+            }
+            if (len > 63 || written + len + 1 > out.length || pos + len + 1 > length) {
+                return -1;
+            }
+            out[written++] = (byte) len;
+            if (len == 0) {
+                return end < 0 ? pos + 1 : end;
+            }
+            for (int i = pos + 1; i <= pos + len; i++) {
+                out[written++] = (byte) NameHash.fold(message[i] & 0xFF);
+            }
+            pos += len + 1;
+        }
+        return -1;
+    }
+
+    private static int nameLength(byte[] wire) {
+        int pos = 0;
+        while (wire[pos] != 0) {
+            pos += (wire[pos] & 0xFF) + 1;
+        }
+        return pos + 1;
+    }
+
+    private static int readShort(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+
+    private static void writeShort(byte[] data, int pos, int value) {
+        data[pos] = (byte) (value >> 8);
+        data[pos + 1] = (byte) value;
+    }
+
+    private void moveToTail(int slot) {
+        if (slot != tail) {
+            unlink(slot);
+            linkTail(slot);
+        }
+    }
+
+    private void unlink(int slot) {
+        int p = prev[slot];
+        int n = next[slot];
+        if (p == NIL) {
+            head = n;
+        } else {
+            next[p] = n;
+        }
+        if (n == NIL) {
+            tail = p;
+        } else {
+            prev[n] = p;
+        }
+    }
+
+    private void linkTail(int slot) {
+        prev[slot] = tail;
+        next[slot] = NIL;
+        if (tail == NIL) {
+            head = slot;
+        } else {
+            next[tail] = slot;
+        }
+        tail = slot;
+    }
+
+    /**
+     * 把缓存快照覆盖写入到文件中，每条记录一行，已过期的记录集不再写入。
+     * 快照在锁内生成，文件在锁外先写入临时文件再替换，写文件期间查询和插入不受影响；没有修改时直接返回。
      */
     private void persistCache() {
-        synchronized (lock) {
-            try (BufferedWriter writer = new BufferedWriter(
-                    new OutputStreamWriter(new FileOutputStream(cacheFilePath, false), StandardCharsets.UTF_8))) { // false for overwrite
-                for (Map.Entry<String, String> entry : cacheMap.entrySet()) {
-                    writer.write(entry.getValue() + " " + entry.getKey());
-                    writer.newLine();
+        StringBuilder snapshot = new StringBuilder();
+        synchronized (fileLock) {
+            synchronized (lock) {
+                if (!dirty) {
+                    return;
+                }
+                dirty = false;
+                long now = clock.getAsLong();
+                // Eldest first, so that reloading the file restores the same LRU order.
+                for (int slot = head; slot != NIL; slot = next[slot]) {
+                    if (expires[slot] <= now) {
+                        continue;
+                    }
+                    String key = NameKey.toDomainString(names[slot], 0) + ":" + types[slot];
+                    long expiry = (expires[slot] + 999) / 1000;
+                    for (byte[] rdata : values[slot]) {
+                        String value = types[slot] == DNSRecord.TYPE_CNAME
+                            ? NameKey.toDomainString(rdata, 0) : AddressUtils.formatAddress(rdata);
+                        snapshot.append(value).append(' ').append(key).append(' ').append(expiry)
+                            .append(System.lineSeparator());
+                    }
+                }
+            }
+            File file = new File(cacheFilePath);
+            File temp = new File(cacheFilePath + ".tmp");
+            try {
+                try (BufferedWriter writer = new BufferedWriter(
+                        new OutputStreamWriter(new FileOutputStream(temp, false), StandardCharsets.UTF_8))) { // false for overwrite
+                    writer.write(snapshot.toString());
                 }
-                writer.flush(); // Ensure all content is written to disk.
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
             } catch (IOException e) {
                 System.err.println("[CACHE] Failed to persist cache to file: " + e.getMessage());
             }
@@ -135,7 +641,35 @@ public class CacheManager {
      */
     public int size() {
         synchronized (lock) {
-            return cacheMap.size();
+            return size;
+        }
+    }
+
+    /**
+     * 响应应答部分中的一条记录
+     */
+    private static final class Answer {
+        byte[] owner;   // lowercase wire-format owner name
+        int type;
+        int qclass;
+        long ttl;
+        int rdata;      // RDATA offset in the response
+        int rdlength;
+
+        /**
+         * CNAME记录的目标名字
+         * @return 目标名字键，格式错误时返回null
+         */
+        NameKey target(byte[] response, int length) {
+            byte[] name = new byte[NameKey.MAX_NAME_LENGTH + 4]; // followed by a zero type and class for setFromWire
+            if (type != DNSRecord.TYPE_CNAME || expandName(response, rdata, length, name) < 0) {
+                return null;
+            }
+            NameKey key = new NameKey();
+            if (key.setFromWire(name, 0, name.length) < 0) {
+                return null;
+            }
+            return key.copy();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,204 @@
+package com.bupt.dnsrelay.config;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.bupt.dnsrelay.dns.NameKey;
+
+/**
+ * 按客户端网段选择策略（访问控制和分视图应答）
+ * 策略文件每行一条指令，#开头为注释：
+ * <pre>
+ * view   &lt;视图名&gt; &lt;配置文件&gt; &lt;网段&gt;[,&lt;网段&gt;...]
+ * refuse &lt;网段&gt;[,&lt;网段&gt;...]
+ * drop   &lt;网段&gt;[,&lt;网段&gt;...]
+ * </pre>
+ * 网段写作IPv4或IPv6地址/前缀长度。客户端地址在Patricia树中按最长前缀匹配：
+ * <ul>
+ *   <li>view：视图的配置文件（格式与主配置相同，也可以是编译后的镜像）中的条目优先应答，
+ *       其中没有的名字再查主配置；视图文件修改后自动重新加载</li>
+ *   <li>refuse：直接回复REFUSED；drop：直接丢弃。两者都不解析报文</li>
+ *   <li>没有匹配的客户端只使用主配置</li>
+ * </ul>
+ */
+public class ClientPolicy {
+
+    /**
+     * 网段对应的处理方式
+     */
+    public enum Action { VIEW, REFUSE, DROP }
+
+    private final AddressTrie<View> trie;
+    private final List<View> views;
+
+    private ClientPolicy(AddressTrie<View> trie, List<View> views) {
+        this.trie = trie;
+        this.views = views;
+    }
+
+    /**
+     * 从策略文件加载
+     * 格式错误的行或网段输出警告后跳过，不影响其他行
+     * @param filename 策略文件路径
+     * @param debugLevel 调试级别
+     * @return 客户端策略
+     * @throws IOException 文件读取错误
+     */
+    public static ClientPolicy load(String filename, int debugLevel) throws IOException {
+        File file = new File(filename);
+        if (!file.exists()) {
+            throw new IOException("Client policy file not found: " + filename);
+        }
+        AddressTrie<View> trie = new AddressTrie<>();
+        List<View> views = new ArrayList<>();
+        View refuse = new View("refuse", Action.REFUSE, null, debugLevel);
+        View drop = new View("drop", Action.DROP, null, debugLevel);
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                View view;
+                String networks;
+                if ("view".equals(parts[0]) && parts.length == 4) {
+                    view = new View(parts[1], Action.VIEW, parts[2], debugLevel);
+                    views.add(view);
+                    networks = parts[3];
+                } else if ("refuse".equals(parts[0]) && parts.length == 2) {
+                    view = refuse;
+                    networks = parts[1];
+                } else if ("drop".equals(parts[0]) && parts.length == 2) {
+                    view = drop;
+                    networks = parts[1];
+                } else {
+                    System.out.println("Warning: Invalid line format at line " + lineNumber + ": " + line);
+                    continue;
+                }
+                for (String network : networks.split(",")) {
+                    try {
+                        trie.put(network, view);
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Warning: Invalid network at line " + lineNumber + ": " + network);
+                    }
+                }
+            }
+        }
+        views.add(refuse);
+        views.add(drop);
+        System.out.println("Loaded " + trie.size() + " client networks (" + (views.size() - 2) + " views) from: " + filename);
+        return new ClientPolicy(trie, views);
+    }
+
+    /**
+     * 为客户端选择策略
+     * @param client 客户端地址
+     * @return 最长匹配网段对应的策略，没有匹配时返回null
+     */
+    public View resolve(InetAddress client) {
+        View view = trie.lookup(client);
+        if (view != null) {
+            view.queries.increment();
+        }
+        return view;
+    }
+
+    /**
+     * 启动各视图配置文件的热加载
+     */
+    public void startWatchers() {
+        for (View view : views) {
+            if (view.watcher != null) {
+                try {
+                    view.watcher.start();
+                } catch (IOException e) {
+                    System.err.println("Warning: Hot reload unavailable for view " + view.name + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public void stop() {
+        for (View view : views) {
+            if (view.watcher != null) {
+                view.watcher.stop();
+            }
+        }
+    }
+
+    /**
+     * 各策略的统计信息，每个策略一行
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (View view : views) {
+            if (sb.length() > 0) {
+                sb.append(System.lineSeparator());
+            }
+            sb.append(view);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 一个策略：视图（带自己的本地配置）、拒绝或丢弃
+     */
+    public static final class View {
+        private final String name;
+        private final Action action;
+        private final ConfigParser config;   // 只有VIEW有
+        private final ConfigWatcher watcher;
+        private final LongAdder queries = new LongAdder();
+
+        View(String name, Action action, String configFile, int debugLevel) throws IOException {
+            this.name = name;
+            this.action = action;
+            if (configFile != null) {
+                this.config = new ConfigParser();
+                config.loadConfig(configFile);
+                this.watcher = new ConfigWatcher(config, configFile, debugLevel);
+            } else {
+                this.config = null;
+                this.watcher = null;
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        /**
+         * 在视图自己的配置中查找名字，把应答写到响应的问题部分之后
+         * @param key 域名键
+         * @param qtype 查询类型
+         * @param out 响应数组
+         * @param pos 问题部分之后的位置
+         * @return 应答之后的位置，视图中没有该名字时返回ConfigTable.ANSWER_NOT_FOUND（其他返回值见ConfigTable）
+         */
+        public int appendAnswer(NameKey key, int qtype, byte[] out, int pos) {
+            return config != null ? config.appendAnswer(key, qtype, out, pos) : ConfigTable.ANSWER_NOT_FOUND;
+        }
+
+        @Override
+        public String toString() {
+            return action == Action.VIEW
+                ? String.format("view %s entries=%d queries=%d", name, config.getEntryCount(), queries.sum())
+                : String.format("%s queries=%d", name, queries.sum());
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.bupt.dnsrelay.config;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import com.bupt.dnsrelay.dns.NameKey;
+
+/**
+ * 编译后的二进制配置镜像
+ * 由ConfigCompiler离线生成，加载时直接内存映射，查询在映射区域上原地进行，不做任何解析
+ *
+ * 镜像布局（大端序）：
+ * <pre>
+ * 头部   magic(4) version(4) entryCount(4) blockedCount(4) indexOffset(4) namesOffset(4) dataOffset(4) patternsOffset(4)
+ * 索引   entryCount个16字节条目：nameHash(8) nameOffset(4) dataOffset(4)，按nameHash有符号升序排列
+ * 名字区 小写的线格式域名（长度前缀标签，以0结尾）
+ * 数据区 每个条目：flags(1) answerCount(1)，随后answerCount个应答：qtype(2) ancount(2) length(2) 预编码的资源记录
+ * 规则区 patternCount(4)，随后每条通配符拦截规则：length(2) ASCII规则原文；patternsOffset为0表示没有规则
+ * </pre>
+ * 条目数据由ZoneBuilder生成，与堆内快照的格式相同：预编码的资源记录以压缩指针0xC00C作为所有者名，
+ * 可直接拼接在问题部分之后；qtype为0的应答用于没有单独列出的类型。
+ * 通配符规则在映射时编译为PatternMatcher，与堆内快照一样只对没有精确条目的名字生效。
+ */
+public final class CompiledConfig implements ConfigTable {
+
+    static final int MAGIC = 0x444E5242;   // "DNRB"
+    static final int VERSION = 3;          // 2: 条目标志FLAG_EXTERNAL；3: 通配符规则区
+    private static final int MIN_VERSION = 2; // 版本2的保留字段为0，按没有规则读取
+    static final int HEADER_SIZE = 32;
+    static final int ENTRY_SIZE = 16;
+    private static final int ANSWER_HEADER_SIZE = 6; // qtype(2) ancount(2) length(2)
+    private static final int MAX_LABEL_SIZE = 63;
+    private static final int MAX_NAME_SIZE = 255;
+    static final int FLAG_BLOCKED = 0x01;
+    static final int FLAG_EXTERNAL = 0x02; // 别名的CNAME链离开本地数据
+
+    private final MappedByteBuffer image;
+    private final String source;
+    private final int entryCount;
+    private final int blockedCount;
+    private final int indexOffset;
+    private final PatternMatcher patterns;
+
+    private CompiledConfig(MappedByteBuffer image, String source) throws IOException {
+        this.image = image;
+        this.source = source;
+        if (image.capacity() < HEADER_SIZE || image.getInt(0) != MAGIC) {
+            throw new IOException("Not a compiled configuration image: " + source);
+        }
+        if (image.getInt(4) < MIN_VERSION || image.getInt(4) > VERSION) {
+            throw new IOException("Unsupported compiled configuration version " + image.getInt(4) + ": " + source);
+        }
+        this.entryCount = image.getInt(8);
+        this.blockedCount = image.getInt(12);
+        this.indexOffset = image.getInt(16);
+        long indexEnd = (long) indexOffset + (long) entryCount * ENTRY_SIZE;
+        if (entryCount < 0 || indexOffset < HEADER_SIZE || indexEnd > image.capacity()) {
+            throw new IOException("Corrupted compiled configuration index: " + source);
+        }
+        this.patterns = readPatterns(image, image.getInt(28), source);
+        validateEntries(indexEnd);
+    }
+
+    /**
+     * 映射时逐个检查条目一次：名字和条目数据的偏移必须落在名字区和数据区内，名字和应答头部不能越过区域末尾。
+     * 查询路径不再做边界检查，损坏的镜像在这里被拒绝，重新加载时保留旧配置
+     */
+    private void validateEntries(long indexEnd) throws IOException {
+        int namesOffset = image.getInt(20);
+        int dataOffset = image.getInt(24);
+        int patternsOffset = image.getInt(28);
+        long dataEnd = patternsOffset == 0 ? image.capacity() : patternsOffset;
+        if (namesOffset < indexEnd || dataOffset < namesOffset || dataEnd < dataOffset) {
+            throw new IOException("Corrupted compiled configuration regions: " + source);
+        }
+        for (int i = 0; i < entryCount; i++) {
+            int name = image.getInt(entryOffset(i) + 8);
+            int data = dataOffset(i);
+            if (!nameFits(name, namesOffset, dataOffset) || !entryFits(data, dataOffset, dataEnd)) {
+                throw new IOException("Corrupted compiled configuration entry " + i + ": " + source);
+            }
+        }
+    }
+
+    /**
+     * 名字从offset开始、在[start, end)内以0结尾，标签和总长度不超过DNS的限制
+     */
+    private boolean nameFits(int offset, int start, int end) {
+        if (offset < start) {
+            return false;
+        }
+        for (int pos = offset; pos < end; ) {
+            int len = image.get(pos) & 0xFF;
+            if (len == 0) {
+                return pos + 1 - offset <= MAX_NAME_SIZE;
+            }
+            if (len > MAX_LABEL_SIZE) {
+                return false;
+            }
+            pos += len + 1;
+        }
+        return false;
+    }
+
+    /**
+     * 条目头部和所有应答（头部及预编码记录）都在[start, end)内
+     */
+    private boolean entryFits(int offset, int start, long end) {
+        if (offset < start || (long) offset + 2 > end) {
+            return false;
+        }
+        int count = image.get(offset + 1) & 0xFF;
+        long pos = offset + 2;
+        for (int i = 0; i < count; i++) {
+            if (pos + ANSWER_HEADER_SIZE > end) {
+                return false;
+            }
+            pos += ANSWER_HEADER_SIZE + (image.getShort((int) pos + 4) & 0xFFFF);
+        }
+        return pos <= end;
+    }
+
+    /**
+     * 读取规则区并编译为自动机
+     */
+    private static PatternMatcher readPatterns(MappedByteBuffer image, int offset, String source) throws IOException {
+        if (offset == 0) {
+            return PatternMatcher.EMPTY;
+        }
+        if (offset < HEADER_SIZE || (long) offset + 4 > image.capacity()) {
+            throw new IOException("Corrupted compiled configuration patterns: " + source);
+        }
+        int count = image.getInt(offset);
+        List<String> rules = new ArrayList<>();
+        int pos = offset + 4;
+        for (int i = 0; i < count; i++) {
+            int length = pos + 2 <= image.capacity() ? image.getShort(pos) & 0xFFFF : -1;
+            if (length < 0 || pos + 2 + length > image.capacity()) {
+                throw new IOException("Corrupted compiled configuration patterns: " + source);
+            }
+            byte[] rule = new byte[length];
+            for (int j = 0; j < length; j++) {
+                rule[j] = image.get(pos + 2 + j);
+            }
+            String pattern = new String(rule, StandardCharsets.US_ASCII);
+            if (!PatternMatcher.isValidPattern(pattern)) {
+                throw new IOException("Invalid pattern rule in compiled configuration: " + source);
+            }
+            rules.add(pattern);
+            pos += 2 + length;
+        }
+        return new PatternMatcher(rules);
+    }
+
+    /**
+     * 检查文件是否为编译后的配置镜像
+     * @param file 文件
+     * @return 是否以镜像魔数开头
+     */
+    public static boolean isCompiledImage(File file) {
+        if (file.length() < HEADER_SIZE) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 以只读方式内存映射配置镜像
+     * 映射建立后即可关闭文件，替换镜像文件（重命名覆盖）不影响已映射的旧镜像
+     * @param file 镜像文件
+     * @return 配置镜像
+     * @throws IOException 映射失败或格式错误
+     */
+    public static CompiledConfig open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new CompiledConfig(buffer, file.getPath());
+        }
+    }
+
+    /**
+     * 在索引中查找域名
+     * @param key 域名键（只比较名字部分）
+     * @return 条目序号，未找到返回-1
+     */
+    int find(NameKey key) {
+        long hash = key.nameHash();
+        int low = 0;
+        int high = entryCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midHash = image.getLong(entryOffset(mid));
+            if (midHash < hash) {
+                low = mid + 1;
+            } else if (midHash > hash) {
+                high = mid - 1;
+            } else {
+                return scanEqualHashes(mid, hash, key);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 在哈希相同的相邻条目中逐个校验名字
+     */
+    private int scanEqualHashes(int mid, long hash, NameKey key) {
+        for (int i = mid; i >= 0 && image.getLong(entryOffset(i)) == hash; i--) {
+            if (key.nameEquals(image, image.getInt(entryOffset(i) + 8))) {
+                return i;
+            }
+        }
+        for (int i = mid + 1; i < entryCount && image.getLong(entryOffset(i)) == hash; i++) {
+            if (key.nameEquals(image, image.getInt(entryOffset(i) + 8))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int entryOffset(int index) {
+        return indexOffset + index * ENTRY_SIZE;
+    }
+
+    private int dataOffset(int index) {
+        return image.getInt(entryOffset(index) + 12);
+    }
+
+    /**
+     * 读取条目的点分形式域名
+     */
+    private String readName(int index) {
+        StringBuilder sb = new StringBuilder();
+        int offset = image.getInt(entryOffset(index) + 8);
+        int len = image.get(offset++) & 0xFF;
+        while (len != 0) {
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            for (int i = 0; i < len; i++) {
+                sb.append((char) (image.get(offset + i) & 0xFF));
+            }
+            offset += len;
+            len = image.get(offset++) & 0xFF;
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public long lookupIPv4(NameKey key) {
+        int index = find(key);
+        if (index < 0) {
+            return patterns.matches(key) ? 0 : NOT_FOUND;
+        }
+        return ZoneAnswers.readIPv4(image, dataOffset(index));
+    }
+
+    @Override
+    public int appendAnswer(NameKey key, int qtype, byte[] out, int pos) {
+        int index = find(key);
+        if (index < 0) {
+            return patterns.matches(key) ? ANSWER_BLOCKED : ANSWER_NOT_FOUND;
+        }
+        return ZoneAnswers.append(image, dataOffset(index), qtype, out, pos);
+    }
+
+    @Override
+    public boolean isBlocked(NameKey key) {
+        int index = find(key);
+        return index >= 0 ? ZoneAnswers.isBlocked(image, dataOffset(index)) : patterns.matches(key);
+    }
+
+    @Override
+    public boolean contains(NameKey key) {
+        return find(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return entryCount;
+    }
+
+    @Override
+    public int blockedCount() {
+        return blockedCount;
+    }
+
+    @Override
+    public int patternCount() {
+        return patterns.size();
+    }
+
+    /**
+     * 通配符拦截规则原文（仅用于打印）
+     */
+    String[] getPatterns() {
+        return patterns.getPatterns();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        for (int i = 0; i < entryCount; i++) {
+            action.accept(readName(i), ZoneAnswers.describe(image, dataOffset(i)));
+        }
+    }
+
+    public String getSource() {
+        return source;
+    }
+}
@@ -0,0 +1,160 @@
+package com.bupt.dnsrelay.config;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.bupt.dnsrelay.utils.NameHash;
+
+/**
+ * 配置编译器
+ * 离线将dnsrelay.txt编译为可内存映射的二进制镜像（格式见CompiledConfig），包括所有类型的本地记录、自动生成的PTR记录
+ * 和通配符拦截规则
+ *
+ * 用法：java -cp dns-relay.jar com.bupt.dnsrelay.config.ConfigCompiler dnsrelay.txt dnsrelay.bin
+ */
+public class ConfigCompiler {
+
+    /**
+     * 编译条目
+     */
+    private static class Entry {
+        final long hash;
+        final String domain;
+        final byte[] data;   // 预编码的条目数据，原样写入数据区
+        int nameOffset;
+        int dataOffset;
+
+        Entry(String domain, byte[] data) {
+            this.hash = NameHash.hash(domain);
+            this.domain = domain;
+            this.data = data;
+        }
+    }
+
+    /**
+     * 将配置快照编译为二进制镜像
+     * 条目数据在加载文本配置时已经预编码，这里只重新排列名字和索引；通配符规则以原文写入，映射时再编译
+     * 先写入同目录下的临时文件再重命名，正在映射旧镜像的进程不受影响
+     * @param table 由文本配置加载的快照
+     * @param output 输出文件
+     * @return 写入的条目数量
+     * @throws IOException 写入错误
+     */
+    public static int compile(ConfigSnapshot table, File output) throws IOException {
+        List<Entry> entries = new ArrayList<>(table.size());
+        table.forEachEntry((domain, data) -> entries.add(new Entry(domain, data)));
+        entries.sort((a, b) -> Long.compare(a.hash, b.hash));
+
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int blockedCount = 0;
+        for (Entry entry : entries) {
+            entry.nameOffset = names.size();
+            writeName(names, entry.domain);
+
+            entry.dataOffset = data.size();
+            if ((entry.data[0] & CompiledConfig.FLAG_BLOCKED) != 0) {
+                blockedCount++;
+            }
+            data.write(entry.data, 0, entry.data.length);
+        }
+
+        String[] rules = table.getPatterns();
+        ByteArrayOutputStream patterns = new ByteArrayOutputStream();
+        for (String rule : rules) {
+            byte[] bytes = rule.getBytes(StandardCharsets.US_ASCII);
+            patterns.write(bytes.length >> 8);
+            patterns.write(bytes.length);
+            patterns.write(bytes, 0, bytes.length);
+        }
+
+        int indexOffset = CompiledConfig.HEADER_SIZE;
+        int namesOffset = indexOffset + entries.size() * CompiledConfig.ENTRY_SIZE;
+        int dataOffset = namesOffset + names.size();
+        int patternsOffset = rules.length == 0 ? 0 : dataOffset + data.size();
+
+        File dir = output.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(output.getName(), ".tmp", dir);
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(CompiledConfig.MAGIC);
+                out.writeInt(CompiledConfig.VERSION);
+                out.writeInt(entries.size());
+                out.writeInt(blockedCount);
+                out.writeInt(indexOffset);
+                out.writeInt(namesOffset);
+                out.writeInt(dataOffset);
+                out.writeInt(patternsOffset);
+                for (Entry entry : entries) {
+                    out.writeLong(entry.hash);
+                    out.writeInt(namesOffset + entry.nameOffset);
+                    out.writeInt(dataOffset + entry.dataOffset);
+                }
+                names.writeTo(out);
+                data.writeTo(out);
+                if (rules.length > 0) {
+                    out.writeInt(rules.length);
+                    patterns.writeTo(out);
+                }
+            }
+            try {
+                Files.move(temp.toPath(), output.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+        return entries.size();
+    }
+
+    /**
+     * 写入小写的线格式域名
+     */
+    private static void writeName(ByteArrayOutputStream out, String domain) {
+        for (String label : domain.split("\\.")) {
+            byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+            out.write(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        out.write(0);
+    }
+
+    /**
+     * 主函数
+     * @param args 文本配置文件路径和输出镜像路径
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Usage: java " + ConfigCompiler.class.getName() + " <dnsrelay.txt> <output.bin>");
+            System.exit(1);
+        }
+        try {
+            ConfigParser parser = new ConfigParser();
+            parser.loadConfig(args[0]);
+            if (!(parser.getSnapshot() instanceof ConfigSnapshot)) {
+                System.err.println("Error: " + args[0] + " is already a compiled image");
+                System.exit(1);
+            }
+            int count = compile((ConfigSnapshot) parser.getSnapshot(), new File(args[1]));
+            int patternCount = parser.getSnapshot().patternCount();
+            System.out.println("Compiled " + count + " entries"
+                + (patternCount == 0 ? "" : " and " + patternCount + " pattern rules") + " into " + args[1]);
+        } catch (IOException e) {
+            System.err.println("Error compiling configuration: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.bupt.dnsrelay.config;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -13,44 +15,65 @@ import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 
+import com.bupt.dnsrelay.dns.DNSRecord;
+import com.bupt.dnsrelay.dns.NameKey;
+import com.bupt.dnsrelay.utils.AddressUtils;
+
 /**
  * DNS配置文件解析器
- * 负责读取和解析dnsrelay.txt配置文件
+ * 负责读取和解析dnsrelay.txt配置文件，每行一条：
+ * <pre>
+ * &lt;IP&gt; &lt;域名&gt;                      A记录，IP为0.0.0.0时拦截该域名
+ * &lt;域名&gt; [TTL] &lt;类型&gt; &lt;数据&gt;          A、AAAA、CNAME、MX（优先级 主机）、PTR或TXT记录
+ * </pre>
+ * 同一名字可以有多条记录；配置中的地址自动生成反向解析的PTR记录（显式配置的PTR优先）。
  */
 public class ConfigParser {
     
+    private static final int MAX_TEXT_LENGTH = 255;  // TXT记录中一个字符串的最大长度
     private static final Pattern IP_PATTERN = Pattern.compile(
         "^((25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)$");
     
-    private Map<String, String> domainMap;  // 域名到IP的映射
-    private Set<String> blockedDomains;     // 被拦截的域名集合
+    // 当前生效的配置快照，重新加载时整体替换，查询线程只读取引用
+    private volatile ConfigTable snapshot = ConfigSnapshot.EMPTY;
+    private volatile String configFile;
     
     /**
      * 构造函数
      */ 
     public ConfigParser() {
-        this.domainMap = new HashMap<>();
-        this.blockedDomains = new HashSet<>();
     }
     
     /**
      * 加载配置文件
+     * 先在当前线程构建完整的新快照，再通过一次volatile写发布，查询线程不会看到加载到一半的表
+     * 如果文件是ConfigCompiler生成的二进制镜像，则直接内存映射，不做解析
      * @param filename 配置文件路径
      * @return 加载的条目数量
      * @throws IOException 文件读取错误
      */
-    public int loadConfig(String filename) throws IOException {
-        domainMap.clear();
-        blockedDomains.clear();
+    public synchronized int loadConfig(String filename) throws IOException {
+        this.configFile = filename;
         
         File file = new File(filename);
         if (!file.exists()) {
             System.out.println("Warning: Configuration file not found: " + filename);
+            snapshot = ConfigSnapshot.EMPTY;
             return 0;
         }
         
+        if (CompiledConfig.isCompiledImage(file)) {
+            CompiledConfig image = CompiledConfig.open(file);
+            snapshot = image;
+            System.out.println("Mapped compiled DNS configuration from: " + filename
+                + " (" + image.size() + " entries)");
+            return image.size();
+        }
+        
         System.out.println("Loading DNS configuration from: " + filename);
         
+        ZoneBuilder zone = new ZoneBuilder();
+        List<String> patterns = new ArrayList<>();
         int count = 0;
         try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
             String line;
@@ -66,36 +89,98 @@ public class ConfigParser {
                 }
                 
                 // 解析配置行
-                if (parseLine(line, lineNumber)) {
+                if (parseLine(line, lineNumber, zone, patterns)) {
                     count++;
                 }
             }
         }
         
-        System.out.println("Loaded " + count + " domain entries from configuration file");
+        int pointers = zone.addReversePointers();
+        snapshot = new ConfigSnapshot(zone.build(), new PatternMatcher(patterns));
+        System.out.println("Loaded " + count + " domain entries from configuration file"
+            + (patterns.isEmpty() ? "" : " (" + patterns.size() + " pattern rules)")
+            + (pointers == 0 ? "" : " (" + pointers + " reverse PTR records)"));
         return count;
     }
     
+    /**
+     * 重新加载上次加载的配置文件
+     * 读取失败时保留旧快照继续服务
+     * @return 是否成功发布了新快照
+     */
+    public boolean reload() {
+        String filename = configFile;
+        if (filename == null) {
+            return false;
+        }
+        // 编辑器保存时文件可能短暂消失，此时不应清空正在使用的配置
+        if (!new File(filename).exists()) {
+            System.err.println("Configuration file missing during reload, keeping previous table: " + filename);
+            return false;
+        }
+        try {
+            loadConfig(filename);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error reloading configuration, keeping previous table: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * 获取当前生效的配置快照
+     * @return 配置快照
+     */
+    public ConfigTable getSnapshot() {
+        return snapshot;
+    }
+    
+    /**
+     * 获取当前配置文件路径
+     * @return 配置文件路径，未加载时返回null
+     */
+    public String getConfigFile() {
+        return configFile;
+    }
+    
     /**
      * 解析配置文件的一行
      * @param line 配置行
      * @param lineNumber 行号
+     * @param zone 正在构建的本地区域数据
+     * @param patterns 正在收集的通配符拦截规则
      * @return 是否解析成功
      */
-    private boolean parseLine(String line, int lineNumber) {
+    private boolean parseLine(String line, int lineNumber, ZoneBuilder zone, List<String> patterns) {
         String[] parts = line.split("\\s+");
-        if (parts.length != 2) {
+        if (parts.length == 2 && isValidIP(parts[0])) {
+            return parseAddressLine(parts[0], parts[1].toLowerCase(), line, lineNumber, zone, patterns);
+        }
+        if (parts.length < 3) {
             System.out.println("Warning: Invalid line format at line " + lineNumber + ": " + line);
             return false;
         }
-        
-        String ip = parts[0];
-        String domain = parts[1].toLowerCase(); // 域名不区分大小写
-        
-        // 验证IP地址格式
-        if (!isValidIP(ip)) {
-            System.out.println("Warning: Invalid IP address at line " + lineNumber + ": " + ip);
-            return false;
+        return parseRecordLine(parts, line, lineNumber, zone);
+    }
+    
+    /**
+     * 解析"IP 域名"格式的行
+     */
+    private boolean parseAddressLine(String ip, String domain, String line, int lineNumber,
+                                     ZoneBuilder zone, List<String> patterns) {
+        // 含*的是通配符规则，只能用于拦截
+        if (domain.indexOf('*') >= 0) {
+            if (!"0.0.0.0".equals(ip)) {
+                System.out.println("Warning: Pattern rules only support blocking (0.0.0.0) at line " + lineNumber + ": " + line);
+                return false;
+            }
+            if (!PatternMatcher.isValidPattern(domain)) {
+                System.out.println("Warning: Invalid pattern at line " + lineNumber + ": " + domain);
+                return false;
+            }
+            patterns.add(domain);
+            System.out.println("Loaded: " + domain + " -> " + ip + " (BLOCKED pattern)");
+            return true;
         }
         
         // 验证域名格式
@@ -104,20 +189,202 @@ public class ConfigParser {
             return false;
         }
         
-        // 添加到映射中
-        domainMap.put(domain, ip);
+        NameKey name = NameKey.fromDomain(domain, 0, 0);
         
         // 检查是否为拦截条目
         if ("0.0.0.0".equals(ip)) {
-            blockedDomains.add(domain);
+            zone.block(name);
             System.out.println("Loaded: " + domain + " -> " + ip + " (BLOCKED)");
-        } else {
-            System.out.println("Loaded: " + domain + " -> " + ip);
+            return true;
         }
-        
+        return addRecord(zone, name, DNSRecord.TYPE_A, ZoneBuilder.DEFAULT_TTL, AddressUtils.parseAddress(ip), null,
+            domain + " -> " + ip, line, lineNumber);
+    }
+    
+    /**
+     * 解析"域名 [TTL] 类型 数据"格式的行
+     */
+    private boolean parseRecordLine(String[] parts, String line, int lineNumber, ZoneBuilder zone) {
+        String domain = parts[0].toLowerCase();
+        if (!isValidDomain(domain)) {
+            System.out.println("Warning: Invalid domain name at line " + lineNumber + ": " + domain);
+            return false;
+        }
+        int field = 1;
+        int ttl = ZoneBuilder.DEFAULT_TTL;
+        if (Character.isDigit(parts[field].charAt(0))) {
+            try {
+                ttl = Integer.parseInt(parts[field++]);
+            } catch (NumberFormatException e) {
+                ttl = -1;
+            }
+            if (ttl < 0 || parts.length < 4) {
+                System.out.println("Warning: Invalid TTL at line " + lineNumber + ": " + line);
+                return false;
+            }
+        }
+        String typeName = parts[field++].toUpperCase();
+        String value = parts[field];
+        NameKey name = NameKey.fromDomain(domain, 0, 0);
+        String summary = domain + " " + typeName + " " + value;
+        byte[] rdata = null;
+        NameKey target = null;
+        int type;
+        switch (typeName) {
+            case "A":
+            case "AAAA":
+                type = "A".equals(typeName) ? DNSRecord.TYPE_A : DNSRecord.TYPE_AAAA;
+                rdata = AddressUtils.parseAddress(value);
+                if (rdata == null || rdata.length != (type == DNSRecord.TYPE_A ? 4 : 16)
+                        || (type == DNSRecord.TYPE_A && !isValidIP(value))) {
+                    System.out.println("Warning: Invalid IP address at line " + lineNumber + ": " + value);
+                    return false;
+                }
+                break;
+            case "CNAME":
+            case "PTR":
+                type = "CNAME".equals(typeName) ? DNSRecord.TYPE_CNAME : DNSRecord.TYPE_PTR;
+                target = parseTarget(value, lineNumber);
+                if (target == null) {
+                    return false;
+                }
+                rdata = ZoneBuilder.wireName(target);
+                break;
+            case "MX":
+                type = DNSRecord.TYPE_MX;
+                int preference = -1;
+                try {
+                    preference = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    // 下面统一报告
+                }
+                if (preference < 0 || preference > 0xFFFF || parts.length != field + 2) {
+                    System.out.println("Warning: Invalid MX record at line " + lineNumber + ": " + line);
+                    return false;
+                }
+                NameKey exchange = parseTarget(parts[field + 1], lineNumber);
+                if (exchange == null) {
+                    return false;
+                }
+                byte[] exchangeName = ZoneBuilder.wireName(exchange);
+                rdata = new byte[2 + exchangeName.length];
+                rdata[0] = (byte) (preference >> 8);
+                rdata[1] = (byte) preference;
+                System.arraycopy(exchangeName, 0, rdata, 2, exchangeName.length);
+                summary = domain + " MX " + preference + " " + parts[field + 1].toLowerCase();
+                break;
+            case "TXT":
+                type = DNSRecord.TYPE_TXT;
+                rdata = parseText(skipTokens(line, field));
+                if (rdata == null) {
+                    System.out.println("Warning: Invalid TXT record at line " + lineNumber + ": " + line);
+                    return false;
+                }
+                summary = domain + " TXT (" + rdata.length + " bytes)";
+                break;
+            default:
+                System.out.println("Warning: Unsupported record type at line " + lineNumber + ": " + parts[field - 1]);
+                return false;
+        }
+        if (type != DNSRecord.TYPE_MX && type != DNSRecord.TYPE_TXT && parts.length != field + 1) {
+            System.out.println("Warning: Invalid line format at line " + lineNumber + ": " + line);
+            return false;
+        }
+        return addRecord(zone, name, type, ttl, rdata, target, summary, line, lineNumber);
+    }
+    
+    private boolean addRecord(ZoneBuilder zone, NameKey name, int type, int ttl, byte[] rdata, NameKey target,
+                              String summary, String line, int lineNumber) {
+        String conflict = zone.add(name, type, ttl, rdata, target);
+        if (conflict != null) {
+            System.out.println("Warning: Ignored record at line " + lineNumber + " (" + conflict + "): " + line);
+            return false;
+        }
+        System.out.println("Loaded: " + summary);
         return true;
     }
     
+    /**
+     * 跳过行首的若干个字段
+     * @return 剩余部分（去掉前导空白）
+     */
+    private static String skipTokens(String line, int tokens) {
+        int i = 0;
+        for (int t = 0; t < tokens; t++) {
+            while (i < line.length() && !Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+        }
+        return line.substring(i);
+    }
+    
+    /**
+     * 解析记录数据中的目标域名
+     * @return 名字键，格式无效时输出警告并返回null
+     */
+    private NameKey parseTarget(String value, int lineNumber) {
+        String domain = value.toLowerCase();
+        if (domain.endsWith(".")) {
+            domain = domain.substring(0, domain.length() - 1);
+        }
+        if (!isValidDomain(domain)) {
+            System.out.println("Warning: Invalid domain name at line " + lineNumber + ": " + value);
+            return null;
+        }
+        return NameKey.fromDomain(domain, 0, 0);
+    }
+    
+    /**
+     * 把TXT记录的文本编码为RDATA：用双引号括起的一个或多个字符串（支持\"和\\转义），
+     * 或者不带引号的整段文本；超过255字节的字符串拆分为多段
+     * @return RDATA，格式无效时返回null
+     */
+    private static byte[] parseText(String text) {
+        List<String> strings = new ArrayList<>();
+        if (!text.startsWith("\"")) {
+            strings.add(text);
+        } else {
+            int i = 0;
+            while (i < text.length()) {
+                if (text.charAt(i) != '"') {
+                    return null;
+                }
+                StringBuilder sb = new StringBuilder();
+                i++;
+                while (i < text.length() && text.charAt(i) != '"') {
+                    char c = text.charAt(i++);
+                    if (c == '\\' && i < text.length()) {
+                        c = text.charAt(i++);
+                    }
+                    sb.append(c);
+                }
+                if (i >= text.length()) {
+                    return null; // 缺少结尾的引号
+                }
+                strings.add(sb.toString());
+                i++;
+                while (i < text.length() && Character.isWhitespace(text.charAt(i))) {
+                    i++;
+                }
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String string : strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            int offset = 0;
+            do {
+                int length = Math.min(MAX_TEXT_LENGTH, bytes.length - offset);
+                out.write(length);
+                out.write(bytes, offset, length);
+                offset += length;
+            } while (offset < bytes.length);
+        }
+        return out.size() > 0xFFFF ? null : out.toByteArray();
+    }
+    
     /**
      * 验证IP地址格式
      * @param ip IP地址字符串
@@ -162,8 +429,22 @@ public class ConfigParser {
      * @return IP地址，如果未找到则返回null
      */
     public String lookupDomain(String domain) {
-        if (domain == null) return null;
-        return domainMap.get(domain.toLowerCase());
+        NameKey key = toKey(domain);
+        if (key == null) return null;
+        long address = snapshot.lookupIPv4(key);
+        return address == ConfigTable.NOT_FOUND ? null : AddressUtils.formatIPv4((int) address);
+    }
+    
+    /**
+     * 把名字的本地应答写到响应的问题部分之后（查询路径使用，不分配内存）
+     * @param key 域名键
+     * @param qtype 查询类型
+     * @param out 响应数组，报文头和问题部分已经写好
+     * @param pos 问题部分之后的位置
+     * @return 应答之后的位置，或ConfigTable.ANSWER_NOT_FOUND/ANSWER_BLOCKED/ANSWER_TOO_LARGE
+     */
+    public int appendAnswer(NameKey key, int qtype, byte[] out, int pos) {
+        return snapshot.appendAnswer(key, qtype, out, pos);
     }
     
     /**
@@ -172,8 +453,8 @@ public class ConfigParser {
      * @return 是否被拦截
      */
     public boolean isDomainBlocked(String domain) {
-        if (domain == null) return false;
-        return blockedDomains.contains(domain.toLowerCase());
+        NameKey key = toKey(domain);
+        return key != null && snapshot.isBlocked(key);
     }
     
     /**
@@ -182,8 +463,22 @@ public class ConfigParser {
      * @return 是否在本地配置中
      */
     public boolean isLocalDomain(String domain) {
-        if (domain == null) return false;
-        return domainMap.containsKey(domain.toLowerCase());
+        NameKey key = toKey(domain);
+        return key != null && snapshot.contains(key);
+    }
+    
+    /**
+     * 将字符串域名转换为名字键
+     * @param domain 域名
+     * @return 名字键，域名为null或格式无效时返回null
+     */
+    private static NameKey toKey(String domain) {
+        if (domain == null) return null;
+        try {
+            return NameKey.fromDomain(domain, 0, 0);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
     
     /**
@@ -191,7 +486,9 @@ public class ConfigParser {
      * @return 域名集合
      */
     public Set<String> getAllDomains() {
-        return new HashSet<>(domainMap.keySet());
+        Set<String> domains = new HashSet<>();
+        snapshot.forEach((domain, ip) -> domains.add(domain));
+        return domains;
     }
     
     /**
@@ -199,7 +496,13 @@ public class ConfigParser {
      * @return 被拦截的域名集合
      */
     public Set<String> getBlockedDomains() {
-        return new HashSet<>(blockedDomains);
+        Set<String> blocked = new HashSet<>();
+        snapshot.forEach((domain, ip) -> {
+            if ("0.0.0.0".equals(ip)) {
+                blocked.add(domain);
+            }
+        });
+        return blocked;
     }
     
     /**
@@ -207,16 +510,23 @@ public class ConfigParser {
      * @return 条目数量
      */
     public int getEntryCount() {
-        return domainMap.size();
+        return snapshot.size();
     }
     
     /**
      * 打印配置信息
      */
     public void printConfig() {
+        ConfigTable current = snapshot;
+        Map<String, String> domainMap = new HashMap<>();
+        current.forEach(domainMap::put);
+        
         System.out.println("\n=== DNS Configuration ===");
-        System.out.println("Total entries: " + domainMap.size());
-        System.out.println("Blocked domains: " + blockedDomains.size());
+        System.out.println("Total entries: " + current.size());
+        System.out.println("Blocked domains: " + current.blockedCount());
+        if (current.patternCount() > 0) {
+            System.out.println("Pattern rules: " + current.patternCount());
+        }
         
         List<String> sortedDomains = new ArrayList<>(domainMap.keySet());
         Collections.sort(sortedDomains);
@@ -224,10 +534,15 @@ public class ConfigParser {
         int count = 1;
         for (String domain : sortedDomains) {
             String ip = domainMap.get(domain);
-            boolean blocked = blockedDomains.contains(domain);
+            boolean blocked = "0.0.0.0".equals(ip);
             System.out.printf("%3d. %-30s -> %-15s %s%n", 
                 count++, domain, ip, blocked ? "(BLOCKED)" : "");
         }
+        String[] patterns = current instanceof ConfigSnapshot ? ((ConfigSnapshot) current).getPatterns()
+            : current instanceof CompiledConfig ? ((CompiledConfig) current).getPatterns() : new String[0];
+        for (String pattern : patterns) {
+            System.out.printf("%3d. %-30s -> %-15s %s%n", count++, pattern, "0.0.0.0", "(BLOCKED pattern)");
+        }
         
         System.out.println("========================\n");
     }
@@ -236,7 +551,6 @@ public class ConfigParser {
      * 清空配置
      */
     public void clear() {
-        domainMap.clear();
-        blockedDomains.clear();
+        snapshot = ConfigSnapshot.EMPTY;
     }
 }
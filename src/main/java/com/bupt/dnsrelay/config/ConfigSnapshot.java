@@ -0,0 +1,144 @@
+package com.bupt.dnsrelay.config;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import com.bupt.dnsrelay.dns.NameKey;
+
+/**
+ * 配置快照
+ * 一次完整加载得到的不可变域名表，构建完成后整体发布，查询线程读取时无需加锁
+ *
+ * 条目按序号存放在并列数组中：所有小写线格式名字连续存放在一个字节数组里，
+ * 通过NameIndex按名字哈希定位序号，每个条目不再对应独立的键值对象。
+ * 每个名字的资源记录由ZoneBuilder预编码为应答，所有条目数据同样连续存放，格式与编译后的镜像相同。
+ * 通配符拦截规则编译为PatternMatcher，与精确条目一起发布；精确条目优先，没有精确条目的名字才检查规则。
+ */
+public final class ConfigSnapshot implements ConfigTable {
+
+    static final ConfigSnapshot EMPTY = new ConfigSnapshot(new LinkedHashMap<>(), PatternMatcher.EMPTY);
+
+    private final byte[] names;        // 所有名字的线格式字节
+    private final int[] nameOffsets;   // 每个条目名字的起始偏移
+    private final ByteBuffer data;     // 所有条目的预编码应答
+    private final int[] dataOffsets;   // 每个条目数据的起始偏移
+    private final int blockedCount;
+    private final NameIndex index;
+    private final PatternMatcher patterns;
+
+    /**
+     * 构造函数
+     * @param entries 名字键（无类型）到条目数据（由ZoneBuilder生成）的映射
+     * @param patterns 编译好的通配符拦截规则
+     */
+    ConfigSnapshot(Map<NameKey, byte[]> entries, PatternMatcher patterns) {
+        this.patterns = patterns;
+        int count = entries.size();
+        int totalLength = 0;
+        int totalData = 0;
+        for (Map.Entry<NameKey, byte[]> entry : entries.entrySet()) {
+            totalLength += entry.getKey().getWireLength();
+            totalData += entry.getValue().length;
+        }
+        this.names = new byte[totalLength];
+        this.nameOffsets = new int[count];
+        byte[] entryData = new byte[totalData];
+        this.dataOffsets = new int[count];
+        this.index = new NameIndex(count, (slot, key) -> key.nameEquals(names, nameOffsets[slot]));
+
+        int slot = 0;
+        int offset = 0;
+        int dataOffset = 0;
+        int blocked = 0;
+        for (Map.Entry<NameKey, byte[]> entry : entries.entrySet()) {
+            NameKey key = entry.getKey();
+            key.copyNameTo(names, offset);
+            nameOffsets[slot] = offset;
+            byte[] value = entry.getValue();
+            System.arraycopy(value, 0, entryData, dataOffset, value.length);
+            dataOffsets[slot] = dataOffset;
+            if ((value[0] & CompiledConfig.FLAG_BLOCKED) != 0) {
+                blocked++;
+            }
+            index.insert(key.nameHash(), slot);
+            offset += key.getWireLength();
+            dataOffset += value.length;
+            slot++;
+        }
+        this.data = ByteBuffer.wrap(entryData);
+        this.blockedCount = blocked;
+    }
+
+    @Override
+    public long lookupIPv4(NameKey key) {
+        int slot = index.find(key.nameHash(), key);
+        if (slot < 0) {
+            return patterns.matches(key) ? 0 : NOT_FOUND;
+        }
+        return ZoneAnswers.readIPv4(data, dataOffsets[slot]);
+    }
+
+    @Override
+    public int appendAnswer(NameKey key, int qtype, byte[] out, int pos) {
+        int slot = index.find(key.nameHash(), key);
+        if (slot < 0) {
+            return patterns.matches(key) ? ANSWER_BLOCKED : ANSWER_NOT_FOUND;
+        }
+        return ZoneAnswers.append(data, dataOffsets[slot], qtype, out, pos);
+    }
+
+    @Override
+    public boolean isBlocked(NameKey key) {
+        int slot = index.find(key.nameHash(), key);
+        return slot >= 0 ? ZoneAnswers.isBlocked(data, dataOffsets[slot]) : patterns.matches(key);
+    }
+
+    @Override
+    public boolean contains(NameKey key) {
+        return index.find(key.nameHash(), key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return nameOffsets.length;
+    }
+
+    @Override
+    public int blockedCount() {
+        return blockedCount;
+    }
+
+    @Override
+    public int patternCount() {
+        return patterns.size();
+    }
+
+    /**
+     * 通配符拦截规则原文（仅用于打印）
+     */
+    String[] getPatterns() {
+        return patterns.getPatterns();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        for (int i = 0; i < nameOffsets.length; i++) {
+            action.accept(NameKey.toDomainString(names, nameOffsets[i]), ZoneAnswers.describe(data, dataOffsets[i]));
+        }
+    }
+
+    /**
+     * 遍历所有条目的原始数据（供ConfigCompiler写入镜像）
+     * @param action 接收域名和条目数据副本的回调
+     */
+    void forEachEntry(BiConsumer<String, byte[]> action) {
+        for (int i = 0; i < nameOffsets.length; i++) {
+            int length = ZoneAnswers.length(data, dataOffsets[i]);
+            byte[] entry = new byte[length];
+            System.arraycopy(data.array(), dataOffsets[i], entry, 0, length);
+            action.accept(NameKey.toDomainString(names, nameOffsets[i]), entry);
+        }
+    }
+}
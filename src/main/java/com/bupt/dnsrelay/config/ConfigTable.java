@@ -0,0 +1,83 @@
+package com.bupt.dnsrelay.config;
+
+import java.util.function.BiConsumer;
+
+import com.bupt.dnsrelay.dns.NameKey;
+
+/**
+ * 域名配置表
+ * 一次加载得到的只读查询表，可以来自文本配置（堆内快照）或编译后的二进制镜像（内存映射）
+ */
+public interface ConfigTable {
+
+    /** lookupIPv4未找到时的返回值 */
+    long NOT_FOUND = -1L;
+
+    /** appendAnswer的返回值：名字不在表中 */
+    int ANSWER_NOT_FOUND = -1;
+    /** appendAnswer的返回值：名字被拦截 */
+    int ANSWER_BLOCKED = -2;
+    /** appendAnswer的返回值：应答超出响应数组的容量 */
+    int ANSWER_TOO_LARGE = -3;
+    /** appendAnswer的返回值：别名的CNAME链已写入（含ANCOUNT），但链末端的目标不在本地数据中，需要继续解析 */
+    int ANSWER_EXTERNAL = -4;
+
+    /**
+     * 查找域名对应的IPv4地址
+     * @param key 域名键（只比较名字部分）
+     * @return 打包的IPv4地址（低32位，拦截条目或匹配通配符拦截规则时为0即0.0.0.0），如果未找到则返回NOT_FOUND
+     */
+    long lookupIPv4(NameKey key);
+
+    /**
+     * 把名字的预编码应答写到响应的问题部分之后，并写入报文头的ANCOUNT
+     * 名字在表中但没有该类型的记录时写入空应答（NODATA），别名写入CNAME链及链末端该类型的记录
+     * @param key 域名键（只比较名字部分）
+     * @param qtype 查询类型
+     * @param out 响应数组，报文头和问题部分已经写好
+     * @param pos 问题部分之后的位置
+     * @return 应答之后的位置；未找到返回ANSWER_NOT_FOUND，被拦截返回ANSWER_BLOCKED，容量不足返回ANSWER_TOO_LARGE，
+     *         链离开本地数据时返回ANSWER_EXTERNAL
+     */
+    int appendAnswer(NameKey key, int qtype, byte[] out, int pos);
+
+    /**
+     * 检查域名是否被拦截
+     * @param key 域名键（只比较名字部分）
+     * @return 是否被拦截
+     */
+    boolean isBlocked(NameKey key);
+
+    /**
+     * 检查域名是否在表中
+     * @param key 域名键（只比较名字部分）
+     * @return 是否存在
+     */
+    boolean contains(NameKey key);
+
+    /**
+     * 获取条目数量
+     * @return 条目数量
+     */
+    int size();
+
+    /**
+     * 获取被拦截条目数量
+     * @return 被拦截条目数量
+     */
+    int blockedCount();
+
+    /**
+     * 获取通配符拦截规则数量
+     * @return 规则数量，不支持通配符规则的表返回0
+     */
+    default int patternCount() {
+        return 0;
+    }
+
+    /**
+     * 遍历所有条目（仅用于打印，不在查询路径上使用）
+     * @param action 接收域名和内容描述的回调（有A记录时为IP，拦截条目为0.0.0.0，否则为记录类型列表）
+     */
+    void forEach(BiConsumer<String, String> action);
+}
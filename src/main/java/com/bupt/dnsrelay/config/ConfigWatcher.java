@@ -0,0 +1,127 @@
+package com.bupt.dnsrelay.config;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import com.bupt.dnsrelay.utils.DebugUtils;
+
+/**
+ * 配置文件监视器
+ * 使用WatchService监听dnsrelay.txt的变化，在后台线程重新构建配置快照并整体替换
+ */
+public class ConfigWatcher implements Runnable {
+
+    private static final long DEBOUNCE_MS = 300; // 合并编辑器连续写入产生的多次事件
+
+    private final ConfigParser configParser;
+    private final Path configPath;
+    private final int debugLevel;
+    private WatchService watchService;
+    private Thread watcherThread;
+    private volatile boolean isRunning = false;
+
+    /**
+     * 构造函数
+     * @param configParser 需要重新加载的配置解析器
+     * @param configFile 配置文件路径
+     * @param debugLevel 调试级别
+     */
+    public ConfigWatcher(ConfigParser configParser, String configFile, int debugLevel) {
+        this.configParser = configParser;
+        this.configPath = Paths.get(configFile).toAbsolutePath().normalize();
+        this.debugLevel = debugLevel;
+    }
+
+    /**
+     * 启动监视线程
+     * @throws IOException 无法注册目录监听
+     */
+    public void start() throws IOException {
+        Path dir = configPath.getParent();
+        if (dir == null) {
+            throw new IOException("Cannot watch configuration file without parent directory: " + configPath);
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        dir.register(watchService,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+
+        isRunning = true;
+        watcherThread = new Thread(this, "config-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+        DebugUtils.debugf(debugLevel, "Watching configuration file for changes: %s%n", configPath);
+    }
+
+    /**
+     * 停止监视线程
+     */
+    public void stop() {
+        isRunning = false;
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                // 关闭时的错误可以忽略
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        Path fileName = configPath.getFileName();
+        while (isRunning) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            }
+
+            boolean changed = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                        || fileName.equals(event.context())) {
+                    changed = true;
+                }
+            }
+            if (!key.reset()) {
+                System.err.println("Configuration directory is no longer accessible, hot reload disabled");
+                break;
+            }
+            if (changed && !debounce()) {
+                break;
+            }
+            if (changed && configParser.reload()) {
+                System.out.println("[CONFIG] Reloaded " + configParser.getEntryCount() + " entries from " + configPath);
+            }
+        }
+    }
+
+    /**
+     * 等待文件写入静止，并丢弃期间累积的事件
+     * @return 监视服务是否仍然可用
+     */
+    private boolean debounce() {
+        try {
+            WatchKey key;
+            while ((key = watchService.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS)) != null) {
+                key.pollEvents();
+                if (!key.reset()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            return false;
+        }
+    }
+}
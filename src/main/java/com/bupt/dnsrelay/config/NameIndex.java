@@ -0,0 +1,151 @@
+package com.bupt.dnsrelay.config;
+
+import com.bupt.dnsrelay.dns.NameKey;
+
+/**
+ * 基于64位名字哈希的开放寻址索引
+ * 哈希值和槽位号交错存放在同一个long数组中，一次探测只读一条缓存行，
+ * 命中哈希后再由所有者按槽位号校验保存的名字字节，避免哈希碰撞导致误判。
+ *
+ * 索引本身不是线程安全的：只读快照构建完成后可并发读取，可变的使用者需要自行加锁。
+ */
+public final class NameIndex {
+
+    /**
+     * 槽位校验器，由索引的所有者实现，比较槽位中保存的名字与查询键
+     */
+    public interface SlotVerifier {
+        boolean matches(int slot, NameKey key);
+    }
+
+    private static final long EMPTY = 0L;
+    private static final int MIN_CAPACITY = 8;
+
+    private final SlotVerifier verifier;
+    private long[] table;   // [hash, slot] 交错存放，hash为0表示空位
+    private int mask;       // 容量减一（容量为2的幂）
+    private int size;
+
+    /**
+     * 构造函数
+     * @param expectedEntries 预期条目数，装载因子保持在0.5以下
+     * @param verifier 槽位校验器
+     */
+    public NameIndex(int expectedEntries, SlotVerifier verifier) {
+        this.verifier = verifier;
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedEntries * 2) {
+            capacity <<= 1;
+        }
+        this.table = new long[capacity * 2];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * 查找键对应的槽位
+     * @param hash 键的哈希值（由调用方决定使用名字哈希还是带类型的哈希）
+     * @param key 查询键，用于校验
+     * @return 槽位号，未找到返回-1
+     */
+    public int find(long hash, NameKey key) {
+        long h = nonEmpty(hash);
+        long[] t = table;
+        int m = mask;
+        for (int i = home(h, m); ; i = (i + 1) & m) {
+            long stored = t[i << 1];
+            if (stored == EMPTY) {
+                return -1;
+            }
+            if (stored == h) {
+                int slot = (int) t[(i << 1) + 1];
+                if (verifier.matches(slot, key)) {
+                    return slot;
+                }
+            }
+        }
+    }
+
+    /**
+     * 插入一个槽位，调用方需保证键尚不存在
+     * @param hash 键的哈希值
+     * @param slot 槽位号
+     */
+    public void insert(long hash, int slot) {
+        if ((size + 1) * 2 > mask + 1) {
+            resize((mask + 1) * 2);
+        }
+        place(table, mask, nonEmpty(hash), slot);
+        size++;
+    }
+
+    /**
+     * 删除指定槽位的索引项，使用向后移位删除，不留墓碑
+     * @param hash 键的哈希值
+     * @param slot 槽位号
+     * @return 是否找到并删除
+     */
+    public boolean remove(long hash, int slot) {
+        long h = nonEmpty(hash);
+        long[] t = table;
+        int m = mask;
+        int i = home(h, m);
+        while (true) {
+            long stored = t[i << 1];
+            if (stored == EMPTY) {
+                return false;
+            }
+            if (stored == h && (int) t[(i << 1) + 1] == slot) {
+                break;
+            }
+            i = (i + 1) & m;
+        }
+        // 将后续探测链上的条目前移填补空位
+        int gap = i;
+        for (int j = (gap + 1) & m; t[j << 1] != EMPTY; j = (j + 1) & m) {
+            int ideal = home(t[j << 1], m);
+            if (((j - ideal) & m) >= ((j - gap) & m)) {
+                t[gap << 1] = t[j << 1];
+                t[(gap << 1) + 1] = t[(j << 1) + 1];
+                gap = j;
+            }
+        }
+        t[gap << 1] = EMPTY;
+        t[(gap << 1) + 1] = 0;
+        size--;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void resize(int capacity) {
+        long[] old = table;
+        long[] t = new long[capacity * 2];
+        int m = capacity - 1;
+        for (int i = 0; i < old.length; i += 2) {
+            if (old[i] != EMPTY) {
+                place(t, m, old[i], (int) old[i + 1]);
+            }
+        }
+        table = t;
+        mask = m;
+    }
+
+    private static void place(long[] t, int m, long h, int slot) {
+        int i = home(h, m);
+        while (t[i << 1] != EMPTY) {
+            i = (i + 1) & m;
+        }
+        t[i << 1] = h;
+        t[(i << 1) + 1] = slot;
+    }
+
+    private static long nonEmpty(long hash) {
+        return hash == EMPTY ? 1L : hash;
+    }
+
+    private static int home(long h, int m) {
+        return (int) (h ^ (h >>> 29)) & m;
+    }
+}
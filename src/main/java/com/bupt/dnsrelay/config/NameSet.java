@@ -0,0 +1,332 @@
+package com.bupt.dnsrelay.config;
+
+import com.bupt.dnsrelay.dns.NameKey;
+
+/**
+ * 不可变的域名集合（持久化哈希前缀树，HAMT）
+ * 按名字哈希每6位一层，每个节点用64位位图记录存在的子项，子项数组只保存存在的部分。
+ * 修改通过Builder进行：只复制从根到被修改位置路径上的节点，其余节点与旧集合共享，
+ * 因此一批修改的代价与修改的条目数成正比，与集合大小无关；旧集合保持不变，读者持有的引用始终是一致的快照。
+ * 同一批修改中已经复制过的节点属于该批次，之后直接原地修改，不再重复复制。
+ */
+public final class NameSet {
+
+    static final NameSet EMPTY = new NameSet(new BitmapNode(null, 0, new Object[0]), 0);
+
+    private static final int BITS = 6;
+    private static final int HASH_BITS = 64;
+
+    private final BitmapNode root;
+    private final int size;
+
+    private NameSet(BitmapNode root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * 检查名字是否在集合中（只读，不加锁）
+     * @param key 域名键
+     * @return 是否存在
+     */
+    public boolean contains(NameKey key) {
+        return contains(key, key.nameHash());
+    }
+
+    /**
+     * 按给定的名字哈希查找（测试可以用它构造哈希冲突）
+     */
+    boolean contains(NameKey key, long hash) {
+        Object node = root;
+        for (int shift = 0; ; shift += BITS) {
+            if (node instanceof BitmapNode) {
+                BitmapNode bitmapNode = (BitmapNode) node;
+                long bit = bit(hash, shift);
+                if ((bitmapNode.bitmap & bit) == 0) {
+                    return false;
+                }
+                node = bitmapNode.array[bitmapNode.index(bit)];
+            } else if (node instanceof Leaf) {
+                Leaf leaf = (Leaf) node;
+                return leaf.hash == hash && key.nameEquals(leaf.name, 0);
+            } else {
+                return ((Collision) node).indexOf(key, hash) >= 0;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 以当前集合为起点开始一批修改
+     */
+    public Builder toBuilder() {
+        return new Builder(root, size);
+    }
+
+    private static long bit(long hash, int shift) {
+        return 1L << ((hash >>> shift) & (HASH_BITS - 1));
+    }
+
+    /**
+     * 一批修改，完成后调用build得到新集合；build之后不能继续使用
+     */
+    public static final class Builder {
+        private Object edit = new Object();  // 本批次的标记，节点的edit与之相同时可以原地修改
+        private BitmapNode root;
+        private int size;
+
+        private Builder(BitmapNode root, int size) {
+            this.root = root;
+            this.size = size;
+        }
+
+        /**
+         * 添加名字
+         * @param key 域名键
+         * @return 是否新增（已存在时返回false）
+         */
+        public boolean add(NameKey key) {
+            return add(key, key.nameHash());
+        }
+
+        boolean add(NameKey key, long hash) {
+            int before = size;
+            root = (BitmapNode) add(root, 0, hash, key);
+            return size != before;
+        }
+
+        /**
+         * 删除名字
+         * @param key 域名键
+         * @return 是否删除（不存在时返回false）
+         */
+        public boolean remove(NameKey key) {
+            return remove(key, key.nameHash());
+        }
+
+        boolean remove(NameKey key, long hash) {
+            int before = size;
+            Object result = remove(root, 0, hash, key);
+            root = result != null ? (BitmapNode) result : new BitmapNode(edit, 0, new Object[0]);
+            return size != before;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * 结束本批修改，之后本批次创建的节点不再被修改
+         */
+        public NameSet build() {
+            edit = null;
+            return new NameSet(root, size);
+        }
+
+        private Object add(Object node, int shift, long hash, NameKey key) {
+            if (node instanceof BitmapNode) {
+                BitmapNode bitmapNode = (BitmapNode) node;
+                long bit = bit(hash, shift);
+                int index = bitmapNode.index(bit);
+                if ((bitmapNode.bitmap & bit) == 0) {
+                    size++;
+                    return bitmapNode.insert(edit, bit, index, new Leaf(hash, key));
+                }
+                Object child = bitmapNode.array[index];
+                Object updated = add(child, shift + BITS, hash, key);
+                return updated == child ? bitmapNode : bitmapNode.set(edit, index, updated);
+            }
+            if (node instanceof Leaf) {
+                Leaf leaf = (Leaf) node;
+                if (leaf.hash == hash && key.nameEquals(leaf.name, 0)) {
+                    return leaf;
+                }
+                size++;
+                return merge(leaf, leaf.hash, new Leaf(hash, key), shift);
+            }
+            Collision collision = (Collision) node;
+            if (collision.hash != hash) {
+                // 只是到这一层为止的哈希位相同：与叶子一样向下建立节点，把冲突节点和新叶子分开
+                size++;
+                return merge(collision, collision.hash, new Leaf(hash, key), shift);
+            }
+            if (collision.indexOf(key, hash) >= 0) {
+                return collision;
+            }
+            size++;
+            return collision.add(new Leaf(hash, key));
+        }
+
+        /**
+         * 已有的叶子或冲突节点a与新叶子b落在同一位置时，向下建立节点直到哈希分开；
+         * 两个叶子的64位哈希完全相同时放入冲突节点（冲突节点与b的哈希一定不同，总能在某一层分开）
+         */
+        private Object merge(Object a, long hashA, Leaf b, int shift) {
+            if (hashA == b.hash) {
+                return new Collision(hashA, new Leaf[] { (Leaf) a, b });
+            }
+            long bitA = bit(hashA, shift);
+            long bitB = bit(b.hash, shift);
+            if (bitA == bitB) {
+                return new BitmapNode(edit, bitA, new Object[] { merge(a, hashA, b, shift + BITS) });
+            }
+            Object[] array = Long.compareUnsigned(bitA, bitB) < 0 ? new Object[] { a, b } : new Object[] { b, a };
+            return new BitmapNode(edit, bitA | bitB, array);
+        }
+
+        /**
+         * @return 修改后的子项，子树变空时返回null
+         */
+        private Object remove(Object node, int shift, long hash, NameKey key) {
+            if (node instanceof BitmapNode) {
+                BitmapNode bitmapNode = (BitmapNode) node;
+                long bit = bit(hash, shift);
+                if ((bitmapNode.bitmap & bit) == 0) {
+                    return bitmapNode;
+                }
+                int index = bitmapNode.index(bit);
+                Object child = bitmapNode.array[index];
+                Object updated = remove(child, shift + BITS, hash, key);
+                if (updated == child) {
+                    return bitmapNode;
+                }
+                if (updated == null) {
+                    return bitmapNode.array.length == 1 ? null : bitmapNode.delete(edit, bit, index);
+                }
+                if (updated instanceof BitmapNode && ((BitmapNode) updated).array.length == 1
+                        && ((BitmapNode) updated).array[0] instanceof Leaf) {
+                    updated = ((BitmapNode) updated).array[0]; // 只剩一个叶子的子树收缩为叶子
+                }
+                return bitmapNode.set(edit, index, updated);
+            }
+            if (node instanceof Leaf) {
+                Leaf leaf = (Leaf) node;
+                if (leaf.hash == hash && key.nameEquals(leaf.name, 0)) {
+                    size--;
+                    return null;
+                }
+                return leaf;
+            }
+            Collision collision = (Collision) node;
+            int index = collision.indexOf(key, hash);
+            if (index < 0) {
+                return collision;
+            }
+            size--;
+            return collision.remove(index);
+        }
+    }
+
+    /**
+     * 内部节点：位图和只含存在子项的数组
+     */
+    private static final class BitmapNode {
+        final Object edit;   // 创建该节点的批次，null表示已冻结
+        long bitmap;
+        Object[] array;
+
+        BitmapNode(Object edit, long bitmap, Object[] array) {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        int index(long bit) {
+            return Long.bitCount(bitmap & (bit - 1));
+        }
+
+        private BitmapNode editable(Object edit) {
+            return edit != null && this.edit == edit ? this : new BitmapNode(edit, bitmap, array.clone());
+        }
+
+        BitmapNode set(Object edit, int index, Object child) {
+            BitmapNode node = editable(edit);
+            node.array[index] = child;
+            return node;
+        }
+
+        BitmapNode insert(Object edit, long bit, int index, Object child) {
+            Object[] grown = new Object[array.length + 1];
+            System.arraycopy(array, 0, grown, 0, index);
+            grown[index] = child;
+            System.arraycopy(array, index, grown, index + 1, array.length - index);
+            if (edit != null && this.edit == edit) {
+                bitmap |= bit;
+                array = grown;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap | bit, grown);
+        }
+
+        BitmapNode delete(Object edit, long bit, int index) {
+            Object[] shrunk = new Object[array.length - 1];
+            System.arraycopy(array, 0, shrunk, 0, index);
+            System.arraycopy(array, index + 1, shrunk, index, array.length - index - 1);
+            if (edit != null && this.edit == edit) {
+                bitmap &= ~bit;
+                array = shrunk;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap & ~bit, shrunk);
+        }
+    }
+
+    /**
+     * 叶子：名字哈希和小写线格式名字
+     */
+    private static final class Leaf {
+        final long hash;
+        final byte[] name;
+
+        Leaf(long hash, NameKey key) {
+            this.hash = hash;
+            this.name = new byte[key.getWireLength()];
+            key.copyNameTo(name, 0);
+        }
+    }
+
+    /**
+     * 64位哈希完全相同的多个名字
+     */
+    private static final class Collision {
+        final long hash;
+        final Leaf[] leaves;
+
+        Collision(long hash, Leaf[] leaves) {
+            this.hash = hash;
+            this.leaves = leaves;
+        }
+
+        int indexOf(NameKey key, long keyHash) {
+            if (keyHash != hash) {
+                return -1;
+            }
+            for (int i = 0; i < leaves.length; i++) {
+                if (key.nameEquals(leaves[i].name, 0)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        Collision add(Leaf leaf) {
+            Leaf[] grown = new Leaf[leaves.length + 1];
+            System.arraycopy(leaves, 0, grown, 0, leaves.length);
+            grown[leaves.length] = leaf;
+            return new Collision(hash, grown);
+        }
+
+        Object remove(int index) {
+            if (leaves.length == 2) {
+                return leaves[1 - index];
+            }
+            Leaf[] shrunk = new Leaf[leaves.length - 1];
+            System.arraycopy(leaves, 0, shrunk, 0, index);
+            System.arraycopy(leaves, index + 1, shrunk, index, leaves.length - index - 1);
+            return new Collision(hash, shrunk);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.bupt.dnsrelay.config;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.bupt.dnsrelay.dns.NameKey;
+
+/**
+ * 通配符拦截规则的多模式匹配器
+ * 规则中的*匹配任意长度的字符（可以跨越标签）。名字按两端带点的形式".tracker.example.com."参与匹配，
+ * 规则不以*开头时在开头补"."、不以*结尾时在末尾补"."，即锚定在名字的开头或结尾：
+ * <ul>
+ *   <li>*ads*：名字中任意位置出现ads</li>
+ *   <li>track*：第一个标签以track开头</li>
+ *   <li>*.doubleclick.net：doubleclick.net本身及其所有子域名（名字开头的"."也是标签边界）</li>
+ *   <li>*.ads.*：某个标签正好是ads</li>
+ * </ul>
+ *
+ * 所有规则按*切分出的字面片段在加载时编译为一个Aho-Corasick自动机（失败转移已展开为完整的DFA转移表），
+ * 查询名只扫描一遍，每个字节一次查表，时间与名字长度成线性，与规则数量无关。
+ * 转移表中直接存放目标状态的行偏移，目标状态有输出时存为负数，没有片段出现的字节只需一次读取和一次比较。
+ * 只有一个片段的规则在片段出现时检查位置即可判定；多个片段的规则按顺序贪心匹配，
+ * 进度按线程保存，用代数标记代替每次扫描前清零。
+ */
+public final class PatternMatcher {
+
+    static final PatternMatcher EMPTY = new PatternMatcher(new ArrayList<>());
+
+    private static final int ALPHABET = 40;   // 其他、a-z、0-9、'-'、'_'、'.'
+    private static final int SYMBOL_OTHER = 0;
+    private static final int SYMBOL_DOT = 39;
+    private static final int[] SYMBOLS = new int[256];
+
+    static {
+        for (int c = 'a'; c <= 'z'; c++) {
+            SYMBOLS[c] = 1 + c - 'a';
+        }
+        for (int c = '0'; c <= '9'; c++) {
+            SYMBOLS[c] = 27 + c - '0';
+        }
+        SYMBOLS['-'] = 37;
+        SYMBOLS['_'] = 38;
+        SYMBOLS['.'] = SYMBOL_DOT;
+    }
+
+    private final String[] patterns;
+    private final int[] fragmentCounts;
+    private final boolean[] anchoredStart;
+    private final boolean[] anchoredEnd;
+
+    private final int[] delta;        // 行偏移 + 符号 -> 下一状态的行偏移（状态 * ALPHABET），目标有输出时取反
+    private final int[] depth;        // 状态对应的片段长度
+    private final int[] outputLink;   // 失败链上最近的带输出状态，0表示没有
+    private final int[] firstOutput;  // 状态自己有输出时为自身，否则为outputLink
+    private final int[] outputStart;  // 状态自己的输出在outPattern/outFragment中的范围
+    private final int[] outPattern;
+    private final int[] outFragment;
+
+    private final ThreadLocal<Progress> progress;
+
+    /**
+     * 编译规则
+     * @param rules 规则（小写，已由isValidPattern校验）
+     */
+    PatternMatcher(List<String> rules) {
+        int count = rules.size();
+        this.patterns = rules.toArray(new String[0]);
+        this.fragmentCounts = new int[count];
+        this.anchoredStart = new boolean[count];
+        this.anchoredEnd = new boolean[count];
+
+        // 1. 所有片段插入字典树
+        List<int[]> children = new ArrayList<>();
+        List<List<int[]>> outputs = new ArrayList<>();  // 每个状态自己的输出 {规则, 片段序号}
+        List<Integer> depths = new ArrayList<>();
+        newState(children, outputs, depths, 0);
+        for (int p = 0; p < count; p++) {
+            String rule = normalize(patterns[p]);
+            anchoredStart[p] = rule.charAt(0) != '*';
+            anchoredEnd[p] = rule.charAt(rule.length() - 1) != '*';
+            int fragment = 0;
+            for (String text : rule.split("\\*")) {
+                if (text.isEmpty()) {
+                    continue;
+                }
+                int state = 0;
+                for (int i = 0; i < text.length(); i++) {
+                    int symbol = SYMBOLS[text.charAt(i)];
+                    int next = children.get(state)[symbol];
+                    if (next == 0) {
+                        next = newState(children, outputs, depths, depths.get(state) + 1);
+                        children.get(state)[symbol] = next;
+                    }
+                    state = next;
+                }
+                outputs.get(state).add(new int[] { p, fragment++ });
+            }
+            fragmentCounts[p] = fragment;
+        }
+
+        // 2. 按层次计算失败转移，同时把转移表补全为DFA
+        int states = children.size();
+        this.delta = new int[states * ALPHABET];
+        this.depth = new int[states];
+        this.outputLink = new int[states];
+        int[] fail = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int symbol = 0; symbol < ALPHABET; symbol++) {
+            int child = children.get(0)[symbol];
+            delta[symbol] = child;
+            if (child != 0) {
+                queue.add(child);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            depth[state] = depths.get(state);
+            int fallback = fail[state];
+            outputLink[state] = outputs.get(fallback).isEmpty() ? outputLink[fallback] : fallback;
+            for (int symbol = 0; symbol < ALPHABET; symbol++) {
+                int child = children.get(state)[symbol];
+                if (child != 0) {
+                    fail[child] = delta[fallback * ALPHABET + symbol];
+                    delta[state * ALPHABET + symbol] = child;
+                    queue.add(child);
+                } else {
+                    delta[state * ALPHABET + symbol] = delta[fallback * ALPHABET + symbol];
+                }
+            }
+        }
+
+        // 3. 转移表改存行偏移，目标状态有输出时取反
+        this.firstOutput = new int[states];
+        for (int state = 1; state < states; state++) {
+            firstOutput[state] = outputs.get(state).isEmpty() ? outputLink[state] : state;
+        }
+        for (int i = 0; i < delta.length; i++) {
+            int target = delta[i];
+            delta[i] = firstOutput[target] != 0 ? ~(target * ALPHABET) : target * ALPHABET;
+        }
+
+        // 4. 输出按状态连续存放
+        this.outputStart = new int[states + 1];
+        int total = 0;
+        for (int state = 0; state < states; state++) {
+            outputStart[state] = total;
+            total += outputs.get(state).size();
+        }
+        outputStart[states] = total;
+        this.outPattern = new int[total];
+        this.outFragment = new int[total];
+        for (int state = 0, i = 0; state < states; state++) {
+            for (int[] output : outputs.get(state)) {
+                outPattern[i] = output[0];
+                outFragment[i++] = output[1];
+            }
+        }
+        this.progress = ThreadLocal.withInitial(() -> new Progress(count));
+    }
+
+    private static int newState(List<int[]> children, List<List<int[]>> outputs, List<Integer> depths, int depth) {
+        children.add(new int[ALPHABET]);
+        outputs.add(new ArrayList<>());
+        depths.add(depth);
+        return children.size() - 1;
+    }
+
+    /**
+     * 不以*开头或结尾的一端补上"."，与两端带点的名字对齐
+     */
+    private static String normalize(String rule) {
+        if (rule.charAt(0) != '*' && rule.charAt(0) != '.') {
+            rule = "." + rule;
+        }
+        if (rule.charAt(rule.length() - 1) != '*' && rule.charAt(rule.length() - 1) != '.') {
+            rule = rule + ".";
+        }
+        return rule;
+    }
+
+    /**
+     * 检查规则格式：至少包含一个*和一个字面字符，只含小写字母、数字、'-'、'_'、'.'和*
+     * @param rule 小写的规则
+     * @return 是否有效
+     */
+    public static boolean isValidPattern(String rule) {
+        if (rule.indexOf('*') < 0 || rule.length() > NameKey.MAX_NAME_LENGTH) {
+            return false;
+        }
+        boolean literal = false;
+        for (int i = 0; i < rule.length(); i++) {
+            char c = rule.charAt(i);
+            if (c == '*') {
+                continue;
+            }
+            if (c >= 256 || SYMBOLS[c] == SYMBOL_OTHER) {
+                return false;
+            }
+            literal = true;
+        }
+        return literal;
+    }
+
+    /**
+     * 扫描一遍名字，判断是否有规则匹配
+     * @param key 域名键
+     * @return 是否匹配任意一条规则
+     */
+    public boolean matches(NameKey key) {
+        if (patterns.length == 0) {
+            return false;
+        }
+        Progress state = null;
+        int length = key.getWireLength();
+        int row = 0;
+        int nextLabel = 0;
+        for (int i = 0; i < length; i++) {
+            int b = key.foldedByteAt(i);
+            int symbol;
+            if (i == nextLabel) {
+                symbol = SYMBOL_DOT; // 线格式的长度字节和结尾的0看作"."
+                nextLabel = i + b + 1;
+            } else {
+                symbol = SYMBOLS[b];
+            }
+            row = delta[row + symbol];
+            if (row >= 0) {
+                continue;
+            }
+            row = ~row;
+            for (int output = firstOutput[row / ALPHABET]; output != 0; output = outputLink[output]) {
+                int start = i - depth[output] + 1;
+                for (int j = outputStart[output]; j < outputStart[output + 1]; j++) {
+                    int p = outPattern[j];
+                    int fragment = outFragment[j];
+                    int last = fragmentCounts[p] - 1;
+                    if ((fragment == 0 && anchoredStart[p] && start != 0)
+                            || (fragment == last && anchoredEnd[p] && i != length - 1)) {
+                        continue;
+                    }
+                    if (last == 0) {
+                        return true;
+                    }
+                    if (state == null) {
+                        state = progress.get();
+                        state.begin();
+                    }
+                    if (state.advance(p, fragment, start, i + 1) && fragment == last) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return patterns.length;
+    }
+
+    /**
+     * 规则原文（仅用于打印）
+     */
+    public String[] getPatterns() {
+        return patterns.clone();
+    }
+
+    /**
+     * 一个线程上多片段规则的匹配进度
+     */
+    private static final class Progress {
+        private final int[] stamps;      // 与generation不同表示本次扫描尚未涉及该规则
+        private final int[] next;        // 下一个要匹配的片段
+        private final int[] matchedEnd;  // 上一个片段结束的位置，下一个片段只能从这里之后开始
+        private int generation;
+
+        Progress(int count) {
+            stamps = new int[count];
+            next = new int[count];
+            matchedEnd = new int[count];
+        }
+
+        void begin() {
+            if (++generation == 0) {
+                Arrays.fill(stamps, 0);
+                generation = 1;
+            }
+        }
+
+        /**
+         * 片段在[start, end)出现时尝试推进规则的进度
+         * @return 该片段是否被接受
+         */
+        boolean advance(int p, int fragment, int start, int end) {
+            if (stamps[p] != generation) {
+                stamps[p] = generation;
+                next[p] = 0;
+                matchedEnd[p] = 0;
+            }
+            if (fragment != next[p] || start < matchedEnd[p]) {
+                return false;
+            }
+            next[p] = fragment + 1;
+            matchedEnd[p] = end;
+            return true;
+        }
+    }
+}
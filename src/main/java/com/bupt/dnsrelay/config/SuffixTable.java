@@ -0,0 +1,112 @@
+package com.bupt.dnsrelay.config;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.bupt.dnsrelay.dns.NameKey;
+
+/**
+ * 域名后缀表
+ * 按从右到左的标签顺序组织成字典树（com → example → www），查找时从查询名的最后一个标签开始逐层向下，
+ * 返回最长匹配后缀上的值。查找直接在报文的标签字节上比较，不分配内存。
+ *
+ * 构建完成后只读，可以被多个线程同时查询。
+ *
+ * @param <V> 值类型
+ */
+public final class SuffixTable<V> {
+
+    private static final int MAX_LABELS = 128;
+    // 每个查询线程复用的标签偏移数组
+    private static final ThreadLocal<int[]> LABEL_OFFSETS = ThreadLocal.withInitial(() -> new int[MAX_LABELS]);
+
+    private static final class Node<V> {
+        byte[][] labels = new byte[0][];   // 子节点标签（小写），与children按下标对应
+        final List<Node<V>> children = new ArrayList<>();
+        V value;
+
+        Node<V> child(byte[] label) {
+            for (int i = 0; i < labels.length; i++) {
+                if (Arrays.equals(labels[i], label)) {
+                    return children.get(i);
+                }
+            }
+            return null;
+        }
+
+        Node<V> addChild(byte[] label) {
+            Node<V> existing = child(label);
+            if (existing != null) {
+                return existing;
+            }
+            int n = labels.length;
+            labels = Arrays.copyOf(labels, n + 1);
+            labels[n] = label;
+            Node<V> child = new Node<>();
+            children.add(child);
+            return child;
+        }
+    }
+
+    private final Node<V> root = new Node<>();
+    private int size;
+
+    /**
+     * 添加后缀
+     * @param suffix 点分形式的后缀，"."或空串表示根（匹配所有名字）
+     * @param value 值，后缀已存在时替换
+     */
+    public void put(String suffix, V value) {
+        String text = suffix.endsWith(".") ? suffix.substring(0, suffix.length() - 1) : suffix;
+        Node<V> node = root;
+        if (!text.isEmpty()) {
+            String[] labels = text.toLowerCase().split("\\.");
+            for (int i = labels.length - 1; i >= 0; i--) {
+                if (labels[i].isEmpty()) {
+                    throw new IllegalArgumentException("Empty label in suffix: " + suffix);
+                }
+                node = node.addChild(labels[i].getBytes(StandardCharsets.ISO_8859_1));
+            }
+        }
+        if (node.value == null) {
+            size++;
+        }
+        node.value = value;
+    }
+
+    /**
+     * 查找最长匹配后缀的值
+     * @param key 查询名
+     * @return 值，没有任何后缀匹配时返回null
+     */
+    public V lookup(NameKey key) {
+        int[] offsets = LABEL_OFFSETS.get();
+        int count = key.labelOffsets(offsets);
+        Node<V> node = root;
+        V best = root.value;
+        for (int i = count - 1; i >= 0 && node != null; i--) {
+            Node<V> next = null;
+            byte[][] labels = node.labels;
+            for (int j = 0; j < labels.length; j++) {
+                if (key.labelEquals(offsets[i], labels[j])) {
+                    next = node.children.get(j);
+                    break;
+                }
+            }
+            node = next;
+            if (node != null && node.value != null) {
+                best = node.value;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 后缀数量
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,133 @@
+package com.bupt.dnsrelay.config;
+
+import java.nio.ByteBuffer;
+
+import com.bupt.dnsrelay.dns.DNSRecord;
+import com.bupt.dnsrelay.utils.AddressUtils;
+
+/**
+ * 读取条目数据中预编码的应答（格式见ZoneBuilder）
+ * 堆内快照和内存映射的镜像使用相同的条目格式，这里的方法只做绝对位置的读取，不修改缓冲区状态。
+ */
+final class ZoneAnswers {
+
+    private static final int ANSWER_HEADER_SIZE = 6;  // qtype(2) ancount(2) length(2)
+
+    private ZoneAnswers() {
+    }
+
+    static boolean isBlocked(ByteBuffer data, int entry) {
+        return (data.get(entry) & CompiledConfig.FLAG_BLOCKED) != 0;
+    }
+
+    /**
+     * 查找指定类型的应答
+     * @param exact 为true时只匹配该类型，否则没有该类型时返回"其他类型"的应答
+     * @return 应答描述的偏移量，未找到返回-1
+     */
+    static int find(ByteBuffer data, int entry, int qtype, boolean exact) {
+        int count = data.get(entry + 1) & 0xFF;
+        int offset = entry + 2;
+        int other = -1;
+        for (int i = 0; i < count; i++) {
+            int type = data.getShort(offset) & 0xFFFF;
+            if (type == qtype) {
+                return offset;
+            }
+            if (type == ZoneBuilder.TYPE_OTHER) {
+                other = offset;
+            }
+            offset += ANSWER_HEADER_SIZE + (data.getShort(offset + 4) & 0xFFFF);
+        }
+        return exact ? -1 : other;
+    }
+
+    /**
+     * 从A记录应答中读取打包的IPv4地址（别名取CNAME链末端的地址）
+     * @return 拦截条目为0，没有A记录时返回ConfigTable.NOT_FOUND
+     */
+    static long readIPv4(ByteBuffer data, int entry) {
+        if (isBlocked(data, entry)) {
+            return 0L;
+        }
+        int answer = find(data, entry, DNSRecord.TYPE_A, true);
+        if (answer < 0 || data.getShort(answer + 2) == 0) {
+            return ConfigTable.NOT_FOUND;
+        }
+        // 资源记录以4字节RDATA结尾
+        int rdata = answer + ANSWER_HEADER_SIZE + (data.getShort(answer + 4) & 0xFFFF) - 4;
+        return data.getInt(rdata) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * 把应答记录拷贝到响应的问题部分之后，并写入ANCOUNT
+     * 没有该类型的记录时写入"其他类型"的应答（空应答或CNAME链）；旧版镜像没有这一项时为空应答。
+     * 链离开本地数据的别名写入CNAME链后返回ConfigTable.ANSWER_EXTERNAL，由调用方解析链末端的目标
+     * @param data 条目数据
+     * @param entry 条目偏移
+     * @param qtype 查询类型
+     * @param out 响应数组
+     * @param pos 问题部分之后的位置
+     * @return 应答之后的位置；名字被拦截时返回ConfigTable.ANSWER_BLOCKED，数组容量不足时返回ConfigTable.ANSWER_TOO_LARGE，
+     *         需要继续解析目标时返回ConfigTable.ANSWER_EXTERNAL
+     */
+    static int append(ByteBuffer data, int entry, int qtype, byte[] out, int pos) {
+        if (isBlocked(data, entry)) {
+            return ConfigTable.ANSWER_BLOCKED;
+        }
+        int answer = find(data, entry, qtype, false);
+        int count = answer < 0 ? 0 : data.getShort(answer + 2) & 0xFFFF;
+        int length = answer < 0 ? 0 : data.getShort(answer + 4) & 0xFFFF;
+        if (pos + length > out.length) {
+            return ConfigTable.ANSWER_TOO_LARGE;
+        }
+        int from = answer + ANSWER_HEADER_SIZE;
+        if (data.hasArray()) {
+            System.arraycopy(data.array(), data.arrayOffset() + from, out, pos, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                out[pos + i] = data.get(from + i);
+            }
+        }
+        out[6] = (byte) (count >> 8);
+        out[7] = (byte) count;
+        if ((data.get(entry) & CompiledConfig.FLAG_EXTERNAL) != 0 && answer >= 0
+                && data.getShort(answer) == ZoneBuilder.TYPE_OTHER) {
+            return ConfigTable.ANSWER_EXTERNAL;
+        }
+        return pos + length;
+    }
+
+    /**
+     * 条目数据的总长度
+     */
+    static int length(ByteBuffer data, int entry) {
+        int count = data.get(entry + 1) & 0xFF;
+        int offset = entry + 2;
+        for (int i = 0; i < count; i++) {
+            offset += ANSWER_HEADER_SIZE + (data.getShort(offset + 4) & 0xFFFF);
+        }
+        return offset - entry;
+    }
+
+    /**
+     * 条目内容的简短描述（仅用于打印）：有A记录时为地址，否则为记录类型列表
+     */
+    static String describe(ByteBuffer data, int entry) {
+        long address = readIPv4(data, entry);
+        if (address != ConfigTable.NOT_FOUND) {
+            return AddressUtils.formatIPv4((int) address);
+        }
+        StringBuilder sb = new StringBuilder();
+        int count = data.get(entry + 1) & 0xFF;
+        int offset = entry + 2;
+        for (int i = 0; i < count; i++) {
+            int type = data.getShort(offset) & 0xFFFF;
+            if (type != ZoneBuilder.TYPE_OTHER && data.getShort(offset + 2) != 0) {
+                sb.append(sb.length() > 0 ? "," : "").append(DNSRecord.typeName(type));
+            }
+            offset += ANSWER_HEADER_SIZE + (data.getShort(offset + 4) & 0xFFFF);
+        }
+        return sb.length() > 0 ? sb.toString() : "-";
+    }
+}
@@ -0,0 +1,285 @@
+package com.bupt.dnsrelay.config;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.bupt.dnsrelay.dns.DNSRecord;
+import com.bupt.dnsrelay.dns.NameKey;
+
+/**
+ * 本地区域数据的构建器
+ * 收集配置中各名字的资源记录，加载时为每个名字、每种类型预先编码好完整的应答部分，
+ * 查询时只需把问题部分之后的字节原样拷贝到响应中。
+ *
+ * 每个名字的条目数据（与CompiledConfig镜像中的数据区格式相同）：
+ * <pre>
+ * flags(1) answerCount(1)，随后answerCount个应答：qtype(2) ancount(2) length(2) 预编码的资源记录
+ * </pre>
+ * qtype为0的应答用于没有单独列出的其他类型：普通名字为空应答（NODATA），别名为只含CNAME链的应答。
+ * 别名的链离开本地数据（目标名字不在配置中）时条目带FLAG_EXTERNAL，
+ * 这时"其他类型"的应答只是前半段，查询时还要解析链末端的目标再拼接上去。
+ *
+ * 预编码的记录用压缩指针引用名字：第一条记录的所有者名指向问题部分（0xC00C），
+ * CNAME链上后续记录的所有者名指向前一条CNAME的RDATA。问题部分的名字与条目名字长度相同，
+ * 因此应答部分在响应中的起始位置在加载时即可确定。
+ */
+final class ZoneBuilder {
+
+    static final int DEFAULT_TTL = 300;      // 与本地解析响应的TTL一致
+    static final int TYPE_OTHER = 0;         // 条目中表示"其他类型"的应答
+    private static final int MAX_CHAIN = 8;  // CNAME链的最大长度，超过时在此截止
+    private static final int HEADER_SIZE = 12;
+    private static final int QUESTION_FIXED_SIZE = 4;
+    private static final int MAX_POINTER = 0x3FFF;
+    private static final int MAX_FIELD = 0xFFFF;  // 应答描述中记录数和长度字段的上限
+
+    private final Map<NameKey, Owner> owners = new LinkedHashMap<>();
+
+    /**
+     * 拦截名字（拦截优先于该名字的所有记录）
+     * @param name 名字键
+     */
+    void block(NameKey name) {
+        owner(name).blocked = true;
+    }
+
+    /**
+     * 添加一条资源记录
+     * @param name 所有者名
+     * @param type 记录类型
+     * @param ttl 生存时间（秒）
+     * @param rdata 未压缩的RDATA
+     * @param target CNAME的目标名字，其他类型为null
+     * @return 与已有记录冲突时返回原因，否则返回null
+     */
+    String add(NameKey name, int type, int ttl, byte[] rdata, NameKey target) {
+        Owner owner = owner(name);
+        if (owner.cname != null) {
+            return "name already has a CNAME record";
+        }
+        if (type == DNSRecord.TYPE_CNAME) {
+            if (!owner.records.isEmpty()) {
+                return "CNAME cannot coexist with other records";
+            }
+            owner.cname = target;
+        }
+        for (Record record : owner.records) {
+            if (record.type == type && Arrays.equals(record.rdata, rdata)) {
+                return "duplicate record";
+            }
+        }
+        owner.records.add(new Record(type, ttl, rdata));
+        return null;
+    }
+
+    private Owner owner(NameKey name) {
+        return owners.computeIfAbsent(name, key -> new Owner());
+    }
+
+    /**
+     * 为配置中的地址自动生成反向解析的PTR记录
+     * 已经显式配置了记录的反向名字保持不变；多个名字使用同一地址时第一个名字生效
+     * @return 生成的PTR记录数
+     */
+    int addReversePointers() {
+        Set<NameKey> generated = new HashSet<>();
+        List<Object[]> pending = new ArrayList<>();
+        for (Map.Entry<NameKey, Owner> entry : owners.entrySet()) {
+            if (entry.getValue().blocked) {
+                continue;
+            }
+            for (Record record : entry.getValue().records) {
+                if (record.type == DNSRecord.TYPE_A || record.type == DNSRecord.TYPE_AAAA) {
+                    pending.add(new Object[] { reverseName(record.rdata), entry.getKey(), record.ttl });
+                }
+            }
+        }
+        int count = 0;
+        for (Object[] ptr : pending) {
+            NameKey reverse = (NameKey) ptr[0];
+            Owner existing = owners.get(reverse);
+            if (existing != null && !generated.contains(reverse)) {
+                continue;
+            }
+            if (generated.add(reverse)) {
+                owner(reverse).records.add(new Record(DNSRecord.TYPE_PTR, (Integer) ptr[2], wireName((NameKey) ptr[1])));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 地址对应的反向名字（in-addr.arpa或ip6.arpa）
+     */
+    static NameKey reverseName(byte[] address) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = address.length - 1; i >= 0; i--) {
+            int b = address[i] & 0xFF;
+            if (address.length == 4) {
+                sb.append(b).append('.');
+            } else {
+                sb.append(Character.forDigit(b & 0x0F, 16)).append('.')
+                  .append(Character.forDigit(b >> 4, 16)).append('.');
+            }
+        }
+        sb.append(address.length == 4 ? "in-addr.arpa" : "ip6.arpa");
+        return NameKey.fromDomain(sb.toString(), 0, 0);
+    }
+
+    /**
+     * 名字的线格式字节
+     */
+    static byte[] wireName(NameKey name) {
+        byte[] wire = new byte[name.getWireLength()];
+        name.copyNameTo(wire, 0);
+        return wire;
+    }
+
+    /**
+     * 为所有名字生成条目数据
+     * @return 名字到条目数据的映射（保持添加顺序）
+     */
+    Map<NameKey, byte[]> build() {
+        Map<NameKey, byte[]> entries = new LinkedHashMap<>();
+        for (Map.Entry<NameKey, Owner> entry : owners.entrySet()) {
+            entries.put(entry.getKey(), encodeEntry(entry.getKey(), entry.getValue()));
+        }
+        return entries;
+    }
+
+    private byte[] encodeEntry(NameKey name, Owner owner) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (owner.blocked) {
+            out.write(CompiledConfig.FLAG_BLOCKED);
+            out.write(0);
+            return out.toByteArray();
+        }
+        // 沿CNAME链走到第一个不是别名的名字，链离开本地数据、成环或过长时在此截止
+        List<Record> chain = new ArrayList<>();
+        Owner end = owner;
+        Set<Owner> visited = new HashSet<>();
+        while (end != null && end.cname != null && visited.add(end) && chain.size() < MAX_CHAIN) {
+            chain.add(end.records.get(0));
+            end = owners.get(end.cname);
+        }
+        boolean external = end == null; // 目标不在本地数据中，需要继续解析
+        if (end != null && (end.blocked || end.cname != null)) {
+            end = null;
+        }
+
+        List<Integer> types = new ArrayList<>();
+        if (end != null) {
+            for (Record record : end.records) {
+                if (!types.contains(record.type)) {
+                    types.add(record.type);
+                }
+            }
+        }
+        int base = HEADER_SIZE + name.getWireLength() + QUESTION_FIXED_SIZE;
+        ByteArrayOutputStream answers = new ByteArrayOutputStream();
+        int answerCount = 0;
+        for (int type : types) {
+            if (writeAnswer(answers, type, chain, end, base)) {
+                answerCount++;
+            } else {
+                System.out.println("Warning: Skipped type " + type + " records of " + name.toDomainString()
+                    + " (answer exceeds " + MAX_FIELD + " bytes or records)");
+            }
+        }
+        if (!chain.isEmpty() && writeAnswer(answers, DNSRecord.TYPE_CNAME, chain.subList(0, 1), null, base)) {
+            answerCount++;
+        }
+        if (writeAnswer(answers, TYPE_OTHER, chain, null, base)) {
+            answerCount++;
+        }
+        out.write(external ? CompiledConfig.FLAG_EXTERNAL : 0);
+        out.write(answerCount);
+        byte[] bytes = answers.toByteArray();
+        out.write(bytes, 0, bytes.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * 写入一个应答：CNAME链，随后是链末端名字的指定类型记录
+     * @return 记录数或长度超出16位字段时不写入并返回false
+     */
+    private static boolean writeAnswer(ByteArrayOutputStream out, int qtype, List<Record> chain, Owner end, int base) {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        int count = 0;
+        int ownerOffset = HEADER_SIZE;
+        byte[] ownerName = null;
+        for (Record record : chain) {
+            writeRecord(records, ownerOffset, ownerName, record);
+            ownerOffset = base + records.size() - record.rdata.length;
+            ownerName = record.rdata;
+            count++;
+        }
+        if (end != null) {
+            for (Record record : end.records) {
+                if (record.type == qtype) {
+                    writeRecord(records, ownerOffset, ownerName, record);
+                    count++;
+                }
+            }
+        }
+        if (count > MAX_FIELD || records.size() > MAX_FIELD) {
+            return false;
+        }
+        writeShort(out, qtype);
+        writeShort(out, count);
+        writeShort(out, records.size());
+        byte[] bytes = records.toByteArray();
+        out.write(bytes, 0, bytes.length);
+        return true;
+    }
+
+    /**
+     * 写入一条资源记录，所有者名尽量用压缩指针
+     */
+    private static void writeRecord(ByteArrayOutputStream out, int ownerOffset, byte[] ownerName, Record record) {
+        if (ownerOffset <= MAX_POINTER || ownerName == null) {
+            writeShort(out, 0xC000 | ownerOffset);
+        } else {
+            out.write(ownerName, 0, ownerName.length);
+        }
+        writeShort(out, record.type);
+        writeShort(out, DNSRecord.CLASS_IN);
+        writeShort(out, record.ttl >>> 16);
+        writeShort(out, record.ttl);
+        writeShort(out, record.rdata.length);
+        out.write(record.rdata, 0, record.rdata.length);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    /**
+     * 一个名字的记录
+     */
+    private static final class Owner {
+        final List<Record> records = new ArrayList<>();
+        NameKey cname;     // 别名的目标
+        boolean blocked;
+    }
+
+    private static final class Record {
+        final int type;
+        final int ttl;
+        final byte[] rdata;
+
+        Record(int type, int ttl, byte[] rdata) {
+            this.type = type;
+            this.ttl = ttl;
+            this.rdata = rdata;
+        }
+    }
+}
@@ -75,7 +75,7 @@ public class DNSMessage {
     /**
      * 创建错误响应报文
      * @param query 原始查询报文
-     * @param rcode 错误码
+     * @param rcode 错误码（可以是EDNS扩展RCODE）
      * @return DNS错误响应报文
      */
     public static DNSMessage createErrorResponse(DNSMessage query, int rcode) {
@@ -83,31 +83,17 @@ public class DNSMessage {
         response.setResponse(true);
         response.setAuthoritative(true);
         response.setRecursionDesired(query.isRecursionDesired());
-        response.setRcode(rcode);
+        response.setRcode(rcode & 0x0F);
         
         // 复制问题部分
         for (DNSQuestion question : query.getQuestions()) {
             response.addQuestion(question);
         }
         
-        return response;
-    }
-    
-    /**
-     * 创建本地解析响应报文
-     * @param query 原始查询报文
-     * @param ipAddress IP地址
-     * @return DNS响应报文
-     */
-    public static DNSMessage createLocalResponse(DNSMessage query, String ipAddress) {
-        DNSMessage response = createErrorResponse(query, RCODE_NOERROR);
-        
-        if (!query.getQuestions().isEmpty()) {
-            DNSQuestion question = query.getQuestions().get(0);
-            if (question.getType() == DNSRecord.TYPE_A) {
-                DNSRecord answer = DNSRecord.createARecord(question.getName(), ipAddress);
-                response.addAnswer(answer);
-            }
+        // 查询使用EDNS时响应也带OPT，复制DO位，扩展RCODE的高位放在OPT中
+        DNSRecord opt = query.getOpt();
+        if (opt != null) {
+            response.addAdditional(EDNS.createOpt((int) opt.getTtl() & EDNS.FLAG_DO, rcode));
         }
         
         return response;
@@ -207,6 +193,28 @@ public class DNSMessage {
         return authorities;
     }
     
+    /**
+     * 获取附加部分中的EDNS OPT记录
+     * @return OPT记录，查询未使用EDNS时返回null
+     */
+    public DNSRecord getOpt() {
+        for (DNSRecord record : additionals) {
+            if (record.getType() == DNSRecord.TYPE_OPT) {
+                return record;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * 获取EDNS版本
+     * @return 版本号，未使用EDNS时返回-1
+     */
+    public int getEdnsVersion() {
+        DNSRecord opt = getOpt();
+        return opt == null ? -1 : (int) (opt.getTtl() >> 16) & 0xFF;
+    }
+    
     public List<DNSRecord> getAdditionals() {
         return additionals;
     }
@@ -0,0 +1,440 @@
+package com.bupt.dnsrelay.dns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * DNS报文编码器
+ * 先计算报文的编码长度，再用绝对位置的put把报文头、问题和资源记录直接写入调用方提供的ByteBuffer，
+ * 不经过输出流和中间数组，写完后缓冲区可以直接用于发送。
+ *
+ * 域名按字符逐个编码（ASCII字符直接写入，其余字符按UTF-8编码），不使用String.split。
+ */
+public final class DNSMessageWriter {
+
+    public static final int HEADER_SIZE = 12;
+    private static final int MAX_LABEL_SIZE = 63;
+    private static final int MAX_DOMAIN_NAME = 255;
+    private static final int RECORD_FIXED_SIZE = 10;   // TYPE、CLASS、TTL、RDLENGTH
+    private static final int QUESTION_FIXED_SIZE = 4;  // QTYPE、QCLASS
+
+    private DNSMessageWriter() {
+    }
+
+    /**
+     * 预先计算报文编码后的长度
+     * @param message DNS报文对象
+     * @return 编码长度（字节）
+     * @throws IOException 域名无效
+     */
+    public static int encodedLength(DNSMessage message) throws IOException {
+        int length = HEADER_SIZE;
+        for (DNSQuestion question : message.getQuestions()) {
+            length += nameLength(question.getName()) + QUESTION_FIXED_SIZE;
+        }
+        length += recordsLength(message.getAnswers());
+        length += recordsLength(message.getAuthorities());
+        length += recordsLength(message.getAdditionals());
+        return length;
+    }
+
+    private static int recordsLength(Iterable<DNSRecord> records) throws IOException {
+        int length = 0;
+        for (DNSRecord record : records) {
+            length += nameLength(record.getName()) + RECORD_FIXED_SIZE + record.getRdataLength();
+        }
+        return length;
+    }
+
+    /**
+     * 将报文写入缓冲区，从位置0开始写
+     * 写入前先检查容量，容量不足时不会写入任何字节；写完后position为0、limit为报文长度
+     * @param message DNS报文对象
+     * @param out 目标缓冲区（通常是租用的缓冲区）
+     * @return 报文长度
+     * @throws IOException 域名无效或缓冲区容量不足
+     */
+    public static int write(DNSMessage message, ByteBuffer out) throws IOException {
+        int length = encodedLength(message);
+        if (length > out.capacity()) {
+            throw new IOException("DNS message exceeds buffer size " + out.capacity());
+        }
+
+        int pos = writeHeader(message, out);
+        for (DNSQuestion question : message.getQuestions()) {
+            pos = writeName(out, pos, question.getName());
+            out.putShort(pos, (short) question.getType());
+            out.putShort(pos + 2, (short) question.getDnsClass());
+            pos += QUESTION_FIXED_SIZE;
+        }
+        pos = writeRecords(out, pos, message.getAnswers());
+        pos = writeRecords(out, pos, message.getAuthorities());
+        pos = writeRecords(out, pos, message.getAdditionals());
+
+        out.limit(pos);
+        out.position(0);
+        return pos;
+    }
+
+    /**
+     * 直接由原始查询报文生成只含问题部分的错误响应，不解析成DNSMessage（用于过载时的廉价应答）
+     * 保留事务ID、OPCODE和RD位，复制第一个问题，响应中不带任何资源记录
+     * @param query 查询报文所在的数组
+     * @param queryLength 查询长度
+     * @param rcode 响应码
+     * @param out 目标缓冲区
+     * @return 响应长度，查询格式无法处理时返回-1
+     */
+    public static int writeErrorResponse(byte[] query, int queryLength, int rcode, ByteBuffer out) {
+        if (queryLength < HEADER_SIZE || (query[2] & 0x80) != 0) {
+            return -1; // 太短或本身就是响应
+        }
+        int qdcount = ((query[4] & 0xFF) << 8) | (query[5] & 0xFF);
+        int end = HEADER_SIZE;
+        if (qdcount > 0) {
+            while (end < queryLength && query[end] != 0) {
+                int len = query[end] & 0xFF;
+                if (len > MAX_LABEL_SIZE) {
+                    return -1; // 问题部分不应出现压缩指针
+                }
+                end += len + 1;
+            }
+            end += 1 + QUESTION_FIXED_SIZE;
+            if (end > queryLength || end - HEADER_SIZE - QUESTION_FIXED_SIZE > MAX_DOMAIN_NAME) {
+                return -1;
+            }
+        }
+        if (end > out.capacity()) {
+            return -1;
+        }
+
+        int flags = 0x8000 | (query[2] & 0x79) << 8 | 0x0080 | (rcode & 0x0F); // QR、OPCODE、RD、RA、RCODE
+        out.put(0, query[0]);
+        out.put(1, query[1]);
+        out.putShort(2, (short) flags);
+        out.putShort(4, (short) (qdcount > 0 ? 1 : 0));
+        out.putShort(6, (short) 0);
+        out.putShort(8, (short) 0);
+        out.putShort(10, (short) 0);
+        for (int i = HEADER_SIZE; i < end; i++) {
+            out.put(i, query[i]);
+        }
+        out.limit(end);
+        out.position(0);
+        return end;
+    }
+
+    /**
+     * 把另一个响应应答部分中的记录接在已经写好的应答之后，并增加ANCOUNT
+     * （本地别名的CNAME链离开本地数据时，用于拼接上游对链末端目标的应答）。
+     * 所有者名是owner的记录用压缩指针指向ownerOffset，其他所有者名和RDATA中的名字
+     * （NS、CNAME、PTR、MX、SRV、SOA）展开为完整的线格式，因为原响应中的压缩指针在这里没有意义；其余RDATA原样复制。
+     * @param message 上游响应所在的数组
+     * @param length 上游响应长度
+     * @param out 响应数组
+     * @param pos 已有应答之后的位置
+     * @param owner 链末端的目标名字
+     * @param ownerOffset 目标名字在响应中的位置（不超过0x3FFF）
+     * @return 应答之后的位置；上游响应格式错误时返回-1，数组容量不足时返回-2
+     */
+    public static int appendAnswers(byte[] message, int length, byte[] out, int pos, NameKey owner, int ownerOffset) {
+        if (length < HEADER_SIZE) {
+            return -1;
+        }
+        int qdcount = readShort(message, 4);
+        int ancount = readShort(message, 6);
+        byte[] name = new byte[MAX_DOMAIN_NAME];
+        int src = HEADER_SIZE;
+        for (int i = 0; i < qdcount; i++) {
+            src = expandName(message, src, length, length, name);
+            if (src < 0 || src + QUESTION_FIXED_SIZE > length) {
+                return -1;
+            }
+            src += QUESTION_FIXED_SIZE;
+        }
+        int count = readShort(out, 6);
+        for (int i = 0; i < ancount; i++) {
+            src = expandName(message, src, length, length, name);
+            if (src < 0 || src + RECORD_FIXED_SIZE > length) {
+                return -1;
+            }
+            int type = readShort(message, src);
+            int rdata = src + RECORD_FIXED_SIZE;
+            int rdataEnd = rdata + readShort(message, src + 8);
+            if (rdataEnd > length) {
+                return -1;
+            }
+            if (owner.nameEquals(name, 0)) {
+                if (pos + 2 > out.length) {
+                    return -2;
+                }
+                writeShort(out, pos, 0xC000 | ownerOffset);
+                pos += 2;
+            } else {
+                pos = putName(out, pos, name);
+            }
+            if (pos < 0 || pos + RECORD_FIXED_SIZE > out.length) {
+                return -2;
+            }
+            System.arraycopy(message, src, out, pos, RECORD_FIXED_SIZE);
+            int rdlengthAt = pos + RECORD_FIXED_SIZE - 2;
+            pos += RECORD_FIXED_SIZE;
+            int start = pos;
+            int fixedBefore = type == DNSRecord.TYPE_MX ? 2 : type == DNSRecord.TYPE_SRV ? 6 : 0;
+            int names = type == DNSRecord.TYPE_NS || type == DNSRecord.TYPE_CNAME || type == DNSRecord.TYPE_PTR
+                || type == DNSRecord.TYPE_MX || type == DNSRecord.TYPE_SRV ? 1 : type == DNSRecord.TYPE_SOA ? 2 : 0;
+            if (names == 0) {
+                if (pos + rdataEnd - rdata > out.length) {
+                    return -2;
+                }
+                System.arraycopy(message, rdata, out, pos, rdataEnd - rdata);
+                pos += rdataEnd - rdata;
+            } else {
+                if (pos + fixedBefore > out.length || rdata + fixedBefore > rdataEnd) {
+                    return pos + fixedBefore > out.length ? -2 : -1;
+                }
+                System.arraycopy(message, rdata, out, pos, fixedBefore);
+                pos += fixedBefore;
+                int next = rdata + fixedBefore;
+                for (int n = 0; n < names; n++) {
+                    next = expandName(message, next, rdataEnd, length, name);
+                    if (next < 0) {
+                        return -1;
+                    }
+                    pos = putName(out, pos, name);
+                    if (pos < 0) {
+                        return -2;
+                    }
+                }
+                // SOA名字之后的20字节计数器等其余部分原样复制
+                if (pos + rdataEnd - next > out.length) {
+                    return -2;
+                }
+                System.arraycopy(message, next, out, pos, rdataEnd - next);
+                pos += rdataEnd - next;
+            }
+            writeShort(out, rdlengthAt, pos - start);
+            count++;
+            src = rdataEnd;
+        }
+        writeShort(out, 6, count);
+        return pos;
+    }
+
+    /**
+     * 把报文中可能被压缩的名字展开为线格式
+     * @param limit 名字本身不能越过的位置（RDATA中的名字为RDATA的结尾）
+     * @param length 报文长度，压缩指针可以指向其中任何位置
+     * @return 名字在报文中占用的字节之后的位置，格式错误或名字过长时返回-1
+     */
+    private static int expandName(byte[] message, int pos, int limit, int length, byte[] out) {
+        int end = -1;
+        int written = 0;
+        for (int jumps = 0; pos < limit; ) {
+            int len = message[pos] & 0xFF;
+            if ((len & 0xC0) == 0xC0) {
+                if (pos + 1 >= limit || ++jumps > MAX_DOMAIN_NAME) {
+                    return -1;
+                }
+                if (end < 0) {
+                    end = pos + 2;
+                }
+                pos = ((len & 0x3F) << 8) | (message[pos + 1] & 0xFF);
+                limit = length;
+                continue;
+            }
+            if (len > MAX_LABEL_SIZE || written + len + 1 > out.length || pos + len + 1 > limit) {
+                return -1;
+            }
+            System.arraycopy(message, pos, out, written, len + 1);
+            written += len + 1;
+            if (len == 0) {
+                return end < 0 ? pos + 1 : end;
+            }
+            pos += len + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * 写入展开后的线格式名字
+     * @return 名字之后的位置，数组容量不足时返回-1
+     */
+    private static int putName(byte[] out, int pos, byte[] name) {
+        int length = 0;
+        while (name[length] != 0) {
+            length += (name[length] & 0xFF) + 1;
+        }
+        length++;
+        if (pos + length > out.length) {
+            return -1;
+        }
+        System.arraycopy(name, 0, out, pos, length);
+        return pos + length;
+    }
+
+    private static int readShort(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+
+    private static void writeShort(byte[] data, int pos, int value) {
+        data[pos] = (byte) (value >> 8);
+        data[pos + 1] = (byte) value;
+    }
+
+    /**
+     * 写入报文头
+     * @return 报文头之后的位置
+     */
+    private static int writeHeader(DNSMessage message, ByteBuffer out) {
+        int flags = 0;
+        if (message.isResponse()) flags |= 0x8000;
+        flags |= (message.getOpcode() & 0x0F) << 11;
+        if (message.isAuthoritative()) flags |= 0x0400;
+        if (message.isTruncated()) flags |= 0x0200;
+        if (message.isRecursionDesired()) flags |= 0x0100;
+        if (message.isRecursionAvailable()) flags |= 0x0080;
+        flags |= message.getRcode() & 0x000F;
+
+        out.putShort(0, (short) message.getId());
+        out.putShort(2, (short) flags);
+        out.putShort(4, (short) message.getQuestions().size());
+        out.putShort(6, (short) message.getAnswers().size());
+        out.putShort(8, (short) message.getAuthorities().size());
+        out.putShort(10, (short) message.getAdditionals().size());
+        return HEADER_SIZE;
+    }
+
+    private static int writeRecords(ByteBuffer out, int pos, Iterable<DNSRecord> records) throws IOException {
+        for (DNSRecord record : records) {
+            pos = writeName(out, pos, record.getName());
+            byte[] rdata = record.getRdata();
+            int rdlength = record.getRdataLength();
+            out.putShort(pos, (short) record.getType());
+            out.putShort(pos + 2, (short) record.getDnsClass());
+            out.putInt(pos + 4, (int) record.getTtl());
+            out.putShort(pos + 8, (short) rdlength);
+            pos += RECORD_FIXED_SIZE;
+            for (int i = 0; i < rdlength; i++) {
+                out.put(pos + i, rdata[i]);
+            }
+            pos += rdlength;
+        }
+        return pos;
+    }
+
+    /**
+     * 计算点分域名编码为线格式后的长度（含结尾的0）
+     * @param name 域名，null或空串表示根
+     * @return 线格式长度
+     * @throws IOException 标签过长、出现空标签或域名过长
+     */
+    public static int nameLength(String name) throws IOException {
+        int end = nameEnd(name);
+        int length = 1;
+        int labelLength = 0;
+        for (int i = 0; i < end; i++) {
+            char c = name.charAt(i);
+            if (c == '.') {
+                length += checkLabel(labelLength, name) + 1;
+                labelLength = 0;
+            } else {
+                labelLength += charLength(name, i);
+                if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(name.charAt(i + 1))) {
+                    i++;
+                }
+            }
+        }
+        if (end > 0) {
+            length += checkLabel(labelLength, name) + 1;
+        }
+        if (length > MAX_DOMAIN_NAME) {
+            throw new IOException("DNS name too long: " + name);
+        }
+        return length;
+    }
+
+    /**
+     * 在指定位置写入线格式域名（调用方已通过nameLength校验并确认容量）
+     * @return 域名之后的位置
+     */
+    private static int writeName(ByteBuffer out, int pos, String name) {
+        int end = nameEnd(name);
+        int lengthPos = pos++;
+        for (int i = 0; i < end; i++) {
+            char c = name.charAt(i);
+            if (c == '.') {
+                out.put(lengthPos, (byte) (pos - lengthPos - 1));
+                lengthPos = pos++;
+            } else if (c < 0x80) {
+                out.put(pos++, (byte) c);
+            } else {
+                int codePoint = name.codePointAt(i);
+                if (Character.isSupplementaryCodePoint(codePoint)) {
+                    i++;
+                }
+                pos = putUtf8(out, pos, codePoint);
+            }
+        }
+        if (end > 0) {
+            out.put(lengthPos, (byte) (pos - lengthPos - 1));
+            out.put(pos++, (byte) 0);
+        } else {
+            out.put(lengthPos, (byte) 0);
+        }
+        return pos;
+    }
+
+    /**
+     * 忽略末尾的根标签点
+     */
+    private static int nameEnd(String name) {
+        if (name == null) {
+            return 0;
+        }
+        int end = name.length();
+        if (end > 0 && name.charAt(end - 1) == '.') {
+            end--;
+        }
+        return end;
+    }
+
+    private static int checkLabel(int labelLength, String name) throws IOException {
+        if (labelLength == 0) {
+            throw new IOException("Empty DNS label in name: " + name);
+        }
+        if (labelLength > MAX_LABEL_SIZE) {
+            throw new IOException("DNS label too long in name: " + name);
+        }
+        return labelLength;
+    }
+
+    /**
+     * 字符按UTF-8编码后的字节数（代理对按一个码点计算）
+     */
+    private static int charLength(String name, int i) {
+        char c = name.charAt(i);
+        if (c < 0x80) {
+            return 1;
+        }
+        if (c < 0x800) {
+            return 2;
+        }
+        return Character.isSupplementaryCodePoint(name.codePointAt(i)) ? 4 : 3;
+    }
+
+    private static int putUtf8(ByteBuffer out, int pos, int codePoint) {
+        if (codePoint < 0x800) {
+            out.put(pos++, (byte) (0xC0 | (codePoint >> 6)));
+        } else if (codePoint < 0x10000) {
+            out.put(pos++, (byte) (0xE0 | (codePoint >> 12)));
+            out.put(pos++, (byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+        } else {
+            out.put(pos++, (byte) (0xF0 | (codePoint >> 18)));
+            out.put(pos++, (byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+            out.put(pos++, (byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+        }
+        out.put(pos++, (byte) (0x80 | (codePoint & 0x3F)));
+        return pos;
+    }
+}
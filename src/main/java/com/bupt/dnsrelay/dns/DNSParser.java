@@ -1,10 +1,9 @@
 package com.bupt.dnsrelay.dns;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * DNS报文解析器
@@ -22,11 +21,22 @@ public class DNSParser {
      * @throws IOException 解析错误
      */
     public static DNSMessage parseMessage(byte[] data) throws IOException {
-        if (data.length < 12) {
+        return parseMessage(data, data.length);
+    }
+    
+    /**
+     * 解析DNS报文
+     * @param data 报文所在的字节数组（可以是比报文长的缓冲区）
+     * @param length 报文有效长度
+     * @return DNS报文对象
+     * @throws IOException 解析错误
+     */
+    public static DNSMessage parseMessage(byte[] data, int length) throws IOException {
+        if (length < 12) {
             throw new IOException("DNS message too short");
         }
         
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data, 0, length));
         DNSMessage message = new DNSMessage();
         
         // 解析报文头
@@ -61,38 +71,15 @@ public class DNSParser {
     
     /**
      * 构造DNS报文
+     * 查询路径上应使用DNSMessageWriter直接写入租用的缓冲区，这里只用于需要独立数组的场合
      * @param message DNS报文对象
      * @return 报文字节数组
      * @throws IOException 构造错误
      */
     public static byte[] buildMessage(DNSMessage message) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        
-        // 构造报文头
-        buildHeader(dos, message);
-        
-        // 构造问题部分
-        for (DNSQuestion question : message.getQuestions()) {
-            buildQuestion(dos, question);
-        }
-        
-        // 构造答案部分
-        for (DNSRecord record : message.getAnswers()) {
-            buildRecord(dos, record);
-        }
-        
-        // 构造权威部分
-        for (DNSRecord record : message.getAuthorities()) {
-            buildRecord(dos, record);
-        }
-        
-        // 构造附加部分
-        for (DNSRecord record : message.getAdditionals()) {
-            buildRecord(dos, record);
-        }
-        
-        return baos.toByteArray();
+        byte[] data = new byte[DNSMessageWriter.encodedLength(message)];
+        DNSMessageWriter.write(message, ByteBuffer.wrap(data));
+        return data;
     }
     
     /**
@@ -133,31 +120,6 @@ public class DNSParser {
         }
     }
     
-    /**
-     * 构造报文头
-     */
-    private static void buildHeader(DataOutputStream dos, DNSMessage message) throws IOException {
-        // 事务ID
-        dos.writeShort(message.getId());
-        
-        // 标志位
-        int flags = 0;
-        if (message.isResponse()) flags |= 0x8000;
-        flags |= (message.getOpcode() & 0x0F) << 11;
-        if (message.isAuthoritative()) flags |= 0x0400;
-        if (message.isTruncated()) flags |= 0x0200;
-        if (message.isRecursionDesired()) flags |= 0x0100;
-        if (message.isRecursionAvailable()) flags |= 0x0080;
-        flags |= message.getRcode() & 0x000F;
-        dos.writeShort(flags);
-        
-        // 计数器
-        dos.writeShort(message.getQuestions().size());
-        dos.writeShort(message.getAnswers().size());
-        dos.writeShort(message.getAuthorities().size());
-        dos.writeShort(message.getAdditionals().size());
-    }
-    
     /**
      * 解析问题
      */
@@ -175,18 +137,6 @@ public class DNSParser {
         return question;
     }
     
-    /**
-     * 构造问题
-     */
-    private static void buildQuestion(DataOutputStream dos, DNSQuestion question) throws IOException {
-        // 编码域名
-        encodeDomainName(dos, question.getName());
-        
-        // 写入类型和类别
-        dos.writeShort(question.getType());
-        dos.writeShort(question.getDnsClass());
-    }
-    
     /**
      * 解析资源记录
      */
@@ -211,25 +161,6 @@ public class DNSParser {
         return record;
     }
     
-    /**
-     * 构造资源记录
-     */
-    private static void buildRecord(DataOutputStream dos, DNSRecord record) throws IOException {
-        // 编码域名
-        encodeDomainName(dos, record.getName());
-        
-        // 写入类型、类别、TTL和数据长度
-        dos.writeShort(record.getType());
-        dos.writeShort(record.getDnsClass());
-        dos.writeInt((int) record.getTtl());
-        dos.writeShort(record.getRdataLength());
-        
-        // 写入记录数据
-        if (record.getRdata() != null) {
-            dos.write(record.getRdata());
-        }
-    }
-
     /**
      * 解析域名（支持压缩格式）
      */
@@ -275,28 +206,6 @@ public class DNSParser {
         return name.toString();
     }
 
-    /**
-     * 编码域名
-     */
-    private static void encodeDomainName(DataOutputStream dos, String name) throws IOException {
-        if (name == null || name.isEmpty()) {
-            dos.writeByte(0);
-            return;
-        }
-
-        String[] labels = name.split("\\.");
-        for (String label : labels) {
-            if (label.length() > MAX_LABEL_SIZE) {
-                throw new IOException("DNS label too long: " + label);
-            }
-
-            byte[] labelBytes = label.getBytes("UTF-8");
-            dos.writeByte(labelBytes.length);
-            dos.write(labelBytes);
-        }
-        dos.writeByte(0); // 结束标记
-    }
-
     /**
      * 打印DNS报文信息（调试用）
      */
@@ -1,8 +1,5 @@
 package com.bupt.dnsrelay.dns;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-
 /**
  * DNS资源记录类
  * 表示DNS报文中的资源记录（Resource Record）
@@ -13,9 +10,13 @@ public class DNSRecord {
     public static final int TYPE_A = 1;      // IPv4地址记录
     public static final int TYPE_NS = 2;     // 名称服务器记录
     public static final int TYPE_CNAME = 5;  // 别名记录
+    public static final int TYPE_SOA = 6;    // 授权起始记录
     public static final int TYPE_PTR = 12;   // 指针记录
     public static final int TYPE_MX = 15;    // 邮件交换记录
+    public static final int TYPE_TXT = 16;   // 文本记录
     public static final int TYPE_AAAA = 28;    // IPv6地址记录
+    public static final int TYPE_SRV = 33;     // 服务定位记录
+    public static final int TYPE_OPT = EDNS.TYPE_OPT; // EDNS(0)伪记录
     
     // DNS类别常量
     public static final int CLASS_IN = 1;    // Internet类别
@@ -50,22 +51,6 @@ public class DNSRecord {
         this.rdata = rdata != null ? rdata.clone() : null;
     }
     
-    /**
-     * 创建A记录
-     * @param name 域名
-     * @param ipAddress IP地址字符串
-     * @return DNS记录对象
-     */
-    public static DNSRecord createARecord(String name, String ipAddress) {
-        try {
-            InetAddress addr = InetAddress.getByName(ipAddress);
-            byte[] ipBytes = addr.getAddress();
-            return new DNSRecord(name, TYPE_A, CLASS_IN, 300, ipBytes);
-        } catch (UnknownHostException e) {
-            throw new IllegalArgumentException("Invalid IP address: " + ipAddress, e);
-        }
-    }
-    
     /**
      * 获取A记录的IP地址字符串
      * @return IP地址字符串，如果不是A记录则返回null
@@ -145,13 +130,26 @@ public class DNSRecord {
      * 获取记录类型的字符串表示
      */
     public String getTypeString() {
+        return typeName(type);
+    }
+    
+    /**
+     * 记录类型的名称
+     * @param type 类型值
+     * @return 类型名称，未知类型为TYPE加数值
+     */
+    public static String typeName(int type) {
         switch (type) {
             case TYPE_A: return "A";
             case TYPE_AAAA: return "AAAA";
             case TYPE_NS: return "NS";
             case TYPE_CNAME: return "CNAME";
+            case TYPE_SOA: return "SOA";
             case TYPE_PTR: return "PTR";
             case TYPE_MX: return "MX";
+            case TYPE_TXT: return "TXT";
+            case TYPE_SRV: return "SRV";
+            case TYPE_OPT: return "OPT";
             default: return "TYPE" + type;
         }
     }
@@ -0,0 +1,330 @@
+package com.bupt.dnsrelay.dns;
+
+/**
+ * EDNS(0)（RFC 6891）
+ * OPT伪记录放在附加部分，名字为根，CLASS字段是发送方能接收的UDP报文大小，
+ * TTL字段依次是扩展RCODE高8位、版本号和标志位（DO）。
+ *
+ * 中继在两端分别协商报文大小：
+ * <ul>
+ *   <li>转发给上游的查询总是携带OPT，声明PAYLOAD_SIZE，上游可以直接用UDP返回较大的响应</li>
+ *   <li>返回给客户端的响应不超过客户端声明的大小（没有OPT时为512字节），超过时只保留问题部分并设置TC</li>
+ * </ul>
+ * 经TCP或TLS长连接发往上游的查询还带有edns-tcp-keepalive选项（RFC 7828），由上游告知它保持空闲连接的时间；
+ * 这个选项只在一跳内有效，上游响应中的选项在交给客户端之前去掉。
+ * 这里的方法直接在报文字节上操作，不解析成DNSMessage。
+ */
+public final class EDNS {
+
+    public static final int TYPE_OPT = 41;
+    public static final int PAYLOAD_SIZE = 1232;   // 在常见路径MTU下不会分片的大小
+    public static final int CLASSIC_SIZE = 512;    // 不支持EDNS的客户端能接收的最大UDP报文
+    public static final int VERSION = 0;
+    public static final int RCODE_BADVERS = 16;    // 扩展RCODE：不支持的EDNS版本
+    public static final int FLAG_DO = 0x8000;      // DNSSEC OK
+    public static final int OPTION_TCP_KEEPALIVE = 11; // edns-tcp-keepalive，超时以100毫秒为单位
+    public static final int KEEPALIVE_OPTION_SIZE = 4; // 查询中不带超时的选项：OPTION-CODE2 + OPTION-LENGTH2
+
+    private static final int HEADER_SIZE = 12;
+    private static final int OPT_SIZE = 11;         // 根名字1 + TYPE2 + CLASS2 + TTL4 + RDLENGTH2
+    private static final int RECORD_FIXED_SIZE = 10;
+
+    private EDNS() {
+    }
+
+    /**
+     * 创建本服务器使用的OPT记录
+     * @param flags 要设置的标志位（通常从查询中复制DO位）
+     * @param extendedRcode 扩展RCODE（完整值，低4位放在报文头中）
+     * @return OPT记录
+     */
+    public static DNSRecord createOpt(int flags, int extendedRcode) {
+        long ttl = ((long) (extendedRcode >> 4) << 24) | (VERSION << 16) | (flags & 0xFFFF);
+        return new DNSRecord("", TYPE_OPT, PAYLOAD_SIZE, ttl, new byte[0]);
+    }
+
+    /**
+     * 查找报文附加部分中的OPT记录
+     * @param message 报文所在的数组
+     * @param length 报文长度
+     * @return OPT记录在报文中的起始偏移，没有OPT或报文格式错误时返回-1
+     */
+    public static int findOpt(byte[] message, int length) {
+        if (length < HEADER_SIZE) {
+            return -1;
+        }
+        int qdcount = readShort(message, 4);
+        int rrcount = readShort(message, 6) + readShort(message, 8);
+        int arcount = readShort(message, 10);
+        if (arcount == 0) {
+            return -1;
+        }
+        int pos = HEADER_SIZE;
+        for (int i = 0; i < qdcount && pos >= 0; i++) {
+            pos = skipName(message, pos, length);
+            pos = pos < 0 ? -1 : pos + 4;
+        }
+        for (int i = 0; i < rrcount && pos >= 0; i++) {
+            pos = skipRecord(message, pos, length);
+        }
+        for (int i = 0; i < arcount && pos >= 0; i++) {
+            int start = pos;
+            pos = skipRecord(message, pos, length);
+            if (pos > 0 && message[start] == 0 && readShort(message, start + 1) == TYPE_OPT) {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 发送方声明的UDP报文大小
+     * @param message 报文所在的数组
+     * @param length 报文长度
+     * @return 声明的大小（不小于512），没有OPT时返回0
+     */
+    public static int payloadSize(byte[] message, int length) {
+        int opt = findOpt(message, length);
+        return opt < 0 ? 0 : Math.max(CLASSIC_SIZE, readShort(message, opt + 3));
+    }
+
+    /**
+     * 准备转发给上游的查询：已有OPT时把声明的大小改为PAYLOAD_SIZE，没有时在报文末尾追加OPT
+     * 直接修改数组中的查询
+     * @param query 查询所在的数组
+     * @param length 查询长度
+     * @return 修改后的长度；数组容量不足或报文格式错误时原样返回length
+     */
+    public static int prepareUpstreamQuery(byte[] query, int length) {
+        int opt = findOpt(query, length);
+        if (opt >= 0) {
+            writeShort(query, opt + 3, PAYLOAD_SIZE);
+            return length;
+        }
+        if (length < HEADER_SIZE || length + OPT_SIZE > query.length || skipSections(query, length) != length) {
+            return length;
+        }
+        query[length] = 0;
+        writeShort(query, length + 1, TYPE_OPT);
+        writeShort(query, length + 3, PAYLOAD_SIZE);
+        writeShort(query, length + 5, 0);
+        writeShort(query, length + 7, 0);
+        writeShort(query, length + 9, 0);
+        writeShort(query, 10, readShort(query, 10) + 1);
+        return length + OPT_SIZE;
+    }
+
+    /**
+     * 在响应末尾追加本服务器的OPT记录（用于直接在字节上构造的本地应答）
+     * @param response 响应所在的数组
+     * @param length 响应长度
+     * @param flags 要设置的标志位（通常从查询中复制DO位）
+     * @return 新长度，数组容量不足时原样返回length
+     */
+    public static int appendOpt(byte[] response, int length, int flags) {
+        if (length < HEADER_SIZE || length + OPT_SIZE > response.length) {
+            return length;
+        }
+        response[length] = 0;
+        writeShort(response, length + 1, TYPE_OPT);
+        writeShort(response, length + 3, PAYLOAD_SIZE);
+        writeShort(response, length + 5, 0);
+        writeShort(response, length + 7, flags);
+        writeShort(response, length + 9, 0);
+        writeShort(response, 10, readShort(response, 10) + 1);
+        return length + OPT_SIZE;
+    }
+
+    /**
+     * 查询OPT记录中的标志位（DO等）
+     * @param message 报文所在的数组
+     * @param length 报文长度
+     * @return 标志位，没有OPT时返回0
+     */
+    public static int optFlags(byte[] message, int length) {
+        int opt = findOpt(message, length);
+        return opt < 0 ? 0 : readShort(message, opt + 7);
+    }
+
+    /**
+     * 在位于报文末尾的OPT记录中追加不带超时的edns-tcp-keepalive选项（只用于TCP/TLS查询）
+     * @param query 查询所在的数组，需要有KEEPALIVE_OPTION_SIZE字节的余量
+     * @param length 查询长度
+     * @return 新长度；没有OPT、OPT不是最后一条记录、已有该选项或容量不足时原样返回length
+     */
+    public static int addKeepalive(byte[] query, int length) {
+        int opt = findOpt(query, length);
+        if (opt < 0 || skipRecord(query, opt, length) != length || length + KEEPALIVE_OPTION_SIZE > query.length
+                || findOption(query, opt, OPTION_TCP_KEEPALIVE) >= 0) {
+            return length;
+        }
+        writeShort(query, length, OPTION_TCP_KEEPALIVE);
+        writeShort(query, length + 2, 0);
+        writeShort(query, opt + 9, readShort(query, opt + 9) + KEEPALIVE_OPTION_SIZE);
+        return length + KEEPALIVE_OPTION_SIZE;
+    }
+
+    /**
+     * 读取响应中edns-tcp-keepalive选项给出的空闲超时
+     * @param response 响应所在的数组
+     * @param length 响应长度
+     * @return 超时（毫秒），0表示上游希望尽快关闭连接；没有该选项时返回-1
+     */
+    public static int keepaliveTimeout(byte[] response, int length) {
+        int opt = findOpt(response, length);
+        int option = opt < 0 ? -1 : findOption(response, opt, OPTION_TCP_KEEPALIVE);
+        if (option < 0 || readShort(response, option + 2) < 2) {
+            return -1;
+        }
+        return readShort(response, option + 4) * 100;
+    }
+
+    /**
+     * 去掉响应OPT记录中的edns-tcp-keepalive选项（逐跳选项，不转发给客户端）
+     * @param response 响应所在的数组
+     * @param length 响应长度
+     * @return 新长度，没有该选项时原样返回length
+     */
+    public static int removeKeepalive(byte[] response, int length) {
+        int opt = findOpt(response, length);
+        int option = opt < 0 ? -1 : findOption(response, opt, OPTION_TCP_KEEPALIVE);
+        if (option < 0) {
+            return length;
+        }
+        int size = KEEPALIVE_OPTION_SIZE + readShort(response, option + 2);
+        System.arraycopy(response, option + size, response, option, length - option - size);
+        writeShort(response, opt + 9, readShort(response, opt + 9) - size);
+        return length - size;
+    }
+
+    /**
+     * 在OPT记录的RDATA中查找选项
+     * @return 选项在报文中的偏移，没有时返回-1
+     */
+    private static int findOption(byte[] message, int opt, int code) {
+        int pos = opt + OPT_SIZE;
+        int end = pos + readShort(message, opt + 9);
+        while (pos + KEEPALIVE_OPTION_SIZE <= end) {
+            int optionEnd = pos + KEEPALIVE_OPTION_SIZE + readShort(message, pos + 2);
+            if (optionEnd > end) {
+                return -1;
+            }
+            if (readShort(message, pos) == code) {
+                return pos;
+            }
+            pos = optionEnd;
+        }
+        return -1;
+    }
+
+    /**
+     * 去掉响应中位于报文末尾的OPT记录（客户端没有使用EDNS时）
+     * @param response 响应所在的数组
+     * @param length 响应长度
+     * @return 新长度；OPT不是最后一条记录时不做修改
+     */
+    public static int stripOpt(byte[] response, int length) {
+        int opt = findOpt(response, length);
+        if (opt < 0 || skipRecord(response, opt, length) != length) {
+            return length;
+        }
+        writeShort(response, 10, readShort(response, 10) - 1);
+        return opt;
+    }
+
+    /**
+     * 把超过客户端限制的响应截断为只含问题部分并设置TC位，客户端将改用TCP重试
+     * 客户端使用EDNS时附带本服务器的OPT记录
+     * @param response 响应所在的数组
+     * @param length 响应长度
+     * @param withOpt 是否附带OPT
+     * @return 截断后的长度，报文格式错误时返回-1
+     */
+    public static int truncate(byte[] response, int length, boolean withOpt) {
+        if (length < HEADER_SIZE) {
+            return -1;
+        }
+        int pos = HEADER_SIZE;
+        int qdcount = readShort(response, 4);
+        for (int i = 0; i < qdcount && pos >= 0; i++) {
+            pos = skipName(response, pos, length);
+            pos = pos < 0 ? -1 : pos + 4;
+        }
+        if (pos < 0 || pos > length) {
+            return -1;
+        }
+        response[2] |= 0x02; // TC
+        writeShort(response, 6, 0);
+        writeShort(response, 8, 0);
+        writeShort(response, 10, 0);
+        if (withOpt && pos + OPT_SIZE <= response.length) {
+            response[pos] = 0;
+            writeShort(response, pos + 1, TYPE_OPT);
+            writeShort(response, pos + 3, PAYLOAD_SIZE);
+            writeShort(response, pos + 5, 0);
+            writeShort(response, pos + 7, 0);
+            writeShort(response, pos + 9, 0);
+            writeShort(response, 10, 1);
+            pos += OPT_SIZE;
+        }
+        return pos;
+    }
+
+    /**
+     * 跳过报文的所有部分
+     * @return 最后一条记录之后的偏移，越界时返回-1
+     */
+    private static int skipSections(byte[] message, int length) {
+        int qdcount = readShort(message, 4);
+        int rrcount = readShort(message, 6) + readShort(message, 8) + readShort(message, 10);
+        int pos = HEADER_SIZE;
+        for (int i = 0; i < qdcount && pos >= 0; i++) {
+            pos = skipName(message, pos, length);
+            pos = pos < 0 || pos + 4 > length ? -1 : pos + 4;
+        }
+        for (int i = 0; i < rrcount && pos >= 0; i++) {
+            pos = skipRecord(message, pos, length);
+        }
+        return pos;
+    }
+
+    /**
+     * 跳过一个资源记录
+     * @return 记录之后的偏移，越界时返回-1
+     */
+    private static int skipRecord(byte[] message, int pos, int length) {
+        pos = skipName(message, pos, length);
+        if (pos < 0 || pos + RECORD_FIXED_SIZE > length) {
+            return -1;
+        }
+        pos += RECORD_FIXED_SIZE + readShort(message, pos + 8);
+        return pos > length ? -1 : pos;
+    }
+
+    /**
+     * 跳过一个域名（可以以压缩指针结尾）
+     * @return 域名之后的偏移，越界时返回-1
+     */
+    private static int skipName(byte[] message, int pos, int length) {
+        while (pos < length) {
+            int len = message[pos] & 0xFF;
+            if (len == 0) {
+                return pos + 1;
+            }
+            if ((len & 0xC0) == 0xC0) {
+                return pos + 2 <= length ? pos + 2 : -1;
+            }
+            pos += len + 1;
+        }
+        return -1;
+    }
+
+    private static int readShort(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+
+    private static void writeShort(byte[] data, int pos, int value) {
+        data[pos] = (byte) (value >> 8);
+        data[pos + 1] = (byte) value;
+    }
+}
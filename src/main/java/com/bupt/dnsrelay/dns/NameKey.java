@@ -0,0 +1,345 @@
+package com.bupt.dnsrelay.dns;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.bupt.dnsrelay.utils.NameHash;
+
+/**
+ * 线格式域名键
+ * 直接在报文中的标签字节上做大小写折叠的哈希和比较，并打包查询类型和类别
+ *
+ * 查询路径上每个工作线程复用同一个实例（setFromWire只记录引用和偏移，不复制、不分配）；
+ * 需要长期保存时通过copy()得到持有小写字节副本的不可变键。
+ * 哈希值与NameHash对点分小写形式计算的结果一致，因此可以直接与编译镜像中的索引比较。
+ */
+public final class NameKey {
+
+    public static final int MAX_NAME_LENGTH = 255; // 线格式域名最大长度（含结尾0）
+    private static final int MAX_LABEL_SIZE = 63;
+
+    private byte[] data;       // 线格式名字所在的字节数组
+    private int offset;        // 名字起始偏移
+    private int length;        // 线格式长度，含结尾的0
+    private int qtype;
+    private int qclass;
+    private long nameHash;
+
+    /**
+     * 构造一个空的可复用键
+     */
+    public NameKey() {
+    }
+
+    private NameKey(byte[] data, int length, int qtype, int qclass, long nameHash) {
+        this.data = data;
+        this.offset = 0;
+        this.length = length;
+        this.qtype = qtype;
+        this.qclass = qclass;
+        this.nameHash = nameHash;
+    }
+
+    /**
+     * 从报文的问题部分设置键
+     * 名字必须是未压缩的（问题部分总是如此），之后紧跟QTYPE和QCLASS
+     * @param message 报文字节数组
+     * @param start 名字起始偏移（单个问题时为12）
+     * @param limit 报文有效长度
+     * @return 问题部分之后的偏移量，格式错误时返回-1
+     */
+    public int setFromWire(byte[] message, int start, int limit) {
+        long h = NameHash.OFFSET_BASIS;
+        int pos = start;
+        while (true) {
+            if (pos >= limit) {
+                return -1;
+            }
+            int len = message[pos] & 0xFF;
+            if (len == 0) {
+                pos++;
+                break;
+            }
+            if (len > MAX_LABEL_SIZE || pos + 1 + len > limit) {
+                return -1; // 压缩指针或越界
+            }
+            if (pos > start) {
+                h = NameHash.mix(h, '.');
+            }
+            for (int i = pos + 1; i <= pos + len; i++) {
+                h = NameHash.mix(h, NameHash.fold(message[i] & 0xFF));
+            }
+            pos += len + 1;
+            if (pos - start >= MAX_NAME_LENGTH) {
+                return -1;
+            }
+        }
+        if (pos + 4 > limit) {
+            return -1;
+        }
+        this.data = message;
+        this.offset = start;
+        this.length = pos - start;
+        this.nameHash = h;
+        this.qtype = ((message[pos] & 0xFF) << 8) | (message[pos + 1] & 0xFF);
+        this.qclass = ((message[pos + 2] & 0xFF) << 8) | (message[pos + 3] & 0xFF);
+        return pos + 4;
+    }
+
+    /**
+     * 由点分形式的域名创建持有小写字节的键（用于构建查询表，会分配内存）
+     * @param domain 域名
+     * @param qtype 查询类型，仅按名字匹配时为0
+     * @param qclass 查询类别，仅按名字匹配时为0
+     * @return 不可变键
+     */
+    public static NameKey fromDomain(String domain, int qtype, int qclass) {
+        byte[] ascii = domain.getBytes(StandardCharsets.ISO_8859_1);
+        int textLength = ascii.length;
+        if (textLength > 0 && ascii[textLength - 1] == '.') {
+            textLength--; // 忽略末尾的根标签点
+        }
+        byte[] wire = new byte[textLength == 0 ? 1 : textLength + 2];
+        int labelStart = 0;
+        int out = 0;
+        for (int i = 0; i <= textLength; i++) {
+            if (i == textLength || ascii[i] == '.') {
+                int len = i - labelStart;
+                if (len == 0 && textLength > 0) {
+                    throw new IllegalArgumentException("Empty label in domain: " + domain);
+                }
+                if (len > MAX_LABEL_SIZE) {
+                    throw new IllegalArgumentException("DNS label too long in domain: " + domain);
+                }
+                if (len > 0) {
+                    wire[out++] = (byte) len;
+                    for (int j = labelStart; j < i; j++) {
+                        wire[out++] = (byte) NameHash.fold(ascii[j] & 0xFF);
+                    }
+                }
+                labelStart = i + 1;
+            }
+        }
+        wire[out++] = 0;
+        if (out > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("DNS name too long: " + domain);
+        }
+        return new NameKey(wire, out, qtype, qclass, NameHash.hash(domain.substring(0, textLength)));
+    }
+
+    /**
+     * 复制为持有小写字节副本的不可变键
+     * @return 新键
+     */
+    public NameKey copy() {
+        byte[] owned = new byte[length];
+        for (int i = 0; i < length; i++) {
+            owned[i] = (byte) foldByte(data[offset + i]);
+        }
+        return new NameKey(owned, length, qtype, qclass, nameHash);
+    }
+
+    /**
+     * 忽略大小写比较两个键的名字部分
+     * @param other 另一个键
+     * @return 名字是否相同
+     */
+    public boolean nameEquals(NameKey other) {
+        if (other.length != length || other.nameHash != nameHash) {
+            return false;
+        }
+        return nameEquals(other.data, other.offset);
+    }
+
+    /**
+     * 与字节数组中的线格式名字比较（忽略大小写，标签长度字节不受折叠影响）
+     * @param buf 字节数组
+     * @param off 名字起始偏移
+     * @return 是否相同
+     */
+    public boolean nameEquals(byte[] buf, int off) {
+        if (off + length > buf.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (foldByte(data[offset + i]) != foldByte(buf[off + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 与缓冲区（例如内存映射的配置镜像）中的小写线格式名字比较
+     * @param buf 缓冲区，按绝对位置读取
+     * @param off 名字起始偏移
+     * @return 是否相同
+     */
+    public boolean nameEquals(ByteBuffer buf, int off) {
+        if (off + length > buf.limit()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (foldByte(data[offset + i]) != (buf.get(off + i) & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 标签长度字节（0..63）不在A-Z范围内，因此可以与标签内容一起统一折叠
+     */
+    private static int foldByte(byte b) {
+        return NameHash.fold(b & 0xFF);
+    }
+
+    /**
+     * 名字部分的哈希值（忽略大小写）
+     */
+    public long nameHash() {
+        return nameHash;
+    }
+
+    /**
+     * 打包了查询类型和类别的哈希值
+     */
+    public long hash() {
+        return hash(qtype, qclass);
+    }
+
+    /**
+     * 同一名字配上另一个类型和类别时的哈希值（例如沿CNAME链查找时）
+     * @param qtype 查询类型
+     * @param qclass 查询类别
+     * @return 与该类型和类别的键的hash()相同
+     */
+    public long hash(int qtype, int qclass) {
+        long h = nameHash;
+        h = NameHash.mix(h, qtype >>> 8);
+        h = NameHash.mix(h, qtype);
+        h = NameHash.mix(h, qclass >>> 8);
+        h = NameHash.mix(h, qclass);
+        return h;
+    }
+
+    public int getQType() {
+        return qtype;
+    }
+
+    public int getQClass() {
+        return qclass;
+    }
+
+    /**
+     * 线格式名字长度（含结尾的0）
+     */
+    public int getWireLength() {
+        return length;
+    }
+
+    /**
+     * 将小写的线格式名字写入字节数组
+     * @param dest 目标数组
+     * @param destOffset 目标偏移
+     */
+    public void copyNameTo(byte[] dest, int destOffset) {
+        for (int i = 0; i < length; i++) {
+            dest[destOffset + i] = (byte) foldByte(data[offset + i]);
+        }
+    }
+
+    /**
+     * 线格式名字中的一个字节（字母折叠为小写，长度字节原样返回）
+     * @param index 相对名字起始的偏移，在[0, getWireLength())内
+     * @return 字节值
+     */
+    public int foldedByteAt(int index) {
+        return foldByte(data[offset + index]);
+    }
+
+    /**
+     * 记录每个标签（长度字节）相对名字起始的偏移，从左到右排列，不含结尾的根标签
+     * @param out 输出数组，长度至少为127（线格式名字最多127个标签）
+     * @return 标签数量
+     */
+    public int labelOffsets(int[] out) {
+        int count = 0;
+        int pos = 0;
+        int len = data[offset] & 0xFF;
+        while (len != 0) {
+            out[count++] = pos;
+            pos += len + 1;
+            len = data[offset + pos] & 0xFF;
+        }
+        return count;
+    }
+
+    /**
+     * 忽略大小写比较名字中的一个标签
+     * @param labelOffset labelOffsets给出的标签偏移
+     * @param label 小写的标签内容（不含长度字节）
+     * @return 是否相同
+     */
+    public boolean labelEquals(int labelOffset, byte[] label) {
+        int pos = offset + labelOffset;
+        if ((data[pos] & 0xFF) != label.length) {
+            return false;
+        }
+        for (int i = 0; i < label.length; i++) {
+            if (foldByte(data[pos + 1 + i]) != label[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 转换为小写点分形式（仅用于日志和持久化，会分配内存）
+     * @return 域名字符串
+     */
+    public String toDomainString() {
+        return toDomainString(data, offset);
+    }
+
+    /**
+     * 将字节数组中的线格式名字转换为小写点分形式（仅用于日志和持久化，会分配内存）
+     * @param data 字节数组
+     * @param offset 名字起始偏移
+     * @return 域名字符串
+     */
+    public static String toDomainString(byte[] data, int offset) {
+        StringBuilder sb = new StringBuilder();
+        int pos = offset;
+        int len = data[pos] & 0xFF;
+        while (len != 0) {
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            for (int i = pos + 1; i <= pos + len; i++) {
+                sb.append((char) foldByte(data[i]));
+            }
+            pos += len + 1;
+            len = data[pos] & 0xFF;
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof NameKey)) return false;
+        NameKey that = (NameKey) obj;
+        return qtype == that.qtype && qclass == that.qclass && nameEquals(that);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (nameHash ^ (nameHash >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return toDomainString() + " type=" + qtype + " class=" + qclass;
+    }
+}
@@ -0,0 +1,76 @@
+package com.bupt.dnsrelay.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 报文缓冲区池
+ * 请求生命周期内显式租用（lease）和归还（release）固定大小的堆缓冲区，稳态下每个查询不再分配字节数组。
+ * 池空时临时分配新缓冲区，池满时丢弃归还的缓冲区，因此租用永远不会阻塞。
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final ByteBuffer[] free;  // 空闲缓冲区栈
+    private int count;                // 栈中空闲缓冲区数量
+    private long allocations;         // 累计分配次数（用于观察池是否够大）
+
+    /**
+     * 构造函数
+     * @param bufferSize 每个缓冲区的字节数
+     * @param capacity 池中最多保留的空闲缓冲区数量
+     * @param preallocate 预先分配的缓冲区数量
+     */
+    public BufferPool(int bufferSize, int capacity, int preallocate) {
+        this.bufferSize = bufferSize;
+        this.free = new ByteBuffer[capacity];
+        for (int i = 0; i < Math.min(preallocate, capacity); i++) {
+            free[count++] = ByteBuffer.allocate(bufferSize);
+        }
+    }
+
+    /**
+     * 租用一个缓冲区，返回时position为0、limit为容量
+     * @return 缓冲区，使用完毕后必须调用release归还
+     */
+    public ByteBuffer lease() {
+        synchronized (free) {
+            if (count > 0) {
+                ByteBuffer buffer = free[--count];
+                free[count] = null;
+                return buffer;
+            }
+            allocations++;
+        }
+        return ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * 归还缓冲区，归还后调用方不得再访问它
+     * @param buffer 租用得到的缓冲区，为null时忽略
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize) {
+            return;
+        }
+        buffer.clear();
+        synchronized (free) {
+            if (count < free.length) {
+                free[count++] = buffer;
+            }
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * 缓冲区池统计，allocations为池空时额外分配的次数
+     */
+    public String describe() {
+        synchronized (free) {
+            return String.format("bufferSize=%d free=%d/%d allocations=%d", bufferSize, count, free.length,
+                allocations);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.bupt.dnsrelay.network;
+
+import java.util.function.LongSupplier;
+
+/**
+ * 上游熔断器
+ * <ul>
+ *   <li>CLOSED：正常转发，连续失败达到阈值后进入OPEN</li>
+ *   <li>OPEN：不再转发，查询立即失败，不再占用工作线程等待超时；冷却时间过后进入HALF_OPEN</li>
+ *   <li>HALF_OPEN：只放行一个查询作为探测，成功则回到CLOSED，失败则重新进入OPEN</li>
+ * </ul>
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final int FAILURE_THRESHOLD = 5;      // 连续失败多少次后熔断
+    private static final long OPEN_COOLDOWN_MS = 5000;   // 熔断后多久发送一次探测
+
+    private final String upstream;
+    private final LongSupplier clock;  // 当前时间（毫秒）
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean probeInFlight;
+    private long rejected;
+
+    /**
+     * 构造函数
+     * @param upstream 上游服务器地址（用于日志）
+     */
+    public CircuitBreaker(String upstream) {
+        this(upstream, System::currentTimeMillis);
+    }
+
+    /**
+     * 使用指定时钟的构造函数（测试用）
+     * @param upstream 上游服务器地址（用于日志）
+     * @param clock 返回当前时间的毫秒数
+     */
+    CircuitBreaker(String upstream, LongSupplier clock) {
+        this.upstream = upstream;
+        this.clock = clock;
+    }
+
+    /**
+     * 判断本次查询是否可以转发
+     * 返回true后必须调用onSuccess、onFailure或abandon之一报告结果
+     * @return 是否放行
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (clock.getAsLong() - openedAt < OPEN_COOLDOWN_MS) {
+                    rejected++;
+                    return false;
+                }
+                transition(State.HALF_OPEN);
+                probeInFlight = true;
+                return true;
+            default:
+                if (probeInFlight) {
+                    rejected++;
+                    return false; // 探测结果出来之前其他查询继续快速失败
+                }
+                probeInFlight = true;
+                return true;
+        }
+    }
+
+    /**
+     * 报告转发成功
+     */
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        probeInFlight = false;
+        if (state != State.CLOSED) {
+            transition(State.CLOSED);
+        }
+    }
+
+    /**
+     * 报告转发失败（超时或网络错误）
+     */
+    public synchronized void onFailure() {
+        probeInFlight = false;
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD)) {
+            openedAt = clock.getAsLong();
+            transition(State.OPEN);
+        }
+    }
+
+    /**
+     * 放行后由于其他原因（例如并发限制）没有真正转发时调用，不影响熔断状态
+     */
+    public synchronized void abandon() {
+        probeInFlight = false;
+    }
+
+    private void transition(State next) {
+        System.out.printf("[CIRCUIT] %s %s -> %s%n", upstream, state, next);
+        state = next;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return upstream + " state=" + state + " rejected=" + rejected;
+    }
+}
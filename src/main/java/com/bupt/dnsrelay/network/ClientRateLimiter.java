@@ -0,0 +1,178 @@
+package com.bupt.dnsrelay.network;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按客户端限速（令牌桶）
+ * 每个客户端（IPv4按单个地址，IPv6按/64前缀）一个令牌桶，按固定速率补充、容量为突发上限，
+ * 令牌耗尽的查询在接收线程上直接丢弃或回复TC，不解析、不进入队列，避免一个客户端占满工作线程。
+ *
+ * 令牌桶以"理论到达时间"表示（GCRA）：每个桶只存一个时间戳，放行一个查询就把它推后一个发送间隔，
+ * 时间戳超前当前时间超过突发容许量时说明令牌已耗尽。
+ *
+ * 桶保存在固定大小的表中，内存不随客户端数量增长：
+ * <ul>
+ *   <li>表分为若干条带，每个条带一把锁，不同客户端的查询很少争用同一把锁；统计也按条带累计</li>
+ *   <li>每个客户端只能放在所属组的几个位置之一，组满时淘汰时间戳最早的桶，即最久没有查询的客户端（近似LRU）；
+ *       令牌已满的桶被淘汰后重新建立，结果完全相同</li>
+ * </ul>
+ */
+public class ClientRateLimiter {
+
+    /**
+     * 超过速率的查询的处理方式
+     */
+    public enum Action {
+        TC,    // 回复只含问题部分的TC响应，真实客户端会改用TCP（TCP查询不限速）
+        DROP   // 直接丢弃
+    }
+
+    public static final int DEFAULT_CAPACITY = 16384;  // 同时跟踪的客户端数
+    private static final int STRIPES = 64;
+    private static final int WAYS = 8;                  // 每个组的位置数
+    private static final int IPV6_PREFIX_BYTES = 8;     // IPv6按/64前缀计数
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final int setMask;
+    private final long intervalNanos;    // 补充一个令牌的时间
+    private final long toleranceNanos;   // 突发容许量
+    private final int rate;
+    private final int burst;
+    private final Action action;
+
+    /**
+     * 构造函数
+     * @param rate 每个客户端每秒允许的查询数
+     * @param burst 允许的突发查询数
+     * @param capacity 同时跟踪的客户端数（向上取整）
+     * @param action 超过速率时的处理方式
+     */
+    public ClientRateLimiter(int rate, int burst, int capacity, Action action) {
+        if (rate <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+        int sets = 1;
+        while (sets * STRIPES * WAYS < capacity) {
+            sets <<= 1;
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(sets * WAYS);
+        }
+        this.setMask = sets - 1;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        this.toleranceNanos = intervalNanos * (burst - 1);
+        this.rate = rate;
+        this.burst = burst;
+        this.action = action;
+    }
+
+    /**
+     * 为客户端取一个令牌
+     * @param client 客户端地址
+     * @param nowNanos 当前时间（System.nanoTime，通常是数据包的到达时间）
+     * @return 是否放行
+     */
+    public boolean tryAcquire(InetAddress client, long nowNanos) {
+        long key = keyOf(client.getAddress());
+        long hash = mix(key);
+        Stripe stripe = stripes[(int) hash & (STRIPES - 1)];
+        int base = ((int) (hash >>> 32) & setMask) * WAYS;
+        synchronized (stripe) {
+            int victim = base;
+            for (int i = base; i < base + WAYS; i++) {
+                if (!stripe.used[i]) {
+                    victim = i;
+                    break;
+                }
+                if (stripe.keys[i] == key) {
+                    long tat = stripe.tats[i] - nowNanos > 0 ? stripe.tats[i] : nowNanos;
+                    if (tat - nowNanos > toleranceNanos) {
+                        stripe.limited++;
+                        return false;
+                    }
+                    stripe.tats[i] = tat + intervalNanos;
+                    return true;
+                }
+                if (stripe.tats[i] - stripe.tats[victim] < 0) {
+                    victim = i;
+                }
+            }
+            if (stripe.used[victim]) {
+                stripe.evicted++;
+            } else {
+                stripe.used[victim] = true;
+                stripe.tracked++;
+            }
+            stripe.keys[victim] = key;
+            stripe.tats[victim] = nowNanos + intervalNanos;
+            return true;
+        }
+    }
+
+    /**
+     * 客户端的计数键：IPv4为地址本身（第32位置1以区别于IPv6），IPv6为前64位
+     */
+    private static long keyOf(byte[] address) {
+        long key = 0;
+        if (address.length == 4) {
+            for (byte b : address) {
+                key = key << 8 | (b & 0xFF);
+            }
+            return key | 1L << 32;
+        }
+        for (int i = 0; i < IPV6_PREFIX_BYTES; i++) {
+            key = key << 8 | (address[i] & 0xFF);
+        }
+        return key;
+    }
+
+    /**
+     * 打散键的各位，相邻地址落到不同的条带和组
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public String describe() {
+        long tracked = 0;
+        long limited = 0;
+        long evicted = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                tracked += stripe.tracked;
+                limited += stripe.limited;
+                evicted += stripe.evicted;
+            }
+        }
+        return String.format("rate=%d/s burst=%d action=%s clients=%d limited=%d evicted=%d",
+            rate, burst, action, tracked, limited, evicted);
+    }
+
+    /**
+     * 表的一个条带：由同一把锁保护的若干组
+     */
+    private static final class Stripe {
+        final long[] keys;
+        final long[] tats;   // 理论到达时间
+        final boolean[] used;
+        long tracked;
+        long limited;
+        long evicted;
+
+        Stripe(int slots) {
+            keys = new long[slots];
+            tats = new long[slots];
+            used = new boolean[slots];
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package com.bupt.dnsrelay.network;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bupt.dnsrelay.dns.EDNS;
+
+/**
+ * 到一个上游服务器的流式连接池（TCP，或由套接字工厂提供的TLS）
+ * <ul>
+ *   <li>保持少量长连接，查询按RFC 7766在同一连接上流水线发送，不再为每个查询建立连接</li>
+ *   <li>发送前把事务ID改写为连接内唯一的ID，响应由连接的读线程按ID交给等待的查询，并恢复原来的ID；
+ *       问题部分与查询不一致的响应被丢弃</li>
+ *   <li>上游关闭空闲连接或连接出错时，连接上未完成的查询立即失败，下一个查询自动重新建立连接；
+ *       查询在尚未收到响应时遇到连接关闭，剩余时限内在新连接上重试一次</li>
+ *   <li>查询带edns-tcp-keepalive选项（RFC 7828），上游在响应中给出它保持空闲连接的时间；
+ *       空闲超过该时间（减去余量）或本端时限的连接由本端主动关闭，避免在上游即将关闭的连接上发送查询，
+ *       上游给出0时连接在未完成的查询结束后即关闭。响应中的这个选项在交给调用方之前去掉</li>
+ * </ul>
+ * 建立连接的方式由Connector决定：普通TCP，或在TCP之上完成TLS握手（DNS over TLS）。
+ */
+public class StreamUpstreamPool {
+
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final int DNS_HEADER_SIZE = 12;
+    private static final long KEEPALIVE_MARGIN_NANOS = TimeUnit.MILLISECONDS.toNanos(500); // 早于上游超时关闭的余量
+
+    private final InetSocketAddress server;
+    private final String serverName;
+    private final Connector connector;
+    private final long idleTimeoutNanos;   // 本端的空闲时限，-1表示不主动关闭
+    private final Connection[] connections;
+    private final Object connectLock = new Object();
+    private final int debugLevel;
+
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * 构造函数
+     * @param server 上游服务器地址
+     * @param serverName 上游服务器名称（用于日志）
+     * @param connector 建立连接的方式
+     * @param size 最多保持的连接数
+     * @param idleTimeoutMillis 连接空闲多久后主动关闭，0表示不主动关闭
+     * @param debugLevel 调试级别
+     */
+    public StreamUpstreamPool(InetSocketAddress server, String serverName, Connector connector, int size,
+            long idleTimeoutMillis, int debugLevel) {
+        this.server = server;
+        this.serverName = serverName;
+        this.connector = connector;
+        this.idleTimeoutNanos = idleTimeoutMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis) : -1;
+        this.connections = new Connection[size];
+        this.debugLevel = debugLevel;
+    }
+
+    /**
+     * 发送查询并等待完整响应
+     * @param query 查询报文所在的数组
+     * @param queryLength 查询长度
+     * @param timeoutMillis 最长等待时间（含建立连接）
+     * @return 响应报文（事务ID已恢复为查询中的ID），超时或出错时返回null
+     */
+    public byte[] exchange(byte[] query, int queryLength, long timeoutMillis) {
+        if (queryLength < DNS_HEADER_SIZE || timeoutMillis <= 0) {
+            return null;
+        }
+        queries.incrementAndGet();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                break;
+            }
+            Connection connection;
+            try {
+                connection = acquire((int) Math.min(remaining, CONNECT_TIMEOUT_MS));
+            } catch (IOException e) {
+                System.err.println("Error connecting to upstream DNS " + serverName + ": " + e.getMessage());
+                break;
+            }
+            Pending pending = connection.send(query, queryLength);
+            if (pending == null) {
+                continue; // 连接在发送时已经关闭，换新连接重试
+            }
+            byte[] response = pending.await(deadline);
+            if (response != null && !UpstreamGroup.matchesQuestion(query, queryLength, response, response.length)) {
+                System.err.println("Discarded response with mismatched question from upstream DNS: " + serverName);
+                break;
+            }
+            if (response != null) {
+                response[0] = query[0];
+                response[1] = query[1];
+                return response;
+            }
+            if (!pending.connectionLost) {
+                connection.cancel(pending);
+                System.err.println("Timeout waiting for stream response from upstream DNS: " + serverName);
+                break;
+            }
+        }
+        failures.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * 选择未完成查询最少的可用连接，没有可用连接或全部忙碌时在空槽上新建连接
+     * 同一时刻只有一个线程建立连接，其他线程等待后直接复用新连接
+     */
+    private Connection acquire(int connectTimeout) throws IOException {
+        Connection connection = select();
+        if (connection != null) {
+            return connection;
+        }
+        synchronized (connectLock) {
+            connection = select();
+            if (connection != null) {
+                return connection;
+            }
+            connection = new Connection(connect(connectTimeout));
+            synchronized (connections) {
+                for (int i = 0; i < connections.length; i++) {
+                    if (connections[i] == null || connections[i].closed) {
+                        connections[i] = connection;
+                        break;
+                    }
+                }
+            }
+            connection.start();
+            return connection;
+        }
+    }
+
+    /**
+     * 已有连接空闲时直接复用；全部忙碌但还有空槽时返回null，由调用方增开连接
+     */
+    private Connection select() {
+        synchronized (connections) {
+            Connection best = null;
+            boolean hasFreeSlot = false;
+            long now = System.nanoTime();
+            for (Connection connection : connections) {
+                long idleLimit = connection == null ? -1 : connection.idleLimitNanos();
+                if (connection != null && !connection.closed && idleLimit >= 0
+                        && connection.pending.isEmpty() && now - connection.lastUsed > idleLimit) {
+                    if (debugLevel >= 1) {
+                        System.out.printf("[UPSTREAM] closing idle connection to %s%n", serverName);
+                    }
+                    connection.close();
+                }
+                if (connection == null || connection.closed) {
+                    hasFreeSlot = true;
+                } else if (best == null || connection.pending.size() < best.pending.size()) {
+                    best = connection;
+                }
+            }
+            return best != null && (best.pending.isEmpty() || !hasFreeSlot) ? best : null;
+        }
+    }
+
+    private Socket connect(int connectTimeout) throws IOException {
+        Socket socket = connector.connect(server, connectTimeout);
+        connects.incrementAndGet();
+        if (debugLevel >= 1) {
+            System.out.printf("[UPSTREAM] connected to %s%n", serverName);
+        }
+        return socket;
+    }
+
+    /**
+     * 关闭所有连接，连接上未完成的查询立即失败
+     */
+    public void close() {
+        synchronized (connections) {
+            for (int i = 0; i < connections.length; i++) {
+                if (connections[i] != null) {
+                    connections[i].close();
+                    connections[i] = null;
+                }
+            }
+        }
+    }
+
+    public Connector getConnector() {
+        return connector;
+    }
+
+    public long getQueries() {
+        return queries.get();
+    }
+
+    public String describe() {
+        int open = 0;
+        synchronized (connections) {
+            for (Connection connection : connections) {
+                if (connection != null && !connection.closed) {
+                    open++;
+                }
+            }
+        }
+        return String.format("%s queries=%d connects=%d open=%d failures=%d", serverName, queries.get(),
+            connects.get(), open, failures.get());
+    }
+
+    /**
+     * 建立到上游的流式连接
+     */
+    public interface Connector {
+        /**
+         * 连接上游，返回可以直接读写DNS报文的套接字
+         * @param server 上游地址
+         * @param timeoutMillis 最长等待时间（含握手）
+         * @return 已连接的套接字
+         * @throws IOException 连接或握手失败
+         */
+        Socket connect(InetSocketAddress server, int timeoutMillis) throws IOException;
+
+        /**
+         * 普通TCP连接
+         */
+        Connector TCP = (server, timeoutMillis) -> {
+            Socket socket = new Socket();
+            try {
+                socket.connect(server, timeoutMillis);
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * 一个等待响应的查询
+     */
+    private static final class Pending {
+        private byte[] response;
+        private boolean done;
+        private boolean connectionLost;
+
+        synchronized void complete(byte[] response) {
+            this.response = response;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized void fail() {
+            this.connectionLost = true;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized byte[] await(long deadlineNanos) {
+            while (!done) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                if (remaining <= 0) {
+                    return null;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return response;
+        }
+    }
+
+    /**
+     * 一个长连接：任意线程发送，专用读线程接收并按ID分发
+     */
+    private final class Connection implements Runnable {
+        private final Socket socket;
+        private final OutputStream out;
+        private final DataInputStream in;
+        private final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<>();
+        private final AtomicInteger nextId = new AtomicInteger(ThreadLocalRandom.current().nextInt(0x10000));
+        private volatile boolean closed;
+        private volatile long lastUsed = System.nanoTime();
+        private volatile long keepaliveNanos = -1; // 上游在edns-tcp-keepalive中给出的超时，-1表示未给出
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            this.in = new DataInputStream(socket.getInputStream());
+        }
+
+        void start() {
+            Thread reader = new Thread(this, "upstream-stream-" + serverName);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * 空闲多久后关闭：上游给出的超时减去余量与本端时限中较小的一个，-1表示不主动关闭
+         */
+        long idleLimitNanos() {
+            long server = keepaliveNanos;
+            if (server < 0) {
+                return idleTimeoutNanos;
+            }
+            long limit = Math.max(0, server - KEEPALIVE_MARGIN_NANOS);
+            return idleTimeoutNanos >= 0 ? Math.min(idleTimeoutNanos, limit) : limit;
+        }
+
+        /**
+         * 分配连接内唯一的ID并发送查询
+         * @return 等待对象，连接已关闭时返回null
+         */
+        Pending send(byte[] query, int queryLength) {
+            Pending waiter = new Pending();
+            int id;
+            do {
+                id = nextId.getAndIncrement() & 0xFFFF;
+            } while (pending.putIfAbsent(id, waiter) != null);
+            byte[] message = Arrays.copyOf(query, queryLength + EDNS.KEEPALIVE_OPTION_SIZE);
+            int messageLength = EDNS.addKeepalive(message, queryLength);
+            byte[] framed = new byte[messageLength + 2];
+            framed[0] = (byte) (messageLength >> 8);
+            framed[1] = (byte) messageLength;
+            System.arraycopy(message, 0, framed, 2, messageLength);
+            framed[2] = (byte) (id >> 8);
+            framed[3] = (byte) id;
+            try {
+                synchronized (out) {
+                    out.write(framed);
+                    out.flush();
+                }
+                lastUsed = System.nanoTime();
+            } catch (IOException e) {
+                pending.remove(id);
+                close();
+                return null;
+            }
+            if (closed) {
+                // 读线程可能在登记之后、发送之前关闭了连接
+                pending.remove(id);
+                return null;
+            }
+            return waiter;
+        }
+
+        void cancel(Pending waiter) {
+            pending.values().remove(waiter);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    int length = in.readUnsignedShort();
+                    byte[] response = new byte[length];
+                    in.readFully(response);
+                    if (length < DNS_HEADER_SIZE) {
+                        continue;
+                    }
+                    int id = ((response[0] & 0xFF) << 8) | (response[1] & 0xFF);
+                    lastUsed = System.nanoTime();
+                    int timeout = EDNS.keepaliveTimeout(response, length);
+                    if (timeout >= 0) {
+                        updateKeepalive(timeout);
+                        response = Arrays.copyOf(response, EDNS.removeKeepalive(response, length));
+                    }
+                    Pending waiter = pending.remove(id);
+                    if (waiter != null) {
+                        waiter.complete(response);
+                    }
+                }
+            } catch (EOFException e) {
+                // 上游关闭了连接（通常是空闲超时），下一个查询会重新连接
+                if (debugLevel >= 1) {
+                    System.out.printf("[UPSTREAM] %s closed the connection%n", serverName);
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Error reading from upstream DNS " + serverName + ": " + e.getMessage());
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private void updateKeepalive(int timeoutMillis) {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            if (nanos != keepaliveNanos) {
+                keepaliveNanos = nanos;
+                if (debugLevel >= 1) {
+                    System.out.printf("[UPSTREAM] %s keeps idle connections for %dms%n", serverName, timeoutMillis);
+                }
+            }
+        }
+
+        void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 关闭时的错误可以忽略
+            }
+            for (Pending waiter : pending.values()) {
+                waiter.fail();
+            }
+            pending.clear();
+        }
+    }
+}
@@ -0,0 +1,472 @@
+package com.bupt.dnsrelay.network;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.bupt.dnsrelay.utils.DebugUtils;
+
+/**
+ * TCP服务器类（RFC 7766）
+ * 单个选择器线程以非阻塞方式服务所有客户端连接，连接不占用线程：
+ * <ul>
+ *   <li>每个报文前带2字节长度，一次读取可以拆出多个报文，也可以跨多次读取拼出一个报文</li>
+ *   <li>同一连接上的查询各自进入处理流程，响应谁先完成谁先发送（乱序响应），由客户端按事务ID匹配</li>
+ *   <li>每个连接的未完成查询数有上限，达到上限时立即停止拆分报文（本次读到的剩余字节留在连接中）并暂停读取，
+ *       由TCP流量控制向客户端施加背压；有查询完成后先处理留下的字节再恢复读取</li>
+ *   <li>没有未完成查询且空闲超过时限的连接由服务器关闭</li>
+ * </ul>
+ * 工作线程发送响应时只把带长度前缀的报文放入连接的发送队列并唤醒选择器，实际写入都在选择器线程完成。
+ */
+public class TCPServer implements Runnable {
+
+    private static final int IDLE_TIMEOUT_MS = 10000;     // 空闲连接的关闭时限
+    private static final int MAX_CONNECTIONS = 4096;      // 同时保持的连接数上限
+    private static final int MAX_PIPELINED = 64;          // 每个连接同时处理的查询数上限
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int SELECT_TIMEOUT_MS = 1000;
+    private static final int MIN_MESSAGE_SIZE = 12;       // DNS报文头长度
+
+    private int port;                    // 监听端口，为0时绑定后取得系统分配的端口
+    private final int debugLevel;
+    private final BufferPool bufferPool;
+    private final Consumer<UDPServer.DNSPacket> handler;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE); // 只由选择器线程使用
+    private final Queue<TCPConnection> serviceQueue = new ConcurrentLinkedQueue<>();
+    private final List<TCPConnection> connections = new ArrayList<>();
+    private volatile long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS);
+    private volatile long queryBudgetNanos = TimeUnit.MILLISECONDS.toNanos(UDPServer.DEFAULT_QUERY_BUDGET_MS);
+    private volatile boolean isRunning;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+
+    private long accepted;
+    private long refused;
+    private long idleClosed;
+    private final AtomicLong queries = new AtomicLong();
+
+    /**
+     * 构造函数
+     * @param port 监听端口，0表示由系统分配
+     * @param debugLevel 调试级别
+     * @param bufferPool 查询缓冲区池（与UDP共用）
+     * @param handler 收到完整查询后的处理入口，在选择器线程上调用，不应阻塞
+     */
+    public TCPServer(int port, int debugLevel, BufferPool bufferPool, Consumer<UDPServer.DNSPacket> handler) {
+        this.port = port;
+        this.debugLevel = debugLevel;
+        this.bufferPool = bufferPool;
+        this.handler = handler;
+    }
+
+    /**
+     * 设置每个查询的处理时限
+     * @param budgetMillis 从收到查询开始计算的毫秒数
+     */
+    public void setQueryBudget(long budgetMillis) {
+        this.queryBudgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    }
+
+    /**
+     * 设置空闲连接的关闭时限（测试用）
+     * @param timeoutMillis 毫秒数
+     */
+    void setIdleTimeout(long timeoutMillis) {
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * 在指定端口上监听并启动选择器线程
+     * @throws IOException 网络错误
+     */
+    public void start() throws IOException {
+        if (isRunning) {
+            throw new IllegalStateException("Server is already running");
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port), 256);
+        } catch (BindException e) {
+            serverChannel.close();
+            selector.close();
+            throw new IOException("Failed to bind TCP port " + port, e);
+        }
+        port = serverChannel.socket().getLocalPort();
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        isRunning = true;
+        selectorThread = new Thread(this, "tcp-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        System.out.println("DNS Relay Server listening on TCP port " + port);
+    }
+
+    /**
+     * 停止选择器线程并关闭所有连接
+     */
+    public void stop() {
+        if (!isRunning) {
+            return;
+        }
+        isRunning = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        long lastSweep = System.nanoTime();
+        try {
+            while (isRunning) {
+                selector.select(SELECT_TIMEOUT_MS);
+                TCPConnection pending;
+                while ((pending = serviceQueue.poll()) != null) {
+                    pending.service();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        TCPConnection connection = (TCPConnection) key.attachment();
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                }
+                long now = System.nanoTime();
+                if (now - lastSweep > TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT_MS)) {
+                    sweepIdle(now);
+                    lastSweep = now;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error in TCP selector: " + e.getMessage());
+        } finally {
+            for (TCPConnection connection : new ArrayList<>(connections)) {
+                connection.close();
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                // 关闭时的错误可以忽略
+            }
+            System.out.println("[TCP] " + describe());
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (connections.size() >= MAX_CONNECTIONS) {
+                refused++;
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            TCPConnection connection = new TCPConnection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+            accepted++;
+            DebugUtils.debugf(debugLevel, "[TCP] accepted %s (%d open)%n", connection.clientInfo, connections.size());
+        }
+    }
+
+    /**
+     * 关闭空闲超时的连接；仍有未完成查询或待发送响应的连接不算空闲
+     */
+    private void sweepIdle(long now) {
+        long idleNanos = idleTimeoutNanos;
+        for (int i = connections.size() - 1; i >= 0; i--) {
+            TCPConnection connection = connections.get(i);
+            if (connection.isIdle() && now - connection.lastActivity > idleNanos) {
+                idleClosed++;
+                DebugUtils.debugf(debugLevel, "[TCP] closing idle connection %s%n", connection.clientInfo);
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * 获取监听端口（start之后为实际绑定的端口）
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * 连接统计
+     */
+    public String describe() {
+        return String.format("connections accepted=%d open=%d refused=%d idleClosed=%d queries=%d",
+            accepted, connections.size(), refused, idleClosed, queries.get());
+    }
+
+    /**
+     * 一个客户端连接
+     * 读取和写入只在选择器线程进行；send和queryFinished可以在任意线程调用
+     */
+    public final class TCPConnection {
+        private final SocketChannel channel;
+        private final String clientInfo;
+        private SelectionKey key;
+        private final ByteBuffer lengthPrefix = ByteBuffer.allocate(2);
+        private ByteBuffer message;          // 正在拼装的报文，为null时正在读长度前缀
+        private ByteBuffer unread;           // 达到查询数上限时尚未拆分的字节，为null时没有
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        private ByteBuffer writing;          // 正在写出的响应
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicBoolean serviceRequested = new AtomicBoolean();
+        private volatile boolean inputClosed; // 客户端已半关闭，发完剩余响应后关闭
+        private volatile boolean readPaused;
+        private volatile boolean closed;
+        private long lastActivity = System.nanoTime();
+
+        private TCPConnection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+            this.clientInfo = remote.getAddress().getHostAddress() + ":" + remote.getPort();
+        }
+
+        /**
+         * 读取可用数据并拆出完整的报文
+         */
+        private void read() {
+            readBuffer.clear();
+            int n;
+            try {
+                n = channel.read(readBuffer);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (n < 0) {
+                inputClosed = true;
+                updateInterest();
+                closeIfDone();
+                return;
+            }
+            lastActivity = System.nanoTime();
+            readBuffer.flip();
+            parse(readBuffer);
+            if (readBuffer.hasRemaining() && !closed) {
+                // 达到查询数上限，剩余字节复制出来（readBuffer由所有连接共用），恢复时再拆分
+                unread = ByteBuffer.allocate(readBuffer.remaining());
+                unread.put(readBuffer).flip();
+            }
+            updateInterest();
+        }
+
+        /**
+         * 从缓冲区中拆出完整的报文，未完成查询数达到上限时立即停止，剩余字节留在缓冲区中
+         * @param source 待拆分的字节
+         */
+        private void parse(ByteBuffer source) {
+            while (source.hasRemaining() && !closed && !readPaused) {
+                if (message == null) {
+                    lengthPrefix.put(source.get());
+                    if (lengthPrefix.hasRemaining()) {
+                        continue;
+                    }
+                    int length = lengthPrefix.getShort(0) & 0xFFFF;
+                    lengthPrefix.clear();
+                    if (length < MIN_MESSAGE_SIZE) {
+                        close(); // 不可能是合法的DNS报文，流已无法同步
+                        return;
+                    }
+                    ByteBuffer buffer = bufferPool.lease();
+                    if (buffer.capacity() < length) {
+                        bufferPool.release(buffer);
+                        buffer = ByteBuffer.allocate(length);
+                    }
+                    buffer.limit(length);
+                    message = buffer;
+                }
+                int chunk = Math.min(message.remaining(), source.remaining());
+                source.get(message.array(), message.position(), chunk);
+                message.position(message.position() + chunk);
+                if (!message.hasRemaining()) {
+                    dispatch(message);
+                    message = null;
+                }
+            }
+        }
+
+        private void dispatch(ByteBuffer buffer) {
+            long arrival = System.nanoTime();
+            int length = buffer.limit();
+            buffer.clear();
+            inFlight.incrementAndGet();
+            queries.incrementAndGet();
+            InetSocketAddress remote = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+            DebugUtils.printPacketInfo(debugLevel, "Received TCP", length, remote.getAddress().getHostAddress(),
+                remote.getPort());
+            handler.accept(new UDPServer.DNSPacket(buffer, length, remote.getAddress(), remote.getPort(),
+                bufferPool, arrival, arrival + queryBudgetNanos, this));
+            if (inFlight.get() >= MAX_PIPELINED) {
+                readPaused = true;
+                if (inFlight.get() < MAX_PIPELINED) {
+                    requestService(); // 暂停前已有查询完成，queryFinished可能没有看到readPaused
+                }
+            }
+        }
+
+        /**
+         * 发送一个响应（任意线程）
+         * @param data 响应数据
+         * @param length 响应长度
+         */
+        public void send(byte[] data, int length) {
+            if (closed) {
+                return;
+            }
+            ByteBuffer framed = ByteBuffer.allocate(length + 2);
+            framed.putShort((short) length);
+            framed.put(data, 0, length);
+            framed.flip();
+            writeQueue.add(framed);
+            requestService();
+        }
+
+        /**
+         * 一个查询处理结束（无论是否发送了响应），由DNSPacket.release调用
+         */
+        void queryFinished() {
+            inFlight.decrementAndGet();
+            if (readPaused || inputClosed) {
+                requestService();
+            }
+        }
+
+        private void requestService() {
+            if (serviceRequested.compareAndSet(false, true)) {
+                serviceQueue.add(this);
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * 选择器线程上处理其他线程的请求：写出响应、恢复读取、完成半关闭
+         */
+        private void service() {
+            serviceRequested.set(false);
+            if (closed) {
+                return;
+            }
+            if (readPaused && inFlight.get() < MAX_PIPELINED) {
+                readPaused = false;
+                if (unread != null) {
+                    parse(unread);
+                    if (!unread.hasRemaining()) {
+                        unread = null;
+                    }
+                }
+            }
+            flush();
+        }
+
+        private void flush() {
+            if (closed) {
+                return;
+            }
+            try {
+                while (true) {
+                    if (writing == null) {
+                        writing = writeQueue.poll();
+                        if (writing == null) {
+                            break;
+                        }
+                    }
+                    channel.write(writing);
+                    if (writing.hasRemaining()) {
+                        break; // 套接字发送缓冲区已满，等待OP_WRITE
+                    }
+                    writing = null;
+                    lastActivity = System.nanoTime();
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            updateInterest();
+            closeIfDone();
+        }
+
+        private void updateInterest() {
+            if (closed || !key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            if (!inputClosed && !readPaused) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (writing != null) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        private boolean isIdle() {
+            return inFlight.get() == 0 && writing == null && writeQueue.isEmpty();
+        }
+
+        private void closeIfDone() {
+            if (inputClosed && isIdle()) {
+                close();
+            }
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connections.remove(this);
+            if (message != null) {
+                bufferPool.release(message);
+                message = null;
+            }
+            writeQueue.clear();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // 关闭时的错误可以忽略
+            }
+        }
+
+        public String getClientInfo() {
+            return clientInfo;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.bupt.dnsrelay.network;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+/**
+ * DNS over TLS（RFC 7858）连接方式
+ * 先建立TCP连接，再在其上完成TLS握手并校验证书：配置了认证名时校验证书中的域名并发送SNI，否则校验证书中的IP地址。
+ *
+ * 同一个SSLContext的客户端会话缓存按上游地址保存会话，重新连接时自动尝试会话恢复，
+ * 省去完整握手的证书交换和密钥协商。握手前记下会话缓存中该上游的会话ID，
+ * 握手得到的会话ID在其中即为恢复的会话（TLS 1.3下会话的创建时间不能说明是否恢复）。
+ */
+public class TlsConnector implements StreamUpstreamPool.Connector {
+
+    public static final int DOT_PORT = 853;
+
+    private final SSLSocketFactory factory;
+    private final SSLSessionContext sessions;
+    private final String authName;   // 证书中应出现的域名，null时校验IP地址
+    private final int debugLevel;
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+
+    /**
+     * 构造函数
+     * @param context TLS上下文（多个上游共用同一个上下文以共享会话缓存）
+     * @param authName 证书中应出现的域名，null表示按IP地址校验
+     * @param debugLevel 调试级别
+     */
+    public TlsConnector(SSLContext context, String authName, int debugLevel) {
+        this.factory = context.getSocketFactory();
+        this.sessions = context.getClientSessionContext();
+        this.authName = authName;
+        this.debugLevel = debugLevel;
+    }
+
+    @Override
+    public Socket connect(InetSocketAddress server, int timeoutMillis) throws IOException {
+        Socket tcp = StreamUpstreamPool.Connector.TCP.connect(server, timeoutMillis);
+        SSLSocket socket = null;
+        try {
+            // 显式给出对端名称和端口，会话缓存才能找到可以恢复的会话
+            String peer = authName != null ? authName : server.getAddress().getHostAddress();
+            socket = (SSLSocket) factory.createSocket(tcp, peer, server.getPort(), true);
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            if (authName != null) {
+                parameters.setServerNames(Collections.singletonList(new SNIHostName(authName)));
+            }
+            socket.setSSLParameters(parameters);
+            socket.setSoTimeout(timeoutMillis);
+            List<byte[]> cached = cachedSessionIds(peer, server.getPort());
+            socket.startHandshake();
+            socket.setSoTimeout(0);
+            handshakes.incrementAndGet();
+            SSLSession session = socket.getSession();
+            boolean wasResumed = containsId(cached, session.getId());
+            if (wasResumed) {
+                resumed.incrementAndGet();
+            }
+            if (debugLevel >= 1) {
+                System.out.printf("[UPSTREAM] TLS %s with %s (%s)%n", wasResumed ? "session resumed" : "handshake",
+                    peer, session.getProtocol());
+            }
+            return socket;
+        } catch (IOException e) {
+            if (socket != null) {
+                socket.close();
+            } else {
+                tcp.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 会话缓存中属于指定上游的会话ID
+     */
+    private List<byte[]> cachedSessionIds(String peer, int port) {
+        List<byte[]> ids = new ArrayList<>();
+        if (sessions == null) {
+            return ids;
+        }
+        for (Enumeration<byte[]> e = sessions.getIds(); e.hasMoreElements(); ) {
+            byte[] id = e.nextElement();
+            SSLSession session = sessions.getSession(id);
+            if (session != null && port == session.getPeerPort() && peer.equalsIgnoreCase(session.getPeerHost())) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    private static boolean containsId(List<byte[]> ids, byte[] id) {
+        for (byte[] candidate : ids) {
+            if (id.length > 0 && Arrays.equals(candidate, id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    public long getResumed() {
+        return resumed.get();
+    }
+
+    /**
+     * 创建TLS上下文
+     * @param trustFiles 额外信任的证书文件（PEM或DER），与系统默认的信任证书同时生效；为空时只用系统默认的信任证书
+     * @return TLS上下文
+     * @throws IOException 证书文件无法读取或解析
+     */
+    public static SSLContext createContext(List<String> trustFiles) throws IOException {
+        return createContext(trustFiles, null);
+    }
+
+    /**
+     * 创建TLS上下文（可指定代替系统默认信任证书的证书库，测试用）
+     * @param trustFiles 额外信任的证书文件（PEM或DER）
+     * @param systemStore 系统信任证书库，null表示JDK默认的信任证书
+     * @return TLS上下文
+     * @throws IOException 证书文件无法读取或解析
+     */
+    static SSLContext createContext(List<String> trustFiles, KeyStore systemStore) throws IOException {
+        try {
+            if (trustFiles.isEmpty() && systemStore == null) {
+                return SSLContext.getDefault();
+            }
+            KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            trustStore.load(null, null);
+            CertificateFactory certificates = CertificateFactory.getInstance("X.509");
+            int count = 0;
+            for (String file : trustFiles) {
+                try (InputStream in = new FileInputStream(file)) {
+                    for (Certificate certificate : certificates.generateCertificates(in)) {
+                        trustStore.setCertificateEntry("upstream-" + count++, certificate);
+                    }
+                }
+            }
+            List<X509ExtendedTrustManager> managers = new ArrayList<>();
+            managers.add(trustManager(systemStore));
+            if (count > 0) {
+                managers.add(trustManager(trustStore));
+            }
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, new TrustManager[] { new CompositeTrustManager(managers) }, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot load TLS trust certificates: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 用证书库创建校验证书链的信任管理器
+     * @param store 证书库，null表示JDK默认的信任证书
+     */
+    private static X509ExtendedTrustManager trustManager(KeyStore store) throws GeneralSecurityException {
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(store);
+        for (TrustManager manager : trust.getTrustManagers()) {
+            if (manager instanceof X509ExtendedTrustManager) {
+                return (X509ExtendedTrustManager) manager;
+            }
+        }
+        throw new GeneralSecurityException("No X509 trust manager for " + trust.getAlgorithm());
+    }
+
+    /**
+     * 依次尝试多个信任管理器，任意一个接受证书链即通过（系统默认的信任证书加上trust指定的证书）
+     * 主机名校验由各个信任管理器按握手参数完成，组合后不会绕过
+     */
+    private static final class CompositeTrustManager extends X509ExtendedTrustManager {
+        private final List<X509ExtendedTrustManager> managers;
+
+        CompositeTrustManager(List<X509ExtendedTrustManager> managers) {
+            this.managers = managers;
+        }
+
+        private interface Check {
+            void apply(X509ExtendedTrustManager manager) throws CertificateException;
+        }
+
+        /**
+         * 任意一个信任管理器通过即返回，全部失败时抛出第一个失败（系统默认信任证书的校验结果）
+         */
+        private void check(Check check) throws CertificateException {
+            CertificateException failure = null;
+            for (X509ExtendedTrustManager manager : managers) {
+                try {
+                    check.apply(manager);
+                    return;
+                } catch (CertificateException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            throw failure;
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            check(m -> m.checkClientTrusted(chain, authType));
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket)
+                throws CertificateException {
+            check(m -> m.checkClientTrusted(chain, authType, socket));
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+                throws CertificateException {
+            check(m -> m.checkClientTrusted(chain, authType, engine));
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            check(m -> m.checkServerTrusted(chain, authType));
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket)
+                throws CertificateException {
+            check(m -> m.checkServerTrusted(chain, authType, socket));
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+                throws CertificateException {
+            check(m -> m.checkServerTrusted(chain, authType, engine));
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            List<X509Certificate> issuers = new ArrayList<>();
+            for (X509ExtendedTrustManager manager : managers) {
+                issuers.addAll(Arrays.asList(manager.getAcceptedIssuers()));
+            }
+            return issuers.toArray(new X509Certificate[0]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "handshakes=" + handshakes.get() + " resumed=" + resumed.get();
+    }
+}
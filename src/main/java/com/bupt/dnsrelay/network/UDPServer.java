@@ -6,7 +6,11 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 
+import com.bupt.dnsrelay.config.ClientPolicy;
+import com.bupt.dnsrelay.dns.EDNS;
 import com.bupt.dnsrelay.utils.DebugUtils;
 
 /**
@@ -15,13 +19,22 @@ import com.bupt.dnsrelay.utils.DebugUtils;
  */
 public class UDPServer {
     
-    private static final int DNS_PORT = 53;
-    private static final int MAX_PACKET_SIZE = 512;
+    public static final int DNS_PORT = 53;
+    private static final int MAX_PACKET_SIZE = EDNS.PAYLOAD_SIZE; // 与EDNS协商的UDP报文大小一致
     private static final int SOCKET_TIMEOUT = 5000; // 5秒超时
+    private static final int POOL_CAPACITY = 256;   // 缓冲区池最多保留的空闲缓冲区
+    private static final int POOL_PREALLOCATE = 32; // 启动时预分配的缓冲区
+    static final long DEFAULT_QUERY_BUDGET_MS = 2000; // 客户端通常在1~2秒后重试
     
     private DatagramSocket serverSocket;
     private boolean isRunning;
     private final int debugLevel;
+    private final BufferPool bufferPool;
+    private final DatagramPacket receivePacket; // 只由接收线程使用，重复利用
+    private volatile long queryBudgetNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_QUERY_BUDGET_MS);
+    // 每个发送线程复用的数据报对象
+    private static final ThreadLocal<DatagramPacket> SEND_PACKET =
+        ThreadLocal.withInitial(() -> new DatagramPacket(new byte[0], 0));
     
     /**
      * 构造函数
@@ -30,6 +43,8 @@ public class UDPServer {
     public UDPServer(int debugLevel) {
         this.debugLevel = debugLevel;
         this.isRunning = false;
+        this.bufferPool = new BufferPool(MAX_PACKET_SIZE, POOL_CAPACITY, POOL_PREALLOCATE);
+        this.receivePacket = new DatagramPacket(new byte[0], 0);
     }
     
     /**
@@ -56,6 +71,21 @@ public class UDPServer {
         }
     }
     
+    /**
+     * 设置每个查询的处理时限，超过时限的查询在后续各阶段被直接丢弃
+     * @param budgetMillis 从收到查询开始计算的毫秒数
+     */
+    public void setQueryBudget(long budgetMillis) {
+        this.queryBudgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    }
+    
+    /**
+     * 获取每个查询的处理时限（毫秒）
+     */
+    public long getQueryBudget() {
+        return TimeUnit.NANOSECONDS.toMillis(queryBudgetNanos);
+    }
+    
     /**
      * 停止UDP服务器
      */
@@ -69,6 +99,7 @@ public class UDPServer {
     
     /**
      * 接收DNS查询
+     * 数据直接接收到从缓冲区池租用的缓冲区中，处理完毕后需调用DNSPacket.release()归还
      * @return DNS查询数据包，如果超时则返回null
      * @throws IOException 网络错误
      */
@@ -77,24 +108,27 @@ public class UDPServer {
             throw new IllegalStateException("Server is not running");
         }
         
-        byte[] buffer = new byte[MAX_PACKET_SIZE];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        ByteBuffer buffer = bufferPool.lease();
+        DatagramPacket packet = receivePacket;
+        packet.setData(buffer.array(), 0, buffer.capacity());
         
         try {
             serverSocket.receive(packet);
+            long arrival = System.nanoTime();
             
             DebugUtils.printPacketInfo(debugLevel, "Received", packet.getLength(), 
                 packet.getAddress().getHostAddress(), packet.getPort());
             
-            // 创建DNS数据包对象
-            byte[] data = new byte[packet.getLength()];
-            System.arraycopy(packet.getData(), 0, data, 0, packet.getLength());
-            
-            return new DNSPacket(data, packet.getAddress(), packet.getPort());
+            return new DNSPacket(buffer, packet.getLength(), packet.getAddress(), packet.getPort(), bufferPool,
+                arrival, arrival + queryBudgetNanos);
             
         } catch (SocketTimeoutException e) {
             // 超时是正常的，返回null
+            bufferPool.release(buffer);
             return null;
+        } catch (IOException e) {
+            bufferPool.release(buffer);
+            throw e;
         }
     }
     
@@ -107,70 +141,34 @@ public class UDPServer {
      */
     public void sendResponse(byte[] responseData, InetAddress clientAddress, int clientPort) 
             throws IOException {
+        sendResponse(responseData, responseData.length, clientAddress, clientPort);
+    }
+    
+    /**
+     * 发送DNS响应
+     * @param responseData 响应数据所在的数组（通常是租用的缓冲区）
+     * @param length 响应长度
+     * @param clientAddress 客户端地址
+     * @param clientPort 客户端端口
+     * @throws IOException 网络错误
+     */
+    public void sendResponse(byte[] responseData, int length, InetAddress clientAddress, int clientPort) 
+            throws IOException {
         if (!isRunning) {
             throw new IllegalStateException("Server is not running");
         }
         
-        DatagramPacket responsePacket = new DatagramPacket(
-            responseData, responseData.length, clientAddress, clientPort);
+        DatagramPacket responsePacket = SEND_PACKET.get();
+        responsePacket.setData(responseData, 0, length);
+        responsePacket.setAddress(clientAddress);
+        responsePacket.setPort(clientPort);
         
         serverSocket.send(responsePacket);
         
-        DebugUtils.printPacketInfo(debugLevel, "Sent", responseData.length, 
+        DebugUtils.printPacketInfo(debugLevel, "Sent", length, 
             clientAddress.getHostAddress(), clientPort);
     }
     
-    /**
-     * 转发DNS查询到上游服务器
-     * @param queryData 查询数据
-     * @param upstreamServer 上游DNS服务器地址
-     * @return 上游服务器的响应数据，如果失败则返回null
-     */
-    public byte[] forwardQuery(byte[] queryData, String upstreamServer) {
-        DatagramSocket clientSocket = null;
-        
-        try {
-            // 创建客户端套接字
-            clientSocket = new DatagramSocket();
-            clientSocket.setSoTimeout(SOCKET_TIMEOUT);
-            
-            // 解析上游服务器地址
-            InetAddress serverAddress = InetAddress.getByName(upstreamServer);
-            
-            DebugUtils.debugf(debugLevel, "Forwarding query to upstream DNS: %s%n", upstreamServer);
-            
-            // 发送查询到上游服务器
-            DatagramPacket queryPacket = new DatagramPacket(
-                queryData, queryData.length, serverAddress, DNS_PORT);
-            clientSocket.send(queryPacket);
-            
-            // 接收响应
-            byte[] responseBuffer = new byte[MAX_PACKET_SIZE];
-            DatagramPacket responsePacket = new DatagramPacket(
-                responseBuffer, responseBuffer.length);
-            clientSocket.receive(responsePacket);
-            
-            DebugUtils.debugf(debugLevel, "Received response from upstream DNS (%d bytes)%n", 
-                responsePacket.getLength());
-            
-            // 返回响应数据
-            byte[] responseData = new byte[responsePacket.getLength()];
-            System.arraycopy(responsePacket.getData(), 0, responseData, 0, responsePacket.getLength());
-            return responseData;
-            
-        } catch (SocketTimeoutException e) {
-            System.err.println("Timeout waiting for response from upstream DNS: " + upstreamServer);
-            return null;
-        } catch (IOException e) {
-            System.err.println("Error forwarding query to upstream DNS: " + e.getMessage());
-            return null;
-        } finally {
-            if (clientSocket != null && !clientSocket.isClosed()) {
-                clientSocket.close();
-            }
-        }
-    }
-    
     /**
      * 检查服务器是否正在运行
      * @return 是否正在运行
@@ -187,23 +185,119 @@ public class UDPServer {
         return DNS_PORT;
     }
     
+    /**
+     * 获取报文缓冲区池
+     * @return 缓冲区池
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+    
     /**
      * DNS数据包类
-     * 封装DNS查询数据和客户端信息
+     * 封装DNS查询数据和客户端信息，数据保存在租用的缓冲区中，不做防御性复制
      */
     public static class DNSPacket {
-        private final byte[] data;
+        private final ByteBuffer buffer;
+        private final int length;
         private final InetAddress clientAddress;
         private final int clientPort;
+        private final BufferPool pool;
+        private final long arrivalNanos;   // 收到查询时的System.nanoTime()
+        private final long deadlineNanos;  // 超过该时刻客户端已放弃，不再处理
+        private final TCPServer.TCPConnection connection; // 经TCP收到时的连接，UDP查询为null
+        private ClientPolicy.View view;   // 分发时按客户端网段选出的视图，null表示只用主配置
+        private boolean localAlias;       // 名字是本地别名，链末端的目标需要转发到上游解析
         
-        public DNSPacket(byte[] data, InetAddress clientAddress, int clientPort) {
-            this.data = data.clone();
+        public DNSPacket(ByteBuffer buffer, int length, InetAddress clientAddress, int clientPort, BufferPool pool,
+                long arrivalNanos, long deadlineNanos) {
+            this(buffer, length, clientAddress, clientPort, pool, arrivalNanos, deadlineNanos, null);
+        }
+        
+        public DNSPacket(ByteBuffer buffer, int length, InetAddress clientAddress, int clientPort, BufferPool pool,
+                long arrivalNanos, long deadlineNanos, TCPServer.TCPConnection connection) {
+            this.connection = connection;
+            this.buffer = buffer;
+            this.length = length;
             this.clientAddress = clientAddress;
             this.clientPort = clientPort;
+            this.pool = pool;
+            this.arrivalNanos = arrivalNanos;
+            this.deadlineNanos = deadlineNanos;
         }
         
+        /**
+         * 获取查询数据所在的数组（有效数据为[0, getLength())），调用release后不得再访问
+         */
         public byte[] getData() {
-            return data.clone();
+            return buffer.array();
+        }
+        
+        public int getLength() {
+            return length;
+        }
+        
+        /**
+         * 将缓冲区归还给缓冲区池，每个数据包只能调用一次
+         * TCP查询同时通知连接该查询已结束
+         */
+        public void release() {
+            pool.release(buffer);
+            if (connection != null) {
+                connection.queryFinished();
+            }
+        }
+        
+        /**
+         * 经TCP收到时返回所属连接，响应需通过连接发送；UDP查询返回null
+         */
+        public TCPServer.TCPConnection getConnection() {
+            return connection;
+        }
+        
+        /**
+         * 客户端所属的视图，null表示只使用主配置
+         */
+        public ClientPolicy.View getView() {
+            return view;
+        }
+        
+        public void setView(ClientPolicy.View view) {
+            this.view = view;
+        }
+        
+        /**
+         * 本地解析发现名字是指向本地数据之外的别名时置位，转发时改为解析链末端的目标
+         */
+        public boolean isLocalAlias() {
+            return localAlias;
+        }
+        
+        public void setLocalAlias(boolean localAlias) {
+            this.localAlias = localAlias;
+        }
+        
+        public long getArrivalNanos() {
+            return arrivalNanos;
+        }
+        
+        public long getDeadlineNanos() {
+            return deadlineNanos;
+        }
+        
+        /**
+         * 距离截止时间的剩余毫秒数，已过期时不大于0
+         */
+        public int remainingMillis() {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+            return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, remaining));
+        }
+        
+        /**
+         * 是否已超过截止时间
+         */
+        public boolean isExpired() {
+            return deadlineNanos - System.nanoTime() <= 0;
         }
         
         public InetAddress getClientAddress() {
@@ -215,7 +309,7 @@ public class UDPServer {
         }
         
         public String getClientInfo() {
-            return clientAddress.getHostAddress() + ":" + clientPort;
+            return clientAddress.getHostAddress() + ":" + clientPort + (connection != null ? "/tcp" : "");
         }
     }
 }
@@ -0,0 +1,376 @@
+package com.bupt.dnsrelay.network;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bupt.dnsrelay.utils.NameHash;
+
+/**
+ * 上游服务器组
+ * 一组可以互相替代的上游服务器，是一个独立的故障域：
+ * <ul>
+ *   <li>组内每个服务器有自己的熔断器和自适应并发限制器，按轮询顺序选择，熔断或失败时在剩余时限内换下一个</li>
+ *   <li>组有自己的超时时间；每次UDP转发使用新的临时端口和随机的事务ID，
+ *       只接受问题部分与查询一致的响应，使伪造响应需要同时猜中端口和ID</li>
+ *   <li>可选的在途查询上限（隔舱）：一个组的上游变慢时最多占用这么多工作线程，其余组的查询不受影响</li>
+ *   <li>UDP响应被截断时，可以通过到同一组服务器的TCP长连接池重新获取完整响应</li>
+ *   <li>服务器可以使用DNS over TLS：查询全部走该服务器的TLS长连接池，连接复用、流水线发送，断开后重连时恢复TLS会话</li>
+ * </ul>
+ */
+public class UpstreamGroup {
+
+    public static final int FAILED = -1;    // 所有可用服务器都超时或出错
+    public static final int REJECTED = -2;  // 没有发出查询：服务器全部熔断、并发已满或组的隔舱已满
+
+    private static final long LIMIT_WAIT_MS = 50;         // 服务器并发已满时的最长等待时间
+    private static final int DNS_HEADER_SIZE = 12;
+    private static final int STREAM_CONNECTIONS = 2;     // 每个服务器保持的TCP连接数
+    private static final long STREAM_IDLE_TIMEOUT_MS = 10000; // 比常见上游的空闲超时略短
+    private static final int MAX_LABEL_SIZE = 63;
+    private static final SecureRandom RANDOM = new SecureRandom(); // 上游事务ID，不能被猜到
+
+    private final String name;
+    private final InetSocketAddress[] servers;
+    private final String[] serverNames;
+    private final UpstreamLimiter[] limiters;
+    private final CircuitBreaker[] breakers;
+    private final StreamUpstreamPool[] streamPools;  // TCP或TLS连接池，首次需要时才建立连接
+    private final boolean[] tls;
+    private final int timeoutMillis;
+    private final Semaphore bulkhead;  // null表示不限制
+    private final int maxInFlight;
+    private final AtomicInteger nextServer = new AtomicInteger();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong bulkheadRejected = new AtomicLong();
+    private final int debugLevel;
+
+    /**
+     * 构造函数
+     * @param name 组名（用于日志）
+     * @param servers 上游服务器地址
+     * @param timeoutMillis 每次转发的最长等待时间
+     * @param maxInFlight 组内同时在途的查询上限，0表示不限制
+     * @param debugLevel 调试级别
+     */
+    public UpstreamGroup(String name, InetSocketAddress[] servers, int timeoutMillis, int maxInFlight, int debugLevel) {
+        this(name, servers, new StreamUpstreamPool.Connector[servers.length], timeoutMillis, maxInFlight, debugLevel);
+    }
+
+    /**
+     * 构造函数
+     * @param name 组名（用于日志）
+     * @param servers 上游服务器地址
+     * @param tlsConnectors 各服务器的TLS连接方式，null表示该服务器使用UDP（截断时TCP）
+     * @param timeoutMillis 每次转发的最长等待时间
+     * @param maxInFlight 组内同时在途的查询上限，0表示不限制
+     * @param debugLevel 调试级别
+     */
+    public UpstreamGroup(String name, InetSocketAddress[] servers, StreamUpstreamPool.Connector[] tlsConnectors,
+            int timeoutMillis, int maxInFlight, int debugLevel) {
+        if (servers.length == 0) {
+            throw new IllegalArgumentException("Upstream group " + name + " has no servers");
+        }
+        this.name = name;
+        this.servers = servers.clone();
+        this.timeoutMillis = timeoutMillis;
+        this.maxInFlight = maxInFlight;
+        this.bulkhead = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+        this.debugLevel = debugLevel;
+        this.serverNames = new String[servers.length];
+        this.limiters = new UpstreamLimiter[servers.length];
+        this.breakers = new CircuitBreaker[servers.length];
+        this.streamPools = new StreamUpstreamPool[servers.length];
+        this.tls = new boolean[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            InetSocketAddress server = servers[i];
+            tls[i] = tlsConnectors[i] != null;
+            int defaultPort = tls[i] ? TlsConnector.DOT_PORT : UDPServer.DNS_PORT;
+            serverNames[i] = (tls[i] ? "tls://" : "") + server.getAddress().getHostAddress()
+                + (server.getPort() == defaultPort ? "" : ":" + server.getPort());
+            limiters[i] = new UpstreamLimiter(serverNames[i]);
+            breakers[i] = new CircuitBreaker(serverNames[i]);
+            streamPools[i] = tls[i]
+                ? new StreamUpstreamPool(server, serverNames[i], tlsConnectors[i], STREAM_CONNECTIONS,
+                    STREAM_IDLE_TIMEOUT_MS, debugLevel)
+                : new StreamUpstreamPool(server, serverNames[i] + "/tcp", StreamUpstreamPool.Connector.TCP,
+                    STREAM_CONNECTIONS, STREAM_IDLE_TIMEOUT_MS, debugLevel);
+        }
+    }
+
+    /**
+     * 转发查询并把响应接收到调用方的缓冲区
+     * @param query 查询报文所在的数组
+     * @param queryLength 查询长度
+     * @param response 接收响应的数组
+     * @param budgetMillis 查询剩余的处理时限
+     * @param oversized 经流式连接收到的响应超过response的容量时，完整响应放在oversized[0]中
+     * @return 响应长度（响应在oversized[0]中时为其长度）；FAILED表示上游失败；REJECTED表示没有发出查询
+     */
+    public int forward(byte[] query, int queryLength, byte[] response, long budgetMillis, byte[][] oversized) {
+        queries.incrementAndGet();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        if (bulkhead != null && !bulkhead.tryAcquire()) {
+            bulkheadRejected.incrementAndGet();
+            return REJECTED;
+        }
+        try {
+            int result = REJECTED;
+            int start = Math.floorMod(nextServer.getAndIncrement(), servers.length);
+            for (int i = 0; i < servers.length; i++) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    break;
+                }
+                int index = (start + i) % servers.length;
+                int length = forwardTo(index, query, queryLength, response, (int) Math.min(remaining, timeoutMillis),
+                    oversized);
+                if (length > 0) {
+                    return length;
+                }
+                if (length == FAILED) {
+                    result = FAILED;
+                }
+            }
+            return result;
+        } finally {
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+        }
+    }
+
+    /**
+     * 通过TCP长连接转发查询（用于UDP响应被截断的情况，TLS服务器使用其TLS连接）
+     * 按与UDP相同的轮询顺序选择服务器，熔断的服务器被跳过，失败时在剩余时限内换下一个
+     * @param query 查询报文所在的数组
+     * @param queryLength 查询长度
+     * @param budgetMillis 查询剩余的处理时限
+     * @return 完整响应，失败时返回null
+     */
+    public byte[] forwardStream(byte[] query, int queryLength, long budgetMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        int start = Math.floorMod(nextServer.get() - 1, servers.length); // 优先使用刚返回截断响应的服务器
+        for (int i = 0; i < servers.length; i++) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                break;
+            }
+            int index = (start + i) % servers.length;
+            CircuitBreaker breaker = breakers[index];
+            if (!breaker.allowRequest()) {
+                continue;
+            }
+            byte[] response = streamPools[index].exchange(query, queryLength, Math.min(remaining, timeoutMillis));
+            if (response != null) {
+                breaker.onSuccess();
+                return response;
+            }
+            breaker.onFailure();
+        }
+        return null;
+    }
+
+    /**
+     * 向组内一个服务器转发一次
+     */
+    private int forwardTo(int index, byte[] query, int queryLength, byte[] response, int timeout,
+            byte[][] oversized) {
+        CircuitBreaker breaker = breakers[index];
+        if (!breaker.allowRequest()) {
+            return REJECTED;
+        }
+        UpstreamLimiter limiter = limiters[index];
+        if (!limiter.acquire(Math.min(timeout, LIMIT_WAIT_MS))) {
+            breaker.abandon();
+            return REJECTED;
+        }
+        long sent = System.nanoTime();
+        int length = FAILED;
+        try {
+            length = tls[index]
+                ? exchangeStream(index, query, queryLength, response, timeout, oversized)
+                : exchange(index, query, queryLength, response, timeout);
+        } finally {
+            limiter.release(System.nanoTime() - sent, length > 0);
+            if (length > 0) {
+                breaker.onSuccess();
+            } else {
+                breaker.onFailure();
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 用新的套接字完成一次UDP请求/响应
+     * 每次转发使用系统分配的随机临时端口，发送前把事务ID换成随机值，收到响应后恢复客户端的ID；
+     * 只接受来自该服务器、事务ID相同且问题部分与查询一致的响应，其他报文被丢弃后继续等待
+     */
+    private int exchange(int index, byte[] query, int queryLength, byte[] response, int timeout) {
+        InetSocketAddress server = servers[index];
+        byte clientId0 = query[0];
+        byte clientId1 = query[1];
+        int upstreamId = RANDOM.nextInt(0x10000);
+        query[0] = (byte) (upstreamId >> 8);
+        query[1] = (byte) upstreamId;
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.send(new DatagramPacket(query, queryLength, server));
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            DatagramPacket packet = new DatagramPacket(response, response.length);
+            while (true) {
+                int remaining = (int) TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException();
+                }
+                socket.setSoTimeout(remaining);
+                packet.setData(response, 0, response.length);
+                socket.receive(packet);
+                if (server.equals(packet.getSocketAddress()) && packet.getLength() >= DNS_HEADER_SIZE
+                        && response[0] == query[0] && response[1] == query[1]
+                        && matchesQuestion(query, queryLength, response, packet.getLength())) {
+                    response[0] = clientId0;
+                    response[1] = clientId1;
+                    if (debugLevel >= 2) {
+                        System.out.printf("Received response from upstream DNS %s (%d bytes)%n",
+                            serverNames[index], packet.getLength());
+                    }
+                    return packet.getLength();
+                }
+                if (debugLevel >= 1) {
+                    System.out.printf("[UPSTREAM] discarded mismatched response from %s%n", packet.getSocketAddress());
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            System.err.println("Timeout waiting for response from upstream DNS: " + serverNames[index] + " (group " + name + ")");
+            return FAILED;
+        } catch (IOException e) {
+            System.err.println("Error forwarding query to upstream DNS " + serverNames[index] + ": " + e.getMessage());
+            return FAILED;
+        } finally {
+            query[0] = clientId0;
+            query[1] = clientId1;
+        }
+    }
+
+    /**
+     * 检查响应的问题部分是否与查询相同（名字忽略大小写，类型和类别逐字节比较）
+     * @param query 查询报文
+     * @param queryLength 查询长度
+     * @param response 响应报文
+     * @param responseLength 响应长度
+     * @return 两者都恰好有一个问题且问题相同
+     */
+    static boolean matchesQuestion(byte[] query, int queryLength, byte[] response, int responseLength) {
+        if (queryLength < DNS_HEADER_SIZE || responseLength < DNS_HEADER_SIZE
+                || query[4] != 0 || query[5] != 1 || response[4] != 0 || response[5] != 1) {
+            return false;
+        }
+        int pos = DNS_HEADER_SIZE;
+        while (true) {
+            if (pos >= queryLength || pos >= responseLength) {
+                return false;
+            }
+            int len = query[pos] & 0xFF;
+            if (len > MAX_LABEL_SIZE || response[pos] != query[pos]) {
+                return false; // 问题部分的名字不会被压缩，长度字节必须相同
+            }
+            if (len == 0) {
+                break;
+            }
+            if (pos + 1 + len > queryLength || pos + 1 + len > responseLength) {
+                return false;
+            }
+            for (int i = pos + 1; i <= pos + len; i++) {
+                if (NameHash.fold(query[i] & 0xFF) != NameHash.fold(response[i] & 0xFF)) {
+                    return false;
+                }
+            }
+            pos += len + 1;
+        }
+        pos++;
+        if (pos + 4 > queryLength || pos + 4 > responseLength) {
+            return false;
+        }
+        for (int i = pos; i < pos + 4; i++) {
+            if (query[i] != response[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 通过TLS长连接完成一次请求/响应
+     * 响应超过调用方缓冲区时不截断，完整响应交给调用方，避免在同一连接上再查询一次
+     */
+    private int exchangeStream(int index, byte[] query, int queryLength, byte[] response, int timeout,
+            byte[][] oversized) {
+        byte[] answer = streamPools[index].exchange(query, queryLength, timeout);
+        if (answer == null) {
+            return FAILED;
+        }
+        if (debugLevel >= 2) {
+            System.out.printf("Received response from upstream DNS %s (%d bytes)%n", serverNames[index], answer.length);
+        }
+        if (answer.length <= response.length) {
+            System.arraycopy(answer, 0, response, 0, answer.length);
+            return answer.length;
+        }
+        oversized[0] = answer;
+        return answer.length;
+    }
+
+    /**
+     * 关闭到各服务器的流式连接
+     */
+    public void close() {
+        for (StreamUpstreamPool pool : streamPools) {
+            pool.close();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * 组及各服务器的统计信息，每个服务器一行
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("group %s queries=%d timeout=%dms", name, queries.get(), timeoutMillis));
+        if (bulkhead != null) {
+            sb.append(String.format(" maxInFlight=%d rejected=%d", maxInFlight, bulkheadRejected.get()));
+        }
+        for (int i = 0; i < servers.length; i++) {
+            sb.append(System.lineSeparator()).append("  ").append(limiters[i])
+                .append(" state=").append(breakers[i].getState());
+            if (tls[i]) {
+                sb.append(' ').append(streamPools[i].getConnector());
+            }
+        }
+        for (StreamUpstreamPool pool : streamPools) {
+            if (pool.getQueries() > 0) {
+                sb.append(System.lineSeparator()).append("  ").append(pool.describe());
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + String.join(",", serverNames);
+    }
+}
@@ -0,0 +1,132 @@
+package com.bupt.dnsrelay.network;
+
+/**
+ * 上游并发自适应限制器
+ * 限制同时发往一个上游服务器的查询数，限值随观测到的往返时间（RTT）自动调整（梯度算法）：
+ * <ul>
+ *   <li>每个成功的查询按 最小RTT / 本次RTT 计算梯度，RTT上升说明上游开始排队，限值随之收缩；
+ *       只有限值被实际用到（在途查询不少于限值的一半）时才加上sqrt(limit)的排队余量使其增长，
+ *       流量很低时限值不会因为没有排队而无限上涨</li>
+ *   <li>最小RTT按窗口重新测量，窗口内只采纳低负载时的样本，避免把排队后的RTT当作新的基线</li>
+ *   <li>超时或失败时限值乘性减小</li>
+ * </ul>
+ * 限值达到时新的查询最多等待一小段时间，仍无空位则由调用方快速失败，使上游保持在吞吐拐点附近。
+ */
+public class UpstreamLimiter {
+
+    private static final int MIN_LIMIT = 1;
+    private static final int MAX_LIMIT = 256;
+    private static final int INITIAL_LIMIT = 20;
+    private static final double RTT_TOLERANCE = 1.5;   // RTT在最小RTT的1.5倍以内视为未排队
+    private static final double SMOOTHING = 0.2;       // 新限值的权重
+    private static final double BACKOFF_RATIO = 0.9;   // 超时或失败时的乘性减小系数
+    private static final int MIN_RTT_WINDOW = 500;     // 每隔多少个样本重新测量最小RTT，跟上网络路径的变化
+    private static final double BASELINE_DRIFT = 1.1;  // 窗口内只有高负载样本时，最小RTT每个窗口最多上调的比例
+
+    private final String upstream;
+    private double limit = INITIAL_LIMIT;
+    private int inFlight;
+    private long minRttNanos = Long.MAX_VALUE;
+    private long windowMinRttNanos = Long.MAX_VALUE;     // 窗口内低负载样本的最小RTT
+    private long windowAnyMinRttNanos = Long.MAX_VALUE;  // 窗口内所有样本的最小RTT
+    private int windowSamples;
+    private long rejected;
+
+    /**
+     * 构造函数
+     * @param upstream 上游服务器地址（用于日志）
+     */
+    public UpstreamLimiter(String upstream) {
+        this.upstream = upstream;
+    }
+
+    /**
+     * 申请一个并发名额，限值已满时最多等待maxWaitMillis
+     * @param maxWaitMillis 最长等待时间（毫秒）
+     * @return 是否获得名额；获得后必须调用release
+     */
+    public synchronized boolean acquire(long maxWaitMillis) {
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        while (inFlight >= (int) limit) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                rejected++;
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejected++;
+                return false;
+            }
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * 归还名额并用本次结果调整限值
+     * @param rttNanos 本次查询耗时
+     * @param success 是否收到响应（超时或网络错误为false）
+     */
+    public synchronized void release(long rttNanos, boolean success) {
+        boolean saturated = inFlight >= limit / 2; // 含本次查询在内的在途数
+        inFlight--;
+        if (success) {
+            sampleRtt(rttNanos, saturated);
+            double gradient = Math.max(0.5, Math.min(1.0, RTT_TOLERANCE * minRttNanos / (double) rttNanos));
+            double newLimit = limit * gradient + (saturated ? Math.sqrt(limit) : 0);
+            limit = limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        } else {
+            limit = limit * BACKOFF_RATIO;
+        }
+        limit = Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, limit));
+        notifyAll();
+    }
+
+    /**
+     * 更新最小RTT；每个窗口结束时用窗口内低负载样本的最小值替换，避免一次偶然的低RTT永久压低限值。
+     * 高负载时的RTT含有排队时间，只能拉低当前的最小RTT，不能直接成为新的基线；
+     * 窗口内没有低负载样本时（上游一直满载），基线最多上调BASELINE_DRIFT倍，使路径变慢后仍能逐步跟上
+     */
+    private void sampleRtt(long rttNanos, boolean saturated) {
+        if (!saturated) {
+            windowMinRttNanos = Math.min(windowMinRttNanos, rttNanos);
+        }
+        windowAnyMinRttNanos = Math.min(windowAnyMinRttNanos, rttNanos);
+        minRttNanos = Math.min(minRttNanos, rttNanos);
+        if (++windowSamples >= MIN_RTT_WINDOW) {
+            if (windowMinRttNanos != Long.MAX_VALUE) {
+                minRttNanos = windowMinRttNanos;
+            } else {
+                minRttNanos = Math.min(windowAnyMinRttNanos, (long) (minRttNanos * BASELINE_DRIFT));
+            }
+            windowMinRttNanos = Long.MAX_VALUE;
+            windowAnyMinRttNanos = Long.MAX_VALUE;
+            windowSamples = 0;
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    public String getUpstream() {
+        return upstream;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s limit=%d inFlight=%d minRtt=%.1fms rejected=%d", upstream, (int) limit, inFlight,
+            minRttNanos == Long.MAX_VALUE ? 0.0 : minRttNanos / 1e6, rejected);
+    }
+}
@@ -0,0 +1,253 @@
+package com.bupt.dnsrelay.network;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+
+import com.bupt.dnsrelay.config.ConfigParser;
+import com.bupt.dnsrelay.config.SuffixTable;
+import com.bupt.dnsrelay.dns.NameKey;
+
+/**
+ * 按域名后缀选择上游服务器组（条件转发）
+ * 路由文件每行一条指令，#开头为注释：
+ * <pre>
+ * group &lt;组名&gt; &lt;超时毫秒&gt; &lt;服务器&gt;[,&lt;服务器&gt;...] [在途上限]
+ * zone  &lt;域名后缀&gt; &lt;组名&gt;
+ * trust &lt;证书文件&gt;
+ * </pre>
+ * 服务器写作IP或IP:端口；写作tls://IP[:端口][#认证名]时使用DNS over TLS（默认端口853），
+ * 认证名是证书中应出现的域名，省略时按IP地址校验证书。trust指定额外信任的证书（如上游的自签名证书），
+ * 与系统默认的信任证书同时生效，不会使公共的DoT上游无法校验。
+ * 查询按最长匹配后缀选择组，没有匹配时使用默认组；
+ * "zone . &lt;组名&gt;"可以替换默认组。名为default的组始终存在，即命令行指定的上游服务器。
+ */
+public class UpstreamRouter {
+
+    public static final String DEFAULT_GROUP = "default";
+    public static final int DEFAULT_TIMEOUT_MS = 5000;
+
+    private static final String TLS_PREFIX = "tls://";
+
+    private final SuffixTable<UpstreamGroup> routes;
+    private final UpstreamGroup defaultGroup;
+    private final Map<String, UpstreamGroup> groups;
+
+    private UpstreamRouter(SuffixTable<UpstreamGroup> routes, UpstreamGroup defaultGroup,
+            Map<String, UpstreamGroup> groups) {
+        this.routes = routes;
+        this.defaultGroup = defaultGroup;
+        this.groups = groups;
+    }
+
+    /**
+     * 只有一个默认组的路由（未指定路由文件时）
+     * @param upstreamDNS 上游服务器地址
+     * @param debugLevel 调试级别
+     */
+    public static UpstreamRouter single(String upstreamDNS, int debugLevel) throws IOException {
+        UpstreamGroup group = new UpstreamGroup(DEFAULT_GROUP,
+            new InetSocketAddress[] { parseServer(upstreamDNS, UDPServer.DNS_PORT) }, DEFAULT_TIMEOUT_MS, 0, debugLevel);
+        Map<String, UpstreamGroup> groups = new LinkedHashMap<>();
+        groups.put(DEFAULT_GROUP, group);
+        return new UpstreamRouter(new SuffixTable<>(), group, groups);
+    }
+
+    /**
+     * 从路由文件加载
+     * 格式错误的行输出警告后跳过，不影响其他行
+     * @param filename 路由文件路径
+     * @param upstreamDNS 默认组的上游服务器地址
+     * @param debugLevel 调试级别
+     * @return 路由表
+     * @throws IOException 文件读取错误
+     */
+    public static UpstreamRouter load(String filename, String upstreamDNS, int debugLevel) throws IOException {
+        File file = new File(filename);
+        if (!file.exists()) {
+            throw new IOException("Upstream route file not found: " + filename);
+        }
+        Map<String, UpstreamGroup> groups = new LinkedHashMap<>();
+        groups.put(DEFAULT_GROUP, single(upstreamDNS, debugLevel).defaultGroup);
+        List<String[]> groupLines = new ArrayList<>();
+        List<String[]> zones = new ArrayList<>();
+        List<Integer> groupLineNumbers = new ArrayList<>();
+        List<Integer> zoneLines = new ArrayList<>();
+        List<String> trustFiles = new ArrayList<>();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                if ("group".equals(parts[0]) && (parts.length == 4 || parts.length == 5)) {
+                    groupLines.add(parts); // 组的TLS服务器需要全部trust证书，读完再创建
+                    groupLineNumbers.add(lineNumber);
+                } else if ("zone".equals(parts[0]) && parts.length == 3) {
+                    zones.add(parts); // 组可以定义在引用它的zone之后，全部读完再解析
+                    zoneLines.add(lineNumber);
+                } else if ("trust".equals(parts[0]) && parts.length == 2) {
+                    trustFiles.add(parts[1]);
+                } else {
+                    System.out.println("Warning: Invalid line format at line " + lineNumber + ": " + line);
+                }
+            }
+        }
+
+        SSLContext tlsContext = null;
+        for (int i = 0; i < groupLines.size(); i++) {
+            String[] parts = groupLines.get(i);
+            if (tlsContext == null && parts[3].contains(TLS_PREFIX)) {
+                tlsContext = createTlsContext(trustFiles);
+            }
+            UpstreamGroup group = parseGroup(parts, tlsContext, debugLevel);
+            if (group == null || groups.containsKey(parts[1])) {
+                System.out.println("Warning: Invalid upstream group at line " + groupLineNumbers.get(i) + ": "
+                    + String.join(" ", parts));
+            } else {
+                groups.put(parts[1], group);
+            }
+        }
+
+        SuffixTable<UpstreamGroup> routes = new SuffixTable<>();
+        UpstreamGroup defaultGroup = groups.get(DEFAULT_GROUP);
+        for (int i = 0; i < zones.size(); i++) {
+            String[] zone = zones.get(i);
+            UpstreamGroup group = groups.get(zone[2]);
+            if (group == null) {
+                System.out.println("Warning: Unknown upstream group at line " + zoneLines.get(i) + ": " + zone[2]);
+            } else if (".".equals(zone[1])) {
+                defaultGroup = group;
+            } else {
+                try {
+                    routes.put(zone[1], group);
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Warning: Invalid zone at line " + zoneLines.get(i) + ": " + zone[1]);
+                }
+            }
+        }
+        System.out.println("Loaded " + routes.size() + " upstream zones (" + groups.size() + " groups) from: " + filename);
+        return new UpstreamRouter(routes, defaultGroup, groups);
+    }
+
+    private static SSLContext createTlsContext(List<String> trustFiles) {
+        try {
+            return TlsConnector.createContext(trustFiles);
+        } catch (IOException e) {
+            System.out.println("Warning: " + e.getMessage() + ", using system trust store");
+            try {
+                return TlsConnector.createContext(new ArrayList<>());
+            } catch (IOException ignored) {
+                return null;
+            }
+        }
+    }
+
+    private static UpstreamGroup parseGroup(String[] parts, SSLContext tlsContext, int debugLevel) {
+        try {
+            int timeout = Integer.parseInt(parts[2]);
+            int maxInFlight = parts.length == 5 ? Integer.parseInt(parts[4]) : 0;
+            if (timeout <= 0 || maxInFlight < 0) {
+                return null;
+            }
+            String[] names = parts[3].split(",");
+            InetSocketAddress[] servers = new InetSocketAddress[names.length];
+            StreamUpstreamPool.Connector[] connectors = new StreamUpstreamPool.Connector[names.length];
+            for (int i = 0; i < names.length; i++) {
+                String name = names[i];
+                if (name.startsWith(TLS_PREFIX)) {
+                    if (tlsContext == null) {
+                        return null;
+                    }
+                    name = name.substring(TLS_PREFIX.length());
+                    String authName = null;
+                    int hash = name.indexOf('#');
+                    if (hash >= 0) {
+                        authName = name.substring(hash + 1);
+                        name = name.substring(0, hash);
+                        if (authName.isEmpty()) {
+                            return null;
+                        }
+                    }
+                    servers[i] = parseServer(name, TlsConnector.DOT_PORT);
+                    connectors[i] = new TlsConnector(tlsContext, authName, debugLevel);
+                } else {
+                    servers[i] = parseServer(name, UDPServer.DNS_PORT);
+                }
+            }
+            return new UpstreamGroup(parts[1], servers, connectors, timeout, maxInFlight, debugLevel);
+        } catch (NumberFormatException | IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 解析 IP 或 IP:端口
+     */
+    private static InetSocketAddress parseServer(String server, int defaultPort) throws IOException {
+        String host = server;
+        int port = defaultPort;
+        int colon = server.lastIndexOf(':');
+        if (colon > 0) {
+            host = server.substring(0, colon);
+            try {
+                port = Integer.parseInt(server.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                port = 0;
+            }
+            if (port <= 0 || port > 65535) {
+                throw new IOException("Invalid upstream port: " + server);
+            }
+        }
+        if (!ConfigParser.isValidIP(host)) {
+            throw new IOException("Invalid upstream address: " + server);
+        }
+        return new InetSocketAddress(InetAddress.getByName(host), port);
+    }
+
+    /**
+     * 为查询名选择上游组
+     * @param key 查询名
+     * @return 最长匹配后缀对应的组，没有匹配时为默认组
+     */
+    public UpstreamGroup route(NameKey key) {
+        UpstreamGroup group = routes.lookup(key);
+        return group != null ? group : defaultGroup;
+    }
+
+    public UpstreamGroup getDefaultGroup() {
+        return defaultGroup;
+    }
+
+    public Collection<UpstreamGroup> getGroups() {
+        return groups.values();
+    }
+
+    public int getZoneCount() {
+        return routes.size();
+    }
+
+    /**
+     * 关闭所有组的套接字
+     */
+    public void close() {
+        for (UpstreamGroup group : groups.values()) {
+            group.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.bupt.dnsrelay.pipeline;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 线程池大小自适应控制器
+ * 工作线程报告每个查询的排队时间和服务时间，控制器定期按排队延迟目标调整线程数：
+ * <ul>
+ *   <li>平均排队延迟超过目标时扩容，至少增加一个线程，
+ *       并直接扩到按Little定律估算的并发需求（到达率 × 平均服务时间）</li>
+ *   <li>队列积压但整个周期没有任务完成（所有线程都阻塞在上游）时线程数加倍</li>
+ *   <li>排队延迟低于目标的一半、估算需求小于当前线程数且有空闲线程时，每个周期缩减一个线程</li>
+ * </ul>
+ * 线程数始终限制在[minThreads, maxThreads]之内。
+ */
+public class AdaptivePoolController implements Runnable {
+
+    private static final long INTERVAL_MS = 500;   // 调整周期
+    private static final double HEADROOM = 1.25;   // 估算并发需求时预留的余量
+
+    private final ThreadPoolExecutor executor;
+    private final int minThreads;
+    private final int maxThreads;
+    private final long targetQueueDelayNanos;
+    private final int debugLevel;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder queueWaitNanos = new LongAdder();
+    private final LongAdder serviceNanos = new LongAdder();
+
+    private volatile boolean isRunning = false;
+    private Thread controllerThread;
+
+    /**
+     * 构造函数
+     * @param executor 被控制的线程池（核心线程数与最大线程数保持一致）
+     * @param minThreads 最少线程数
+     * @param maxThreads 最多线程数
+     * @param targetQueueDelayMillis 目标排队延迟（毫秒）
+     * @param debugLevel 调试级别，不低于1时输出每次调整
+     */
+    public AdaptivePoolController(ThreadPoolExecutor executor, int minThreads, int maxThreads,
+            long targetQueueDelayMillis, int debugLevel) {
+        this.executor = executor;
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.targetQueueDelayNanos = TimeUnit.MILLISECONDS.toNanos(targetQueueDelayMillis);
+        this.debugLevel = debugLevel;
+    }
+
+    /**
+     * 记录一个查询的排队时间和服务时间（由工作线程在处理完成后调用）
+     * @param waitNanos 从收到查询到开始处理的时间
+     * @param workNanos 处理耗时
+     */
+    public void record(long waitNanos, long workNanos) {
+        completed.increment();
+        queueWaitNanos.add(waitNanos);
+        serviceNanos.add(workNanos);
+    }
+
+    /**
+     * 启动控制线程
+     */
+    public void start() {
+        isRunning = true;
+        controllerThread = new Thread(this, "pool-controller");
+        controllerThread.setDaemon(true);
+        controllerThread.start();
+    }
+
+    /**
+     * 停止控制线程
+     */
+    public void stop() {
+        isRunning = false;
+        if (controllerThread != null) {
+            controllerThread.interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (isRunning) {
+            try {
+                Thread.sleep(INTERVAL_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            adjust();
+        }
+    }
+
+    /**
+     * 根据上一个周期的统计调整线程数
+     */
+    private void adjust() {
+        long count = completed.sumThenReset();
+        long totalWait = queueWaitNanos.sumThenReset();
+        long totalService = serviceNanos.sumThenReset();
+        int queued = executor.getQueue().size();
+        int active = executor.getActiveCount();
+        int current = executor.getCorePoolSize();
+
+        int target = target(current, count, totalWait, totalService, queued, active);
+        if (target == current) {
+            return;
+        }
+
+        resize(target);
+        if (debugLevel >= 1) {
+            System.out.printf("[POOL] workers %d -> %d (queue delay %.1fms, service %.1fms, %.0f queries/s, active %d, queued %d)%n",
+                current, target, average(totalWait, count) / 1e6, average(totalService, count) / 1e6,
+                arrivalRate(count, queued), active, queued);
+        }
+    }
+
+    /**
+     * 按一个周期的统计计算新的线程数（不修改线程池）
+     * @param current 当前线程数
+     * @param count 本周期完成的查询数
+     * @param totalWait 这些查询的排队时间之和（纳秒）
+     * @param totalService 这些查询的服务时间之和（纳秒）
+     * @param queued 周期结束时排队的任务数
+     * @param active 周期结束时正在执行任务的线程数
+     * @return 限制在[minThreads, maxThreads]之内的线程数
+     */
+    int target(int current, long count, long totalWait, long totalService, int queued, int active) {
+        double avgWait = average(totalWait, count);
+        int needed = (int) Math.ceil(arrivalRate(count, queued) * average(totalService, count) / 1e9 * HEADROOM);
+
+        int target = current;
+        if (count == 0 && queued > 0) {
+            target = current * 2;
+        } else if (avgWait > targetQueueDelayNanos) {
+            target = Math.max(current + 1, needed);
+        } else if (avgWait < targetQueueDelayNanos / 2 && needed < current && active < current) {
+            target = current - 1;
+        }
+        return Math.max(minThreads, Math.min(maxThreads, target));
+    }
+
+    private static double average(long total, long count) {
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    /**
+     * 每秒到达的查询数：本周期完成的加上仍在排队的
+     */
+    private static double arrivalRate(long count, int queued) {
+        return (count + queued) * 1000.0 / INTERVAL_MS;
+    }
+
+    /**
+     * 调整线程数；扩容时先提高最大值，缩容时先降低核心数，始终保持core <= max
+     */
+    private void resize(int size) {
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+}
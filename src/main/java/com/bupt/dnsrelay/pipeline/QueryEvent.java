@@ -0,0 +1,37 @@
+package com.bupt.dnsrelay.pipeline;
+
+import java.nio.ByteBuffer;
+
+import com.bupt.dnsrelay.dns.DNSMessage;
+import com.bupt.dnsrelay.network.UDPServer;
+
+/**
+ * 流水线槽位
+ * 预分配在各个环形缓冲区中，只在阶段之间传递引用，不会为每个查询创建新对象
+ */
+public final class QueryEvent {
+
+    public UDPServer.DNSPacket packet;  // 租用缓冲区中的查询
+    public DNSMessage query;            // 解析后的查询，需要转发时才设置
+    public ByteBuffer response;         // 租用的响应缓冲区
+    public int responseLength;          // 响应长度，不大于0表示没有可发送的响应
+
+    /**
+     * 将内容移动到下一阶段的槽位，并清空本槽位以免继续引用缓冲区
+     * @param target 下一阶段的槽位
+     */
+    void moveTo(QueryEvent target) {
+        target.packet = packet;
+        target.query = query;
+        target.response = response;
+        target.responseLength = responseLength;
+        clear();
+    }
+
+    void clear() {
+        packet = null;
+        query = null;
+        response = null;
+        responseLength = 0;
+    }
+}
@@ -0,0 +1,221 @@
+package com.bupt.dnsrelay.pipeline;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+import com.bupt.dnsrelay.network.UDPServer;
+
+/**
+ * 分阶段查询流水线
+ * 接收 → 解码/路由 → 上游转发 → 编码/发送，相邻阶段之间用预分配的环形缓冲区传递槽位：
+ * <ul>
+ *   <li>ingress：接收线程发布，解码线程批量消费</li>
+ *   <li>upstream：解码线程发布未命中的查询，多个上游线程逐个认领（上游调用会阻塞，不做批量）</li>
+ *   <li>egress：解码线程（本地应答）和上游线程发布，发送线程批量消费</li>
+ * </ul>
+ * 本地可应答的查询不经过上游阶段，不会被慢速上游查询阻塞：upstream已满时解码线程不等待，
+ * 未命中的查询直接生成过载响应交给发送阶段。
+ */
+public class QueryPipeline {
+
+    /**
+     * 各阶段的处理逻辑，由服务器提供
+     */
+    public interface Stages {
+        /**
+         * 解码并尝试本地应答
+         * @param event 槽位，packet已设置
+         * @return 已生成响应（或无需响应）时返回true，需要转发到上游时返回false
+         */
+        boolean decode(QueryEvent event);
+
+        /**
+         * 转发到上游并把响应写入event.response
+         */
+        void upstream(QueryEvent event);
+
+        /**
+         * 上游阶段已满时生成过载响应（或不响应）写入event.responseLength，随后直接发送
+         */
+        void shed(QueryEvent event);
+
+        /**
+         * 发送响应并归还槽位引用的所有缓冲区
+         */
+        void send(QueryEvent event);
+    }
+
+    private static final int DECODE_BATCH = 64;
+    private static final int SEND_BATCH = 64;
+    private static final int UPSTREAM_BATCH = 1;
+
+    private final Stages stages;
+    private final RingBuffer<QueryEvent> ingress;
+    private final RingBuffer<QueryEvent> upstream;
+    private final RingBuffer<QueryEvent> egress;
+    private final StageWorker<QueryEvent> decodeWorker;
+    private final List<StageWorker<QueryEvent>> upstreamWorkers;
+    private final StageWorker<QueryEvent> sendWorker;
+    private final BooleanSupplier running = this::isRunning;
+    private volatile boolean isRunning = false;
+    private final LongAdder rejected = new LongAdder(); // ingress已满而被拒绝的查询数（UDP接收线程和TCP选择器线程都会写入）
+    private long upstreamShed;                          // upstream已满而未转发的查询数（只由解码线程写入）
+
+    /**
+     * 构造函数
+     * @param ringSize 每个环形缓冲区的容量
+     * @param upstreamThreads 上游阶段线程数
+     * @param stages 各阶段处理逻辑
+     */
+    public QueryPipeline(int ringSize, int upstreamThreads, Stages stages) {
+        this.stages = stages;
+        this.ingress = new RingBuffer<>("ingress", ringSize, QueryEvent::new);
+        this.upstream = new RingBuffer<>("upstream", ringSize, QueryEvent::new);
+        this.egress = new RingBuffer<>("egress", ringSize, QueryEvent::new);
+        this.decodeWorker = new StageWorker<>(ingress, this::onDecode, DECODE_BATCH);
+        this.upstreamWorkers = new ArrayList<>(upstreamThreads);
+        for (int i = 0; i < upstreamThreads; i++) {
+            upstreamWorkers.add(new StageWorker<>(upstream, this::onUpstream, UPSTREAM_BATCH));
+        }
+        this.sendWorker = new StageWorker<>(egress, this::onSend, SEND_BATCH);
+    }
+
+    /**
+     * 启动各阶段线程
+     */
+    public void start() {
+        isRunning = true;
+        decodeWorker.start("pipeline-decode");
+        for (int i = 0; i < upstreamWorkers.size(); i++) {
+            upstreamWorkers.get(i).start("pipeline-upstream-" + i);
+        }
+        sendWorker.start("pipeline-send");
+    }
+
+    /**
+     * 停止各阶段线程，尚未处理的查询被丢弃
+     */
+    public void stop() {
+        isRunning = false;
+        decodeWorker.stop();
+        for (StageWorker<QueryEvent> worker : upstreamWorkers) {
+            worker.stop();
+        }
+        sendWorker.stop();
+        try {
+            decodeWorker.join(1000);
+            for (StageWorker<QueryEvent> worker : upstreamWorkers) {
+                worker.join(1000);
+            }
+            sendWorker.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * 由接收线程提交一个查询，不会阻塞
+     * @param packet 查询数据包
+     * @return 是否已提交；返回false时调用方负责归还数据包
+     */
+    public boolean offer(UDPServer.DNSPacket packet) {
+        long sequence = ingress.tryClaim();
+        if (sequence < 0) {
+            rejected.increment();
+            return false;
+        }
+        QueryEvent event = ingress.get(sequence);
+        event.packet = packet;
+        ingress.publish(sequence);
+        return true;
+    }
+
+    private void onDecode(QueryEvent event) {
+        if (stages.decode(event)) {
+            forward(event, egress);
+            return;
+        }
+        // 不等待上游阶段的空位，否则上游变慢时解码线程停住，本地应答也会排在上游查询后面
+        long sequence = upstream.tryClaim();
+        if (sequence < 0) {
+            upstreamShed++;
+            stages.shed(event);
+            forward(event, egress);
+            return;
+        }
+        event.moveTo(upstream.get(sequence));
+        upstream.publish(sequence);
+    }
+
+    private void onUpstream(QueryEvent event) {
+        stages.upstream(event);
+        forward(event, egress);
+    }
+
+    private void onSend(QueryEvent event) {
+        try {
+            stages.send(event);
+        } finally {
+            event.clear();
+        }
+    }
+
+    /**
+     * 把槽位内容移动到下一阶段（egress）；已满时等待，停止时直接发送（由send负责归还缓冲区）
+     */
+    private void forward(QueryEvent event, RingBuffer<QueryEvent> next) {
+        long sequence = next.claim(running);
+        if (sequence < 0) {
+            onSend(event);
+            return;
+        }
+        event.moveTo(next.get(sequence));
+        next.publish(sequence);
+    }
+
+    /**
+     * 流水线深度统计，每个环形缓冲区一段
+     * @return 形如 ingress depth=0/1024 max=3 avgBatch=1.2 的统计文本
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (RingBuffer<QueryEvent> ring : Arrays.asList(ingress, upstream, egress)) {
+            long batches = ring.getBatches();
+            sb.append(String.format("%s depth=%d/%d max=%d processed=%d avgBatch=%.1f; ",
+                ring.getName(), ring.getDepth(), ring.getCapacity(), ring.getMaxDepth(),
+                ring.getConsumed(), batches == 0 ? 0.0 : (double) ring.getConsumed() / batches));
+        }
+        sb.append("rejected=").append(rejected.sum()).append(" upstreamShed=").append(upstreamShed);
+        return sb.toString();
+    }
+
+    public RingBuffer<QueryEvent> getIngress() {
+        return ingress;
+    }
+
+    public RingBuffer<QueryEvent> getUpstream() {
+        return upstream;
+    }
+
+    public RingBuffer<QueryEvent> getEgress() {
+        return egress;
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * upstream已满而直接返回过载响应的查询数（其他线程读到的是近似值）
+     */
+    public long getUpstreamShed() {
+        return upstreamShed;
+    }
+}
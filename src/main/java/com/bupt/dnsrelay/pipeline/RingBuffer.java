@@ -0,0 +1,241 @@
+package com.bupt.dnsrelay.pipeline;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * 预分配槽位的有界环形缓冲区
+ * 槽位对象在构造时一次性创建并在整个运行期间复用，生产者和消费者都通过CAS无锁地认领序号，
+ * 每个槽位带一个序号标记它当前可写还是可读（多生产者、多消费者均安全）。
+ *
+ * 消费者一次认领一批连续的已发布槽位，批量处理后逐个归还；
+ * 只有在没有数据且消费者已进入休眠时，生产者才需要加锁唤醒，空转和繁忙时都不加锁。
+ *
+ * @param <E> 槽位对象类型
+ */
+public final class RingBuffer<E> {
+
+    /**
+     * 槽位处理器，在消费者线程上调用；返回后槽位即被归还，处理器不得保留槽位对象
+     */
+    public interface Handler<E> {
+        void onEvent(E event);
+    }
+
+    private final String name;
+    private final Object[] entries;
+    private final AtomicLongArray published; // 每个槽位的状态序号
+    private final int mask;
+    private final Sequence tail = new Sequence(0); // 下一个可认领的生产序号
+    private final Sequence head = new Sequence(0); // 下一个可认领的消费序号
+    private final AtomicLong maxDepth = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final AtomicInteger sleepers = new AtomicInteger();
+
+    /**
+     * 构造函数
+     * @param name 名称（用于统计输出）
+     * @param capacity 容量，向上取整为2的幂
+     * @param factory 槽位对象工厂
+     */
+    public RingBuffer(String name, int capacity, Supplier<E> factory) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.name = name;
+        this.entries = new Object[size];
+        this.published = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            entries[i] = factory.get();
+            published.set(i, i);
+        }
+    }
+
+    /**
+     * 尝试认领一个生产序号，认领后必须填充槽位并调用publish
+     * @return 序号，缓冲区已满时返回-1
+     */
+    public long tryClaim() {
+        while (true) {
+            long pos = tail.get();
+            long state = published.get((int) pos & mask);
+            if (state == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    recordDepth(pos + 1 - head.get());
+                    return pos;
+                }
+            } else if (state < pos) {
+                return -1; // 槽位仍被上一轮的消费者占用
+            }
+            // 其他生产者已认领该序号，重试
+        }
+    }
+
+    /**
+     * 认领一个生产序号，缓冲区满时自旋等待（背压会沿流水线向上游传递）
+     * @param running 流水线是否仍在运行，停止后放弃等待
+     * @return 序号，停止后返回-1
+     */
+    public long claim(BooleanSupplier running) {
+        int spins = 0;
+        while (true) {
+            long pos = tryClaim();
+            if (pos >= 0 || !running.getAsBoolean()) {
+                return pos;
+            }
+            if (++spins < 100) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(50_000L);
+            }
+        }
+    }
+
+    /**
+     * 获取序号对应的槽位对象
+     */
+    @SuppressWarnings("unchecked")
+    public E get(long sequence) {
+        return (E) entries[(int) sequence & mask];
+    }
+
+    /**
+     * 发布已填充的槽位，使消费者可见
+     * @param sequence tryClaim返回的序号
+     */
+    public void publish(long sequence) {
+        published.set((int) sequence & mask, sequence + 1);
+        if (sleepers.get() > 0) {
+            lock.lock();
+            try {
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 认领并处理一批已发布的槽位
+     * @param handler 槽位处理器
+     * @param maxBatch 本次最多处理的槽位数
+     * @return 处理的槽位数，没有可处理的槽位时返回0
+     */
+    public int drain(Handler<E> handler, int maxBatch) {
+        long start;
+        int count;
+        while (true) {
+            start = head.get();
+            count = 0;
+            while (count < maxBatch && published.get((int) (start + count) & mask) == start + count + 1) {
+                count++;
+            }
+            if (count == 0) {
+                return 0;
+            }
+            if (head.compareAndSet(start, start + count)) {
+                break;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            long sequence = start + i;
+            try {
+                handler.onEvent(get(sequence));
+            } finally {
+                published.set((int) sequence & mask, sequence + entries.length);
+            }
+        }
+        batches.incrementAndGet();
+        consumed.addAndGet(count);
+        return count;
+    }
+
+    /**
+     * 没有可处理的槽位时休眠，直到有新槽位发布或超时
+     * @param timeoutNanos 最长休眠时间
+     */
+    void awaitPublished(long timeoutNanos) {
+        sleepers.incrementAndGet();
+        lock.lock();
+        try {
+            // 加锁后再检查一次，生产者发布后一定会在锁内唤醒，不会丢失信号
+            if (!hasPublished()) {
+                notEmpty.await(timeoutNanos, TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+            sleepers.decrementAndGet();
+        }
+    }
+
+    /**
+     * 唤醒所有休眠的消费者（停止时使用）
+     */
+    void wakeAll() {
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean hasPublished() {
+        long start = head.get();
+        return published.get((int) start & mask) == start + 1;
+    }
+
+    private void recordDepth(long depth) {
+        if (depth > maxDepth.get()) {
+            maxDepth.accumulateAndGet(depth, Math::max);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCapacity() {
+        return entries.length;
+    }
+
+    /**
+     * 当前深度：已认领但尚未被消费者认领的槽位数（近似值）
+     */
+    public long getDepth() {
+        return Math.max(0, tail.get() - head.get());
+    }
+
+    /**
+     * 运行以来出现过的最大深度
+     */
+    public long getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    /**
+     * 已处理的槽位总数
+     */
+    public long getConsumed() {
+        return consumed.get();
+    }
+
+    /**
+     * 消费者认领批次总数，与getConsumed相除即为平均批量
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+}
@@ -0,0 +1,19 @@
+package com.bupt.dnsrelay.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 带缓存行填充的序号
+ * 环形缓冲区的生产者序号和消费者序号被不同线程频繁CAS，填充字段使它们不落在同一缓存行上，避免伪共享
+ */
+final class Sequence extends AtomicLong {
+
+    private static final long serialVersionUID = 1L;
+
+    // 填充字段，只用于占位
+    long p1, p2, p3, p4, p5, p6, p7;
+
+    Sequence(long initialValue) {
+        super(initialValue);
+    }
+}
@@ -0,0 +1,68 @@
+package com.bupt.dnsrelay.pipeline;
+
+/**
+ * 流水线阶段线程
+ * 循环地从输入环形缓冲区批量认领槽位并交给处理器；没有数据时先自旋让出CPU，再进入可被唤醒的休眠，
+ * 繁忙时一次唤醒可以处理一整批槽位
+ *
+ * @param <E> 槽位对象类型
+ */
+final class StageWorker<E> implements Runnable {
+
+    private static final int YIELD_LIMIT = 64;            // 休眠前让出CPU的次数
+    private static final long PARK_NANOS = 100_000_000L;  // 单次休眠上限，停止时兜底
+
+    private final RingBuffer<E> ring;
+    private final RingBuffer.Handler<E> handler;
+    private final int batchSize;
+    private volatile boolean isRunning = true;
+    private Thread thread;
+
+    /**
+     * 构造函数
+     * @param ring 输入环形缓冲区
+     * @param handler 槽位处理器
+     * @param batchSize 每次最多认领的槽位数
+     */
+    StageWorker(RingBuffer<E> ring, RingBuffer.Handler<E> handler, int batchSize) {
+        this.ring = ring;
+        this.handler = handler;
+        this.batchSize = batchSize;
+    }
+
+    void start(String threadName) {
+        thread = new Thread(this, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        isRunning = false;
+        ring.wakeAll();
+    }
+
+    void join(long millis) throws InterruptedException {
+        if (thread != null) {
+            thread.join(millis);
+        }
+    }
+
+    @Override
+    public void run() {
+        int idle = 0;
+        while (isRunning) {
+            try {
+                if (ring.drain(handler, batchSize) > 0) {
+                    idle = 0;
+                } else if (++idle < YIELD_LIMIT) {
+                    Thread.yield();
+                } else {
+                    ring.awaitPublished(PARK_NANOS);
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Unexpected error in pipeline stage " + ring.getName() + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.bupt.dnsrelay.utils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * 地址工具类
+ * IPv4地址在查询路径上以打包的int表示，A/AAAA记录以4/16字节的原始RDATA表示，
+ * 只有加载配置、持久化缓存和打印日志时才与字符串互相转换
+ */
+public class AddressUtils {
+
+    /**
+     * 将打包的IPv4地址格式化为点分十进制
+     * @param address 打包后的地址
+     * @return 地址字符串
+     */
+    public static String formatIPv4(int address) {
+        return ((address >>> 24) & 0xFF) + "." + ((address >>> 16) & 0xFF) + "."
+            + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+    }
+
+    /**
+     * 将IP地址字面量（IPv4或IPv6）解析为原始RDATA
+     * @param ip 地址字面量，不会触发DNS解析
+     * @return 4或16字节的地址，格式无效时返回null
+     */
+    public static byte[] parseAddress(String ip) {
+        boolean ipv6 = ip.indexOf(':') >= 0;
+        if (ip.isEmpty()) {
+            return null;
+        }
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+            boolean digit = ipv6 ? Character.digit(c, 16) >= 0 : (c >= '0' && c <= '9');
+            if (!(digit || c == '.' || c == ':')) {
+                return null; // 只接受字面量，避免InetAddress发起主机名解析
+            }
+        }
+        try {
+            return InetAddress.getByName(ip).getAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 将4或16字节的原始地址格式化为字符串
+     * @param rdata 原始地址
+     * @return 地址字符串
+     */
+    public static String formatAddress(byte[] rdata) {
+        if (rdata.length == 4) {
+            return (rdata[0] & 0xFF) + "." + (rdata[1] & 0xFF) + "." + (rdata[2] & 0xFF) + "." + (rdata[3] & 0xFF);
+        }
+        try {
+            return InetAddress.getByAddress(rdata).getHostAddress();
+        } catch (UnknownHostException e) {
+            return "[" + rdata.length + " bytes]";
+        }
+    }
+}
@@ -99,6 +99,8 @@ public class DebugUtils {
                 return "PTR";
             case DNSRecord.TYPE_MX:
                 return "MX";
+            case DNSRecord.TYPE_TXT:
+                return "TXT";
             default:
                 return String.valueOf(queryType);
         }
@@ -0,0 +1,43 @@
+package com.bupt.dnsrelay.utils;
+
+/**
+ * 域名哈希工具类
+ * 对小写点分形式的域名计算64位FNV-1a哈希，配置表、编译后的配置镜像和缓存使用同一算法
+ */
+public class NameHash {
+
+    public static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    public static final long PRIME = 0x100000001b3L;
+
+    /**
+     * 混入一个字符（调用方负责大小写折叠）
+     * @param hash 当前哈希值
+     * @param c 字符
+     * @return 新的哈希值
+     */
+    public static long mix(long hash, int c) {
+        return (hash ^ (c & 0xFF)) * PRIME;
+    }
+
+    /**
+     * 将ASCII大写字母折叠为小写
+     * @param c 字符
+     * @return 小写字符
+     */
+    public static int fold(int c) {
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+
+    /**
+     * 计算点分形式域名的哈希值，忽略大小写
+     * @param domain 域名
+     * @return 64位哈希值
+     */
+    public static long hash(CharSequence domain) {
+        long h = OFFSET_BASIS;
+        for (int i = 0; i < domain.length(); i++) {
+            h = mix(h, fold(domain.charAt(i)));
+        }
+        return h;
+    }
+}
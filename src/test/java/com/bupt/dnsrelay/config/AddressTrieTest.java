@@ -0,0 +1,196 @@
+package com.bupt.dnsrelay.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * 检查AddressTrie的最长前缀匹配：嵌套网段、IPv4与IPv4映射IPv6地址、分支节点的拆分，并与逐条比较的结果对照
+ */
+public class AddressTrieTest {
+
+    @Test
+    public void longestPrefixWins() throws Exception {
+        AddressTrie<String> trie = new AddressTrie<>();
+        trie.put("10.0.0.0/8", "wide");
+        trie.put("10.1.0.0/16", "middle");
+        trie.put("10.1.2.0/24", "narrow");
+        trie.put("10.1.2.3", "host");
+        assertEquals(4, trie.size());
+
+        assertEquals("host", trie.lookup(address("10.1.2.3")));
+        assertEquals("narrow", trie.lookup(address("10.1.2.4")));
+        assertEquals("middle", trie.lookup(address("10.1.3.1")));
+        assertEquals("wide", trie.lookup(address("10.200.0.1")));
+        assertNull(trie.lookup(address("11.0.0.1")));
+    }
+
+    @Test
+    public void insertionOrderDoesNotMatter() throws Exception {
+        AddressTrie<String> trie = new AddressTrie<>();
+        trie.put("192.168.1.128/25", "upper");
+        trie.put("192.168.1.0/25", "lower");
+        trie.put("192.168.0.0/16", "site"); // 插在已有节点之上
+        assertEquals("upper", trie.lookup(address("192.168.1.200")));
+        assertEquals("lower", trie.lookup(address("192.168.1.5")));
+        assertEquals("site", trie.lookup(address("192.168.7.7")));
+        assertNull(trie.lookup(address("192.169.0.1")));
+    }
+
+    @Test
+    public void laterPutOverridesSameNetwork() throws Exception {
+        AddressTrie<String> trie = new AddressTrie<>();
+        trie.put("172.16.0.0/12", "first");
+        trie.put("172.16.0.0/12", "second");
+        assertEquals(1, trie.size());
+        assertEquals("second", trie.lookup(address("172.20.1.1")));
+    }
+
+    @Test
+    public void ipv4AndIpv6ShareOneTree() throws Exception {
+        AddressTrie<String> trie = new AddressTrie<>();
+        trie.put("0.0.0.0/0", "any-v4");
+        trie.put("2001:db8::/32", "doc");
+        trie.put("2001:db8:1::/48", "doc-sub");
+        assertEquals("any-v4", trie.lookup(address("8.8.8.8")));
+        assertEquals("any-v4", trie.lookup(address("::ffff:8.8.8.8")));
+        assertEquals("doc-sub", trie.lookup(address("2001:db8:1::53")));
+        assertEquals("doc", trie.lookup(address("2001:db8:2::53")));
+        // IPv4的默认网段只覆盖::ffff:0:0/96
+        assertNull(trie.lookup(address("2001:db9::1")));
+
+        trie.put("::/0", "any");
+        assertEquals("any", trie.lookup(address("2001:db9::1")));
+        assertEquals("any-v4", trie.lookup(address("1.2.3.4")));
+    }
+
+    @Test
+    public void fullLengthIpv6Host() throws Exception {
+        AddressTrie<String> trie = new AddressTrie<>();
+        trie.put("fe80::1", "host");
+        trie.put("fe80::/64", "link");
+        assertEquals("host", trie.lookup(address("fe80::1")));
+        assertEquals("link", trie.lookup(address("fe80::2")));
+    }
+
+    @Test
+    public void rejectsInvalidNetworks() {
+        AddressTrie<String> trie = new AddressTrie<>();
+        for (String bad : new String[] { "10.0.0.0/33", "10.0.0.0/-1", "10.0.0.0/x", "10.0.0.256",
+            "example.com", "2001:db8::/129", "2001:zz::1" }) {
+            try {
+                trie.put(bad, "bad");
+                fail("accepted " + bad);
+            } catch (IllegalArgumentException expected) {
+                // 无效网段
+            }
+        }
+        assertEquals(0, trie.size());
+    }
+
+    @Test
+    public void randomizedLookupsMatchLinearScan() throws Exception {
+        Random random = new Random(7L);
+        AddressTrie<String> trie = new AddressTrie<>();
+        Map<String, Prefix> prefixes = new LinkedHashMap<>();
+        for (int i = 0; i < 400; i++) {
+            Prefix prefix = random.nextBoolean() ? randomIpv4(random) : randomIpv6(random);
+            String cidr = prefix.cidr();
+            prefixes.put(cidr, prefix);
+            prefix.value = cidr + "#" + i;
+            trie.put(cidr, prefix.value);
+        }
+        assertEquals(prefixes.size(), trie.size());
+
+        List<Prefix> all = new ArrayList<>(prefixes.values());
+        for (int i = 0; i < 5000; i++) {
+            long hi;
+            long lo;
+            if (random.nextBoolean()) {
+                // 在已有网段内部取地址，保证有足够多的命中
+                Prefix base = all.get(random.nextInt(all.size()));
+                hi = base.hi | (random.nextLong() & ~mask(base.length, 0));
+                lo = base.lo | (random.nextLong() & ~mask(base.length, 64));
+            } else {
+                hi = random.nextBoolean() ? 0L : random.nextLong();
+                lo = hi == 0L ? 0x0000FFFF00000000L | (random.nextInt() & 0xFFFFFFFFL) : random.nextLong();
+            }
+            Prefix best = null;
+            for (Prefix prefix : all) {
+                if (prefix.contains(hi, lo) && (best == null || prefix.length > best.length)) {
+                    best = prefix;
+                }
+            }
+            assertEquals(best == null ? null : best.value, trie.lookup(hi, lo));
+        }
+    }
+
+    private static InetAddress address(String literal) throws Exception {
+        return InetAddress.getByName(literal);
+    }
+
+    /**
+     * 某个128位地址片段（从offset位开始的64位）上前length位的掩码
+     */
+    private static long mask(int length, int offset) {
+        int bits = Math.max(0, Math.min(64, length - offset));
+        return bits == 0 ? 0L : -1L << (64 - bits);
+    }
+
+    private static Prefix randomIpv4(Random random) {
+        int length = random.nextInt(33);
+        long v4 = random.nextInt() & 0xFFFFFFFFL;
+        return new Prefix(0L, 0x0000FFFF00000000L | v4, 96 + length, true);
+    }
+
+    private static Prefix randomIpv6(Random random) {
+        // 高位取自少量前缀，使网段之间有较多的公共前缀和嵌套
+        long hi = 0x20010DB800000000L | ((long) random.nextInt(4) << 28) | (random.nextLong() & 0x0FFFFFFFL);
+        return new Prefix(hi, random.nextLong(), 16 + random.nextInt(113), false);
+    }
+
+    /**
+     * 逐条比较用的网段，地址已按前缀长度截断
+     */
+    private static final class Prefix {
+        final long hi;
+        final long lo;
+        final int length;
+        final boolean ipv4;
+        String value;
+
+        Prefix(long hi, long lo, int length, boolean ipv4) {
+            this.hi = hi & mask(length, 0);
+            this.lo = lo & mask(length, 64);
+            this.length = length;
+            this.ipv4 = ipv4;
+        }
+
+        boolean contains(long addrHi, long addrLo) {
+            return (addrHi & mask(length, 0)) == hi && (addrLo & mask(length, 64)) == lo;
+        }
+
+        String cidr() throws Exception {
+            byte[] bytes = new byte[16];
+            for (int i = 0; i < 8; i++) {
+                bytes[i] = (byte) (hi >>> (56 - 8 * i));
+                bytes[8 + i] = (byte) (lo >>> (56 - 8 * i));
+            }
+            if (ipv4) {
+                String v4 = InetAddress.getByAddress(Arrays.copyOfRange(bytes, 12, 16)).getHostAddress();
+                return v4 + "/" + (length - 96);
+            }
+            return InetAddress.getByAddress(bytes).getHostAddress() + "/" + length;
+        }
+    }
+}
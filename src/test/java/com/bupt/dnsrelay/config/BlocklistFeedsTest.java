@@ -0,0 +1,151 @@
+package com.bupt.dnsrelay.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.bupt.dnsrelay.dns.NameKey;
+
+/**
+ * 检查BlocklistFeeds：基础列表的格式、加载时补上已有的增量、按版本号依次应用新增量（缺号时停下）、
+ * 基础列表被替换后重新加载
+ */
+public class BlocklistFeedsTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File list;
+    private File subscriptions;
+
+    @Before
+    public void setUp() throws IOException {
+        list = folder.newFile("ads.txt");
+        subscriptions = folder.newFile("feeds.txt");
+        write(subscriptions, "# 订阅", "feed ads " + list.getPath());
+    }
+
+    @Test
+    public void loadsBaseListInPlainAndHostsFormat() throws IOException {
+        write(list,
+            "# version 3",
+            "ads.example.com",
+            "0.0.0.0 tracker.example.net",
+            "127.0.0.1   Metrics.Example.ORG",
+            "",
+            "# comment",
+            "*.wildcard.example",
+            "bad..name");
+        BlocklistFeeds feeds = BlocklistFeeds.load(subscriptions.getPath(), 0);
+        assertTrue(blocked(feeds, "ads.example.com"));
+        assertTrue(blocked(feeds, "TRACKER.example.net"));
+        assertTrue(blocked(feeds, "metrics.example.org"));
+        assertFalse(blocked(feeds, "example.com"));
+        assertFalse("no implied subdomains", blocked(feeds, "www.ads.example.com"));
+        assertEquals(3, feeds.getEntryCount());
+        assertTrue(feeds.describe(), feeds.describe().contains("version=3"));
+        assertTrue(feeds.describe(), feeds.describe().contains("skipped=2"));
+    }
+
+    @Test
+    public void appliesExistingDeltasAtLoadInVersionOrder() throws IOException {
+        write(list, "# version 5", "a.example", "b.example");
+        write(delta(6), "+c.example", "-a.example");
+        write(delta(7), "+a.example", "-c.example", "+d.example");
+        write(delta(9), "+skipped.example"); // 缺少版本8，不能越过
+        BlocklistFeeds feeds = BlocklistFeeds.load(subscriptions.getPath(), 0);
+        assertTrue(blocked(feeds, "a.example"));
+        assertTrue(blocked(feeds, "b.example"));
+        assertFalse(blocked(feeds, "c.example"));
+        assertTrue(blocked(feeds, "d.example"));
+        assertFalse(blocked(feeds, "skipped.example"));
+        assertEquals(3, feeds.getEntryCount());
+        assertTrue(feeds.describe(), feeds.describe().contains("version=7 entries=3 deltas=2"));
+
+        write(delta(8), "-b.example");
+        feeds.update();
+        assertFalse(blocked(feeds, "b.example"));
+        assertTrue("version 9 follows once 8 exists", blocked(feeds, "skipped.example"));
+        assertTrue(feeds.describe(), feeds.describe().contains("version=9 entries=3 deltas=4"));
+    }
+
+    @Test
+    public void deltaWithoutNewFilesChangesNothing() throws IOException {
+        write(list, "a.example");
+        BlocklistFeeds feeds = BlocklistFeeds.load(subscriptions.getPath(), 0);
+        feeds.update();
+        feeds.update();
+        assertTrue(blocked(feeds, "a.example"));
+        assertTrue(feeds.describe(), feeds.describe().contains("version=0 entries=1 deltas=0"));
+    }
+
+    @Test
+    public void invalidDeltaLinesAreSkippedAndDuplicatesCountOnce() throws IOException {
+        write(list, "a.example");
+        BlocklistFeeds feeds = BlocklistFeeds.load(subscriptions.getPath(), 0);
+        write(delta(1), "+a.example", "+A.Example", "-missing.example", "garbage.example", "+", "+new.example");
+        feeds.update();
+        assertTrue(blocked(feeds, "a.example"));
+        assertTrue(blocked(feeds, "new.example"));
+        assertFalse(blocked(feeds, "garbage.example"));
+        assertEquals(2, feeds.getEntryCount());
+    }
+
+    @Test
+    public void replacedBaseListIsReloadedThenFollowedByItsDeltas() throws IOException {
+        write(list, "# version 1", "old.example");
+        write(delta(2), "+old2.example");
+        BlocklistFeeds feeds = BlocklistFeeds.load(subscriptions.getPath(), 0);
+        assertTrue(blocked(feeds, "old2.example"));
+
+        write(list, "# version 10", "fresh.example", "fresh2.example");
+        write(delta(11), "-fresh2.example", "+fresh3.example");
+        feeds.update();
+        assertFalse(blocked(feeds, "old.example"));
+        assertFalse(blocked(feeds, "old2.example"));
+        assertTrue(blocked(feeds, "fresh.example"));
+        assertFalse(blocked(feeds, "fresh2.example"));
+        assertTrue(blocked(feeds, "fresh3.example"));
+        assertTrue(feeds.describe(), feeds.describe().contains("version=11 entries=2"));
+    }
+
+    @Test
+    public void anyFeedBlocks() throws IOException {
+        File other = folder.newFile("malware.txt");
+        write(list, "ads.example");
+        write(other, "malware.example", "ads.example");
+        write(subscriptions, "feed ads " + list.getPath(), "feed malware " + other.getPath(), "bogus line");
+        BlocklistFeeds feeds = BlocklistFeeds.load(subscriptions.getPath(), 0);
+        assertTrue(blocked(feeds, "ads.example"));
+        assertTrue(blocked(feeds, "malware.example"));
+        assertEquals("duplicates across feeds count separately", 3, feeds.getEntryCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void missingSubscriptionFileFails() throws IOException {
+        BlocklistFeeds.load(new File(folder.getRoot(), "none.txt").getPath(), 0);
+    }
+
+    private File delta(long version) {
+        return new File(list.getPath() + "." + version + ".delta");
+    }
+
+    private static boolean blocked(BlocklistFeeds feeds, String name) {
+        return feeds.isBlocked(NameKey.fromDomain(name, 1, 1));
+    }
+
+    private static void write(File file, String... lines) throws IOException {
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+    }
+}
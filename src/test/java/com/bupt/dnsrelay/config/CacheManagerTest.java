@@ -0,0 +1,389 @@
+package com.bupt.dnsrelay.config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.bupt.dnsrelay.dns.DNSMessage;
+import com.bupt.dnsrelay.dns.DNSRecord;
+import com.bupt.dnsrelay.dns.NameKey;
+
+/**
+ * 检查CacheManager：CNAME链按段存为独立的记录集、从缓存的共享目标拼接新名字的应答（各段带自己剩余的TTL）、
+ * 过期、按上游组范围采信、不缓存截断和失败的响应、TTL上限，以及cache.txt的读写（包括旧格式）。
+ * 时钟由测试控制。
+ */
+public class CacheManagerTest {
+
+    private static final long START = 1_700_000_000_000L;
+    private static final byte[] ORIGIN = { (byte) 192, 0, 2, 1 };
+    private static final byte[] ORIGIN6 = { 0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 };
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private long now = START;
+    private CacheManager cache;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.getRoot(), "cache.txt");
+        cache = open();
+    }
+
+    private CacheManager open() throws IOException {
+        return new CacheManager(file.getPath(), () -> now);
+    }
+
+    private static NameKey key(String domain, int type) {
+        return NameKey.fromDomain(domain, type, DNSRecord.CLASS_IN);
+    }
+
+    /**
+     * www.example -> edge.cdn.example -> origin.cdn.example A，TTL分别为300、60、30
+     */
+    private int putChain(CacheManager target) {
+        byte[] response = new Response("www.example", DNSRecord.TYPE_A)
+            .cname("www.example", 300, "edge.cdn.example")
+            .cname("edge.cdn.example", 60, "origin.cdn.example")
+            .record("origin.cdn.example", DNSRecord.TYPE_A, 30, ORIGIN)
+            .build();
+        return target.putResponse(key("www.example", DNSRecord.TYPE_A), response, response.length, name -> true);
+    }
+
+    @Test
+    public void storesEachChainLinkAsItsOwnRrset() {
+        assertEquals(3, putChain(cache));
+        assertEquals(3, cache.size());
+
+        List<Rr> link = lookup("edge.cdn.example", DNSRecord.TYPE_CNAME);
+        assertEquals(1, link.size());
+        assertRecord(link.get(0), "edge.cdn.example", DNSRecord.TYPE_CNAME, 60);
+        assertEquals("origin.cdn.example", NameKey.toDomainString(link.get(0).rdata, 0));
+
+        List<Rr> address = lookup("ORIGIN.cdn.example", DNSRecord.TYPE_A);
+        assertEquals(1, address.size());
+        assertRecord(address.get(0), "ORIGIN.cdn.example", DNSRecord.TYPE_A, 30);
+        assertArrayEquals(ORIGIN, address.get(0).rdata);
+
+        List<Rr> full = lookup("www.example", DNSRecord.TYPE_A);
+        assertEquals(3, full.size());
+        assertRecord(full.get(0), "www.example", DNSRecord.TYPE_CNAME, 300);
+        assertRecord(full.get(1), "edge.cdn.example", DNSRecord.TYPE_CNAME, 60);
+        assertRecord(full.get(2), "origin.cdn.example", DNSRecord.TYPE_A, 30);
+    }
+
+    @Test
+    public void stitchesNewAliasOntoCachedSharedTarget() {
+        putChain(cache);
+        now += 10_000;
+        // 新名字的响应只有指向共享目标的CNAME，其余部分取自缓存
+        byte[] response = new Response("img.example", DNSRecord.TYPE_A)
+            .cname("img.example", 600, "edge.cdn.example")
+            .build();
+        assertEquals(1, cache.putResponse(key("img.example", DNSRecord.TYPE_A), response, response.length, name -> true));
+
+        now += 5_000;
+        List<Rr> records = lookup("img.example", DNSRecord.TYPE_A);
+        assertEquals(3, records.size());
+        assertRecord(records.get(0), "img.example", DNSRecord.TYPE_CNAME, 595);
+        assertRecord(records.get(1), "edge.cdn.example", DNSRecord.TYPE_CNAME, 45);
+        assertRecord(records.get(2), "origin.cdn.example", DNSRecord.TYPE_A, 15);
+        assertArrayEquals(ORIGIN, records.get(2).rdata);
+    }
+
+    @Test
+    public void expiredLinksAreMisses() {
+        putChain(cache);
+        now += 30_000;
+        assertEquals(ConfigTable.ANSWER_NOT_FOUND, append("www.example", DNSRecord.TYPE_A, new byte[512]));
+        assertEquals(ConfigTable.ANSWER_NOT_FOUND, append("origin.cdn.example", DNSRecord.TYPE_A, new byte[512]));
+        assertEquals("the longer-lived link is still there", 1, lookup("www.example", DNSRecord.TYPE_CNAME).size());
+        now += 60_000;
+        assertEquals(ConfigTable.ANSWER_NOT_FOUND, append("edge.cdn.example", DNSRecord.TYPE_CNAME, new byte[512]));
+    }
+
+    @Test
+    public void outOfBailiwickTargetsAreNotCached() {
+        byte[] response = new Response("www.example", DNSRecord.TYPE_A)
+            .cname("www.example", 300, "edge.cdn.example")
+            .cname("edge.cdn.example", 60, "origin.cdn.example")
+            .record("origin.cdn.example", DNSRecord.TYPE_A, 30, ORIGIN)
+            .build();
+        NameKey outside = key("edge.cdn.example", 0);
+        int stored = cache.putResponse(key("www.example", DNSRecord.TYPE_A), response, response.length,
+            name -> !name.nameEquals(outside));
+        assertEquals("only the CNAME pointing out of the group", 1, stored);
+        assertEquals(1, lookup("www.example", DNSRecord.TYPE_CNAME).size());
+        assertEquals(ConfigTable.ANSWER_NOT_FOUND, append("edge.cdn.example", DNSRecord.TYPE_CNAME, new byte[512]));
+        assertEquals(ConfigTable.ANSWER_NOT_FOUND, append("origin.cdn.example", DNSRecord.TYPE_A, new byte[512]));
+        assertEquals(ConfigTable.ANSWER_NOT_FOUND, append("www.example", DNSRecord.TYPE_A, new byte[512]));
+    }
+
+    @Test
+    public void truncatedAndFailedResponsesAreNotCached() {
+        Response answer = new Response("host.example", DNSRecord.TYPE_A)
+            .record("host.example", DNSRecord.TYPE_A, 300, ORIGIN);
+        byte[] truncated = answer.build();
+        truncated[2] |= 0x02;
+        byte[] nxdomain = answer.build();
+        nxdomain[3] |= DNSMessage.RCODE_NXDOMAIN;
+        byte[] servfail = answer.build();
+        servfail[3] |= DNSMessage.RCODE_SERVFAIL;
+        NameKey key = key("host.example", DNSRecord.TYPE_A);
+        assertEquals(0, cache.putResponse(key, truncated, truncated.length, name -> true));
+        assertEquals(0, cache.putResponse(key, nxdomain, nxdomain.length, name -> true));
+        assertEquals(0, cache.putResponse(key, servfail, servfail.length, name -> true));
+        assertEquals(0, cache.size());
+
+        byte[] ok = answer.build();
+        assertEquals(1, cache.putResponse(key, ok, ok.length, name -> true));
+    }
+
+    @Test
+    public void ttlsAreCappedAndHighBitMeansZero() {
+        byte[] hostile = new Response("pinned.example", DNSRecord.TYPE_A)
+            .record("pinned.example", DNSRecord.TYPE_A, 0x80000000L, ORIGIN)
+            .build();
+        assertEquals(0, cache.putResponse(key("pinned.example", DNSRecord.TYPE_A), hostile, hostile.length, name -> true));
+
+        byte[] longLived = new Response("long.example", DNSRecord.TYPE_A)
+            .cname("long.example", 0x7FFFFFFFL, "target.example")
+            .record("target.example", DNSRecord.TYPE_A, 1_000_000L, ORIGIN)
+            .build();
+        assertEquals(2, cache.putResponse(key("long.example", DNSRecord.TYPE_A), longLived, longLived.length, name -> true));
+        for (Rr record : lookup("long.example", DNSRecord.TYPE_A)) {
+            assertEquals(86_400, record.ttl);
+        }
+        assertEquals(0, CacheManager.cacheTtl(0xFFFFFFFFL));
+        assertEquals(60, CacheManager.cacheTtl(60));
+    }
+
+    @Test
+    public void cacheFileRoundTripKeepsRrsetsAndRemainingTtl() throws IOException {
+        putChain(cache);
+        byte[] v6 = new Response("v6.example", DNSRecord.TYPE_AAAA)
+            .record("v6.example", DNSRecord.TYPE_AAAA, 120, ORIGIN6)
+            .record("v6.example", DNSRecord.TYPE_AAAA, 120, ORIGIN)  // wrong length for AAAA, skipped
+            .build();
+        assertEquals(1, cache.putResponse(key("v6.example", DNSRecord.TYPE_AAAA), v6, v6.length, name -> true));
+        cache.stop();
+
+        now += 10_000;
+        CacheManager reloaded = open();
+        assertEquals(4, reloaded.size());
+        List<Rr> records = lookup(reloaded, "www.example", DNSRecord.TYPE_A);
+        assertEquals(3, records.size());
+        assertRecord(records.get(0), "www.example", DNSRecord.TYPE_CNAME, 290);
+        assertRecord(records.get(1), "edge.cdn.example", DNSRecord.TYPE_CNAME, 50);
+        assertRecord(records.get(2), "origin.cdn.example", DNSRecord.TYPE_A, 20);
+        List<Rr> address6 = lookup(reloaded, "v6.example", DNSRecord.TYPE_AAAA);
+        assertEquals(1, address6.size());
+        assertArrayEquals(ORIGIN6, address6.get(0).rdata);
+    }
+
+    @Test
+    public void loadsLegacyLinesAndSkipsExpiredOrInvalidOnes() throws IOException {
+        long seconds = START / 1000;
+        Files.write(file.toPath(), Arrays.asList(
+            "# cache",
+            "192.0.2.1 old.example",
+            "192.0.2.2 typed.example:1",
+            "192.0.2.3 rrset.example:1 " + (seconds + 100),
+            "192.0.2.4 rrset.example:1 " + (seconds + 100),
+            "192.0.2.5 gone.example:1 " + (seconds - 1),
+            "not-an-address broken.example:1 " + (seconds + 100),
+            "lonely"), StandardCharsets.UTF_8);
+        CacheManager loaded = open();
+        assertEquals(3, loaded.size());
+
+        List<Rr> legacy = lookup(loaded, "old.example", DNSRecord.TYPE_A);
+        assertEquals(1, legacy.size());
+        assertEquals("legacy lines get the default TTL", 300, legacy.get(0).ttl);
+        assertEquals(1, lookup(loaded, "typed.example", DNSRecord.TYPE_A).size());
+        List<Rr> rrset = lookup(loaded, "rrset.example", DNSRecord.TYPE_A);
+        assertEquals(2, rrset.size());
+        assertEquals(100, rrset.get(1).ttl);
+        assertEquals(ConfigTable.ANSWER_NOT_FOUND, append(loaded, "gone.example", DNSRecord.TYPE_A, new byte[512]));
+        assertEquals(ConfigTable.ANSWER_NOT_FOUND, append(loaded, "broken.example", DNSRecord.TYPE_A, new byte[512]));
+    }
+
+    private List<Rr> lookup(String domain, int type) {
+        return lookup(cache, domain, type);
+    }
+
+    private int append(String domain, int type, byte[] out) {
+        return append(cache, domain, type, out);
+    }
+
+    private static List<Rr> lookup(CacheManager target, String domain, int type) {
+        byte[] out = new byte[512];
+        int end = append(target, domain, type, out);
+        assertTrue("cache miss for " + domain + ": " + end, end > 0);
+        return Rr.parse(out, end);
+    }
+
+    /**
+     * 写好报文头和问题部分，再把缓存的应答拼在问题部分之后
+     */
+    private static int append(CacheManager target, String domain, int type, byte[] out) {
+        NameKey key = key(domain, type);
+        byte[] wire = ZoneBuilder.wireName(key);
+        System.arraycopy(wire, 0, out, 12, wire.length);
+        out[5] = 1;
+        int pos = 12 + wire.length;
+        out[pos + 1] = (byte) type;
+        out[pos + 3] = (byte) DNSRecord.CLASS_IN;
+        return target.appendAnswer(key, out, pos + 4);
+    }
+
+    private static void assertRecord(Rr record, String owner, int type, long ttl) {
+        assertTrue(record.name + " != " + owner, record.name.equalsIgnoreCase(owner));
+        assertEquals(type, record.type);
+        assertEquals(DNSRecord.CLASS_IN, record.dnsClass);
+        assertEquals(ttl, record.ttl);
+    }
+
+    /**
+     * 手工构造的上游响应，名字不压缩
+     */
+    private static final class Response {
+        private final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        private final byte[] question;
+        private int count;
+
+        Response(String name, int type) {
+            byte[] wire = ZoneBuilder.wireName(key(name, type));
+            question = Arrays.copyOf(wire, wire.length + 4);
+            question[wire.length + 1] = (byte) type;
+            question[wire.length + 3] = (byte) DNSRecord.CLASS_IN;
+        }
+
+        Response cname(String owner, long ttl, String target) {
+            return record(owner, DNSRecord.TYPE_CNAME, ttl, ZoneBuilder.wireName(key(target, 0)));
+        }
+
+        Response record(String owner, int type, long ttl, byte[] rdata) {
+            byte[] name = ZoneBuilder.wireName(key(owner, 0));
+            records.write(name, 0, name.length);
+            writeShort(type);
+            writeShort(DNSRecord.CLASS_IN);
+            writeShort((int) (ttl >>> 16));
+            writeShort((int) ttl);
+            writeShort(rdata.length);
+            records.write(rdata, 0, rdata.length);
+            count++;
+            return this;
+        }
+
+        private void writeShort(int value) {
+            records.write(value >> 8);
+            records.write(value);
+        }
+
+        byte[] build() {
+            byte[] body = records.toByteArray();
+            byte[] message = new byte[12 + question.length + body.length];
+            message[0] = 0x12;
+            message[1] = 0x34;
+            message[2] = (byte) 0x81; // QR RD
+            message[3] = (byte) 0x80; // RA
+            message[5] = 1;
+            message[6] = (byte) (count >> 8);
+            message[7] = (byte) count;
+            System.arraycopy(question, 0, message, 12, question.length);
+            System.arraycopy(body, 0, message, 12 + question.length, body.length);
+            return message;
+        }
+    }
+
+    /**
+     * 从拼接出的应答中解析的资源记录，所有者名沿压缩指针展开
+     */
+    private static final class Rr {
+        final String name;
+        final int type;
+        final int dnsClass;
+        final long ttl;
+        final byte[] rdata;
+
+        Rr(String name, int type, int dnsClass, long ttl, byte[] rdata) {
+            this.name = name;
+            this.type = type;
+            this.dnsClass = dnsClass;
+            this.ttl = ttl;
+            this.rdata = rdata;
+        }
+
+        static List<Rr> parse(byte[] message, int end) {
+            int count = readShort(message, 6);
+            int pos = skipName(message, 12) + 4;
+            List<Rr> records = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                String owner = readName(message, pos);
+                pos = skipName(message, pos);
+                int length = readShort(message, pos + 8);
+                records.add(new Rr(owner, readShort(message, pos), readShort(message, pos + 2),
+                    ((long) readShort(message, pos + 4) << 16) | readShort(message, pos + 6),
+                    Arrays.copyOfRange(message, pos + 10, pos + 10 + length)));
+                pos += 10 + length;
+            }
+            assertEquals("records end where appendAnswer said", end, pos);
+            return records;
+        }
+
+        private static int skipName(byte[] data, int pos) {
+            while (true) {
+                int len = data[pos] & 0xFF;
+                if (len == 0) {
+                    return pos + 1;
+                }
+                if ((len & 0xC0) == 0xC0) {
+                    return pos + 2;
+                }
+                pos += len + 1;
+            }
+        }
+
+        private static String readName(byte[] data, int pos) {
+            StringBuilder name = new StringBuilder();
+            for (int hops = 0; ; ) {
+                int len = data[pos] & 0xFF;
+                if (len == 0) {
+                    return name.toString();
+                }
+                if ((len & 0xC0) == 0xC0) {
+                    assertTrue("pointer loop", ++hops < 16);
+                    int target = ((len & 0x3F) << 8) | (data[pos + 1] & 0xFF);
+                    assertTrue("pointer must go backwards", target < pos);
+                    pos = target;
+                    continue;
+                }
+                if (name.length() > 0) {
+                    name.append('.');
+                }
+                name.append(new String(data, pos + 1, len, StandardCharsets.US_ASCII));
+                pos += len + 1;
+            }
+        }
+
+        private static int readShort(byte[] data, int pos) {
+            return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+        }
+    }
+}
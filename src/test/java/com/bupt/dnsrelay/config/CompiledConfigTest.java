@@ -0,0 +1,105 @@
+package com.bupt.dnsrelay.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.bupt.dnsrelay.dns.NameKey;
+
+/**
+ * 检查编译后的镜像：精确条目和通配符拦截规则都写入镜像，映射后与文本配置的查询结果一致；
+ * 条目偏移损坏的镜像在映射时被拒绝，重新加载时保留旧配置
+ */
+public class CompiledConfigTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static NameKey key(String domain) {
+        return NameKey.fromDomain(domain, 0, 0);
+    }
+
+    @Test
+    public void patternRulesSurviveCompilation() throws IOException {
+        File text = folder.newFile("dnsrelay.txt");
+        Files.write(text.toPath(), Arrays.asList(
+            "192.0.2.1 host.example",
+            "0.0.0.0 ads.example",
+            "0.0.0.0 *.tracker.example",
+            "0.0.0.0 metrics*.example",
+            "192.0.2.2 allowed.tracker.example"), StandardCharsets.US_ASCII);
+        ConfigParser parser = new ConfigParser();
+        parser.loadConfig(text.getPath());
+        File image = new File(folder.getRoot(), "dnsrelay.bin");
+        ConfigCompiler.compile((ConfigSnapshot) parser.getSnapshot(), image);
+
+        ConfigParser mapped = new ConfigParser();
+        mapped.loadConfig(image.getPath());
+        ConfigTable compiled = mapped.getSnapshot();
+        assertTrue(compiled instanceof CompiledConfig);
+        assertEquals(2, compiled.patternCount());
+        for (ConfigTable table : new ConfigTable[] { parser.getSnapshot(), compiled }) {
+            assertTrue(table.isBlocked(key("ads.example")));
+            assertTrue(table.isBlocked(key("x.tracker.example")));
+            assertTrue(table.isBlocked(key("METRICS2.example")));
+            assertEquals(0L, table.lookupIPv4(key("a.b.tracker.example")));
+            assertEquals(ConfigTable.ANSWER_BLOCKED, table.appendAnswer(key("x.tracker.example"), 1, new byte[512], 32));
+            assertFalse("exact entries win over patterns", table.isBlocked(key("allowed.tracker.example")));
+            assertEquals(0xC0000202L, table.lookupIPv4(key("allowed.tracker.example")));
+            assertFalse(table.isBlocked(key("host.example")));
+            assertEquals(ConfigTable.NOT_FOUND, table.lookupIPv4(key("other.example")));
+        }
+    }
+
+    @Test
+    public void corruptedEntryOffsetsAreRejectedAtMapTime() throws IOException {
+        File text = folder.newFile("dnsrelay.txt");
+        Files.write(text.toPath(), Arrays.asList("192.0.2.1 host.example", "0.0.0.0 ads.example"),
+            StandardCharsets.US_ASCII);
+        ConfigParser parser = new ConfigParser();
+        parser.loadConfig(text.getPath());
+        File image = new File(folder.getRoot(), "dnsrelay.bin");
+        ConfigCompiler.compile((ConfigSnapshot) parser.getSnapshot(), image);
+        byte[] good = Files.readAllBytes(image.toPath());
+
+        ConfigParser mapped = new ConfigParser();
+        mapped.loadConfig(image.getPath());
+        int namesOffset = ByteBuffer.wrap(good).getInt(20);
+        int[][] corruptions = {
+            { CompiledConfig.HEADER_SIZE + 8, good.length + 100 },       // 名字偏移越过文件末尾
+            { CompiledConfig.HEADER_SIZE + 12, namesOffset },            // 数据偏移指向名字区
+            { CompiledConfig.HEADER_SIZE + CompiledConfig.ENTRY_SIZE + 12, good.length - 1 } // 条目头部被截断
+        };
+        for (int[] corruption : corruptions) {
+            byte[] bad = good.clone();
+            ByteBuffer.wrap(bad).putInt(corruption[0], corruption[1]);
+            File temp = folder.newFile();
+            Files.write(temp.toPath(), bad);
+            try {
+                CompiledConfig.open(temp);
+                fail("corrupted entry offset at " + corruption[0] + " was accepted");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("Corrupted"));
+            }
+
+            // 像编译器一样重命名替换，已映射的旧镜像不受影响
+            Files.move(temp.toPath(), image.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            assertFalse(mapped.reload());
+            assertEquals(0xC0000201L, mapped.getSnapshot().lookupIPv4(key("host.example")));
+            assertTrue(mapped.getSnapshot().isBlocked(key("ads.example")));
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.bupt.dnsrelay.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.bupt.dnsrelay.dns.NameKey;
+
+/**
+ * 检查NameIndex：扩容、哈希碰撞时由校验器区分、向后移位删除后探测链仍然完整
+ */
+public class NameIndexTest {
+
+    private final List<NameKey> slots = new ArrayList<>();
+
+    private NameIndex newIndex(int expected) {
+        return new NameIndex(expected, (slot, key) -> slots.get(slot).nameEquals(key));
+    }
+
+    private int addSlot(String name) {
+        slots.add(NameKey.fromDomain(name, 0, 0));
+        return slots.size() - 1;
+    }
+
+    @Test
+    public void findsInsertedEntriesAcrossResizes() {
+        NameIndex index = newIndex(1);
+        for (int i = 0; i < 1000; i++) {
+            int slot = addSlot("host" + i + ".example");
+            index.insert(slots.get(slot).nameHash(), slot);
+        }
+        assertEquals(1000, index.size());
+        for (int i = 0; i < 1000; i++) {
+            NameKey key = NameKey.fromDomain("HOST" + i + ".Example", 1, 1);
+            assertEquals(i, index.find(key.nameHash(), key));
+        }
+        NameKey missing = NameKey.fromDomain("host1000.example", 0, 0);
+        assertEquals(-1, index.find(missing.nameHash(), missing));
+    }
+
+    @Test
+    public void verifierSeparatesCollidingHashes() {
+        NameIndex index = newIndex(4);
+        long forced = 42L;
+        int a = addSlot("a.example");
+        int b = addSlot("b.example");
+        int c = addSlot("c.example");
+        index.insert(forced, a);
+        index.insert(forced, b);
+        index.insert(forced, c);
+        assertEquals(b, index.find(forced, NameKey.fromDomain("b.example", 0, 0)));
+        assertEquals(c, index.find(forced, NameKey.fromDomain("c.example", 0, 0)));
+        assertEquals(-1, index.find(forced, NameKey.fromDomain("d.example", 0, 0)));
+    }
+
+    @Test
+    public void zeroHashIsStillIndexed() {
+        NameIndex index = newIndex(4);
+        int slot = addSlot("zero.example");
+        index.insert(0L, slot);
+        assertEquals(slot, index.find(0L, slots.get(slot)));
+        assertTrue(index.remove(0L, slot));
+        assertEquals(-1, index.find(0L, slots.get(slot)));
+    }
+
+    @Test
+    public void removeKeepsProbeChainIntact() {
+        NameIndex index = newIndex(8);
+        int[] chain = new int[5];
+        for (int i = 0; i < chain.length; i++) {
+            chain[i] = addSlot("c" + i + ".example");
+            index.insert(7L, chain[i]); // 同一个起始位置，形成一条探测链
+        }
+        assertTrue(index.remove(7L, chain[1]));
+        assertFalse(index.remove(7L, chain[1]));
+        assertEquals(4, index.size());
+        for (int i = 0; i < chain.length; i++) {
+            int expected = i == 1 ? -1 : chain[i];
+            assertEquals(expected, index.find(7L, slots.get(chain[i])));
+        }
+        assertFalse("wrong slot for the hash", index.remove(7L, 99));
+    }
+
+    @Test
+    public void randomizedOperationsMatchAMap() {
+        NameIndex index = newIndex(16);
+        Map<Integer, Long> live = new HashMap<>();
+        Random random = new Random(20240601L);
+        for (int i = 0; i < 2000; i++) {
+            addSlot("n" + i + ".example");
+        }
+        for (int step = 0; step < 50_000; step++) {
+            int slot = random.nextInt(slots.size());
+            // 只取少量不同的哈希值，制造大量碰撞和较长的探测链
+            long hash = slots.get(slot).nameHash() & 0x3F;
+            if (live.containsKey(slot)) {
+                assertTrue(index.remove(live.remove(slot), slot));
+            } else {
+                index.insert(hash, slot);
+                live.put(slot, hash);
+            }
+            if (step % 1000 == 0) {
+                assertEquals(live.size(), index.size());
+            }
+        }
+        for (int slot = 0; slot < slots.size(); slot++) {
+            Long hash = live.get(slot);
+            long probe = hash != null ? hash : slots.get(slot).nameHash() & 0x3F;
+            assertEquals(hash != null ? slot : -1, index.find(probe, slots.get(slot)));
+        }
+    }
+}
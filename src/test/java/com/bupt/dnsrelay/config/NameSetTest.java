@@ -0,0 +1,209 @@
+package com.bupt.dnsrelay.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.bupt.dnsrelay.dns.NameKey;
+import com.bupt.dnsrelay.utils.NameHash;
+
+/**
+ * 检查NameSet（HAMT）：增删和大小、旧快照在后续批次修改后保持不变、
+ * 哈希低位相同的名字在多层节点中分开以及删除后的收缩、哈希不同的名字到达冲突节点时的拆分
+ */
+public class NameSetTest {
+
+    private static NameKey key(String name) {
+        return NameKey.fromDomain(name, 0, 0);
+    }
+
+    @Test
+    public void addRemoveAndContains() {
+        NameSet.Builder builder = NameSet.EMPTY.toBuilder();
+        assertTrue(builder.add(key("ads.example.com")));
+        assertTrue(builder.add(key("tracker.example.net")));
+        assertFalse("duplicate", builder.add(key("ADS.Example.com")));
+        assertEquals(2, builder.size());
+        NameSet set = builder.build();
+
+        assertTrue(set.contains(key("Ads.Example.Com")));
+        assertTrue(set.contains(key("tracker.example.net")));
+        assertFalse(set.contains(key("example.com")));
+        assertFalse("suffix entries are not implied", set.contains(key("x.ads.example.com")));
+
+        NameSet.Builder removal = set.toBuilder();
+        assertTrue(removal.remove(key("ads.example.com")));
+        assertFalse(removal.remove(key("ads.example.com")));
+        assertFalse(removal.remove(key("missing.example")));
+        NameSet smaller = removal.build();
+        assertEquals(1, smaller.size());
+        assertFalse(smaller.contains(key("ads.example.com")));
+        assertTrue(smaller.contains(key("tracker.example.net")));
+    }
+
+    @Test
+    public void removingEverythingLeavesAnEmptySet() {
+        NameSet.Builder builder = NameSet.EMPTY.toBuilder();
+        for (int i = 0; i < 500; i++) {
+            builder.add(key("h" + i + ".example"));
+        }
+        NameSet full = builder.build();
+        NameSet.Builder removal = full.toBuilder();
+        for (int i = 0; i < 500; i++) {
+            assertTrue(removal.remove(key("h" + i + ".example")));
+        }
+        NameSet empty = removal.build();
+        assertEquals(0, empty.size());
+        assertFalse(empty.contains(key("h1.example")));
+        assertEquals(500, full.size());
+        assertTrue(full.contains(key("h1.example")));
+
+        NameSet.Builder again = empty.toBuilder();
+        assertTrue(again.add(key("h1.example")));
+        assertTrue(again.build().contains(key("h1.example")));
+    }
+
+    @Test
+    public void deepPathsSplitAndCollapse() {
+        // 找出哈希低18位（前三层）完全相同的名字，迫使它们在第四层以下才分开
+        Map<Integer, List<String>> buckets = new HashMap<>();
+        List<String> deep = null;
+        for (int i = 0; deep == null; i++) {
+            String name = "d" + i + ".example";
+            int low = (int) (NameHash.hash(name) & 0x3FFFF);
+            List<String> bucket = buckets.computeIfAbsent(low, k -> new ArrayList<>());
+            bucket.add(name);
+            if (bucket.size() == 4) {
+                deep = bucket;
+            }
+        }
+        NameSet.Builder builder = NameSet.EMPTY.toBuilder();
+        for (String name : deep) {
+            assertTrue(builder.add(key(name)));
+        }
+        NameSet set = builder.build();
+        for (String name : deep) {
+            assertTrue(name, set.contains(key(name)));
+        }
+
+        // 逐个删除，每次删除后剩下的名字（可能已收缩为较浅的叶子）仍可找到
+        NameSet current = set;
+        for (int removed = 0; removed < deep.size(); removed++) {
+            NameSet.Builder removal = current.toBuilder();
+            assertTrue(removal.remove(key(deep.get(removed))));
+            current = removal.build();
+            assertEquals(deep.size() - removed - 1, current.size());
+            for (int i = 0; i < deep.size(); i++) {
+                assertEquals(deep.get(i), i > removed, current.contains(key(deep.get(i))));
+            }
+        }
+        for (String name : deep) {
+            assertTrue("original snapshot unchanged", set.contains(key(name)));
+        }
+    }
+
+    @Test
+    public void namesReachingACollisionWithAnotherHashSplitIt() {
+        // a和b的64位哈希完全相同，落在第二层的冲突节点中；c的哈希低40位与它们相同，到达冲突节点后要向下拆开，
+        // d在第二层就与它们分开，e在根节点就分开
+        long shared = 0x0123456789ABCDEFL;
+        long sameLevel = shared ^ (1L << 40);
+        long deeper = shared ^ (1L << 8);
+        NameSet.Builder builder = NameSet.EMPTY.toBuilder();
+        assertTrue(builder.add(key("a.example"), shared));
+        assertTrue(builder.add(key("e.example"), shared ^ 1L));
+        assertTrue(builder.add(key("b.example"), shared));
+        assertTrue(builder.add(key("c.example"), sameLevel));
+        assertTrue(builder.add(key("d.example"), deeper));
+        assertFalse(builder.add(key("C.example"), sameLevel));
+        NameSet set = builder.build();
+        assertEquals(5, set.size());
+        assertTrue(set.contains(key("a.example"), shared));
+        assertTrue(set.contains(key("b.example"), shared));
+        assertTrue("added next to the collision", set.contains(key("c.example"), sameLevel));
+        assertTrue(set.contains(key("d.example"), deeper));
+        assertTrue(set.contains(key("e.example"), shared ^ 1L));
+        assertFalse(set.contains(key("c.example"), shared));
+        assertFalse(set.contains(key("x.example"), sameLevel));
+
+        NameSet.Builder removal = set.toBuilder();
+        assertTrue(removal.remove(key("c.example"), sameLevel));
+        assertTrue(removal.remove(key("a.example"), shared));
+        NameSet smaller = removal.build();
+        assertEquals(3, smaller.size());
+        assertFalse(smaller.contains(key("c.example"), sameLevel));
+        assertFalse(smaller.contains(key("a.example"), shared));
+        assertTrue(smaller.contains(key("b.example"), shared));
+        assertTrue(smaller.contains(key("d.example"), deeper));
+        assertTrue("original snapshot unchanged", set.contains(key("c.example"), sameLevel));
+    }
+
+    @Test
+    public void randomizedBatchesKeepEverySnapshotIntact() {
+        Random random = new Random(3L);
+        List<String> universe = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            universe.add("n" + i + ".feed.example");
+        }
+        List<NameSet> snapshots = new ArrayList<>();
+        List<Set<String>> models = new ArrayList<>();
+        NameSet current = NameSet.EMPTY;
+        Set<String> model = new HashSet<>();
+        for (int batch = 0; batch < 40; batch++) {
+            NameSet.Builder builder = current.toBuilder();
+            for (int i = 0; i < 300; i++) {
+                String name = universe.get(random.nextInt(universe.size()));
+                if (random.nextInt(3) == 0) {
+                    assertEquals(model.remove(name), builder.remove(key(name)));
+                } else {
+                    assertEquals(model.add(name), builder.add(key(name)));
+                }
+            }
+            current = builder.build();
+            assertEquals(model.size(), current.size());
+            snapshots.add(current);
+            models.add(new HashSet<>(model));
+        }
+        for (int s = 0; s < snapshots.size(); s++) {
+            NameSet snapshot = snapshots.get(s);
+            Set<String> expected = models.get(s);
+            assertEquals(expected.size(), snapshot.size());
+            for (String name : universe) {
+                assertEquals("snapshot " + s + " " + name, expected.contains(name), snapshot.contains(key(name)));
+            }
+        }
+    }
+
+    @Test
+    public void builderDoesNotLeakIntoEarlierSnapshot() {
+        NameSet.Builder first = NameSet.EMPTY.toBuilder();
+        for (int i = 0; i < 200; i++) {
+            first.add(key("a" + i + ".example"));
+        }
+        NameSet base = first.build();
+        NameSet.Builder second = base.toBuilder();
+        for (int i = 0; i < 200; i++) {
+            second.add(key("b" + i + ".example"));
+            second.remove(key("a" + i + ".example"));
+        }
+        NameSet next = second.build();
+        for (int i = 0; i < 200; i++) {
+            assertTrue(base.contains(key("a" + i + ".example")));
+            assertFalse(base.contains(key("b" + i + ".example")));
+            assertFalse(next.contains(key("a" + i + ".example")));
+            assertTrue(next.contains(key("b" + i + ".example")));
+        }
+        assertEquals(200, base.size());
+        assertEquals(200, next.size());
+    }
+}
@@ -0,0 +1,209 @@
+package com.bupt.dnsrelay.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import com.bupt.dnsrelay.dns.NameKey;
+
+/**
+ * 检查PatternMatcher：文档中的规则示例、锚定、多片段的顺序和不重叠，并与正则表达式的结果对照
+ */
+public class PatternMatcherTest {
+
+    private static boolean matches(PatternMatcher matcher, String name) {
+        return matcher.matches(NameKey.fromDomain(name, 1, 1));
+    }
+
+    private static PatternMatcher compile(String... rules) {
+        return new PatternMatcher(Arrays.asList(rules));
+    }
+
+    @Test
+    public void documentedExamples() {
+        PatternMatcher anywhere = compile("*ads*");
+        assertTrue(matches(anywhere, "ads.example.com"));
+        assertTrue(matches(anywhere, "myads.example.com"));
+        assertTrue(matches(anywhere, "cdn.example.loads"));
+        assertFalse(matches(anywhere, "example.com"));
+
+        PatternMatcher prefix = compile("track*");
+        assertTrue(matches(prefix, "tracker.example.com"));
+        assertTrue(matches(prefix, "track.example.com"));
+        assertFalse(matches(prefix, "www.tracker.com"));
+
+        PatternMatcher subdomains = compile("*.doubleclick.net");
+        assertTrue(matches(subdomains, "ad.doubleclick.net"));
+        assertTrue(matches(subdomains, "a.b.doubleclick.net"));
+        assertTrue("the name's leading dot is a label boundary", matches(subdomains, "doubleclick.net"));
+        assertFalse(matches(subdomains, "notdoubleclick.net"));
+        assertFalse(matches(subdomains, "ad.doubleclick.net.evil"));
+
+        PatternMatcher label = compile("*.ads.*");
+        assertTrue(matches(label, "www.ads.example.com"));
+        assertTrue(matches(label, "ads.example.com"));
+        assertTrue(matches(label, "www.example.ads"));
+        assertFalse(matches(label, "www.myads.example.com"));
+    }
+
+    @Test
+    public void matchingIgnoresCase() {
+        assertTrue(matches(compile("*tracker*"), "WWW.TrAcKeR.Example"));
+    }
+
+    @Test
+    public void multipleFragmentsMustAppearInOrderWithoutOverlap() {
+        PatternMatcher matcher = compile("*ab*ba*");
+        assertTrue(matches(matcher, "ab.ba"));
+        assertTrue(matches(matcher, "xabyybaz"));
+        assertFalse("fragments may not overlap", matches(matcher, "aba"));
+        assertFalse("order matters", matches(matcher, "ba.ab"));
+
+        PatternMatcher repeated = compile("*ab*ab*");
+        assertFalse(matches(repeated, "xab"));
+        assertTrue(matches(repeated, "abab"));
+
+        PatternMatcher anchored = compile("cdn*img*.com");
+        assertTrue(matches(anchored, "cdn1.img.example.com"));
+        assertFalse(matches(anchored, "www.cdn1.img.example.com"));
+        assertFalse(matches(anchored, "cdn1.img.example.com.cn"));
+        assertTrue("end anchor uses the last occurrence", matches(anchored, "cdn.img.com.x.com"));
+    }
+
+    @Test
+    public void emptyMatcherMatchesNothing() {
+        assertFalse(matches(PatternMatcher.EMPTY, "anything.example"));
+        assertEquals(0, PatternMatcher.EMPTY.size());
+    }
+
+    @Test
+    public void validatesPatterns() {
+        assertTrue(PatternMatcher.isValidPattern("*ads*"));
+        assertTrue(PatternMatcher.isValidPattern("*.ads-1_x.*"));
+        assertFalse("needs a wildcard", PatternMatcher.isValidPattern("ads.example.com"));
+        assertFalse("needs a literal", PatternMatcher.isValidPattern("**"));
+        assertFalse("lowercase only", PatternMatcher.isValidPattern("*ADS*"));
+        assertFalse(PatternMatcher.isValidPattern("*a d*"));
+        assertFalse(PatternMatcher.isValidPattern("*é*"));
+    }
+
+    @Test
+    public void randomizedRulesAgreeWithRegex() {
+        Random random = new Random(11L);
+        for (int round = 0; round < 200; round++) {
+            List<String> rules = new ArrayList<>();
+            int ruleCount = 1 + random.nextInt(6);
+            while (rules.size() < ruleCount) {
+                String rule = randomRule(random);
+                if (PatternMatcher.isValidPattern(rule)) {
+                    rules.add(rule);
+                }
+            }
+            PatternMatcher matcher = new PatternMatcher(rules);
+            List<Pattern> regexes = new ArrayList<>();
+            for (String rule : rules) {
+                regexes.add(toRegex(rule));
+            }
+            for (int i = 0; i < 200; i++) {
+                String name = randomName(random);
+                boolean expected = false;
+                for (Pattern regex : regexes) {
+                    expected |= regex.matcher("." + name + ".").matches();
+                }
+                assertEquals(rules + " on " + name, expected, matches(matcher, name));
+            }
+        }
+    }
+
+    @Test
+    public void concurrentMatchingKeepsPerThreadProgress() throws Exception {
+        PatternMatcher matcher = compile("*ab*cd*ef*", "*x*y*");
+        List<String> names = Arrays.asList("ab.cd.ef", "ef.cd.ab", "abcdef", "x.y", "y.x", "abcd.x");
+        List<Boolean> expected = Arrays.asList(true, false, true, true, false, false);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < 20_000; i++) {
+                        int n = i % names.size();
+                        if (matches(matcher, names.get(n)) != expected.get(n)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 与PatternMatcher相同的锚定规则：不以*开头或结尾的一端补"."，名字两端带点
+     */
+    private static Pattern toRegex(String rule) {
+        String normalized = rule;
+        if (normalized.charAt(0) != '*' && normalized.charAt(0) != '.') {
+            normalized = "." + normalized;
+        }
+        if (normalized.charAt(normalized.length() - 1) != '*' && normalized.charAt(normalized.length() - 1) != '.') {
+            normalized = normalized + ".";
+        }
+        StringBuilder regex = new StringBuilder();
+        String[] parts = normalized.split("\\*", -1);
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                regex.append(".*");
+            }
+            if (!parts[i].isEmpty()) {
+                regex.append(Pattern.quote(parts[i]));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private static String randomRule(Random random) {
+        // 小字母表让片段经常出现、重叠和重复
+        String alphabet = "ab.";
+        StringBuilder rule = new StringBuilder();
+        int length = 1 + random.nextInt(7);
+        for (int i = 0; i < length; i++) {
+            rule.append(random.nextInt(4) == 0 ? '*' : alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        if (rule.indexOf("*") < 0) {
+            rule.insert(random.nextInt(rule.length() + 1), '*');
+        }
+        return rule.toString();
+    }
+
+    private static String randomName(Random random) {
+        List<String> labels = new ArrayList<>();
+        int count = 1 + random.nextInt(4);
+        for (int i = 0; i < count; i++) {
+            StringBuilder label = new StringBuilder();
+            int length = 1 + random.nextInt(4);
+            for (int j = 0; j < length; j++) {
+                label.append("abc".charAt(random.nextInt(3)));
+            }
+            labels.add(label.toString());
+        }
+        Collections.shuffle(labels, random);
+        return String.join(".", labels);
+    }
+}
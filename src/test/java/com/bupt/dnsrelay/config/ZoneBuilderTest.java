@@ -0,0 +1,324 @@
+package com.bupt.dnsrelay.config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.bupt.dnsrelay.dns.DNSMessage;
+import com.bupt.dnsrelay.dns.DNSParser;
+import com.bupt.dnsrelay.dns.DNSRecord;
+import com.bupt.dnsrelay.dns.NameKey;
+
+/**
+ * 检查ZoneBuilder预编码的应答：把条目拼到真实的响应里再沿压缩指针解析，确认指针指向正确的名字，
+ * 并覆盖CNAME链、离开本地数据的链（FLAG_EXTERNAL）、成环、过长和指向拦截名字的链，以及超出16位长度的应答
+ */
+public class ZoneBuilderTest {
+
+    private static final byte[] ADDRESS = { (byte) 192, 0, 2, 1 };
+    private static final byte[] ADDRESS6 = new byte[16];
+
+    private final ZoneBuilder zone = new ZoneBuilder();
+    private Map<NameKey, byte[]> entries;
+
+    private static NameKey name(String domain) {
+        return NameKey.fromDomain(domain, 0, 0);
+    }
+
+    private void address(String domain, byte[] rdata) {
+        int type = rdata.length == 4 ? DNSRecord.TYPE_A : DNSRecord.TYPE_AAAA;
+        assertNull(zone.add(name(domain), type, 60, rdata, null));
+    }
+
+    private void alias(String domain, String target) {
+        assertNull(zone.add(name(domain), DNSRecord.TYPE_CNAME, 120, ZoneBuilder.wireName(name(target)), name(target)));
+    }
+
+    @Test
+    public void plainNameAnswersItsTypesAndNodataOtherwise() throws IOException {
+        address("host.example", ADDRESS);
+        address("host.example", ADDRESS6);
+        entries = zone.build();
+
+        Answer a = answer("HOST.example", DNSRecord.TYPE_A);
+        assertEquals(1, a.records().size());
+        assertRecord(a.records().get(0), "HOST.example", DNSRecord.TYPE_A, 60);
+        assertArrayEquals(ADDRESS, a.records().get(0).rdata);
+
+        assertEquals(1, answer("host.example", DNSRecord.TYPE_AAAA).records().size());
+        assertEquals("NODATA for other types", 0, answer("host.example", DNSRecord.TYPE_MX).records().size());
+        assertEquals(0, flags("host.example"));
+    }
+
+    @Test
+    public void blockedNameBeatsItsRecords() throws IOException {
+        address("ads.example", ADDRESS);
+        zone.block(name("ads.example"));
+        entries = zone.build();
+        assertEquals(ConfigTable.ANSWER_BLOCKED, answer("ads.example", DNSRecord.TYPE_A).code);
+    }
+
+    @Test
+    public void chainIsFollowedWithCorrectPointers() throws IOException {
+        alias("www.example", "edge.cdn.example");
+        alias("edge.cdn.example", "origin.example");
+        address("origin.example", ADDRESS);
+        entries = zone.build();
+
+        List<Rr> records = answer("WWW.Example", DNSRecord.TYPE_A).records();
+        assertEquals(3, records.size());
+        assertRecord(records.get(0), "WWW.Example", DNSRecord.TYPE_CNAME, 120);
+        assertRecord(records.get(1), "edge.cdn.example", DNSRecord.TYPE_CNAME, 120);
+        assertRecord(records.get(2), "origin.example", DNSRecord.TYPE_A, 60);
+        assertArrayEquals(ADDRESS, records.get(2).rdata);
+
+        List<Rr> cname = answer("www.example", DNSRecord.TYPE_CNAME).records();
+        assertEquals("a CNAME query gets only the first link", 1, cname.size());
+
+        List<Rr> other = answer("www.example", DNSRecord.TYPE_TXT).records();
+        assertEquals("other types get the chain only", 2, other.size());
+        assertEquals(0, flags("www.example"));
+    }
+
+    @Test
+    public void chainLeavingLocalDataIsMarkedExternal() throws IOException {
+        alias("mail.example", "mx.provider.example");
+        alias("shop.example", "mail.example");
+        entries = zone.build();
+
+        assertEquals(CompiledConfig.FLAG_EXTERNAL, flags("mail.example"));
+        assertEquals(CompiledConfig.FLAG_EXTERNAL, flags("shop.example"));
+        Answer answer = answer("shop.example", DNSRecord.TYPE_A);
+        assertEquals(ConfigTable.ANSWER_EXTERNAL, answer.code);
+        List<Rr> records = answer.records();
+        assertEquals(2, records.size());
+        assertRecord(records.get(0), "shop.example", DNSRecord.TYPE_CNAME, 120);
+        assertRecord(records.get(1), "mail.example", DNSRecord.TYPE_CNAME, 120);
+
+        // 只问CNAME时不需要解析目标
+        Answer cname = answer("shop.example", DNSRecord.TYPE_CNAME);
+        assertTrue(cname.code > 0);
+        assertEquals(1, cname.records().size());
+    }
+
+    @Test
+    public void loopsAndBlockedTargetsStopTheChainWithoutExternal() throws IOException {
+        alias("a.loop", "b.loop");
+        alias("b.loop", "a.loop");
+        alias("to.blocked", "ads.example");
+        address("ads.example", ADDRESS);
+        zone.block(name("ads.example"));
+        entries = zone.build();
+
+        assertEquals(0, flags("a.loop"));
+        Answer loop = answer("a.loop", DNSRecord.TYPE_A);
+        assertTrue(loop.code > 0);
+        assertEquals(2, loop.records().size());
+
+        assertEquals(0, flags("to.blocked"));
+        List<Rr> blocked = answer("to.blocked", DNSRecord.TYPE_A).records();
+        assertEquals("the blocked target's address is not revealed", 1, blocked.size());
+        assertEquals(DNSRecord.TYPE_CNAME, blocked.get(0).type);
+    }
+
+    @Test
+    public void longChainsAreCut() throws IOException {
+        for (int i = 0; i < 12; i++) {
+            alias("c" + i + ".example", "c" + (i + 1) + ".example");
+        }
+        address("c12.example", ADDRESS);
+        entries = zone.build();
+        assertEquals(0, flags("c0.example"));
+        List<Rr> records = answer("c0.example", DNSRecord.TYPE_A).records();
+        assertEquals(8, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertRecord(records.get(i), "c" + i + ".example", DNSRecord.TYPE_CNAME, 120);
+        }
+        assertEquals("the tail of the chain still resolves", 1 + 4,
+            answer("c8.example", DNSRecord.TYPE_A).records().size());
+    }
+
+    @Test
+    public void oversizedTypeIsSkippedWithoutCorruptingLaterAnswers() throws IOException {
+        // 300条255字节的TXT记录编码后超过65535字节，写入16位长度字段会回绕
+        for (int i = 0; i < 300; i++) {
+            byte[] txt = new byte[256];
+            txt[0] = (byte) 255;
+            txt[1] = (byte) (i >> 8);
+            txt[2] = (byte) i;
+            assertNull(zone.add(name("big.example"), DNSRecord.TYPE_TXT, 60, txt, null));
+        }
+        address("big.example", ADDRESS);
+        entries = zone.build();
+
+        List<Rr> a = answer("big.example", DNSRecord.TYPE_A).records();
+        assertEquals(1, a.size());
+        assertArrayEquals(ADDRESS, a.get(0).rdata);
+        assertEquals("the skipped type falls back to NODATA", 0,
+            answer("big.example", DNSRecord.TYPE_TXT).records().size());
+        assertEquals(0, answer("big.example", DNSRecord.TYPE_MX).records().size());
+    }
+
+    @Test
+    public void rejectsConflictingRecords() {
+        address("host.example", ADDRESS);
+        assertNotNull(zone.add(name("host.example"), DNSRecord.TYPE_A, 60, ADDRESS, null));
+        assertNotNull(zone.add(name("host.example"), DNSRecord.TYPE_CNAME, 60,
+            ZoneBuilder.wireName(name("x.example")), name("x.example")));
+        alias("alias.example", "host.example");
+        assertNotNull(zone.add(name("alias.example"), DNSRecord.TYPE_A, 60, ADDRESS, null));
+    }
+
+    @Test
+    public void generatesReversePointersOnce() throws IOException {
+        address("first.example", ADDRESS);
+        address("second.example", ADDRESS);
+        byte[] other = { (byte) 192, 0, 2, 2 };
+        address("explicit.example", other);
+        assertNull(zone.add(ZoneBuilder.reverseName(other), DNSRecord.TYPE_PTR, 60,
+            ZoneBuilder.wireName(name("configured.example")), null));
+        assertEquals(1, zone.addReversePointers());
+        entries = zone.build();
+
+        List<Rr> ptr = answer("1.2.0.192.in-addr.arpa", DNSRecord.TYPE_PTR).records();
+        assertEquals(1, ptr.size());
+        assertArrayEquals(ZoneBuilder.wireName(name("first.example")), ptr.get(0).rdata);
+        List<Rr> configured = answer("2.2.0.192.in-addr.arpa", DNSRecord.TYPE_PTR).records();
+        assertArrayEquals(ZoneBuilder.wireName(name("configured.example")), configured.get(0).rdata);
+
+        assertEquals("1.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.8.b.d.0.1.0.0.2.ip6.arpa",
+            ZoneBuilder.reverseName(new byte[] { 0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 })
+                .toDomainString());
+    }
+
+    private int flags(String domain) {
+        return entries.get(name(domain))[0];
+    }
+
+    /**
+     * 按查询名和类型组装响应：报文头、问题部分，再把条目中的应答拼上去
+     */
+    private Answer answer(String queryName, int qtype) throws IOException {
+        byte[] entry = entries.get(name(queryName));
+        assertNotNull("no entry for " + queryName, entry);
+        DNSMessage query = DNSMessage.createQuery(0x4242, queryName, qtype);
+        byte[] out = new byte[4096];
+        byte[] question = DNSParser.buildMessage(query);
+        System.arraycopy(question, 0, out, 0, question.length);
+        out[2] |= (byte) 0x80;
+        int code = ZoneAnswers.append(ByteBuffer.wrap(entry), 0, qtype, out, question.length);
+        return new Answer(code, out);
+    }
+
+    private static void assertRecord(Rr record, String owner, int type, long ttl) {
+        assertTrue(record.name + " != " + owner, record.name.equalsIgnoreCase(owner));
+        assertEquals(type, record.type);
+        assertEquals(DNSRecord.CLASS_IN, record.dnsClass);
+        assertEquals(ttl, record.ttl);
+    }
+
+    /**
+     * append的返回值和组装出的响应
+     */
+    private static final class Answer {
+        final int code;
+        final byte[] message;
+
+        Answer(int code, byte[] message) {
+            this.code = code;
+            this.message = message;
+        }
+
+        /**
+         * 解析应答部分，所有者名沿压缩指针展开
+         */
+        List<Rr> records() {
+            assertTrue("append failed: " + code, code > 0 || code == ConfigTable.ANSWER_EXTERNAL);
+            int count = ((message[6] & 0xFF) << 8) | (message[7] & 0xFF);
+            int pos = skipName(message, 12) + 4;
+            List<Rr> records = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                StringBuilder owner = new StringBuilder();
+                readName(message, pos, owner);
+                pos = skipName(message, pos);
+                int type = readShort(message, pos);
+                int dnsClass = readShort(message, pos + 2);
+                long ttl = ((long) readShort(message, pos + 4) << 16) | readShort(message, pos + 6);
+                int length = readShort(message, pos + 8);
+                pos += 10;
+                records.add(new Rr(owner.toString(), type, dnsClass, ttl, Arrays.copyOfRange(message, pos, pos + length)));
+                pos += length;
+            }
+            return records;
+        }
+
+        private static int skipName(byte[] data, int pos) {
+            while (true) {
+                int len = data[pos] & 0xFF;
+                if (len == 0) {
+                    return pos + 1;
+                }
+                if ((len & 0xC0) == 0xC0) {
+                    return pos + 2;
+                }
+                pos += len + 1;
+            }
+        }
+
+        private static void readName(byte[] data, int pos, StringBuilder name) {
+            for (int hops = 0; ; ) {
+                int len = data[pos] & 0xFF;
+                if (len == 0) {
+                    return;
+                }
+                if ((len & 0xC0) == 0xC0) {
+                    assertTrue("pointer loop", ++hops < 16);
+                    int target = ((len & 0x3F) << 8) | (data[pos + 1] & 0xFF);
+                    assertTrue("pointer must go backwards", target < pos);
+                    pos = target;
+                    continue;
+                }
+                if (name.length() > 0) {
+                    name.append('.');
+                }
+                name.append(new String(data, pos + 1, len, StandardCharsets.US_ASCII));
+                pos += len + 1;
+            }
+        }
+
+        private static int readShort(byte[] data, int pos) {
+            return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+        }
+    }
+
+    /**
+     * 解析出的资源记录
+     */
+    private static final class Rr {
+        final String name;
+        final int type;
+        final int dnsClass;
+        final long ttl;
+        final byte[] rdata;
+
+        Rr(String name, int type, int dnsClass, long ttl, byte[] rdata) {
+            this.name = name;
+            this.type = type;
+            this.dnsClass = dnsClass;
+            this.ttl = ttl;
+            this.rdata = rdata;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.bupt.dnsrelay.dns;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * 检查DNSMessageWriter.appendAnswers：把上游对链末端目标的应答拼接到本地CNAME链之后，
+ * 原响应中的压缩指针必须展开，链末端目标作为所有者时改为指向本地响应中的名字
+ */
+public class DNSMessageWriterTest {
+
+    /**
+     * 本地响应：问题alias.local A，一条CNAME指向target.cdn.net（RDATA未压缩）
+     */
+    private static final class Local {
+        final byte[] out = new byte[512];
+        final int targetOffset;
+        final int end;
+
+        Local() {
+            Wire wire = new Wire();
+            wire.header(1, 1).name("alias.local").shorts(DNSRecord.TYPE_A, DNSRecord.CLASS_IN);
+            wire.pointer(12).shorts(DNSRecord.TYPE_CNAME, DNSRecord.CLASS_IN, 0, 300, 16);
+            targetOffset = wire.size();
+            wire.name("target.cdn.net");
+            byte[] bytes = wire.bytes();
+            System.arraycopy(bytes, 0, out, 0, bytes.length);
+            end = bytes.length;
+        }
+    }
+
+    @Test
+    public void splicesUpstreamAnswersAndExpandsCompressedNames() {
+        // 上游响应：问题target.cdn.net A；CNAME到edge.cdn.net（RDATA压缩），edge的A记录，以及一条MX
+        Wire upstream = new Wire();
+        upstream.header(1, 3).name("target.cdn.net").shorts(DNSRecord.TYPE_A, DNSRecord.CLASS_IN);
+        upstream.pointer(12).shorts(DNSRecord.TYPE_CNAME, DNSRecord.CLASS_IN, 0, 60, 7);
+        int edge = upstream.size();
+        upstream.label("edge").pointer(12 + 7); // "cdn.net"在问题中的位置
+        upstream.pointer(edge).shorts(DNSRecord.TYPE_A, DNSRecord.CLASS_IN, 0, 60, 4).raw(198, 51, 100, 7);
+        upstream.pointer(12).shorts(DNSRecord.TYPE_MX, DNSRecord.CLASS_IN, 0, 60, 4).shorts(10).pointer(edge);
+        byte[] message = upstream.bytes();
+
+        Local local = new Local();
+        NameKey target = NameKey.fromDomain("Target.CDN.net", DNSRecord.TYPE_A, DNSRecord.CLASS_IN);
+        int end = DNSMessageWriter.appendAnswers(message, message.length, local.out, local.end, target,
+            local.targetOffset);
+        assertTrue("append failed: " + end, end > local.end);
+        assertEquals(4, ((local.out[6] & 0xFF) << 8) | (local.out[7] & 0xFF));
+
+        Reader reader = new Reader(local.out);
+        reader.skipQuestion();
+        reader.record("alias.local", DNSRecord.TYPE_CNAME);
+        assertEquals("target.cdn.net", reader.name(reader.rdataStart));
+
+        int first = reader.pos;
+        reader.record("target.cdn.net", DNSRecord.TYPE_CNAME);
+        assertEquals("owner equal to the target uses a pointer", 0xC0, local.out[first] & 0xC0);
+        assertArrayEquals(wire("edge.cdn.net"), reader.rdata());
+
+        int second = reader.pos;
+        reader.record("edge.cdn.net", DNSRecord.TYPE_A);
+        assertEquals("other owners are written in full", 4, local.out[second]);
+        assertArrayEquals(new byte[] { (byte) 198, 51, 100, 7 }, reader.rdata());
+
+        reader.record("target.cdn.net", DNSRecord.TYPE_MX);
+        byte[] mx = reader.rdata();
+        assertEquals(10, mx[1]);
+        assertArrayEquals(wire("edge.cdn.net"), Arrays.copyOfRange(mx, 2, mx.length));
+        assertEquals(end, reader.pos);
+    }
+
+    @Test
+    public void rejectsMalformedUpstreamResponses() {
+        Local local = new Local();
+        NameKey target = NameKey.fromDomain("target.cdn.net", 1, 1);
+
+        Wire truncated = new Wire();
+        truncated.header(1, 1).name("target.cdn.net").shorts(1, 1).pointer(12).shorts(1, 1, 0, 60, 4).raw(1, 2);
+        byte[] message = truncated.bytes();
+        assertEquals(-1, DNSMessageWriter.appendAnswers(message, message.length, local.out, local.end, target,
+            local.targetOffset));
+
+        Wire loop = new Wire();
+        loop.header(1, 1).name("target.cdn.net").shorts(1, 1);
+        loop.pointer(loop.size()).shorts(1, 1, 0, 60, 4).raw(1, 2, 3, 4); // 指向自身的压缩指针
+        message = loop.bytes();
+        assertEquals(-1, DNSMessageWriter.appendAnswers(message, message.length, local.out, local.end, target,
+            local.targetOffset));
+        assertEquals("ANCOUNT untouched on failure", 1, local.out[7]);
+    }
+
+    @Test
+    public void reportsInsufficientSpace() {
+        Wire upstream = new Wire();
+        upstream.header(1, 1).name("target.cdn.net").shorts(1, 1).pointer(12).shorts(1, 1, 0, 60, 4).raw(1, 2, 3, 4);
+        byte[] message = upstream.bytes();
+        Local local = new Local();
+        byte[] small = Arrays.copyOf(local.out, local.end + 10);
+        assertEquals(-2, DNSMessageWriter.appendAnswers(message, message.length, small, local.end,
+            NameKey.fromDomain("target.cdn.net", 1, 1), local.targetOffset));
+    }
+
+    private static byte[] wire(String name) {
+        return new Wire().name(name).bytes();
+    }
+
+    /**
+     * 手工拼装报文
+     */
+    private static final class Wire {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Wire header(int qdcount, int ancount) {
+            return shorts(0x1234, 0x8180, qdcount, ancount, 0, 0);
+        }
+
+        Wire label(String label) {
+            byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+            out.write(bytes.length);
+            out.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        Wire name(String name) {
+            for (String label : name.split("\\.")) {
+                label(label);
+            }
+            out.write(0);
+            return this;
+        }
+
+        Wire pointer(int offset) {
+            return shorts(0xC000 | offset);
+        }
+
+        Wire shorts(int... values) {
+            for (int value : values) {
+                out.write(value >> 8);
+                out.write(value);
+            }
+            return this;
+        }
+
+        Wire raw(int... values) {
+            for (int value : values) {
+                out.write(value);
+            }
+            return this;
+        }
+
+        int size() {
+            return out.size();
+        }
+
+        byte[] bytes() {
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * 按顺序读取响应中的记录，名字沿压缩指针展开
+     */
+    private static final class Reader {
+        private final byte[] data;
+        int pos = 12;
+        int rdataStart;
+        int rdataLength;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        void skipQuestion() {
+            pos = skipName(pos) + 4;
+        }
+
+        void record(String owner, int type) {
+            assertEquals(owner, name(pos));
+            pos = skipName(pos);
+            assertEquals(type, readShort(pos));
+            assertEquals(DNSRecord.CLASS_IN, readShort(pos + 2));
+            rdataLength = readShort(pos + 8);
+            rdataStart = pos + 10;
+            pos = rdataStart + rdataLength;
+        }
+
+        byte[] rdata() {
+            return Arrays.copyOfRange(data, rdataStart, rdataStart + rdataLength);
+        }
+
+        String name(int at) {
+            StringBuilder sb = new StringBuilder();
+            for (int hops = 0; ; ) {
+                int len = data[at] & 0xFF;
+                if ((len & 0xC0) == 0xC0) {
+                    assertTrue(++hops < 16);
+                    at = ((len & 0x3F) << 8) | (data[at + 1] & 0xFF);
+                    continue;
+                }
+                if (len == 0) {
+                    return sb.toString();
+                }
+                if (sb.length() > 0) {
+                    sb.append('.');
+                }
+                sb.append(new String(data, at + 1, len, StandardCharsets.US_ASCII));
+                at += len + 1;
+            }
+        }
+
+        private int skipName(int at) {
+            while (true) {
+                int len = data[at] & 0xFF;
+                if (len == 0) {
+                    return at + 1;
+                }
+                if ((len & 0xC0) == 0xC0) {
+                    return at + 2;
+                }
+                at += len + 1;
+            }
+        }
+
+        private int readShort(int at) {
+            return ((data[at] & 0xFF) << 8) | (data[at + 1] & 0xFF);
+        }
+    }
+}
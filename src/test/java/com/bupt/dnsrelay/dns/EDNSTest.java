@@ -0,0 +1,327 @@
+package com.bupt.dnsrelay.dns;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * 检查EDNS在报文字节上的修改：定位OPT、转发前追加或改写OPT、去掉OPT、截断、
+ * edns-tcp-keepalive选项的添加/读取/删除，每次修改后报文头计数和RDLENGTH都要与内容一致。
+ * 报文手工构造，包括被截断和计数与内容不符的报文
+ */
+public class EDNSTest {
+
+    private static final int ANSWER = 1;
+    private static final int ADDITIONAL = 3;
+    private static final byte[] ADDRESS = { (byte) 192, 0, 2, 1 };
+    private static final byte[] COOKIE = { 0, 10, 0, 8, 1, 2, 3, 4, 5, 6, 7, 8 };
+
+    private static byte[] keepalive(int timeout) {
+        return new byte[] { 0, 11, 0, 2, (byte) (timeout >> 8), (byte) timeout };
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void findOptSkipsQuestionAnswersAndOtherAdditionals() {
+        Message message = new Message().question("www.example", DNSRecord.TYPE_A)
+            .record(ANSWER, "www.example", DNSRecord.TYPE_A, ADDRESS)
+            .record(ADDITIONAL, "ns.example", DNSRecord.TYPE_A, ADDRESS);
+        int optOffset = message.length();
+        message.opt(4096, EDNS.FLAG_DO, new byte[0]);
+        byte[] data = message.build(0);
+
+        assertEquals(optOffset, EDNS.findOpt(data, data.length));
+        assertEquals(4096, EDNS.payloadSize(data, data.length));
+        assertEquals(EDNS.FLAG_DO, EDNS.optFlags(data, data.length));
+
+        byte[] small = new Message().question("www.example", DNSRecord.TYPE_A).opt(100, 0, new byte[0]).build(0);
+        assertEquals("payload sizes below 512 count as 512", 512, EDNS.payloadSize(small, small.length));
+
+        byte[] plain = new Message().question("www.example", DNSRecord.TYPE_A)
+            .record(ADDITIONAL, "ns.example", DNSRecord.TYPE_A, ADDRESS).build(0);
+        assertEquals(-1, EDNS.findOpt(plain, plain.length));
+        assertEquals(0, EDNS.payloadSize(plain, plain.length));
+    }
+
+    @Test
+    public void findOptRejectsMalformedInput() {
+        byte[] data = new Message().question("www.example", DNSRecord.TYPE_A).opt(4096, 0, COOKIE).build(0);
+        for (int cut = 0; cut < data.length; cut++) {
+            assertEquals("cut at " + cut, -1, EDNS.findOpt(data, cut));
+        }
+        byte[] lying = data.clone();
+        lying[11] = 2; // ARCOUNT claims a record that is not there; the OPT is still found first
+        assertEquals(data.length - 11 - COOKIE.length, EDNS.findOpt(lying, lying.length));
+        byte[] extraAnswer = data.clone();
+        extraAnswer[7] = 1; // the OPT is consumed as an answer, nothing is left for the additional section
+        assertEquals(-1, EDNS.findOpt(extraAnswer, extraAnswer.length));
+        byte[] badRdlength = data.clone();
+        badRdlength[data.length - COOKIE.length - 1] = (byte) (COOKIE.length + 1);
+        assertEquals(-1, EDNS.findOpt(badRdlength, badRdlength.length));
+    }
+
+    @Test
+    public void prepareUpstreamQueryAppendsOpt() {
+        Message message = new Message().question("www.example", DNSRecord.TYPE_AAAA);
+        int length = message.length();
+        byte[] query = message.build(64);
+
+        int prepared = EDNS.prepareUpstreamQuery(query, length);
+        assertEquals(length + 11, prepared);
+        assertEquals(1, readShort(query, 10));
+        assertEquals(length, EDNS.findOpt(query, prepared));
+        assertEquals(EDNS.PAYLOAD_SIZE, EDNS.payloadSize(query, prepared));
+        assertEquals(0, EDNS.optFlags(query, prepared));
+
+        byte[] full = new Message().question("www.example", DNSRecord.TYPE_A).build(10);
+        int fullLength = full.length - 10;
+        assertEquals("no room for the OPT", fullLength, EDNS.prepareUpstreamQuery(full, fullLength));
+        assertEquals(0, readShort(full, 10));
+
+        byte[] truncated = new Message().question("www.example", DNSRecord.TYPE_A).build(64);
+        int truncatedLength = 12 + 5;
+        assertEquals(truncatedLength, EDNS.prepareUpstreamQuery(truncated, truncatedLength));
+        assertEquals("malformed queries are left alone", 0, readShort(truncated, 10));
+        assertEquals(5, EDNS.prepareUpstreamQuery(truncated, 5));
+    }
+
+    @Test
+    public void prepareUpstreamQueryRewritesExistingOptInPlace() {
+        byte[] query = new Message().question("www.example", DNSRecord.TYPE_A).opt(4096, EDNS.FLAG_DO, COOKIE).build(0);
+        byte[] before = query.clone();
+        assertEquals(query.length, EDNS.prepareUpstreamQuery(query, query.length));
+        assertEquals(EDNS.PAYLOAD_SIZE, EDNS.payloadSize(query, query.length));
+        assertEquals(EDNS.FLAG_DO, EDNS.optFlags(query, query.length));
+        assertEquals(1, readShort(query, 10));
+        int opt = EDNS.findOpt(query, query.length);
+        before[opt + 3] = query[opt + 3];
+        before[opt + 4] = query[opt + 4];
+        assertArrayEquals("only the payload size changes", before, query);
+    }
+
+    @Test
+    public void stripOptRemovesTrailingOptOnly() {
+        Message message = new Message().question("www.example", DNSRecord.TYPE_A)
+            .record(ANSWER, "www.example", DNSRecord.TYPE_A, ADDRESS);
+        int withoutOpt = message.length();
+        byte[] response = message.opt(1232, 0, COOKIE).build(0);
+        assertEquals(withoutOpt, EDNS.stripOpt(response, response.length));
+        assertEquals(0, readShort(response, 10));
+        assertEquals(1, readShort(response, 6));
+        assertEquals(-1, EDNS.findOpt(response, withoutOpt));
+
+        byte[] notLast = new Message().question("www.example", DNSRecord.TYPE_A)
+            .opt(1232, 0, new byte[0])
+            .record(ADDITIONAL, "ns.example", DNSRecord.TYPE_A, ADDRESS).build(0);
+        assertEquals(notLast.length, EDNS.stripOpt(notLast, notLast.length));
+        assertEquals(2, readShort(notLast, 10));
+
+        byte[] plain = new Message().question("www.example", DNSRecord.TYPE_A).build(0);
+        assertEquals(plain.length, EDNS.stripOpt(plain, plain.length));
+    }
+
+    @Test
+    public void truncateKeepsQuestionAndSetsTc() {
+        Message message = new Message().question("big.example", DNSRecord.TYPE_TXT);
+        int questionEnd = message.length();
+        for (int i = 0; i < 5; i++) {
+            message.record(ANSWER, "big.example", DNSRecord.TYPE_TXT, new byte[200]);
+        }
+        message.record(ADDITIONAL, "ns.example", DNSRecord.TYPE_A, ADDRESS).opt(4096, 0, new byte[0]);
+
+        byte[] plain = message.build(0);
+        assertEquals(questionEnd, EDNS.truncate(plain, plain.length, false));
+        assertTrue((plain[2] & 0x02) != 0);
+        assertEquals(1, readShort(plain, 4));
+        assertEquals(0, readShort(plain, 6));
+        assertEquals(0, readShort(plain, 8));
+        assertEquals(0, readShort(plain, 10));
+
+        byte[] withOpt = message.build(0);
+        int length = EDNS.truncate(withOpt, withOpt.length, true);
+        assertEquals(questionEnd + 11, length);
+        assertEquals(1, readShort(withOpt, 10));
+        assertEquals(questionEnd, EDNS.findOpt(withOpt, length));
+        assertEquals(EDNS.PAYLOAD_SIZE, EDNS.payloadSize(withOpt, length));
+
+        byte[] noRoom = new Message().question("big.example", DNSRecord.TYPE_TXT).build(0);
+        assertEquals("no room for the OPT", noRoom.length, EDNS.truncate(noRoom, noRoom.length, true));
+        assertEquals(0, readShort(noRoom, 10));
+
+        assertEquals(-1, EDNS.truncate(plain, 11, false));
+        byte[] cut = message.build(0);
+        assertEquals(-1, EDNS.truncate(cut, questionEnd - 1, true));
+    }
+
+    @Test
+    public void addKeepaliveExtendsTrailingOpt() {
+        Message message = new Message().question("www.example", DNSRecord.TYPE_A);
+        int opt = message.length();
+        message.opt(1232, 0, COOKIE);
+        int length = message.length();
+        byte[] query = message.build(16);
+
+        int added = EDNS.addKeepalive(query, length);
+        assertEquals(length + EDNS.KEEPALIVE_OPTION_SIZE, added);
+        assertEquals(COOKIE.length + 4, readShort(query, opt + 9));
+        assertEquals(EDNS.OPTION_TCP_KEEPALIVE, readShort(query, length));
+        assertEquals(0, readShort(query, length + 2));
+        assertEquals(opt, EDNS.findOpt(query, added));
+        assertEquals("option already present", added, EDNS.addKeepalive(query, added));
+
+        byte[] full = message.build(0);
+        assertEquals(full.length, EDNS.addKeepalive(full, full.length));
+
+        byte[] plain = new Message().question("www.example", DNSRecord.TYPE_A).build(16);
+        assertEquals(plain.length - 16, EDNS.addKeepalive(plain, plain.length - 16));
+
+        Message notLast = new Message().question("www.example", DNSRecord.TYPE_A)
+            .opt(1232, 0, new byte[0]).record(ADDITIONAL, "ns.example", DNSRecord.TYPE_A, ADDRESS);
+        int notLastLength = notLast.length();
+        assertEquals(notLastLength, EDNS.addKeepalive(notLast.build(16), notLastLength));
+    }
+
+    @Test
+    public void keepaliveTimeoutReadsOptionAmongOthers() {
+        byte[] response = new Message().question("www.example", DNSRecord.TYPE_A)
+            .opt(1232, 0, concat(COOKIE, keepalive(50))).build(0);
+        assertEquals(5000, EDNS.keepaliveTimeout(response, response.length));
+
+        byte[] closing = new Message().question("www.example", DNSRecord.TYPE_A)
+            .opt(1232, 0, keepalive(0)).build(0);
+        assertEquals(0, EDNS.keepaliveTimeout(closing, closing.length));
+
+        byte[] empty = new Message().question("www.example", DNSRecord.TYPE_A)
+            .opt(1232, 0, new byte[] { 0, 11, 0, 0 }).build(0);
+        assertEquals("option without a timeout", -1, EDNS.keepaliveTimeout(empty, empty.length));
+
+        byte[] cookieOnly = new Message().question("www.example", DNSRecord.TYPE_A).opt(1232, 0, COOKIE).build(0);
+        assertEquals(-1, EDNS.keepaliveTimeout(cookieOnly, cookieOnly.length));
+        byte[] plain = new Message().question("www.example", DNSRecord.TYPE_A).build(0);
+        assertEquals(-1, EDNS.keepaliveTimeout(plain, plain.length));
+
+        // 选项长度超出OPT的RDATA
+        byte[] overrun = new Message().question("www.example", DNSRecord.TYPE_A)
+            .opt(1232, 0, new byte[] { 0, 11, 0, 8, 0, 50 }).build(0);
+        assertEquals(-1, EDNS.keepaliveTimeout(overrun, overrun.length));
+    }
+
+    @Test
+    public void removeKeepaliveShrinksOptAndMessage() {
+        Message message = new Message().question("www.example", DNSRecord.TYPE_A);
+        int opt = message.length();
+        byte[] response = message.opt(1232, 0, concat(keepalive(50), COOKIE)).build(0);
+        int length = EDNS.removeKeepalive(response, response.length);
+        assertEquals(response.length - 6, length);
+        assertEquals(COOKIE.length, readShort(response, opt + 9));
+        assertArrayEquals("the following option moves up", COOKIE,
+            Arrays.copyOfRange(response, opt + 11, opt + 11 + COOKIE.length));
+        assertEquals(-1, EDNS.keepaliveTimeout(response, length));
+        assertEquals(1232, EDNS.payloadSize(response, length));
+
+        // OPT后面还有记录时，后面的记录一起前移
+        Message middle = new Message().question("www.example", DNSRecord.TYPE_A);
+        int middleOpt = middle.length();
+        middle.opt(1232, 0, keepalive(10)).record(ADDITIONAL, "ns.example", DNSRecord.TYPE_A, ADDRESS);
+        byte[] shifted = middle.build(0);
+        int shiftedLength = EDNS.removeKeepalive(shifted, shifted.length);
+        assertEquals(shifted.length - 6, shiftedLength);
+        assertEquals(0, readShort(shifted, middleOpt + 9));
+        assertEquals(middleOpt, EDNS.findOpt(shifted, shiftedLength));
+        assertEquals("the OPT is still followed by the record", shiftedLength, EDNS.stripOpt(shifted, shiftedLength));
+        assertArrayEquals(ADDRESS, Arrays.copyOfRange(shifted, shiftedLength - 4, shiftedLength));
+
+        byte[] none = new Message().question("www.example", DNSRecord.TYPE_A).opt(1232, 0, COOKIE).build(0);
+        assertEquals(none.length, EDNS.removeKeepalive(none, none.length));
+    }
+
+    private static int readShort(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+
+    /**
+     * 手工构造的报文，名字不压缩；记录按添加顺序写入，调用方负责让各部分按顺序添加
+     */
+    private static final class Message {
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final int[] counts = new int[4];
+
+        Message question(String name, int type) {
+            writeName(name);
+            writeShort(type);
+            writeShort(DNSRecord.CLASS_IN);
+            counts[0]++;
+            return this;
+        }
+
+        Message record(int section, String name, int type, byte[] rdata) {
+            return record(section, name, type, DNSRecord.CLASS_IN, 300, rdata);
+        }
+
+        Message opt(int payload, int flags, byte[] options) {
+            return record(ADDITIONAL, "", EDNS.TYPE_OPT, payload, flags, options);
+        }
+
+        private Message record(int section, String name, int type, int dnsClass, long ttl, byte[] rdata) {
+            writeName(name);
+            writeShort(type);
+            writeShort(dnsClass);
+            writeShort((int) (ttl >>> 16));
+            writeShort((int) ttl);
+            writeShort(rdata.length);
+            body.write(rdata, 0, rdata.length);
+            counts[section]++;
+            return this;
+        }
+
+        int length() {
+            return 12 + body.size();
+        }
+
+        /**
+         * @param spare 报文之后留出的余量
+         */
+        byte[] build(int spare) {
+            byte[] data = new byte[length() + spare];
+            data[0] = 0x12;
+            data[1] = 0x34;
+            data[2] = (byte) 0x81;
+            for (int i = 0; i < 4; i++) {
+                data[4 + 2 * i] = (byte) (counts[i] >> 8);
+                data[5 + 2 * i] = (byte) counts[i];
+            }
+            byte[] bytes = body.toByteArray();
+            System.arraycopy(bytes, 0, data, 12, bytes.length);
+            return data;
+        }
+
+        private void writeName(String name) {
+            if (!name.isEmpty()) {
+                for (String label : name.split("\\.")) {
+                    byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+                    body.write(bytes.length);
+                    body.write(bytes, 0, bytes.length);
+                }
+            }
+            body.write(0);
+        }
+
+        private void writeShort(int value) {
+            body.write(value >> 8);
+            body.write(value);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.bupt.dnsrelay.dns;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.bupt.dnsrelay.utils.NameHash;
+
+/**
+ * 检查NameKey在线格式上的哈希和比较：必须与NameHash对点分小写形式的结果一致，并忽略大小写
+ */
+public class NameKeyTest {
+
+    @Test
+    public void wireHashMatchesDottedLowercaseHash() {
+        byte[] message = query("WWW.Example.COM", 1, 1);
+        NameKey key = new NameKey();
+        assertEquals(message.length, key.setFromWire(message, 12, message.length));
+        assertEquals(NameHash.hash("www.example.com"), key.nameHash());
+        assertEquals(NameKey.fromDomain("www.example.com", 1, 1).hash(), key.hash());
+        assertEquals(1, key.getQType());
+        assertEquals(1, key.getQClass());
+        assertEquals("www.example.com", key.toDomainString());
+        assertEquals(17, key.getWireLength());
+    }
+
+    @Test
+    public void fromDomainFoldsCaseAndIgnoresTrailingDot() {
+        NameKey upper = NameKey.fromDomain("Mail.Example.ORG.", 15, 1);
+        NameKey lower = NameKey.fromDomain("mail.example.org", 15, 1);
+        assertEquals(lower, upper);
+        assertEquals(lower.hash(), upper.hash());
+        assertEquals(lower.hashCode(), upper.hashCode());
+        assertEquals("mail.example.org", upper.toDomainString());
+    }
+
+    @Test
+    public void typeAndClassArePartOfTheKey() {
+        NameKey a = NameKey.fromDomain("example.com", 1, 1);
+        NameKey aaaa = NameKey.fromDomain("example.com", 28, 1);
+        assertNotEquals(a, aaaa);
+        assertTrue(a.nameEquals(aaaa));
+        assertEquals(a.nameHash(), aaaa.nameHash());
+        assertNotEquals(a.hash(), aaaa.hash());
+        // 沿CNAME链按其他类型查找时得到的哈希与对应键一致
+        assertEquals(aaaa.hash(), a.hash(28, 1));
+        assertEquals(NameKey.fromDomain("example.com", 5, 1).hash(), a.hash(5, 1));
+    }
+
+    @Test
+    public void rootName() {
+        NameKey root = NameKey.fromDomain("", 2, 1);
+        assertEquals(1, root.getWireLength());
+        assertEquals(NameHash.hash(""), root.nameHash());
+        assertEquals(root, NameKey.fromDomain(".", 2, 1));
+
+        byte[] message = query("", 2, 1);
+        NameKey key = new NameKey();
+        assertEquals(message.length, key.setFromWire(message, 12, message.length));
+        assertEquals(root, key);
+    }
+
+    @Test
+    public void rejectsMalformedWireNames() {
+        NameKey key = new NameKey();
+        byte[] message = query("example.com", 1, 1);
+        assertEquals(-1, key.setFromWire(message, 12, message.length - 1)); // 缺少QCLASS
+        assertEquals(-1, key.setFromWire(message, 12, 15));                  // 标签越界
+
+        byte[] pointer = message.clone();
+        pointer[12] = (byte) 0xC0; // 压缩指针
+        assertEquals(-1, key.setFromWire(pointer, 12, pointer.length));
+
+        byte[] longLabel = new byte[12 + 1 + 64 + 1 + 4];
+        longLabel[12] = 64;
+        assertEquals(-1, key.setFromWire(longLabel, 12, longLabel.length));
+    }
+
+    @Test
+    public void rejectsNamesLongerThan255Bytes() {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            name.append(i > 0 ? "." : "").append(repeat('a', 63));
+        }
+        byte[] message = query(name.toString(), 1, 1);
+        assertEquals(-1, new NameKey().setFromWire(message, 12, message.length));
+        try {
+            NameKey.fromDomain(name.toString(), 1, 1);
+            throw new AssertionError("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // 名字超长
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromDomainRejectsEmptyLabel() {
+        NameKey.fromDomain("a..b", 1, 1);
+    }
+
+    @Test
+    public void copyIsIndependentOfTheMessage() {
+        byte[] message = query("Host.Example.net", 1, 1);
+        NameKey reused = new NameKey();
+        reused.setFromWire(message, 12, message.length);
+        NameKey copy = reused.copy();
+        byte[] other = query("other.example.net", 1, 1);
+        reused.setFromWire(other, 12, other.length);
+        message[13] = 'X'; // 原报文被覆盖也不影响副本
+
+        assertEquals("host.example.net", copy.toDomainString());
+        assertEquals(NameKey.fromDomain("host.example.net", 1, 1), copy);
+        assertNotEquals(copy, reused);
+    }
+
+    @Test
+    public void comparesAgainstWireAndMappedBuffers() {
+        NameKey key = NameKey.fromDomain("www.Example.com", 1, 1);
+        byte[] wire = new byte[32];
+        key.copyNameTo(wire, 3);
+        byte[] mixed = query("WWW.EXAMPLE.COM", 1, 1);
+        assertTrue(key.nameEquals(mixed, 12));
+        assertTrue(key.nameEquals(wire, 3));
+        assertTrue(key.nameEquals(ByteBuffer.wrap(wire), 3));
+        assertFalse(key.nameEquals(wire, 4));
+        assertFalse(key.nameEquals(wire, 20)); // 越界
+    }
+
+    @Test
+    public void labelOffsetsAndLabelEquals() {
+        NameKey key = NameKey.fromDomain("A.bc.DEF", 1, 1);
+        int[] offsets = new int[127];
+        assertEquals(3, key.labelOffsets(offsets));
+        assertArrayEquals(new int[] { 0, 2, 5 }, Arrays.copyOf(offsets, 3));
+        assertTrue(key.labelEquals(0, ascii("a")));
+        assertTrue(key.labelEquals(2, ascii("bc")));
+        assertTrue(key.labelEquals(5, ascii("def")));
+        assertFalse(key.labelEquals(2, ascii("b")));
+        assertEquals('d', key.foldedByteAt(6));
+        assertEquals(3, key.foldedByteAt(5));
+    }
+
+    /**
+     * 构造只有问题部分的报文
+     */
+    static byte[] query(String name, int qtype, int qclass) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x12);
+        out.write(0x34);
+        out.write(0x01);
+        out.write(0);
+        out.write(0);
+        out.write(1);
+        for (int i = 0; i < 6; i++) {
+            out.write(0);
+        }
+        if (!name.isEmpty()) {
+            for (String label : name.split("\\.")) {
+                byte[] bytes = ascii(label);
+                out.write(bytes.length);
+                out.write(bytes, 0, bytes.length);
+            }
+        }
+        out.write(0);
+        out.write(qtype >> 8);
+        out.write(qtype);
+        out.write(qclass >> 8);
+        out.write(qclass);
+        return out.toByteArray();
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,98 @@
+package com.bupt.dnsrelay.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * 检查熔断器的状态机：连续失败后熔断、熔断期间快速失败、冷却后只放行一个探测、
+ * abandon归还探测名额、探测成功恢复和失败重新熔断。时钟由测试控制
+ */
+public class CircuitBreakerTest {
+
+    private long now = 1_000_000L;
+    private final CircuitBreaker breaker = new CircuitBreaker("192.0.2.53", () -> now);
+
+    private void fail(int times) {
+        for (int i = 0; i < times; i++) {
+            assertTrue(breaker.allowRequest());
+            breaker.onFailure();
+        }
+    }
+
+    @Test
+    public void opensAfterFiveConsecutiveFailures() {
+        fail(4);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess();
+        fail(4);
+        assertEquals("a success resets the count", CircuitBreaker.State.CLOSED, breaker.getState());
+        fail(1);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void failsFastWhileOpen() {
+        fail(5);
+        for (int i = 0; i < 10; i++) {
+            assertFalse(breaker.allowRequest());
+            now += 400;
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(10, breaker.getRejected());
+    }
+
+    @Test
+    public void halfOpenAdmitsASingleProbe() {
+        fail(5);
+        now += 5000;
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse("only one probe at a time", breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        assertEquals(2, breaker.getRejected());
+    }
+
+    @Test
+    public void abandonReleasesTheProbeSlot() {
+        fail(5);
+        now += 5000;
+        assertTrue(breaker.allowRequest());
+        breaker.abandon();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue("the slot is free again", breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void probeSuccessCloses() {
+        fail(5);
+        now += 5000;
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess();
+        breaker.onSuccess();
+        fail(4);
+        assertEquals("the failure count starts over", CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void probeFailureReopensForAnotherCooldown() {
+        fail(5);
+        now += 5000;
+        assertTrue(breaker.allowRequest());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        now += 4999;
+        assertFalse(breaker.allowRequest());
+        now += 1;
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+}
@@ -0,0 +1,139 @@
+package com.bupt.dnsrelay.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * 用人为给定的时间检查ClientRateLimiter的GCRA令牌桶：突发上限、按间隔补充、稳定速率、客户端划分和淘汰
+ */
+public class ClientRateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void allowsBurstThenLimits() throws Exception {
+        ClientRateLimiter limiter = new ClientRateLimiter(10, 5, 1024, ClientRateLimiter.Action.DROP);
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        long now = 1_000_000_000L;
+        for (int i = 0; i < 5; i++) {
+            assertTrue("query " + i + " within burst", limiter.tryAcquire(client, now));
+        }
+        assertFalse(limiter.tryAcquire(client, now));
+        assertFalse(limiter.tryAcquire(client, now + SECOND / 10 - 1));
+        // 一个间隔（100毫秒）后恰好补充一个令牌
+        assertTrue(limiter.tryAcquire(client, now + SECOND / 10));
+        assertFalse(limiter.tryAcquire(client, now + SECOND / 10));
+        assertTrue(limiter.describe().contains("limited=3"));
+    }
+
+    @Test
+    public void burstOfOneEnforcesSpacing() throws Exception {
+        ClientRateLimiter limiter = new ClientRateLimiter(100, 1, 1024, ClientRateLimiter.Action.TC);
+        InetAddress client = InetAddress.getByName("192.0.2.2");
+        long interval = SECOND / 100;
+        assertTrue(limiter.tryAcquire(client, 0));
+        assertFalse(limiter.tryAcquire(client, interval - 1));
+        assertTrue(limiter.tryAcquire(client, interval));
+        assertEquals(ClientRateLimiter.Action.TC, limiter.getAction());
+    }
+
+    @Test
+    public void steadyRateIsAlwaysAllowedAndDoubleRateIsHalved() throws Exception {
+        ClientRateLimiter limiter = new ClientRateLimiter(50, 10, 1024, ClientRateLimiter.Action.DROP);
+        InetAddress steady = InetAddress.getByName("198.51.100.1");
+        InetAddress flooding = InetAddress.getByName("198.51.100.2");
+        long interval = SECOND / 50;
+        int allowed = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.tryAcquire(steady, i * interval));
+        }
+        for (int i = 0; i < 2000; i++) {
+            if (limiter.tryAcquire(flooding, i * interval / 2)) {
+                allowed++;
+            }
+        }
+        // 20秒内按速率放行约1000个，加上初始突发
+        assertTrue("allowed " + allowed, allowed >= 1000 && allowed <= 1000 + 10);
+    }
+
+    @Test
+    public void idleClientGetsFullBurstBackButNoMore() throws Exception {
+        ClientRateLimiter limiter = new ClientRateLimiter(10, 3, 1024, ClientRateLimiter.Action.DROP);
+        InetAddress client = InetAddress.getByName("192.0.2.3");
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire(client, 0));
+        }
+        long later = 100 * SECOND;
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire(client, later));
+        }
+        assertFalse("idle time does not accumulate beyond the burst", limiter.tryAcquire(client, later));
+    }
+
+    @Test
+    public void clientsAreIndependentAndIpv6IsCountedPerSlash64() throws Exception {
+        ClientRateLimiter limiter = new ClientRateLimiter(1, 2, 1024, ClientRateLimiter.Action.DROP);
+        InetAddress a = InetAddress.getByName("203.0.113.1");
+        InetAddress b = InetAddress.getByName("203.0.113.2");
+        assertTrue(limiter.tryAcquire(a, 0));
+        assertTrue(limiter.tryAcquire(a, 0));
+        assertFalse(limiter.tryAcquire(a, 0));
+        assertTrue(limiter.tryAcquire(b, 0));
+
+        InetAddress host1 = InetAddress.getByName("2001:db8:1:2::1");
+        InetAddress host2 = InetAddress.getByName("2001:db8:1:2:ffff::9");
+        InetAddress otherNet = InetAddress.getByName("2001:db8:1:3::1");
+        assertTrue(limiter.tryAcquire(host1, 0));
+        assertTrue(limiter.tryAcquire(host2, 0));
+        assertFalse("same /64 shares one bucket", limiter.tryAcquire(host1, 0));
+        assertTrue(limiter.tryAcquire(otherNet, 0));
+    }
+
+    @Test
+    public void survivesNanoTimeWraparound() throws Exception {
+        ClientRateLimiter limiter = new ClientRateLimiter(10, 2, 1024, ClientRateLimiter.Action.DROP);
+        InetAddress client = InetAddress.getByName("192.0.2.4");
+        long now = Long.MAX_VALUE - SECOND / 20; // 下一个间隔跨过long的上限
+        assertTrue(limiter.tryAcquire(client, now));
+        assertTrue(limiter.tryAcquire(client, now));
+        assertFalse(limiter.tryAcquire(client, now));
+        assertTrue(limiter.tryAcquire(client, now + SECOND / 10));
+        assertFalse(limiter.tryAcquire(client, now + SECOND / 10));
+    }
+
+    @Test
+    public void tableSizeIsBoundedByEviction() throws Exception {
+        ClientRateLimiter limiter = new ClientRateLimiter(10, 2, 1, ClientRateLimiter.Action.DROP);
+        InetAddress first = InetAddress.getByName("10.0.0.1");
+        assertTrue(limiter.tryAcquire(first, 0));
+        assertTrue(limiter.tryAcquire(first, 0));
+        assertFalse(limiter.tryAcquire(first, 0));
+
+        // 大量新客户端挤占表中的位置，之后再来的旧客户端令牌早已补满，重新建立的桶结果相同
+        long now = 10 * SECOND;
+        for (int i = 0; i < 10_000; i++) {
+            byte[] address = { 10, 1, (byte) (i >> 8), (byte) i };
+            assertTrue(limiter.tryAcquire(InetAddress.getByAddress(address), now));
+        }
+        assertTrue(limiter.tryAcquire(first, now));
+        assertTrue(limiter.tryAcquire(first, now));
+        assertFalse(limiter.tryAcquire(first, now));
+
+        String stats = limiter.describe();
+        long tracked = Long.parseLong(stats.replaceAll(".*clients=(\\d+).*", "$1"));
+        long evicted = Long.parseLong(stats.replaceAll(".*evicted=(\\d+).*", "$1"));
+        assertTrue(stats, tracked <= 64 * 8);
+        assertTrue(stats, evicted > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveRate() {
+        new ClientRateLimiter(0, 1, 16, ClientRateLimiter.Action.DROP);
+    }
+}
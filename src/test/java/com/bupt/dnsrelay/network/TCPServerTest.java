@@ -0,0 +1,211 @@
+package com.bupt.dnsrelay.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 用绑定在回环地址临时端口上的TCPServer检查RFC 7766的分帧和背压：
+ * 跨多次读取的长度前缀、一次读取中的多个报文、达到MAX_PIPELINED时暂停并从留下的字节恢复、
+ * 半关闭后发完响应再关闭，以及空闲连接的清理
+ */
+public class TCPServerTest {
+
+    private static final long TIMEOUT_MS = 5000;
+    private static final int MESSAGE_SIZE = 17;
+
+    private final BlockingQueue<UDPServer.DNSPacket> received = new LinkedBlockingQueue<>();
+    private TCPServer server;
+    private final List<Socket> sockets = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = new TCPServer(0, 0, new BufferPool(1232, 64, 0), received::add);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        server.stop();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout((int) TIMEOUT_MS);
+        sockets.add(socket);
+        return socket;
+    }
+
+    /** 以id开头、其余字节按id填充的报文 */
+    private static byte[] message(int id) {
+        byte[] message = new byte[MESSAGE_SIZE];
+        Arrays.fill(message, (byte) id);
+        message[0] = (byte) (id >> 8);
+        message[1] = (byte) id;
+        return message;
+    }
+
+    private static byte[] framed(int... ids) {
+        ByteBuffer buffer = ByteBuffer.allocate(ids.length * (MESSAGE_SIZE + 2));
+        for (int id : ids) {
+            buffer.putShort((short) MESSAGE_SIZE).put(message(id));
+        }
+        return buffer.array();
+    }
+
+    private UDPServer.DNSPacket take() throws InterruptedException {
+        UDPServer.DNSPacket packet = received.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("query not dispatched", packet);
+        return packet;
+    }
+
+    private static int id(UDPServer.DNSPacket packet) {
+        return ((packet.getData()[0] & 0xFF) << 8) | (packet.getData()[1] & 0xFF);
+    }
+
+    /** 原样回送查询并结束该查询 */
+    private static void answer(UDPServer.DNSPacket packet) {
+        packet.getConnection().send(packet.getData(), packet.getLength());
+        packet.release();
+    }
+
+    private static int readResponse(DataInputStream in) throws IOException {
+        byte[] response = new byte[in.readUnsignedShort()];
+        in.readFully(response);
+        int id = ((response[0] & 0xFF) << 8) | (response[1] & 0xFF);
+        assertArrayEquals(message(id), response);
+        return id;
+    }
+
+    @Test
+    public void lengthPrefixSplitAcrossReads() throws Exception {
+        Socket socket = connect();
+        OutputStream out = socket.getOutputStream();
+        byte[] bytes = framed(7);
+        int[] cuts = { 0, 1, 2, 9, bytes.length };
+        for (int i = 1; i < cuts.length; i++) {
+            out.write(bytes, cuts[i - 1], cuts[i] - cuts[i - 1]);
+            out.flush();
+            Thread.sleep(50);
+            if (i < cuts.length - 1) {
+                assertNull("dispatched before the message was complete", received.poll());
+            }
+        }
+        UDPServer.DNSPacket packet = take();
+        assertEquals(MESSAGE_SIZE, packet.getLength());
+        assertArrayEquals(message(7), Arrays.copyOf(packet.getData(), packet.getLength()));
+        answer(packet);
+        assertEquals(7, readResponse(new DataInputStream(socket.getInputStream())));
+    }
+
+    @Test
+    public void severalMessagesInOneRead() throws Exception {
+        Socket socket = connect();
+        socket.getOutputStream().write(framed(1, 2, 3));
+        UDPServer.DNSPacket first = take();
+        UDPServer.DNSPacket second = take();
+        UDPServer.DNSPacket third = take();
+        assertEquals(1, id(first));
+        assertEquals(2, id(second));
+        assertEquals(3, id(third));
+        // 响应按完成顺序发送
+        answer(third);
+        answer(first);
+        answer(second);
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertEquals(3, readResponse(in));
+        assertEquals(1, readResponse(in));
+        assertEquals(2, readResponse(in));
+    }
+
+    @Test
+    public void pipelineLimitPausesAndResumesFromUnreadBytes() throws Exception {
+        Socket socket = connect();
+        int total = 70;
+        int[] ids = new int[total];
+        for (int i = 0; i < total; i++) {
+            ids[i] = i + 1;
+        }
+        socket.getOutputStream().write(framed(ids));
+        List<UDPServer.DNSPacket> pending = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            pending.add(take());
+        }
+        assertNull("reading stops at MAX_PIPELINED", received.poll(200, TimeUnit.MILLISECONDS));
+
+        answer(pending.remove(0));
+        UDPServer.DNSPacket resumed = take();
+        assertEquals(65, id(resumed));
+        pending.add(resumed);
+        assertNull("one finished query admits one more", received.poll(200, TimeUnit.MILLISECONDS));
+
+        for (UDPServer.DNSPacket packet : pending) {
+            answer(packet);
+        }
+        pending.clear();
+        for (int id = 66; id <= total; id++) {
+            UDPServer.DNSPacket packet = take();
+            assertEquals(id, id(packet));
+            answer(packet);
+        }
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        boolean[] seen = new boolean[total + 1];
+        for (int i = 0; i < total; i++) {
+            seen[readResponse(in)] = true;
+        }
+        for (int id = 1; id <= total; id++) {
+            assertTrue("response " + id, seen[id]);
+        }
+    }
+
+    @Test
+    public void halfCloseDrainsPendingResponses() throws Exception {
+        Socket socket = connect();
+        socket.getOutputStream().write(framed(1, 2));
+        socket.shutdownOutput();
+        UDPServer.DNSPacket first = take();
+        UDPServer.DNSPacket second = take();
+        Thread.sleep(100); // 服务器读到EOF后连接仍要保留到响应发完
+        answer(second);
+        answer(first);
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertEquals(2, readResponse(in));
+        assertEquals(1, readResponse(in));
+        assertEquals("closed once drained", -1, in.read());
+    }
+
+    @Test
+    public void idleConnectionsAreSweptButBusyOnesAreKept() throws Exception {
+        server.setIdleTimeout(100);
+        Socket idle = connect();
+        Socket busy = connect();
+        busy.getOutputStream().write(framed(9));
+        UDPServer.DNSPacket packet = take();
+        assertEquals("idle connection closed by the sweep", -1, idle.getInputStream().read());
+        answer(packet);
+        assertEquals(9, readResponse(new DataInputStream(busy.getInputStream())));
+    }
+}
@@ -0,0 +1,379 @@
+package com.bupt.dnsrelay.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.bupt.dnsrelay.dns.EDNS;
+
+/**
+ * 用本地的DNS over TLS服务器（测试时用keytool生成的自签名证书）检查TlsConnector和StreamUpstreamPool：
+ * 同一连接上流水线查询的乱序响应、上游关闭连接后的重连、会话恢复、edns-tcp-keepalive超时，
+ * 以及trust指定的证书与系统信任证书同时生效（系统信任证书由测试CA代替）
+ */
+public class TlsConnectorTest {
+
+    private static final String PASSWORD = "changeit";
+    private static final long TIMEOUT_MS = 5000;
+
+    @ClassRule
+    public static final TemporaryFolder FOLDER = new TemporaryFolder();
+
+    private static File keyStore;
+    private static File certificate;
+    private static File signedKeyStore;   // 由测试CA签发的服务器证书
+    private static File caCertificate;
+
+    private DotServer server;
+    private TlsConnector connector;
+    private StreamUpstreamPool pool;
+
+    @BeforeClass
+    public static void generateKey() throws Exception {
+        keyStore = new File(FOLDER.getRoot(), "server.p12");
+        certificate = new File(FOLDER.getRoot(), "server.pem");
+        keytool("-genkeypair", "-alias", "dot", "-keyalg", "RSA", "-keysize", "2048", "-validity", "2",
+            "-dname", "CN=127.0.0.1", "-ext", "san=ip:127.0.0.1", "-storetype", "PKCS12",
+            "-keystore", keyStore.getPath(), "-storepass", PASSWORD, "-keypass", PASSWORD);
+        keytool("-exportcert", "-rfc", "-alias", "dot", "-storetype", "PKCS12",
+            "-keystore", keyStore.getPath(), "-storepass", PASSWORD, "-file", certificate.getPath());
+
+        File caStore = new File(FOLDER.getRoot(), "ca.p12");
+        caCertificate = new File(FOLDER.getRoot(), "ca.pem");
+        signedKeyStore = new File(FOLDER.getRoot(), "signed.p12");
+        File request = new File(FOLDER.getRoot(), "signed.csr");
+        File signed = new File(FOLDER.getRoot(), "signed.pem");
+        keytool("-genkeypair", "-alias", "ca", "-keyalg", "RSA", "-keysize", "2048", "-validity", "2",
+            "-dname", "CN=Test CA", "-ext", "bc:c", "-storetype", "PKCS12",
+            "-keystore", caStore.getPath(), "-storepass", PASSWORD, "-keypass", PASSWORD);
+        keytool("-exportcert", "-rfc", "-alias", "ca", "-storetype", "PKCS12",
+            "-keystore", caStore.getPath(), "-storepass", PASSWORD, "-file", caCertificate.getPath());
+        keytool("-genkeypair", "-alias", "dot", "-keyalg", "RSA", "-keysize", "2048", "-validity", "2",
+            "-dname", "CN=127.0.0.1", "-storetype", "PKCS12",
+            "-keystore", signedKeyStore.getPath(), "-storepass", PASSWORD, "-keypass", PASSWORD);
+        keytool("-certreq", "-alias", "dot", "-storetype", "PKCS12",
+            "-keystore", signedKeyStore.getPath(), "-storepass", PASSWORD, "-file", request.getPath());
+        keytool("-gencert", "-rfc", "-alias", "ca", "-storetype", "PKCS12", "-validity", "2",
+            "-ext", "san=ip:127.0.0.1", "-keystore", caStore.getPath(), "-storepass", PASSWORD,
+            "-infile", request.getPath(), "-outfile", signed.getPath());
+        keytool("-importcert", "-noprompt", "-alias", "ca", "-storetype", "PKCS12",
+            "-keystore", signedKeyStore.getPath(), "-storepass", PASSWORD, "-file", caCertificate.getPath());
+        keytool("-importcert", "-noprompt", "-alias", "dot", "-storetype", "PKCS12",
+            "-keystore", signedKeyStore.getPath(), "-storepass", PASSWORD, "-file", signed.getPath());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new DotServer(keyStore);
+        // 通过trust文件信任自签名证书，证书按IP地址校验
+        SSLContext context = TlsConnector.createContext(Collections.singletonList(certificate.getPath()));
+        connector = new TlsConnector(context, null, 0);
+        pool = new StreamUpstreamPool(server.address(), "test", connector, 1, 0, 0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        pool.close();
+        server.close();
+    }
+
+    @Test
+    public void pipelinedQueriesGetOutOfOrderRepliesOnOneConnection() throws Exception {
+        server.batch = 2; // 收齐两个查询后按相反的顺序回复
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<byte[]> first = executor.submit(() -> exchange(query("q1.example", 0x1111)));
+            Future<byte[]> second = executor.submit(() -> exchange(query("q2.example", 0x2222)));
+            assertAnswer(first.get(), 0x1111, 1);
+            assertAnswer(second.get(), 0x2222, 2);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, server.accepted.get());
+    }
+
+    @Test
+    public void reconnectsAfterServerClosesConnection() throws Exception {
+        server.closeAfterReply = true;
+        for (int i = 1; i <= 3; i++) {
+            assertAnswer(exchange(query("q" + i + ".example", 0x100 + i)), 0x100 + i, i);
+        }
+        assertEquals(3, server.accepted.get());
+    }
+
+    @Test
+    public void resumesSessionOnReconnect() throws Exception {
+        server.closeAfterReply = true;
+        assertAnswer(exchange(query("q1.example", 1)), 1, 1);
+        assertAnswer(exchange(query("q2.example", 2)), 2, 2);
+        assertEquals(2, connector.getHandshakes());
+        assertEquals(1, connector.getResumed());
+    }
+
+    @Test
+    public void sendsKeepaliveAndHonorsServerTimeout() throws Exception {
+        server.keepalive = 0; // 上游希望查询结束后就关闭连接
+        byte[] response = exchange(query("q1.example", 7));
+        assertAnswer(response, 7, 1);
+        assertEquals("keepalive option must not reach the client", -1,
+            EDNS.keepaliveTimeout(response, response.length));
+        byte[] sent = server.queries.get(0);
+        assertArrayEquals(new byte[] { 0, (byte) EDNS.OPTION_TCP_KEEPALIVE, 0, 0 },
+            Arrays.copyOfRange(sent, sent.length - 4, sent.length));
+
+        assertAnswer(exchange(query("q2.example", 8)), 8, 2);
+        assertEquals(2, server.accepted.get());
+    }
+
+    @Test
+    public void trustFilesAddToTheSystemStore() throws Exception {
+        KeyStore system = KeyStore.getInstance("PKCS12");
+        system.load(null, null);
+        try (InputStream in = new FileInputStream(caCertificate)) {
+            system.setCertificateEntry("ca", CertificateFactory.getInstance("X.509").generateCertificate(in));
+        }
+        SSLContext context = TlsConnector.createContext(Collections.singletonList(certificate.getPath()), system);
+        try (DotServer signed = new DotServer(signedKeyStore)) {
+            StreamUpstreamPool caPool = new StreamUpstreamPool(signed.address(), "ca",
+                new TlsConnector(context, null, 0), 1, 0, 0);
+            StreamUpstreamPool trustPool = new StreamUpstreamPool(server.address(), "trust",
+                new TlsConnector(context, null, 0), 1, 0, 0);
+            try {
+                byte[] query = query("q1.example", 1);
+                assertAnswer(caPool.exchange(query, query.length, TIMEOUT_MS), 1, 1);
+                query = query("q2.example", 2);
+                assertAnswer(trustPool.exchange(query, query.length, TIMEOUT_MS), 2, 2);
+            } finally {
+                caPool.close();
+                trustPool.close();
+            }
+
+            // 系统信任证书中没有签发者时，trust文件不能让CA签发的证书通过
+            KeyStore other = KeyStore.getInstance("PKCS12");
+            other.load(null, null);
+            try (InputStream in = new FileInputStream(certificate)) {
+                other.setCertificateEntry("other", CertificateFactory.getInstance("X.509").generateCertificate(in));
+            }
+            SSLContext untrusted = TlsConnector.createContext(Collections.singletonList(certificate.getPath()), other);
+            StreamUpstreamPool rejected = new StreamUpstreamPool(signed.address(), "untrusted",
+                new TlsConnector(untrusted, null, 0), 1, 0, 0);
+            try {
+                byte[] query = query("q3.example", 3);
+                assertNull(rejected.exchange(query, query.length, TIMEOUT_MS));
+            } finally {
+                rejected.close();
+            }
+        }
+    }
+
+    private byte[] exchange(byte[] query) {
+        return pool.exchange(query, query.length, TIMEOUT_MS);
+    }
+
+    /**
+     * 带OPT的A查询，第一个标签的数字决定服务器应答的地址
+     */
+    private static byte[] query(String name, int id) {
+        byte[] query = new byte[512];
+        query[0] = (byte) (id >> 8);
+        query[1] = (byte) id;
+        query[2] = 0x01; // RD
+        query[5] = 1;    // QDCOUNT
+        int pos = 12;
+        for (String label : name.split("\\.")) {
+            byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+            query[pos++] = (byte) bytes.length;
+            System.arraycopy(bytes, 0, query, pos, bytes.length);
+            pos += bytes.length;
+        }
+        query[pos++] = 0;
+        query[pos + 1] = 1; // A
+        query[pos + 3] = 1; // IN
+        int length = EDNS.prepareUpstreamQuery(query, pos + 4);
+        return Arrays.copyOf(query, length);
+    }
+
+    private static void assertAnswer(byte[] response, int id, int address) {
+        assertNotNull("no response", response);
+        assertEquals("transaction ID restored", id, ((response[0] & 0xFF) << 8) | (response[1] & 0xFF));
+        assertEquals(1, ((response[6] & 0xFF) << 8) | (response[7] & 0xFF));
+        int rdata = DotServer.questionEnd(response) + 12;
+        assertArrayEquals(new byte[] { 10, 0, 0, (byte) address }, Arrays.copyOfRange(response, rdata, rdata + 4));
+    }
+
+    private static void keytool(String... args) throws Exception {
+        File bin = new File(System.getProperty("java.home"), "bin");
+        File keytool = new File(bin, File.separatorChar == '\\' ? "keytool.exe" : "keytool");
+        List<String> command = new ArrayList<>();
+        command.add(keytool.getPath());
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        byte[] output = readAll(process.getInputStream());
+        assertEquals(new String(output, StandardCharsets.UTF_8), 0, process.waitFor());
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        byte[] buffer = new byte[4096];
+        int length = 0;
+        for (int n; (n = in.read(buffer, length, buffer.length - length)) > 0; ) {
+            length += n;
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, length * 2);
+            }
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * 最小的DNS over TLS服务器：按第一个标签中的数字应答10.0.0.N
+     */
+    private static final class DotServer implements AutoCloseable {
+        private final SSLServerSocket socket;
+        private final List<SSLSocket> connections = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger accepted = new AtomicInteger();
+        final List<byte[]> queries = Collections.synchronizedList(new ArrayList<>());
+        volatile int batch = 1;               // 攒够多少个查询后一起（逆序）回复
+        volatile boolean closeAfterReply;     // 回复后关闭连接
+        volatile int keepalive = -1;          // 响应中edns-tcp-keepalive的超时（100毫秒单位），-1表示不带
+
+        DotServer(File storeFile) throws Exception {
+            KeyStore store = KeyStore.getInstance("PKCS12");
+            try (InputStream in = new FileInputStream(storeFile)) {
+                store.load(in, PASSWORD.toCharArray());
+            }
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(store, PASSWORD.toCharArray());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            socket = (SSLServerSocket) context.getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread(this::acceptLoop, "dot-test-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        InetSocketAddress address() {
+            return new InetSocketAddress(socket.getInetAddress(), socket.getLocalPort());
+        }
+
+        private void acceptLoop() {
+            try {
+                while (true) {
+                    SSLSocket connection = (SSLSocket) socket.accept();
+                    accepted.incrementAndGet();
+                    connections.add(connection);
+                    Thread handler = new Thread(() -> serve(connection), "dot-test-conn");
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            } catch (IOException e) {
+                // 服务器已关闭
+            }
+        }
+
+        private void serve(SSLSocket connection) {
+            try (SSLSocket s = connection) {
+                DataInputStream in = new DataInputStream(s.getInputStream());
+                OutputStream out = s.getOutputStream();
+                List<byte[]> held = new ArrayList<>();
+                while (true) {
+                    byte[] query = new byte[in.readUnsignedShort()];
+                    in.readFully(query);
+                    queries.add(query);
+                    held.add(query);
+                    if (held.size() < batch) {
+                        continue;
+                    }
+                    for (int i = held.size() - 1; i >= 0; i--) {
+                        byte[] response = answer(held.get(i));
+                        out.write(response.length >> 8);
+                        out.write(response.length);
+                        out.write(response);
+                    }
+                    out.flush();
+                    held.clear();
+                    if (closeAfterReply) {
+                        return;
+                    }
+                }
+            } catch (EOFException e) {
+                // 客户端关闭了连接
+            } catch (IOException e) {
+                // 服务器关闭时连接被中断
+            }
+        }
+
+        private byte[] answer(byte[] query) {
+            int questionEnd = questionEnd(query);
+            int label = query[12] & 0xFF;
+            int address = query[12 + label] - '0';
+            byte[] response = Arrays.copyOf(query, questionEnd + 16 + (keepalive >= 0 ? 17 : 0));
+            response[2] = (byte) 0x81;
+            response[3] = (byte) 0x80;
+            response[7] = 1;
+            response[9] = 0;
+            response[11] = (byte) (keepalive >= 0 ? 1 : 0);
+            byte[] record = { (byte) 0xC0, 12, 0, 1, 0, 1, 0, 0, 0, 60, 0, 4, 10, 0, 0, (byte) address };
+            System.arraycopy(record, 0, response, questionEnd, record.length);
+            if (keepalive >= 0) {
+                byte[] opt = { 0, 0, 41, 4, (byte) 0xD0, 0, 0, 0, 0, 0, 6,
+                    0, (byte) EDNS.OPTION_TCP_KEEPALIVE, 0, 2, (byte) (keepalive >> 8), (byte) keepalive };
+                System.arraycopy(opt, 0, response, questionEnd + 16, opt.length);
+            }
+            return response;
+        }
+
+        static int questionEnd(byte[] message) {
+            int pos = 12;
+            while (message[pos] != 0) {
+                pos += (message[pos] & 0xFF) + 1;
+            }
+            return pos + 5;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+            synchronized (connections) {
+                for (SSLSocket connection : connections) {
+                    connection.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.bupt.dnsrelay.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * 检查自适应限制器：RTT上升时收缩、只有限值被用到时才增长、失败时乘性减小、
+ * 限值已满时acquire超时失败。RTT由测试直接传入，结果与实际耗时无关
+ */
+public class UpstreamLimiterTest {
+
+    private static final long MS = 1_000_000L;
+
+    private final UpstreamLimiter limiter = new UpstreamLimiter("192.0.2.53");
+
+    /** 只有一个在途查询的请求，不会被视为饱和 */
+    private void single(long rttNanos) {
+        assertTrue(limiter.acquire(0));
+        limiter.release(rttNanos, true);
+    }
+
+    private void acquire(int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(limiter.acquire(0));
+        }
+    }
+
+    @Test
+    public void limitShrinksWhenRttRises() {
+        single(MS);
+        assertEquals(20, limiter.getLimit());
+        int previous = limiter.getLimit();
+        for (int i = 0; i < 5; i++) {
+            single(10 * MS);
+            assertTrue("limit " + limiter.getLimit() + " after " + previous, limiter.getLimit() < previous);
+            previous = limiter.getLimit();
+        }
+        for (int i = 0; i < 100; i++) {
+            single(10 * MS);
+        }
+        assertEquals("a high RTT never drops the limit below the minimum", 1, limiter.getLimit());
+    }
+
+    @Test
+    public void limitHoldsAtLowTraffic() {
+        for (int i = 0; i < 200; i++) {
+            single(MS);
+        }
+        assertEquals(20, limiter.getLimit());
+    }
+
+    @Test
+    public void limitGrowsOnlyWhenSaturated() {
+        single(MS);
+        acquire(14);
+        for (int i = 0; i < 200; i++) {
+            acquire(1);
+            limiter.release(MS, true);  // 15 in flight against a limit of 20 or more
+        }
+        int grown = limiter.getLimit();
+        assertTrue("limit " + grown, grown > 20);
+        assertTrue("growth stops once fewer than half the slots are used, limit " + grown, grown <= 31);
+        assertEquals(14, limiter.getInFlight());
+    }
+
+    @Test
+    public void failuresBackOffMultiplicatively() {
+        limiter.acquire(0);
+        limiter.release(0, false);
+        assertEquals(18, limiter.getLimit());
+        limiter.acquire(0);
+        limiter.release(0, false);
+        assertEquals(16, limiter.getLimit());
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire(0);
+            limiter.release(0, false);
+        }
+        assertEquals(1, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void acquireTimesOutAtTheLimit() {
+        acquire(20);
+        assertFalse(limiter.acquire(0));
+        long start = System.nanoTime();
+        assertFalse(limiter.acquire(50));
+        assertTrue("waited for the full timeout", System.nanoTime() - start >= 45 * MS);
+        assertEquals(2, limiter.getRejected());
+        assertEquals(20, limiter.getInFlight());
+    }
+
+    @Test
+    public void waitingAcquireSucceedsWhenASlotIsReleased() throws InterruptedException {
+        acquire(20);
+        AtomicBoolean acquired = new AtomicBoolean();
+        Thread waiter = new Thread(() -> acquired.set(limiter.acquire(10_000)));
+        waiter.start();
+        while (waiter.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+        limiter.release(MS, true);
+        waiter.join(10_000);
+        assertTrue(acquired.get());
+        assertEquals(20, limiter.getInFlight());
+        assertEquals(0, limiter.getRejected());
+    }
+}
@@ -0,0 +1,60 @@
+package com.bupt.dnsrelay.pipeline;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * 检查AdaptivePoolController的调整决策：排队延迟超标时扩容（至少一个线程，或按Little定律直接扩到估算需求）、
+ * 没有任务完成且有积压时加倍、满足全部条件时才缩减一个线程，以及[minThreads, maxThreads]的限制。
+ * 周期为500毫秒，目标排队延迟为10毫秒
+ */
+public class AdaptivePoolControllerTest {
+
+    private static final long MS = 1_000_000L;
+
+    // target不访问线程池
+    private final AdaptivePoolController controller = new AdaptivePoolController(null, 2, 64, 10, 0);
+
+    /** 完成count个查询，每个排队waitMs、服务serviceMs */
+    private int target(int current, long count, double waitMs, double serviceMs, int queued, int active) {
+        return controller.target(current, count, (long) (count * waitMs * MS), (long) (count * serviceMs * MS),
+            queued, active);
+    }
+
+    @Test
+    public void queueDelayAboveTargetAddsAtLeastOneThread() {
+        // 20 queries/s × 1ms 只需要1个线程，但排队超标仍然扩容
+        assertEquals(5, target(4, 10, 20, 1, 0, 4));
+    }
+
+    @Test
+    public void queueDelayAboveTargetJumpsToLittlesLawEstimate() {
+        // 400 queries/s × 50ms × 1.25 = 25
+        assertEquals(25, target(4, 200, 20, 50, 0, 4));
+        assertEquals("backlog counts as arrivals", 50, target(4, 200, 20, 50, 200, 4));
+    }
+
+    @Test
+    public void noCompletionsWithBacklogDoublesThePool() {
+        assertEquals(12, target(6, 0, 0, 0, 5, 6));
+    }
+
+    @Test
+    public void shrinksByOneOnlyWhenDelayIsLowDemandIsLowAndThreadsAreIdle() {
+        assertEquals(7, target(8, 10, 1, 1, 0, 2));
+        assertEquals("idle period", 7, target(8, 0, 0, 0, 0, 0));
+        assertEquals("every thread busy", 8, target(8, 10, 1, 1, 0, 8));
+        assertEquals("estimated demand not below the pool size", 8, target(8, 1000, 1, 10, 0, 2));
+        assertEquals("delay between half the target and the target", 8, target(8, 10, 7, 1, 0, 2));
+        assertEquals("delay at the target", 8, target(8, 10, 10, 1, 0, 2));
+    }
+
+    @Test
+    public void resultIsClampedToMinAndMax() {
+        assertEquals(64, target(40, 0, 0, 0, 5, 40));
+        assertEquals(64, target(4, 1000, 20, 100, 0, 4));
+        assertEquals(2, target(2, 0, 0, 0, 0, 0));
+        assertEquals("a pool below the minimum is raised", 2, target(1, 10, 5, 1, 0, 1));
+    }
+}
@@ -0,0 +1,133 @@
+package com.bupt.dnsrelay.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.bupt.dnsrelay.network.BufferPool;
+import com.bupt.dnsrelay.network.UDPServer;
+
+/**
+ * 检查QueryPipeline在上游阶段阻塞、upstream环形缓冲区已满时：
+ * 解码线程不等待，未命中的查询得到过载响应，本地应答照常发出
+ */
+public class QueryPipelineTest {
+
+    private static final int LOCAL = 0;
+    private static final int MISS = 1;
+    private static final int ANSWERED = 100;
+    private static final int SHED = 200;
+    private static final long TIMEOUT_MS = 5000;
+
+    private final BufferPool pool = new BufferPool(64, 16, 0);
+    private final CountDownLatch upstreamEntered = new CountDownLatch(1);
+    private final CountDownLatch upstreamReleased = new CountDownLatch(1);
+    private final BlockingQueue<int[]> sent = new LinkedBlockingQueue<>(); // {查询编号, 响应长度}
+    private QueryPipeline pipeline;
+
+    /**
+     * 查询数据的第一个字节是编号，第二个字节表示能否本地应答
+     */
+    private final QueryPipeline.Stages stages = new QueryPipeline.Stages() {
+        @Override
+        public boolean decode(QueryEvent event) {
+            event.responseLength = ANSWERED;
+            return event.packet.getData()[1] == LOCAL;
+        }
+
+        @Override
+        public void upstream(QueryEvent event) {
+            upstreamEntered.countDown();
+            try {
+                upstreamReleased.await(); // 上游无响应
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void shed(QueryEvent event) {
+            event.responseLength = SHED;
+        }
+
+        @Override
+        public void send(QueryEvent event) {
+            sent.add(new int[] { event.packet.getData()[0], event.responseLength });
+        }
+    };
+
+    @After
+    public void tearDown() {
+        upstreamReleased.countDown();
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+    }
+
+    /**
+     * 等解码线程取走之前的查询再提交，ingress与upstream同样只有4个槽位
+     */
+    private void offer(int id, int kind) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (pipeline.getIngress().getDepth() > 0) {
+            assertTrue("decode stage stalled", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        ByteBuffer buffer = pool.lease();
+        buffer.put(0, (byte) id).put(1, (byte) kind);
+        long now = System.nanoTime();
+        assertTrue(pipeline.offer(new UDPServer.DNSPacket(buffer, 12, InetAddress.getLoopbackAddress(), 5353, pool,
+            now, now + TimeUnit.SECONDS.toNanos(60))));
+    }
+
+    private int[] take() throws InterruptedException {
+        int[] result = sent.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("nothing sent", result);
+        return result;
+    }
+
+    @Test
+    public void localAnswersGoOutWhileTheUpstreamRingIsFull() throws Exception {
+        pipeline = new QueryPipeline(4, 1, stages);
+        pipeline.start();
+        offer(1, MISS);
+        assertTrue(upstreamEntered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        for (int id = 2; id <= 4; id++) {
+            offer(id, MISS); // 填满upstream的其余3个槽位（查询1的槽位在处理结束前不归还）
+        }
+        offer(5, MISS);
+        offer(6, LOCAL);
+
+        int[] shed = take();
+        assertEquals(5, shed[0]);
+        assertEquals(SHED, shed[1]);
+        int[] local = take();
+        assertEquals(6, local[0]);
+        assertEquals(ANSWERED, local[1]);
+        assertEquals(1, pipeline.getUpstreamShed());
+        assertEquals(3, pipeline.getUpstream().getDepth());
+
+        upstreamReleased.countDown();
+        Set<Integer> forwarded = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            int[] result = take();
+            assertEquals(ANSWERED, result[1]);
+            forwarded.add(result[0]);
+        }
+        assertEquals(4, forwarded.size());
+        assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+    }
+}
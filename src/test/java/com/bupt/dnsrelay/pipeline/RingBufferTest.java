@@ -0,0 +1,204 @@
+package com.bupt.dnsrelay.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * 检查RingBuffer：容量取整、满和空的边界、批量认领的顺序，以及多生产者多消费者下每个槽位恰好被处理一次
+ */
+public class RingBufferTest {
+
+    /**
+     * 测试用的可复用槽位
+     */
+    private static final class Slot {
+        long value;
+    }
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(2, new RingBuffer<>("r", 1, Slot::new).getCapacity());
+        assertEquals(8, new RingBuffer<>("r", 5, Slot::new).getCapacity());
+        assertEquals(8, new RingBuffer<>("r", 8, Slot::new).getCapacity());
+        assertEquals(16, new RingBuffer<>("r", 9, Slot::new).getCapacity());
+    }
+
+    @Test
+    public void claimFailsWhenFullAndSucceedsAfterDrain() {
+        RingBuffer<Slot> ring = new RingBuffer<>("r", 4, Slot::new);
+        for (int i = 0; i < 4; i++) {
+            long sequence = ring.tryClaim();
+            assertEquals(i, sequence);
+            ring.get(sequence).value = i;
+            ring.publish(sequence);
+        }
+        assertEquals(-1, ring.tryClaim());
+        assertEquals(4, ring.getDepth());
+
+        List<Long> seen = new ArrayList<>();
+        assertEquals(1, ring.drain(slot -> seen.add(slot.value), 1));
+        long sequence = ring.tryClaim();
+        assertEquals(4, sequence);
+        assertEquals(-1, ring.tryClaim());
+    }
+
+    @Test
+    public void drainReturnsZeroWhenEmpty() {
+        RingBuffer<Slot> ring = new RingBuffer<>("r", 4, Slot::new);
+        assertEquals(0, ring.drain(slot -> { }, 16));
+        assertEquals(0, ring.getConsumed());
+    }
+
+    @Test
+    public void drainStopsAtFirstUnpublishedSlot() {
+        RingBuffer<Slot> ring = new RingBuffer<>("r", 8, Slot::new);
+        long first = ring.tryClaim();
+        long second = ring.tryClaim();
+        ring.get(second).value = 2;
+        ring.publish(second);
+        // 后认领的先发布，消费者不能越过尚未发布的槽位
+        assertEquals(0, ring.drain(slot -> { }, 8));
+
+        ring.get(first).value = 1;
+        ring.publish(first);
+        List<Long> seen = new ArrayList<>();
+        assertEquals(2, ring.drain(slot -> seen.add(slot.value), 8));
+        assertEquals(1L, (long) seen.get(0));
+        assertEquals(2L, (long) seen.get(1));
+    }
+
+    @Test
+    public void drainHonorsMaxBatchAndKeepsOrder() {
+        RingBuffer<Slot> ring = new RingBuffer<>("r", 16, Slot::new);
+        for (int i = 0; i < 10; i++) {
+            long sequence = ring.tryClaim();
+            ring.get(sequence).value = i;
+            ring.publish(sequence);
+        }
+        List<Long> seen = new ArrayList<>();
+        assertEquals(4, ring.drain(slot -> seen.add(slot.value), 4));
+        assertEquals(4, ring.drain(slot -> seen.add(slot.value), 4));
+        assertEquals(2, ring.drain(slot -> seen.add(slot.value), 4));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, (long) seen.get(i));
+        }
+        assertEquals(10, ring.getConsumed());
+        assertEquals(3, ring.getBatches());
+        assertEquals(10, ring.getMaxDepth());
+    }
+
+    @Test
+    public void slotsAreReleasedEvenIfHandlerThrows() {
+        RingBuffer<Slot> ring = new RingBuffer<>("r", 2, Slot::new);
+        ring.publish(ring.tryClaim());
+        ring.publish(ring.tryClaim());
+        try {
+            ring.drain(slot -> {
+                throw new IllegalStateException("handler failure");
+            }, 1);
+        } catch (IllegalStateException expected) {
+            // 处理器的异常传给调用方
+        }
+        assertTrue("slot must be reusable after a failing handler", ring.tryClaim() >= 0);
+    }
+
+    @Test
+    public void wrapsAroundManyTimes() {
+        RingBuffer<Slot> ring = new RingBuffer<>("r", 4, Slot::new);
+        long expected = 0;
+        long[] next = { 0 };
+        for (int round = 0; round < 1000; round++) {
+            for (int i = 0; i < 3; i++) {
+                long sequence = ring.tryClaim();
+                ring.get(sequence).value = expected++;
+                ring.publish(sequence);
+            }
+            ring.drain(slot -> assertEquals(next[0]++, slot.value), 4);
+        }
+        assertEquals(3000, ring.getConsumed());
+        assertEquals(0, ring.getDepth());
+    }
+
+    @Test
+    public void sleepingConsumerIsWokenByPublish() throws Exception {
+        RingBuffer<Slot> ring = new RingBuffer<>("r", 4, Slot::new);
+        CountDownLatch woke = new CountDownLatch(1);
+        Thread consumer = new Thread(() -> {
+            ring.awaitPublished(TimeUnit.SECONDS.toNanos(10));
+            woke.countDown();
+        });
+        consumer.start();
+        Thread.sleep(100);
+        long start = System.nanoTime();
+        ring.publish(ring.tryClaim());
+        assertTrue("consumer not woken", woke.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        consumer.join();
+    }
+
+    @Test
+    public void multipleProducersAndConsumersSeeEachValueOnce() throws Exception {
+        final int producers = 4;
+        final int consumers = 4;
+        final int perProducer = 50_000;
+        final int total = producers * perProducer;
+        RingBuffer<Slot> ring = new RingBuffer<>("r", 64, Slot::new);
+        AtomicIntegerArray counts = new AtomicIntegerArray(total);
+        AtomicLong consumedSum = new AtomicLong();
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    long sequence = ring.claim(running::get);
+                    ring.get(sequence).value = base + i;
+                    ring.publish(sequence);
+                }
+            }));
+        }
+        AtomicLong remaining = new AtomicLong(total);
+        for (int c = 0; c < consumers; c++) {
+            threads.add(new Thread(() -> {
+                while (remaining.get() > 0) {
+                    int n = ring.drain(slot -> {
+                        counts.incrementAndGet((int) slot.value);
+                        consumedSum.addAndGet(slot.value);
+                    }, 16);
+                    if (n == 0) {
+                        ring.awaitPublished(TimeUnit.MILLISECONDS.toNanos(1));
+                    } else {
+                        remaining.addAndGet(-n);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+            assertTrue("thread did not finish", !thread.isAlive());
+        }
+        running.set(false);
+        ring.wakeAll();
+
+        for (int i = 0; i < total; i++) {
+            assertEquals("value " + i, 1, counts.get(i));
+        }
+        assertEquals((long) total * (total - 1) / 2, consumedSum.get());
+        assertEquals(total, ring.getConsumed());
+        assertTrue(ring.getMaxDepth() <= ring.getCapacity());
+    }
+}